@@ -0,0 +1,16 @@
+package com.example.thecommunication;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+// Süre hedefleri cihaza ve yüke bağlı; normal test koşusunda sadece loglanır, sınırlar
+// (ve uzun süren benchmark'lar) ancak açıkça istenince çalışır:
+// ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    static boolean requested() {
+        return "true".equals(InstrumentationRegistry.getArguments().getString("benchmark"));
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.thecommunication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// Geçmiş eşitlemesinden gelen mesajlar (NativeLib.onHistoryRecovered): store'a zaman sırasıyla
+// yazılıyor mu, bildirim ve kişi listesi aboneliklerine (global) gitmeden sadece açık sohbete mi
+// haber veriliyor
+@RunWith(AndroidJUnit4.class)
+public class HistoryRecoveryTest {
+
+    private static final String DB_NAME = "history_test.db";
+    private static final String PEER = "peer-history";
+
+    private Context context;
+    private MessageStore store;
+
+    @Before
+    public void openStore() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        store = new MessageStore(context, DB_NAME);
+        NativeLib.setMessageStore(store);
+    }
+
+    @After
+    public void dropStore() {
+        NativeLib.setMessageStore(null);
+        store.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void historyIsStoredInTimestampOrder() {
+        store.appendBatch(new String[]{PEER}, new String[]{"live"}, new long[]{5_000});
+
+        NativeLib.getInstance().onHistoryRecovered(PEER,
+                new String[]{"c", "a", "b"},
+                new long[]{3_000, 1_000, 2_000},
+                new boolean[]{false, true, false});
+
+        List<Message> page = store.loadRecent(PEER, MessageStore.PAGE_SIZE);
+        String[] contents = new String[page.size()];
+        boolean[] sentByMe = new boolean[page.size()];
+        for (int i = 0; i < page.size(); i++) {
+            contents[i] = page.get(i).getContent();
+            sentByMe[i] = page.get(i).isSentByMe();
+            assertEquals(NativeLib.MESSAGE_DELIVERED, page.get(i).getStatus());
+        }
+        assertArrayEquals(new String[]{"a", "b", "c", "live"}, contents);
+        assertArrayEquals(new boolean[]{true, false, false, false}, sentByMe);
+    }
+
+    @Test
+    public void historyOnlyReachesThePeersSubscribers() throws InterruptedException {
+        CountDownLatch history = new CountDownLatch(1);
+        AtomicInteger globalCalls = new AtomicInteger();
+        MessageRouter.Subscriber chat = new MessageRouter.Subscriber() {
+            @Override
+            public void onMessages(String peerId, List<IncomingMessage> messages) {
+            }
+
+            @Override
+            public void onHistory(String peerId) {
+                history.countDown();
+            }
+        };
+        // NodeService (bildirim) ve MainActivity (önizleme) global abonedir
+        MessageRouter.Subscriber global = new MessageRouter.Subscriber() {
+            @Override
+            public void onMessages(String peerId, List<IncomingMessage> messages) {
+                globalCalls.incrementAndGet();
+            }
+
+            @Override
+            public void onBatchStart() {
+                globalCalls.incrementAndGet();
+            }
+
+            @Override
+            public void onHistory(String peerId) {
+                globalCalls.incrementAndGet();
+            }
+        };
+        MessageRouter router = MessageRouter.getInstance();
+        router.subscribe(PEER, chat);
+        router.subscribeAll(global);
+        try {
+            NativeLib.getInstance().onHistoryRecovered(PEER,
+                    new String[]{"old"}, new long[]{1_000}, new boolean[]{false});
+
+            assertTrue(history.await(5, TimeUnit.SECONDS));
+            // Ana thread'de sırada kalan her şey de çalışsın
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            });
+            assertEquals(0, globalCalls.get());
+        } finally {
+            router.unsubscribe(PEER, chat);
+            router.unsubscribeAll(global);
+        }
+    }
+}
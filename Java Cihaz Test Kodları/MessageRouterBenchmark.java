@@ -0,0 +1,182 @@
+package com.example.thecommunication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// MessageRouter dağıtımı: doğru abonelere gidiyor mu, N peer / M abone ile mesaj başına ne kadar sürüyor.
+// Teslim ana thread'de olduğu için cihazda çalışır (Handler/Looper).
+@RunWith(AndroidJUnit4.class)
+public class MessageRouterBenchmark {
+
+    private static final int BATCH = 10_000;
+    private static final int RUNS = 9;
+    // Toplam (gruplama + ana thread'de teslim) mesaj başına üst sınır; sadece benchmark
+    // koşusunda sınanır (Benchmarks.requested), yoksa loglanır
+    private static final long TARGET_NS_PER_MESSAGE = 20_000;
+
+    // Gelen mesajları sayar; global olarak abone olunca onBatchEnd bekleyen testi uyandırır
+    private static class Counter implements MessageRouter.Subscriber {
+        final List<IncomingMessage> received = new ArrayList<>();
+        final List<String> peers = new ArrayList<>();
+        volatile long count;
+        volatile CountDownLatch batchEnd;
+        int batchStarts;
+
+        @Override
+        public void onMessages(String peerId, List<IncomingMessage> messages) {
+            count += messages.size();
+            if (batchEnd == null) {
+                received.addAll(messages);
+                peers.add(peerId);
+            }
+        }
+
+        @Override
+        public void onBatchStart() {
+            batchStarts++;
+        }
+
+        @Override
+        public void onBatchEnd() {
+            if (batchEnd != null) {
+                batchEnd.countDown();
+            }
+        }
+    }
+
+    private static List<IncomingMessage> batch(String[] peers, int size) {
+        List<IncomingMessage> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            batch.add(new IncomingMessage(i, peers[i % peers.length], "message " + i, i));
+        }
+        return batch;
+    }
+
+    private static String[] peers(String prefix, int count) {
+        String[] peers = new String[count];
+        for (int i = 0; i < count; i++) {
+            peers[i] = prefix + i;
+        }
+        return peers;
+    }
+
+    @Test
+    public void routesByPeer() throws InterruptedException {
+        MessageRouter router = MessageRouter.getInstance();
+        String[] peers = peers("route-peer-", 3);
+        Counter[] perPeer = new Counter[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            perPeer[i] = new Counter();
+            router.subscribe(peers[i], perPeer[i]);
+        }
+        Counter unsubscribed = new Counter();
+        router.subscribe(peers[0], unsubscribed);
+        router.unsubscribe(peers[0], unsubscribed);
+        Counter global = new Counter();
+        router.subscribeAll(global);
+        // İkinci kayıt yok sayılır
+        router.subscribeAll(global);
+
+        try {
+            List<IncomingMessage> messages = batch(peers, 30);
+            CountDownLatch done = new CountDownLatch(1);
+            // Kayıt tutan sayaç sonrası için ayrı bir global abone
+            Counter waiter = new Counter();
+            waiter.batchEnd = done;
+            router.subscribeAll(waiter);
+            router.dispatch(messages);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            router.unsubscribeAll(waiter);
+
+            for (int i = 0; i < peers.length; i++) {
+                assertEquals(Collections.singletonList(peers[i]), perPeer[i].peers);
+                assertEquals(10, perPeer[i].received.size());
+                for (int j = 0; j < perPeer[i].received.size(); j++) {
+                    IncomingMessage msg = perPeer[i].received.get(j);
+                    assertEquals(peers[i], msg.getSenderId());
+                    assertEquals(i + j * peers.length, msg.getId());
+                }
+            }
+            assertEquals(0, unsubscribed.count);
+            // Global abone peer başına bir liste alır (ilk görülme sırasıyla), grup başına bir başlangıç
+            assertEquals(Arrays.asList(peers), global.peers);
+            assertEquals(30, global.received.size());
+            assertEquals(1, global.batchStarts);
+        } finally {
+            for (int i = 0; i < peers.length; i++) {
+                router.unsubscribe(peers[i], perPeer[i]);
+            }
+            router.unsubscribeAll(global);
+        }
+    }
+
+    @Test
+    public void dispatchCostPerMessage() throws InterruptedException {
+        int[][] shapes = {{1, 1}, {10, 1}, {100, 3}, {1000, 5}};
+        for (int[] shape : shapes) {
+            measure(shape[0], shape[1]);
+        }
+    }
+
+    private void measure(int peerCount, int subscribersPerPeer) throws InterruptedException {
+        MessageRouter router = MessageRouter.getInstance();
+        String[] peers = peers("bench-" + peerCount + "-", peerCount);
+        List<Counter> subscribers = new ArrayList<>();
+        for (String peer : peers) {
+            for (int s = 0; s < subscribersPerPeer; s++) {
+                Counter counter = new Counter();
+                counter.batchEnd = new CountDownLatch(0);
+                router.subscribe(peer, counter);
+                subscribers.add(counter);
+            }
+        }
+        Counter global = new Counter();
+        router.subscribeAll(global);
+
+        try {
+            List<IncomingMessage> messages = batch(peers, BATCH);
+            long[] samples = new long[RUNS];
+            for (int run = 0; run < RUNS; run++) {
+                global.batchEnd = new CountDownLatch(1);
+                long start = System.nanoTime();
+                router.dispatch(messages);
+                assertTrue(global.batchEnd.await(10, TimeUnit.SECONDS));
+                samples[run] = System.nanoTime() - start;
+            }
+
+            long perPeerDeliveries = 0;
+            for (Counter counter : subscribers) {
+                perPeerDeliveries += counter.count;
+            }
+            assertEquals((long) RUNS * BATCH * subscribersPerPeer, perPeerDeliveries);
+            assertEquals((long) RUNS * BATCH, global.count);
+
+            Arrays.sort(samples);
+            long perMessage = samples[RUNS / 2] / BATCH;
+            android.util.Log.i("RouterBenchmark", peerCount + " peer(s) x " + subscribersPerPeer
+                    + " subscriber(s): " + perMessage + " ns/message (median of " + RUNS + ", target "
+                    + TARGET_NS_PER_MESSAGE + ")");
+            if (Benchmarks.requested()) {
+                assertTrue(peerCount + "x" + subscribersPerPeer + ": " + perMessage + " ns/message",
+                        perMessage < TARGET_NS_PER_MESSAGE);
+            }
+        } finally {
+            for (String peer : peers) {
+                for (Counter counter : subscribers) {
+                    router.unsubscribe(peer, counter);
+                }
+            }
+            router.unsubscribeAll(global);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.thecommunication;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// 500k mesajlık geçmişte tam metin arama süresi (hedef: sorgu başına 100 ms altı).
+// Doldurması dakikalar sürer ve süre hedefi cihaza bağlıdır; sadece benchmark koşusunda çalışır:
+// ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+@RunWith(AndroidJUnit4.class)
+public class MessageStoreSearchBenchmark {
+
+    private static final String DB_NAME = "search_benchmark.db";
+    private static final int MESSAGE_COUNT = 500_000;
+    private static final int BATCH = 5_000;
+    private static final int PEERS = 50;
+    private static final int RUNS = 20;
+    private static final long TARGET_MS = 100;
+
+    private static final String[] WORDS = {
+            "merhaba", "nasılsın", "yarın", "toplantı", "istanbul", "ankara", "kahve", "akşam",
+            "proje", "dosya", "gönderdim", "tamam", "teşekkürler", "görüşürüz", "hafta", "sonu",
+            "fotoğraf", "adres", "telefon", "bilet", "uçak", "tren", "otobüs", "saat", "dakika",
+            "hello", "meeting", "tomorrow", "coffee", "project", "file", "thanks", "see", "you"
+    };
+
+    private static Context context;
+    private static MessageStore store;
+
+    @BeforeClass
+    public static void fillStore() throws InterruptedException {
+        assumeTrue(Benchmarks.requested());
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        store = new MessageStore(context, DB_NAME);
+        while (!store.isSearchReady()) {
+            Thread.sleep(10);
+        }
+
+        Random random = new Random(42);
+        String[] peers = new String[BATCH];
+        String[] contents = new String[BATCH];
+        long[] timestamps = new long[BATCH];
+        long now = System.currentTimeMillis();
+        for (int done = 0; done < MESSAGE_COUNT; done += BATCH) {
+            for (int i = 0; i < BATCH; i++) {
+                peers[i] = "peer-" + random.nextInt(PEERS);
+                StringBuilder text = new StringBuilder();
+                int words = 3 + random.nextInt(10);
+                for (int w = 0; w < words; w++) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                contents[i] = text.toString().trim();
+                timestamps[i] = now - (MESSAGE_COUNT - done - i) * 1000L;
+            }
+            store.appendBatch(peers, contents, timestamps);
+        }
+    }
+
+    @AfterClass
+    public static void dropStore() {
+        if (store == null) return;
+        store.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void searchStaysUnderTarget() {
+        String[] queries = {"merhaba", "ist", "to", "kahve akş", "yarın toplantı", "ANKARA", "tel", "see you"};
+        // Isınma: sayfa önbelleği ve derlenmiş sorgular
+        for (String query : queries) {
+            store.search(query, Long.MAX_VALUE, 30);
+        }
+
+        for (String query : queries) {
+            long[] samples = new long[RUNS];
+            List<SearchResult> page = new ArrayList<>();
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                page = store.search(query, Long.MAX_VALUE, 30);
+                samples[run] = (System.nanoTime() - start) / 1_000_000;
+            }
+            // İkinci sayfa da aynı sınırda kalmalı
+            long beforeId = page.isEmpty() ? Long.MAX_VALUE : page.get(page.size() - 1).getId();
+            long start = System.nanoTime();
+            store.search(query, beforeId, 30);
+            long nextPage = (System.nanoTime() - start) / 1_000_000;
+
+            Arrays.sort(samples);
+            long median = samples[RUNS / 2];
+            long p95 = samples[(int) (RUNS * 0.95) - 1];
+            android.util.Log.i("SearchBenchmark", "\"" + query + "\": median " + median + " ms, p95 "
+                    + p95 + " ms, next page " + nextPage + " ms, " + page.size() + " result(s)");
+
+            assertFalse("no results for " + query, page.isEmpty());
+            assertTrue(query + " median " + median + " ms", median < TARGET_MS);
+            assertTrue(query + " next page " + nextPage + " ms", nextPage < TARGET_MS);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.thecommunication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// String tabanlı sendMessage ile NativeBridge çerçeve yolunun karşılaştırması.
+// Node başlatılmaz: iki yol da metinleri tamamen çözer, sonra SUBMIT_NOT_STARTED döner;
+// yani ölçülen fark sadece JNI sınırındaki dönüşüm maliyetidir.
+// Alış yönünde olay tamponu Rust yerine testte doldurulur (node yokken Rust ona yazmaz).
+@RunWith(AndroidJUnit4.class)
+public class NativeBridgeBenchmark {
+
+    private static final String PEER = "QmNnooDu7bfjPFoTZYxMNLWUQJyrVwtbZg5gBMjTezGAJN";
+    private static final int MESSAGES = 10_000;
+    private static final int RUNS = 7;
+    // NativeBridge.MAX_FRAMES_PER_SUBMIT ile aynı: her sendMessages tek submitFrames yapar
+    private static final int CHUNK = 256;
+
+    private static String[] peers;
+    private static String[] contents;
+    private static long[] ids;
+    private static String[][] peerChunks;
+    private static String[][] contentChunks;
+    private static long[][] idChunks;
+
+    @BeforeClass
+    public static void setUp() {
+        assertNull(NativeLib.init());
+        assertTrue(NativeBridge.getInstance().attach());
+        peers = new String[MESSAGES];
+        contents = new String[MESSAGES];
+        ids = new long[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            peers[i] = PEER;
+            contents[i] = "mesaj " + i + " — biraz Türkçe karakterli örnek içerik, orta uzunlukta";
+            ids[i] = i;
+        }
+        int chunks = (MESSAGES + CHUNK - 1) / CHUNK;
+        peerChunks = new String[chunks][];
+        contentChunks = new String[chunks][];
+        idChunks = new long[chunks][];
+        for (int c = 0; c < chunks; c++) {
+            int from = c * CHUNK;
+            int to = Math.min(MESSAGES, from + CHUNK);
+            peerChunks[c] = Arrays.copyOfRange(peers, from, to);
+            contentChunks[c] = Arrays.copyOfRange(contents, from, to);
+            idChunks[c] = Arrays.copyOfRange(ids, from, to);
+        }
+    }
+
+    @Test
+    public void framesBeatStringMarshalling() {
+        NativeLib lib = NativeLib.getInstance();
+        NativeBridge bridge = NativeBridge.getInstance();
+
+        long[] strings = new long[RUNS];
+        long[] single = new long[RUNS];
+        long[] batched = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(NativeLib.SUBMIT_NOT_STARTED, lib.sendMessage(peers[i], contents[i], ids[i]));
+            }
+            strings[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(NativeLib.SUBMIT_NOT_STARTED, bridge.sendMessage(peers[i], contents[i], ids[i]));
+            }
+            single[run] = System.nanoTime() - start;
+
+            // Node yokken her parça reddedilir (0 kabul); çerçeveler yine de yazılıp çözülür
+            start = System.nanoTime();
+            for (int c = 0; c < peerChunks.length; c++) {
+                assertEquals(0, bridge.sendMessages(peerChunks[c], contentChunks[c], idChunks[c]));
+            }
+            batched[run] = System.nanoTime() - start;
+        }
+
+        long stringNs = median(strings) / MESSAGES;
+        long singleNs = median(single) / MESSAGES;
+        long batchedNs = median(batched) / MESSAGES;
+        android.util.Log.i("BridgeBenchmark", "per message: String " + stringNs + " ns, frame "
+                + singleNs + " ns, batched frames " + batchedNs + " ns");
+        assertTrue("batched " + batchedNs + " ns vs String " + stringNs + " ns", batchedNs < stringNs);
+    }
+
+    // Gelen mesajları toplar (ana thread'de)
+    private static class Collector implements MessageRouter.Subscriber {
+        final List<IncomingMessage> received = new ArrayList<>();
+
+        @Override
+        public void onMessages(String peerId, List<IncomingMessage> messages) {
+            received.addAll(messages);
+        }
+    }
+
+    // bridge.rs'in yazdığı gibi: u32 mesaj sayısı, u32 durum sayısı, sonra çerçeveler
+    private static byte[] eventFrames(String[] senders, String[] messages, long[] timestamps) {
+        ByteBuffer out = ByteBuffer.allocate(256 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(senders.length);
+        out.putInt(0);
+        for (int i = 0; i < senders.length; i++) {
+            byte[] peer = senders[i].getBytes(StandardCharsets.UTF_8);
+            byte[] content = messages[i].getBytes(StandardCharsets.UTF_8);
+            out.put((byte) 1);
+            out.putInt(2 + peer.length + 8 + 4 + content.length);
+            out.putShort((short) peer.length);
+            out.put(peer);
+            out.putLong(timestamps[i]);
+            out.putInt(content.length);
+            out.put(content);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    // Olay tamponuna yazıp Rust'ın yapacağı upcall'u yapar
+    private static void deliverFrames(byte[] frames) {
+        ByteBuffer events = NativeBridge.getInstance().eventBuffer();
+        events.clear();
+        events.put(frames);
+        NativeLib.getInstance().onBridgeEvents(frames.length);
+    }
+
+    private static void drainMainThread() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+        });
+    }
+
+    @Test
+    public void malformedFramesAreSkipped() {
+        byte[] peer = PEER.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(4);
+        out.putInt(1);
+        putMessage(out, peer, peer.length, "a".getBytes(StandardCharsets.UTF_8), 1);
+        // Peer uzunluğu çerçeveden uzun: sonraki çerçeveye taşmamalı
+        putMessage(out, peer, 500, new byte[0], 2);
+        // İçerik uzunluğu çerçeveden uzun
+        putMessage(out, peer, peer.length, new byte[0], 1000);
+        // Sabit alanlara bile yetmeyen durum çerçevesi
+        out.put((byte) 2);
+        out.putInt(3);
+        out.put(new byte[3]);
+        putMessage(out, peer, peer.length, "b".getBytes(StandardCharsets.UTF_8), 1);
+        byte[] frames = Arrays.copyOf(out.array(), out.position());
+
+        Collector collector = new Collector();
+        MessageRouter.getInstance().subscribe(PEER, collector);
+        try {
+            deliverFrames(frames);
+            drainMainThread();
+            assertEquals(2, collector.received.size());
+            assertEquals("a", collector.received.get(0).getContent());
+            assertEquals("b", collector.received.get(1).getContent());
+        } finally {
+            MessageRouter.getInstance().unsubscribe(PEER, collector);
+        }
+    }
+
+    // peerLength ve contentLength gerçek uzunluklardan farklı yazılabilir
+    private static void putMessage(ByteBuffer out, byte[] peer, int peerLength, byte[] content, int contentLength) {
+        out.put((byte) 1);
+        out.putInt(2 + peer.length + 8 + 4 + content.length);
+        out.putShort((short) peerLength);
+        out.put(peer);
+        out.putLong(0);
+        out.putInt(contentLength);
+        out.put(content);
+    }
+
+    // Alış yolu: olay çerçevelerini onBridgeEvents ile çözmek, hazır String dizileriyle
+    // onMessagesReceived'a karşı. String yolunda Rust'ın her alan için JNI'da String
+    // üretmesi Java'dan ölçülemez, buradaki String süresine dahil değil; fark çerçeve
+    // yolunun Java tarafındaki ek maliyetidir. Süreler loglanır, sadece teslim sınanır
+    @Test
+    public void receivePathCost() {
+        NativeLib lib = NativeLib.getInstance();
+        // Mesaj kimlikleri zaman damgası olarak da kullanılır
+        long[][] timestampChunks = idChunks;
+        byte[][] frameChunks = new byte[peerChunks.length][];
+        for (int c = 0; c < peerChunks.length; c++) {
+            frameChunks[c] = eventFrames(peerChunks[c], contentChunks[c], timestampChunks[c]);
+        }
+
+        Collector collector = new Collector();
+        MessageRouter.getInstance().subscribe(PEER, collector);
+        long[] strings = new long[RUNS];
+        long[] frames = new long[RUNS];
+        try {
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                for (int c = 0; c < peerChunks.length; c++) {
+                    lib.onMessagesReceived(peerChunks[c], contentChunks[c], timestampChunks[c]);
+                }
+                strings[run] = System.nanoTime() - start;
+                drainMainThread();
+
+                start = System.nanoTime();
+                for (byte[] chunk : frameChunks) {
+                    deliverFrames(chunk);
+                }
+                frames[run] = System.nanoTime() - start;
+                drainMainThread();
+            }
+            assertEquals(2L * RUNS * MESSAGES, collector.received.size());
+            List<IncomingMessage> last = collector.received.subList(collector.received.size() - MESSAGES,
+                    collector.received.size());
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(contents[i], last.get(i).getContent());
+                assertEquals(ids[i], last.get(i).getTimestamp());
+            }
+        } finally {
+            MessageRouter.getInstance().unsubscribe(PEER, collector);
+        }
+
+        android.util.Log.i("BridgeBenchmark", "receive, per message: String arrays "
+                + median(strings) / MESSAGES + " ns, frames " + median(frames) / MESSAGES
+                + " ns (median of " + RUNS + ")");
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -8,8 +8,10 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
 
-        android.util.Log.d("App", "Application onCreate - No node initialization here");
+        android.util.Log.d("App", "Application onCreate");
 
-        // Sadece loglama - Node başlatma MainActivity'de yapılıyor
+        // Kanallar NodeService ilk bildirimini göstermeden önce hazır olmalı.
+        // Node başlatma NodeService'te yapılıyor (MainActivity onu başlatır).
+        NotificationHelper.createNotificationChannel(this);
     }
 }
\ No newline at end of file
@@ -1,35 +1,96 @@
 package com.example.thecommunication;
 
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.provider.OpenableColumns;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatActivity extends AppCompatActivity {
 
-    private static String activeContactId = null;
-
     private NativeLib nativeLib;
+    private MessageStore messageStore;
     private RecyclerView recyclerView;
     private MessageAdapter adapter;
-    private List<Message> messageList;
+    private LinearLayoutManager layoutManager;
     private EditText inputEdit;
-    private Handler handler;
 
     private String contactName;
     private String contactId;
     private String contactAddress;
-    private boolean connectionAttempted = false;
 
-    public static boolean isActiveForPeer(String peerId) {
-        return activeContactId != null && activeContactId.equals(peerId);
-    }
+    // Sadece bu sohbetin peer'ından gelen mesajlar (MessageRouter)
+    private final MessageRouter.Subscriber chatSubscriber = new MessageRouter.Subscriber() {
+        @Override
+        public void onMessages(String peerId, List<IncomingMessage> messages) {
+            onIncomingMessages(messages);
+        }
+
+        @Override
+        public void onMessageStatus(String peerId, long messageId, int status) {
+            adapter.updateStatus(messageId, status);
+        }
+
+        @Override
+        public void onHistory(String peerId) {
+            onHistoryRecovered();
+        }
+
+        @Override
+        public void onConnectionState(String peerId, int state) {
+            showConnectionState(state);
+        }
+
+        @Override
+        public void onTransferProgress(String peerId, long transferId, boolean incoming, long bytes, long total) {
+            int percent = total > 0 ? (int) (bytes * 100 / total) : 0;
+            if (incoming) {
+                // Gelen dosya bitene kadar mesaj listesinde yok; başlıkta gösterilir
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle("Receiving file · " + percent + "%");
+                }
+            } else {
+                adapter.updateProgress(transferId, percent);
+            }
+        }
+    };
+
+    // Seçilen dosya node'un okuyabileceği uygulama deposuna kopyalanır (ana thread dışında)
+    private final ExecutorService fileWorker = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final ActivityResultLauncher<String> filePicker = registerForActivityResult(
+            new ActivityResultContracts.GetContent(),
+            uri -> {
+                if (uri != null) {
+                    sendFile(uri);
+                }
+            }
+    );
+
+    // Pencerenin ucuna bu kadar mesaj kala sonraki sayfa yüklenir
+    private static final int PREFETCH_DISTANCE = 10;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,7 +98,8 @@ public class ChatActivity extends AppCompatActivity {
         setContentView(R.layout.activity_chat);
 
         nativeLib = NativeLib.getInstance();
-        handler = new Handler(Looper.getMainLooper());
+        messageStore = MessageStore.getInstance(this);
+        NativeLib.setMessageStore(messageStore);
 
         contactName = getIntent().getStringExtra("CONTACT_NAME");
         contactId = getIntent().getStringExtra("CONTACT_ID");
@@ -54,45 +116,40 @@ public class ChatActivity extends AppCompatActivity {
         }
 
         recyclerView = findViewById(R.id.recyclerViewMessages);
-        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager = new LinearLayoutManager(this);
         recyclerView.setLayoutManager(layoutManager);
-        messageList = new ArrayList<>();
-        adapter = new MessageAdapter(messageList);
+        // Tüm geçmiş değil, sadece son sayfa yüklenir; eskiler kaydırdıkça gelir
+        adapter = new MessageAdapter(messageStore, contactId);
         recyclerView.setAdapter(adapter);
+        adapter.loadLatest();
+        scrollToBottom();
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView rv, int dx, int dy) {
+                onWindowScrolled();
+            }
+        });
+        MessageRouter.getInstance().subscribe(contactId, chatSubscriber);
 
         inputEdit = findViewById(R.id.editTextMessage);
         ImageButton sendButton = findViewById(R.id.buttonSend);
 
         sendButton.setOnClickListener(v -> sendMessage());
 
+        ImageButton attachButton = findViewById(R.id.buttonAttach);
+        // Dosyalar tek bir peer'a akıtılır; gruplarda yok
+        if (NativeLib.isGroup(contactId)) {
+            attachButton.setVisibility(android.view.View.GONE);
+        }
+        attachButton.setOnClickListener(v -> filePicker.launch("*/*"));
+
         // Enter tuşu ile mesaj gönder
         inputEdit.setOnEditorActionListener((v, actionId, event) -> {
             sendMessage();
             return true;
         });
 
-        // İlk bağlantıyı kur
-        attemptConnection();
-    }
-
-    private void attemptConnection() {
-        if (contactAddress != null && !contactAddress.isEmpty() && !connectionAttempted) {
-            connectionAttempted = true;
-            android.util.Log.d("ChatActivity", "Initial connection to: " + contactAddress);
-            nativeLib.dialPeer(contactAddress);
-
-            // 3 saniye sonra tekrar dene (relay bağlantısı için)
-            handler.postDelayed(() -> {
-                android.util.Log.d("ChatActivity", "Retry connection...");
-                nativeLib.dialPeer(contactAddress);
-            }, 3000);
-
-            // 6 saniye sonra bir kez daha
-            handler.postDelayed(() -> {
-                android.util.Log.d("ChatActivity", "Final retry connection...");
-                nativeLib.dialPeer(contactAddress);
-            }, 6000);
-        }
+        showConnectionState(nativeLib.getConnectionState(contactId));
     }
 
     private void sendMessage() {
@@ -101,20 +158,36 @@ public class ChatActivity extends AppCompatActivity {
             return;
         }
 
-        // Eğer bağlantı daha yapılmadıysa, tekrar dene
-        if (!connectionAttempted && contactAddress != null && !contactAddress.isEmpty()) {
-            attemptConnection();
-        }
-
         try {
             android.util.Log.d("ChatActivity", "Sending message to: " + contactId);
-            nativeLib.sendMessage(contactId, text);
+            // Önce log'a yazılır: satır ID'si teslim onayını bu mesaja bağlar
+            long now = System.currentTimeMillis();
+            long id = messageStore.append(contactId, text, now, true);
+            int result = NativeLib.isGroup(contactId)
+                    ? nativeLib.sendGroupMessage(contactId.substring(NativeLib.GROUP_PREFIX.length()), text, id)
+                    : NativeBridge.getInstance().sendMessage(contactId, text, id);
+            if (result != NativeLib.SUBMIT_OK) {
+                // Kuyruk dolu / node hazır değil: metin kutuda kalır, kullanıcı tekrar gönderebilir
+                android.util.Log.w("ChatActivity", "sendMessage rejected: " + result);
+                messageStore.delete(id);
+                android.widget.Toast.makeText(this,
+                        result == NativeLib.SUBMIT_QUEUE_FULL
+                                ? "Too many pending messages, try again"
+                                : "Node not ready, message not sent",
+                        android.widget.Toast.LENGTH_SHORT).show();
+                return;
+            }
 
-            // UI'a ekle
-            String time = getCurrentTime();
-            messageList.add(new Message(text, time, true));
-            adapter.notifyItemInserted(messageList.size() - 1);
-            recyclerView.scrollToPosition(messageList.size() - 1);
+            // UI'a ekle; teslim onayı gelince durum işareti güncellenir
+            Message sent = new Message(id, text, now, true, NativeLib.MESSAGE_PENDING);
+            String time = sent.getTime();
+            // Eski mesajlara kaydırılmışsa gönderilen mesajın göründüğü sona dön
+            if (!adapter.isAtLatest()) {
+                adapter.loadLatest();
+            } else {
+                adapter.appendLatest(Collections.singletonList(sent));
+            }
+            scrollToBottom();
             inputEdit.setText("");
 
             // MainActivity'deki kişi listesini güncelle
@@ -123,71 +196,115 @@ public class ChatActivity extends AppCompatActivity {
         } catch (Exception e) {
             android.util.Log.e("ChatActivity", "Failed to send message", e);
             android.widget.Toast.makeText(this,
-                    "Failed to send message. Retrying connection...",
+                    "Failed to send message",
                     android.widget.Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void sendFile(Uri uri) {
+        fileWorker.execute(() -> {
+            File file;
+            try {
+                file = copyToOutgoing(uri);
+            } catch (IOException e) {
+                android.util.Log.e("ChatActivity", "Failed to read picked file", e);
+                mainHandler.post(() -> android.widget.Toast.makeText(this,
+                        "Could not read file", android.widget.Toast.LENGTH_SHORT).show());
+                return;
+            }
+            mainHandler.post(() -> {
+                if (isDestroyed()) return;
+                String text = NativeLib.FILE_PREFIX + file.getName();
+                long now = System.currentTimeMillis();
+                long id = messageStore.append(contactId, text, now, true);
+                int result = nativeLib.sendFile(contactId, file.getAbsolutePath(), id);
+                if (result != NativeLib.SUBMIT_OK) {
+                    android.util.Log.w("ChatActivity", "sendFile rejected: " + result);
+                    messageStore.delete(id);
+                    file.delete();
+                    android.widget.Toast.makeText(this, "Node not ready, file not sent",
+                            android.widget.Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
+                Message sent = new Message(id, text, now, true, NativeLib.MESSAGE_PENDING);
+                sent.setProgress(0);
+                if (!adapter.isAtLatest()) {
+                    adapter.loadLatest();
+                } else {
+                    adapter.appendLatest(Collections.singletonList(sent));
+                }
+                scrollToBottom();
+                MainActivity.updateContactLastMessage(contactId, text, sent.getTime());
+            });
+        });
+    }
 
-            // Bağlantıyı tekrar dene
-            if (contactAddress != null && !contactAddress.isEmpty()) {
-                nativeLib.dialPeer(contactAddress);
+    // İçerik URI'sinden kanal ile kopyalar; dosya verisi JNI'dan geçmez, node yoldan okur.
+    // Her gönderim kendi klasöründe: karşı tarafa orijinal dosya adı gider
+    private File copyToOutgoing(Uri uri) throws IOException {
+        File dir = new File(new File(getFilesDir(), "outgoing"), String.valueOf(System.currentTimeMillis()));
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File target = new File(dir, displayName(uri));
+        try (InputStream in = getContentResolver().openInputStream(uri)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+            try (ReadableByteChannel source = Channels.newChannel(in);
+                 FileChannel sink = new FileOutputStream(target).getChannel()) {
+                long position = 0;
+                long copied;
+                while ((copied = sink.transferFrom(source, position, 1 << 20)) > 0) {
+                    position += copied;
+                }
             }
         }
+        return target;
+    }
+
+    private String displayName(Uri uri) {
+        try (Cursor cursor = getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                String name = cursor.getString(0);
+                if (name != null && !name.isEmpty()) {
+                    return name.replace('/', '_');
+                }
+            }
+        }
+        return "file";
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        activeContactId = contactId;
-
-        android.util.Log.d("ChatActivity", "onResume - Setting listener for: " + contactId);
-
-        // Bu konuşma için listener kur
-        NativeLib.setListener((senderId, message) -> {
-            android.util.Log.d("ChatActivity", "Message received from: " + senderId);
-            android.util.Log.d("ChatActivity", "Expected contact: " + contactId);
-            android.util.Log.d("ChatActivity", "Message: " + message);
-
-            // Bu konuşmadan mı kontrol et
-            if (contactId != null && contactId.equals(senderId)) {
-                runOnUiThread(() -> {
-                    android.util.Log.d("ChatActivity", "Adding message to UI");
-                    String time = getCurrentTime();
-                    messageList.add(new Message(message, time, false));
-                    adapter.notifyItemInserted(messageList.size() - 1);
-                    recyclerView.scrollToPosition(messageList.size() - 1);
-
-                    // MainActivity'deki kişi listesini güncelle
-                    MainActivity.updateContactLastMessage(contactId, message, time);
-                });
-            } else {
-                android.util.Log.d("ChatActivity", "Message from different sender, ignoring");
-            }
-        });
 
-        // Bağlantıyı kontrol et ve gerekirse yenile
-        if (contactAddress != null && !contactAddress.isEmpty()) {
-            handler.postDelayed(() -> {
-                android.util.Log.d("ChatActivity", "onResume - Refreshing connection");
-                nativeLib.dialPeer(contactAddress);
-            }, 500);
+        // Bu sohbet ekranda: bildirim gösterilmesin
+        MessageRouter.getInstance().setVisible(contactId, true);
+        NotificationHelper.clearConversation(this, contactId);
+
+        // Bağlantıyı node yönetir: bağlıysa veya arama sürüyorsa bu çağrı hiçbir şey yapmaz,
+        // başarısız aramaları kendisi artan aralıklarla tekrarlar. Grupların tek bir peer'ı yok
+        if (!NativeLib.isGroup(contactId)) {
+            nativeLib.connectPeer(contactId, contactAddress != null ? contactAddress : "");
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        activeContactId = null;
+        MessageRouter.getInstance().setVisible(contactId, false);
         android.util.Log.d("ChatActivity", "onPause - Clearing active contact");
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        activeContactId = null;
-
-        // Handler cleanup
-        if (handler != null) {
-            handler.removeCallbacksAndMessages(null);
-        }
+        MessageRouter.getInstance().unsubscribe(contactId, chatSubscriber);
+        adapter.release();
+        fileWorker.shutdown();
 
         android.util.Log.d("ChatActivity", "onDestroy");
     }
@@ -198,8 +315,87 @@ public class ChatActivity extends AppCompatActivity {
         return true;
     }
 
-    private String getCurrentTime() {
-        return new java.text.SimpleDateFormat("HH:mm", java.util.Locale.getDefault())
-                .format(new java.util.Date());
+    // Ana thread'de, sadece bu peer'ın mesajlarıyla çağrılır; tek aralık olarak eklenir.
+    // Kişi listesi kendi aboneliğiyle güncellenir.
+    private void onIncomingMessages(List<IncomingMessage> messages) {
+        // Kullanıcı en alttayken gelen mesajı göster; geçmişi okurken yerinden oynatma
+        boolean atBottom = adapter.isAtLatest()
+                && layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - 2;
+
+        List<Message> received = new ArrayList<>(messages.size());
+        boolean fileArrived = false;
+        for (IncomingMessage msg : messages) {
+            received.add(new Message(msg.getId(), msg.getContent(), msg.getTimestamp(), false,
+                    NativeLib.MESSAGE_DELIVERED));
+            fileArrived |= msg.getContent().startsWith(NativeLib.FILE_PREFIX);
+        }
+        if (fileArrived) {
+            // "Receiving file" başlığı yerine bağlantı durumu
+            showConnectionState(NativeLib.getCachedConnectionState(contactId));
+        }
+        if (adapter.appendLatest(received) > 0 && atBottom) {
+            scrollToBottom();
+        }
+    }
+
+    // Eski mesajlar zamanlarına göre araya girdi; sona eklenemezler. En alttaysa son sayfa
+    // yeniden okunur, geçmiş okunuyorsa pencere yerinde kalır (kaydırdıkça store'dan gelirler)
+    private void onHistoryRecovered() {
+        boolean atBottom = adapter.isAtLatest()
+                && layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - 2;
+        if (atBottom) {
+            adapter.loadLatest();
+            scrollToBottom();
+        }
+    }
+
+    private void onWindowScrolled() {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
+
+        adapter.onViewportChanged(first, last);
+        if (first <= PREFETCH_DISTANCE) {
+            adapter.loadOlder();
+        }
+        if (last >= adapter.getItemCount() - 1 - PREFETCH_DISTANCE) {
+            adapter.loadNewer();
+        }
+    }
+
+    private void showConnectionState(int state) {
+        if (getSupportActionBar() == null) return;
+        if (NativeLib.isGroup(contactId)) {
+            getSupportActionBar().setSubtitle("Group");
+            return;
+        }
+        String subtitle;
+        switch (state) {
+            case NativeLib.CONN_DIRECT:
+                subtitle = "Connected" + formatRtt();
+                break;
+            case NativeLib.CONN_RELAYED:
+                subtitle = "Connected via relay" + formatRtt();
+                break;
+            case NativeLib.CONN_DIALING:
+                subtitle = "Connecting...";
+                break;
+            default:
+                subtitle = "Offline";
+                break;
+        }
+        getSupportActionBar().setSubtitle(subtitle);
+    }
+
+    // Son ping süresi (node ilk ping'i ölçene kadar boş)
+    private String formatRtt() {
+        long rtt = nativeLib.getPeerRttMillis(contactId);
+        return rtt >= 0 ? " · " + rtt + " ms" : "";
+    }
+
+    private void scrollToBottom() {
+        if (adapter.getItemCount() > 0) {
+            recyclerView.scrollToPosition(adapter.getItemCount() - 1);
+        }
     }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ public class Contact {
     private String address;  // Bağlantı (Dial) için gerekli Adres (Örn: /ip4/...)
     private String lastMessage;
     private String time;
+    private long lastActivity; // Liste sıralaması için (epoch milisaniye)
 
     // Constructor güncellendi
     public Contact(String name, String peerId, String address, String lastMessage, String time) {
@@ -14,6 +15,15 @@ public class Contact {
         this.address = address;
         this.lastMessage = lastMessage;
         this.time = time;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    // Adı verilmemiş konuşmalar: gruplar "#<grup adı>", kişiler "User-<peer ID'nin son 8 karakteri>"
+    public static String defaultName(String conversationId) {
+        if (conversationId.startsWith(NativeLib.GROUP_PREFIX)) {
+            return "#" + conversationId.substring(NativeLib.GROUP_PREFIX.length());
+        }
+        return "User-" + conversationId.substring(Math.max(0, conversationId.length() - 8));
     }
 
     public String getName() { return name; }
@@ -21,10 +31,17 @@ public class Contact {
     public String getAddress() { return address; }
     public String getLastMessage() { return lastMessage; }
     public String getTime() { return time; }
+    public long getLastActivity() { return lastActivity; }
 
     // Mesaj geldiğinde arayüzü güncellemek için setter
     public void setLastMessage(String msg, String time) {
         this.lastMessage = msg;
         this.time = time;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    // ContactRepository'den yüklerken sıralamayı korumak için
+    void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
     }
-}
\ No newline at end of file
+}
@@ -5,15 +5,23 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import java.util.List;
 
 public class ContactAdapter extends RecyclerView.Adapter<ContactAdapter.ContactViewHolder> {
 
-    private List<Contact> contactList;
+    // Sadece son mesaj / saat değiştiğinde tüm satırı yeniden bağlamamak için
+    private static final Object PAYLOAD_LAST_MESSAGE = new Object();
+
+    private ContactIndex contactIndex;
     private OnItemClickListener listener;
     private OnItemLongClickListener longClickListener;
 
+    // beginBatch() ile alınan önceki durum (DiffUtil için)
+    private List<Contact> batchOrder;
+    private long[] batchActivity;
+
     public interface OnItemClickListener {
         void onItemClick(Contact contact);
     }
@@ -22,8 +30,8 @@ public class ContactAdapter extends RecyclerView.Adapter<ContactAdapter.ContactV
         boolean onItemLongClick(Contact contact);
     }
 
-    public ContactAdapter(List<Contact> contactList, OnItemClickListener listener, OnItemLongClickListener longClickListener) {
-        this.contactList = contactList;
+    public ContactAdapter(ContactIndex contactIndex, OnItemClickListener listener, OnItemLongClickListener longClickListener) {
+        this.contactIndex = contactIndex;
         this.listener = listener;
         this.longClickListener = longClickListener;
     }
@@ -38,13 +46,79 @@ public class ContactAdapter extends RecyclerView.Adapter<ContactAdapter.ContactV
 
     @Override
     public void onBindViewHolder(@NonNull ContactViewHolder holder, int position) {
-        Contact contact = contactList.get(position);
+        Contact contact = contactIndex.get(position);
         holder.bind(contact, listener, longClickListener);
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull ContactViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.contains(PAYLOAD_LAST_MESSAGE)) {
+            holder.bindLastMessage(contactIndex.get(position));
+        } else {
+            super.onBindViewHolder(holder, position, payloads);
+        }
+    }
+
     @Override
     public int getItemCount() {
-        return contactList.size();
+        return contactIndex.size();
+    }
+
+    // Tek kişi güncellendi ve başa taşındı (fromPosition: taşınmadan önceki konum)
+    public void onContactMovedToFront(int fromPosition) {
+        if (fromPosition > 0) {
+            notifyItemMoved(fromPosition, 0);
+        }
+        notifyItemChanged(0, PAYLOAD_LAST_MESSAGE);
+    }
+
+    // Tek kişi yerinde güncellendi
+    public void onContactUpdated(int position) {
+        notifyItemChanged(position, PAYLOAD_LAST_MESSAGE);
+    }
+
+    // Toplu güncellemeden önce çağrılır; endBatch() farkı DiffUtil ile uygular
+    public void beginBatch() {
+        batchOrder = contactIndex.snapshot();
+        batchActivity = new long[batchOrder.size()];
+        for (int i = 0; i < batchActivity.length; i++) {
+            batchActivity[i] = batchOrder.get(i).getLastActivity();
+        }
+    }
+
+    public void endBatch() {
+        if (batchOrder == null) return;
+        final List<Contact> oldOrder = batchOrder;
+        final long[] oldActivity = batchActivity;
+        batchOrder = null;
+        batchActivity = null;
+
+        DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldOrder.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return contactIndex.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldOrder.get(oldItemPosition) == contactIndex.get(newItemPosition);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldActivity[oldItemPosition] == contactIndex.get(newItemPosition).getLastActivity();
+            }
+
+            @Override
+            public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+                return PAYLOAD_LAST_MESSAGE;
+            }
+        }).dispatchUpdatesTo(this);
     }
 
     static class ContactViewHolder extends RecyclerView.ViewHolder {
@@ -61,8 +135,7 @@ public class ContactAdapter extends RecyclerView.Adapter<ContactAdapter.ContactV
 
         public void bind(final Contact contact, final OnItemClickListener listener, final OnItemLongClickListener longClickListener) {
             nameTextView.setText(contact.getName());
-            messageTextView.setText(contact.getLastMessage());
-            timeTextView.setText(contact.getTime());
+            bindLastMessage(contact);
 
             // Normal click - open chat (bağlantı ChatActivity'de kurulacak)
             itemView.setOnClickListener(v -> {
@@ -77,5 +150,10 @@ public class ContactAdapter extends RecyclerView.Adapter<ContactAdapter.ContactV
                 return false;
             });
         }
+
+        public void bindLastMessage(Contact contact) {
+            messageTextView.setText(contact.getLastMessage());
+            timeTextView.setText(contact.getTime());
+        }
     }
-}
\ No newline at end of file
+}
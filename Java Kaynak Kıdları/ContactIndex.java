@@ -0,0 +1,101 @@
+package com.example.thecommunication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Kişi listesi: eskiden yeniye bağlı (LinkedHashMap) peerId -> Contact.
+// Arama ve başa taşıma O(1); taşınan kişi haritanın sonuna eklenir.
+// Adapter'ın kullandığı konumlar (en yeni başta) ancak okunurken, son değişiklikten
+// sonra bir kez O(n) ile çıkarılır: toplu güncellemede k taşıma O(k + n) tutar.
+public class ContactIndex {
+
+    private final LinkedHashMap<String, Contact> byRecency = new LinkedHashMap<>();
+    // byRecency'nin tersi ve peerId -> konum; dirty iken geçersiz
+    private final ArrayList<Contact> order = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private boolean dirty = true;
+    // ensureOrder'ın O(n) yeniden kurma sayısı; testler karmaşıklığı bununla sınar
+    int rebuilds;
+
+    // contacts en yeni başta sıralı gelir
+    public ContactIndex(List<Contact> contacts) {
+        for (int i = contacts.size() - 1; i >= 0; i--) {
+            Contact contact = contacts.get(i);
+            if (contact.getPeerId() != null) {
+                // Aynı peer iki kez varsa öndeki (daha yeni) kalır
+                byRecency.remove(contact.getPeerId());
+                byRecency.put(contact.getPeerId(), contact);
+            }
+        }
+    }
+
+    public Contact findByPeerId(String peerId) {
+        if (peerId == null || peerId.isEmpty()) return null;
+        return byRecency.get(peerId);
+    }
+
+    public Contact get(int position) {
+        ensureOrder();
+        return order.get(position);
+    }
+
+    public int size() {
+        return byRecency.size();
+    }
+
+    public void addFirst(Contact contact) {
+        byRecency.remove(contact.getPeerId());
+        byRecency.put(contact.getPeerId(), contact);
+        dirty = true;
+    }
+
+    // Kişiyi kaldırır, eski konumunu döndürür (yoksa -1)
+    public int remove(Contact contact) {
+        int position = positionOf(contact);
+        if (byRecency.remove(contact.getPeerId()) == null) return -1;
+        dirty = true;
+        return position;
+    }
+
+    // Kişiyi başa taşır; konum gerekiyorsa önce positionOf çağrılır
+    public void moveToFront(Contact contact) {
+        if (byRecency.remove(contact.getPeerId()) != null) {
+            byRecency.put(contact.getPeerId(), contact);
+            dirty = true;
+        }
+    }
+
+    public int positionOf(Contact contact) {
+        ensureOrder();
+        Integer position = positions.get(contact.getPeerId());
+        return position != null && order.get(position) == contact ? position : -1;
+    }
+
+    // En son aktif n kişi
+    public List<Contact> top(int n) {
+        ensureOrder();
+        return new ArrayList<>(order.subList(0, Math.min(n, order.size())));
+    }
+
+    public List<Contact> snapshot() {
+        ensureOrder();
+        return new ArrayList<>(order);
+    }
+
+    private void ensureOrder() {
+        if (!dirty) return;
+        order.clear();
+        order.addAll(byRecency.values());
+        Collections.reverse(order);
+        positions.clear();
+        for (int i = 0; i < order.size(); i++) {
+            positions.put(order.get(i).getPeerId(), i);
+        }
+        dirty = false;
+        rebuilds++;
+    }
+}
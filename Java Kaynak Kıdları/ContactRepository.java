@@ -0,0 +1,268 @@
+package com.example.thecommunication;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ContactRepository extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "contacts.db";
+    private static final int DB_VERSION = 1;
+
+    private static final String TABLE_CONTACTS = "contacts";
+    private static final String COL_PEER_ID = "peer_id";
+    private static final String COL_NAME = "name";
+    private static final String COL_ADDRESS = "address";
+    private static final String COL_LAST_MESSAGE = "last_message";
+    private static final String COL_TIME = "time";
+    private static final String COL_LAST_ACTIVITY = "last_activity";
+
+    private static final String[] COLUMNS = {COL_NAME, COL_PEER_ID, COL_ADDRESS, COL_LAST_MESSAGE, COL_TIME, COL_LAST_ACTIVITY};
+
+    // Eski sürümün tüm listeyi JSON olarak yazdığı yer
+    private static final String LEGACY_PREFS = "AppPrefs";
+    private static final String LEGACY_KEY = "contacts";
+
+    // Mesaj patlamalarını tek bir yazıma toplamak için bekleme süresi
+    private static final long FLUSH_DELAY_MS = 500;
+    // Yazılamayan değişiklikler kuyruğa geri konur ve bu kadar sonra tekrar denenir
+    private static final long RETRY_DELAY_MS = 5_000;
+
+    private static ContactRepository instance;
+
+    private final Context appContext;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    // peerId -> bekleyen satır (null = silinecek)
+    private final Map<String, ContentValues> pending = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    // Taşınan eski kişiler bekleyenler arasında; yazılınca eski kayıt silinir
+    private boolean legacyPending = false;
+
+    private ContactRepository(Context context) {
+        super(context.getApplicationContext(), DB_NAME, null, DB_VERSION);
+        appContext = context.getApplicationContext();
+    }
+
+    public static synchronized ContactRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactRepository(context);
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CONTACTS + " ("
+                + COL_PEER_ID + " TEXT PRIMARY KEY, "
+                + COL_NAME + " TEXT NOT NULL, "
+                + COL_ADDRESS + " TEXT, "
+                + COL_LAST_MESSAGE + " TEXT, "
+                + COL_TIME + " TEXT, "
+                + COL_LAST_ACTIVITY + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // İlk sürüm - henüz migration yok
+    }
+
+    // Tüm kişileri son aktiviteye göre (en yeni başta) yükler
+    public List<Contact> loadAll() {
+        // Arka planda (NodeService) kuyruğa alınmış değişiklikler de görünsün. Yazım her zaman
+        // writer thread'inde yapılır; burada sadece bitmesi beklenir
+        try {
+            writer.submit(this::writePending).get();
+        } catch (ExecutionException e) {
+            android.util.Log.e("ContactRepository", "Error writing contacts", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Contact> contacts = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_CONTACTS, COLUMNS, null, null, null, null,
+                COL_LAST_ACTIVITY + " DESC")) {
+            while (cursor.moveToNext()) {
+                contacts.add(fromCursor(cursor));
+            }
+        }
+
+        if (contacts.isEmpty()) {
+            contacts = migrateLegacyContacts();
+        }
+        return contacts;
+    }
+
+    // Tek bir kişiyi bulur (henüz yazılmamış değişiklikler dahil), yoksa null
+    public Contact find(String peerId) {
+        synchronized (this) {
+            if (pending.containsKey(peerId)) {
+                ContentValues values = pending.get(peerId);
+                if (values == null) return null;
+                Contact contact = new Contact(
+                        values.getAsString(COL_NAME),
+                        values.getAsString(COL_PEER_ID),
+                        values.getAsString(COL_ADDRESS),
+                        values.getAsString(COL_LAST_MESSAGE),
+                        values.getAsString(COL_TIME)
+                );
+                contact.setLastActivity(values.getAsLong(COL_LAST_ACTIVITY));
+                return contact;
+            }
+        }
+
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_CONTACTS, COLUMNS, COL_PEER_ID + " = ?", new String[]{peerId},
+                null, null, null)) {
+            return cursor.moveToFirst() ? fromCursor(cursor) : null;
+        }
+    }
+
+    private static Contact fromCursor(Cursor cursor) {
+        Contact contact = new Contact(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getString(3),
+                cursor.getString(4)
+        );
+        contact.setLastActivity(cursor.getLong(5));
+        return contact;
+    }
+
+    // Tek bir kişinin değişikliğini kuyruğa alır; yazım arka planda toplu yapılır
+    public void save(Contact contact) {
+        ContentValues values = new ContentValues();
+        values.put(COL_PEER_ID, contact.getPeerId());
+        values.put(COL_NAME, contact.getName());
+        values.put(COL_ADDRESS, contact.getAddress());
+        values.put(COL_LAST_MESSAGE, contact.getLastMessage());
+        values.put(COL_TIME, contact.getTime());
+        values.put(COL_LAST_ACTIVITY, contact.getLastActivity());
+        enqueue(contact.getPeerId(), values);
+    }
+
+    public void delete(Contact contact) {
+        enqueue(contact.getPeerId(), null);
+    }
+
+    // Bekleyen değişiklikleri beklemeden yazar (ör. onPause)
+    public void flush() {
+        writer.execute(this::writePending);
+    }
+
+    private synchronized void enqueue(String peerId, ContentValues values) {
+        if (peerId == null) return;
+        pending.put(peerId, values);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(this::writePending, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Sadece writer thread'inde çalışır. Yazılamayan grup kuyruğa geri konur (arada gelen
+    // daha yeni değişiklikler korunur) ve tekrar denenir; false döner
+    private boolean writePending() {
+        Map<String, ContentValues> batch;
+        boolean dropLegacy;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty() && !legacyPending) return true;
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            dropLegacy = legacyPending;
+            legacyPending = false;
+        }
+
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, ContentValues> entry : batch.entrySet()) {
+                    if (entry.getValue() == null) {
+                        db.delete(TABLE_CONTACTS, COL_PEER_ID + " = ?", new String[]{entry.getKey()});
+                    } else {
+                        db.insertWithOnConflict(TABLE_CONTACTS, null, entry.getValue(),
+                                SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            android.util.Log.e("ContactRepository", "Error writing contacts, retrying", e);
+            requeue(batch, dropLegacy);
+            return false;
+        }
+
+        // Eski kayıt ancak taşınan kişiler yeni tabloya yazıldıktan sonra silinir
+        if (dropLegacy) {
+            appContext.getSharedPreferences(LEGACY_PREFS, Context.MODE_PRIVATE)
+                    .edit().remove(LEGACY_KEY).commit();
+        }
+        return true;
+    }
+
+    private synchronized void requeue(Map<String, ContentValues> batch, boolean dropLegacy) {
+        for (Map.Entry<String, ContentValues> entry : batch.entrySet()) {
+            // null (silme) de geçerli bir değer: putIfAbsent yerine containsKey
+            if (!pending.containsKey(entry.getKey())) {
+                pending.put(entry.getKey(), entry.getValue());
+            }
+        }
+        legacyPending |= dropLegacy;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(this::writePending, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<Contact> migrateLegacyContacts() {
+        List<Contact> contacts = new ArrayList<>();
+        SharedPreferences prefs = appContext.getSharedPreferences(LEGACY_PREFS, Context.MODE_PRIVATE);
+        String json = prefs.getString(LEGACY_KEY, null);
+        if (json == null) return contacts;
+
+        try {
+            Type type = new TypeToken<ArrayList<Contact>>() {}.getType();
+            List<Contact> legacy = new Gson().fromJson(json, type);
+            if (legacy == null || legacy.isEmpty()) {
+                // Taşınacak bir şey yok
+                prefs.edit().remove(LEGACY_KEY).apply();
+                return contacts;
+            }
+            synchronized (this) {
+                // Eski liste zaten en yeni başta sıralı, bu sırayı zaman damgasına çevir
+                long activity = System.currentTimeMillis();
+                for (Contact contact : legacy) {
+                    contact.setLastActivity(activity--);
+                    contacts.add(contact);
+                    save(contact);
+                }
+                // Eski kayıt writePending bu kişileri yazdığını doğruladıktan sonra silinir
+                legacyPending = true;
+            }
+            flush();
+            android.util.Log.i("ContactRepository", "Migrated " + contacts.size() + " legacy contacts");
+        } catch (Exception e) {
+            android.util.Log.e("ContactRepository", "Error migrating legacy contacts", e);
+        }
+        return contacts;
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.thecommunication;
+
+// Rust tarafından toplu olarak teslim edilen tek bir gelen mesaj
+public class IncomingMessage {
+    private long id;         // MessageStore satır ID'si (kaydedilmemişse -1)
+    private String senderId;
+    private String content;
+    private long timestamp;  // Epoch milisaniye
+
+    public IncomingMessage(long id, String senderId, String content, long timestamp) {
+        this.id = id;
+        this.senderId = senderId;
+        this.content = content;
+        this.timestamp = timestamp;
+    }
+
+    public long getId() { return id; }
+    public String getSenderId() { return senderId; }
+    public String getContent() { return content; }
+    public long getTimestamp() { return timestamp; }
+}
@@ -5,7 +5,6 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -17,29 +16,39 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import java.io.File;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
-    private static boolean nodeInitialized = false;
     private static MainActivity instance;
 
+    // Bağlantısı önceden açılacak en son aktif kişi sayısı
+    private static final int PREWARM_COUNT = 5;
+
     private NativeLib nativeLib;
     private RecyclerView recyclerView;
     private ContactAdapter adapter;
-    private List<Contact> contactList;
+    private ContactIndex contactIndex;
+    private ContactRepository contactRepository;
 
     private TextView textViewPeerId;
     private TextView textViewRelayAddress;
     private ImageButton buttonCopyPeerId;
     private ImageButton buttonCopyRelayAddress;
     private ImageButton buttonQRCode;
-    private Handler handler;
+    private ImageButton buttonSearch;
+
+    // Arama sorguları UI thread'inde çalışmaz; yazarken kısa bir bekleme sonrası başlar
+    private static final long SEARCH_DELAY_MS = 200;
+    private static final int SEARCH_PAGE_SIZE = 30;
+    private final ExecutorService searchWorker = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Paylaşılan adres: en düşük gecikmeli relay'in devre adresi (ilk rezervasyon)
+    private String primaryRelayAddress;
 
     private final ActivityResultLauncher<Intent> qrResultLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -62,9 +71,6 @@ public class MainActivity extends AppCompatActivity {
 
         setContentView(R.layout.activity_main);
 
-        // Create notification channel
-        NotificationHelper.createNotificationChannel(this);
-
         String error = NativeLib.init();
         android.util.Log.d("MainActivity", "Native lib init: " + (error == null ? "SUCCESS" : error));
 
@@ -82,33 +88,19 @@ public class MainActivity extends AppCompatActivity {
 
         try {
             nativeLib = NativeLib.getInstance();
+            NativeLib.setMessageStore(MessageStore.getInstance(this));
             android.util.Log.d("MainActivity", "NativeLib instance created");
 
-            File identityFile = new File(getFilesDir(), "identity.key");
-            String identityPath = identityFile.getAbsolutePath();
-            android.util.Log.i("MainActivity", "Identity path: " + identityPath);
-
-            if (!nodeInitialized) {
-                android.util.Log.d("MainActivity", "Starting P2P node...");
-                nativeLib.startNode("", identityPath);
-                nodeInitialized = true;
-                android.util.Log.d("MainActivity", "P2P node started");
-
-                new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                    android.util.Log.d("MainActivity", "Checking peer ID after delay...");
-                    checkPeerIdNow();
-                }, 3000);
-            } else {
-                android.util.Log.d("MainActivity", "P2P node already running");
-            }
+            // Node NodeService'te yaşar; zaten çalışıyorsa bu çağrı sadece servisi öne alır
+            NodeService.start(this);
 
             textViewPeerId = findViewById(R.id.textViewPeerId);
             textViewRelayAddress = findViewById(R.id.textViewRelayAddress);
             buttonCopyPeerId = findViewById(R.id.buttonCopyPeerId);
             buttonCopyRelayAddress = findViewById(R.id.buttonCopyRelayAddress);
             buttonQRCode = findViewById(R.id.buttonQRCode);
-
-            handler = new Handler(Looper.getMainLooper());
+            buttonSearch = findViewById(R.id.buttonSearch);
+            buttonSearch.setOnClickListener(v -> showSearchDialog());
 
             buttonCopyPeerId.setOnClickListener(v -> {
                 String peerId = textViewPeerId.getText().toString();
@@ -121,30 +113,36 @@ public class MainActivity extends AppCompatActivity {
             });
 
             buttonCopyRelayAddress.setOnClickListener(v -> {
-                String relayAddr = textViewRelayAddress.getText().toString();
-                if (!relayAddr.equals("Connecting...") && !relayAddr.equals("No relay address yet")) {
+                String relayAddr = primaryRelayAddress;
+                if (relayAddr != null) {
                     copyToClipboard("Relay Address", relayAddr);
                     android.widget.Toast.makeText(this, "Relay Address copied!", android.widget.Toast.LENGTH_SHORT).show();
                 } else {
                     android.widget.Toast.makeText(this, "Relay address not ready yet", android.widget.Toast.LENGTH_SHORT).show();
                 }
             });
+            // Uzun basınca relay listesi düzenlenir
+            buttonCopyRelayAddress.setOnLongClickListener(v -> {
+                showRelaySettingsDialog();
+                return true;
+            });
 
             buttonQRCode.setOnClickListener(v -> {
                 Intent intent = new Intent(MainActivity.this, QRActivity.class);
                 intent.putExtra("MY_PEER_ID", textViewPeerId.getText().toString());
-                intent.putExtra("MY_RELAY_ADDRESS", textViewRelayAddress.getText().toString());
+                intent.putExtra("MY_RELAY_ADDRESS", primaryRelayAddress != null ? primaryRelayAddress : "");
                 qrResultLauncher.launch(intent);
             });
 
-            updatePeerInfo();
+            setupStatusListener();
 
             recyclerView = findViewById(R.id.recyclerViewContacts);
             recyclerView.setLayoutManager(new LinearLayoutManager(this));
 
+            contactRepository = ContactRepository.getInstance(this);
             loadContacts();
 
-            adapter = new ContactAdapter(contactList,
+            adapter = new ContactAdapter(contactIndex,
                     contact -> {
                         Intent intent = new Intent(MainActivity.this, ChatActivity.class);
                         intent.putExtra("CONTACT_NAME", contact.getName());
@@ -161,7 +159,7 @@ public class MainActivity extends AppCompatActivity {
             FloatingActionButton fab = findViewById(R.id.fabNewChat);
             fab.setOnClickListener(v -> showAddContactDialog());
 
-            setupGlobalMessageListener();
+            MessageRouter.getInstance().subscribeAll(contactListSubscriber);
 
             android.util.Log.d("MainActivity", "========== APP STARTED SUCCESSFULLY ==========");
 
@@ -190,7 +188,7 @@ public class MainActivity extends AppCompatActivity {
         // Show dialog to name the contact
         android.widget.EditText nameInput = new android.widget.EditText(this);
         nameInput.setHint("Contact Name");
-        nameInput.setText("User-" + peerId.substring(Math.max(0, peerId.length() - 8)));
+        nameInput.setText(Contact.defaultName(peerId));
 
         android.widget.LinearLayout layout = new android.widget.LinearLayout(this);
         layout.setOrientation(android.widget.LinearLayout.VERTICAL);
@@ -204,20 +202,20 @@ public class MainActivity extends AppCompatActivity {
                 .setPositiveButton("Add", (dialog, which) -> {
                     String name = nameInput.getText().toString().trim();
                     if (name.isEmpty()) {
-                        name = "User-" + peerId.substring(Math.max(0, peerId.length() - 8));
+                        name = Contact.defaultName(peerId);
                     }
 
                     if (!address.isEmpty()) {
                         android.util.Log.d("MainActivity", "Dialing scanned peer: " + address);
-                        nativeLib.dialPeer(address);
+                        nativeLib.connectPeer(peerId, address);
                         nativeLib.saveContact(name, address);
                     }
 
                     Contact newContact = new Contact(name, peerId, address, "Tap to chat", "Now");
-                    contactList.add(0, newContact);
+                    contactIndex.addFirst(newContact);
                     adapter.notifyItemInserted(0);
                     recyclerView.scrollToPosition(0);
-                    saveContacts();
+                    contactRepository.save(newContact);
 
                     android.widget.Toast.makeText(this,
                             "Contact added: " + name,
@@ -227,68 +225,56 @@ public class MainActivity extends AppCompatActivity {
                 .show();
     }
 
-    private void setupGlobalMessageListener() {
-        NativeLib.setListener((senderId, message) -> {
-            android.util.Log.d("MainActivity", "Global listener - Message from: " + senderId + " - " + message);
-
-            runOnUiThread(() -> {
-                // ChatActivity açıksa ve bu mesaj o konuşmadan geliyorsa, işleme
-                if (ChatActivity.isActiveForPeer(senderId)) {
-                    android.util.Log.d("MainActivity", "ChatActivity active for this peer, skipping");
-                    return;
-                }
+    // Kişi listesi tüm peer'lardan gelen mesajlara abone olur.
+    // Bir gruptaki tüm değişiklikler tek DiffUtil geçişiyle adapter'a uygulanır.
+    private final MessageRouter.Subscriber contactListSubscriber = new MessageRouter.Subscriber() {
+        private int received;
 
-                Contact existingContact = findContactByPeerId(senderId);
+        @Override
+        public void onBatchStart() {
+            received = 0;
+            adapter.beginBatch();
+        }
 
-                if (existingContact == null) {
-                    android.util.Log.d("MainActivity", "New contact detected, adding: " + senderId);
+        @Override
+        public void onMessages(String peerId, List<IncomingMessage> messages) {
+            android.util.Log.d("MainActivity", "Contact list - " + messages.size() + " message(s) from: " + peerId);
+            IncomingMessage last = messages.get(messages.size() - 1);
+            applyIncomingMessage(peerId, last.getContent(), getCurrentTime());
+            received += messages.size();
+        }
 
-                    String contactName = "User-" + senderId.substring(Math.max(0, senderId.length() - 8));
-                    Contact newContact = new Contact(
-                            contactName,
-                            senderId,
-                            "",
-                            message.length() > 30 ? message.substring(0, 30) + "..." : message,
-                            getCurrentTime()
-                    );
+        @Override
+        public void onBatchEnd() {
+            adapter.endBatch();
+            // Mesaj başına Toast yok; haber verme NotificationHelper'ın işi
+            if (received > 0) {
+                recyclerView.scrollToPosition(0);
+            }
+        }
+    };
 
-                    contactList.add(0, newContact);
-                    adapter.notifyItemInserted(0);
-                    recyclerView.scrollToPosition(0);
-                    saveContacts();
+    // Gelen mesajı kişi listesine uygular: yeni kişi ekler ya da mevcut kişiyi başa taşır.
+    // Adapter bildirimi endBatch() ile toplu yapılır; kalıcı kayıt NodeService'te.
+    private void applyIncomingMessage(String senderId, String message, String time) {
+        String preview = message.length() > 30 ? message.substring(0, 30) + "..." : message;
+        Contact existingContact = findContactByPeerId(senderId);
 
-                    // Show notification
-                    NotificationHelper.showMessageNotification(this, contactName, message, senderId, "");
+        if (existingContact == null) {
+            android.util.Log.d("MainActivity", "New contact detected, adding: " + senderId);
 
-                    android.widget.Toast.makeText(this,
-                            "New message from " + contactName,
-                            android.widget.Toast.LENGTH_SHORT).show();
-                } else {
-                    android.util.Log.d("MainActivity", "Updating existing contact: " + existingContact.getName());
+            String contactName = Contact.defaultName(senderId);
+            Contact newContact = new Contact(contactName, senderId, "", preview, time);
 
-                    existingContact.setLastMessage(
-                            message.length() > 30 ? message.substring(0, 30) + "..." : message,
-                            getCurrentTime()
-                    );
+            contactIndex.addFirst(newContact);
+            return;
+        }
 
-                    int position = contactList.indexOf(existingContact);
-                    if (position != -1) {
-                        contactList.remove(position);
-                        contactList.add(0, existingContact);
-                        adapter.notifyItemMoved(position, 0);
-                        adapter.notifyItemChanged(0);
-                    }
-                    saveContacts();
+        android.util.Log.d("MainActivity", "Updating existing contact: " + existingContact.getName());
 
-                    // Show notification
-                    NotificationHelper.showMessageNotification(this, existingContact.getName(), message, senderId, existingContact.getAddress());
+        existingContact.setLastMessage(preview, time);
 
-                    android.widget.Toast.makeText(this,
-                            "New message from " + existingContact.getName(),
-                            android.widget.Toast.LENGTH_SHORT).show();
-                }
-            });
-        });
+        contactIndex.moveToFront(existingContact);
     }
 
     public static void updateContactLastMessage(String peerId, String message, String time) {
@@ -300,25 +286,19 @@ public class MainActivity extends AppCompatActivity {
                             message.length() > 30 ? message.substring(0, 30) + "..." : message,
                             time
                     );
-                    int position = instance.contactList.indexOf(contact);
+                    int position = instance.contactIndex.positionOf(contact);
+                    instance.contactIndex.moveToFront(contact);
                     if (position != -1) {
-                        instance.adapter.notifyItemChanged(position);
+                        instance.adapter.onContactMovedToFront(position);
                     }
-                    instance.saveContacts();
+                    instance.contactRepository.save(contact);
                 }
             });
         }
     }
 
     private Contact findContactByPeerId(String peerId) {
-        if (peerId == null || peerId.isEmpty()) return null;
-
-        for (Contact contact : contactList) {
-            if (peerId.equals(contact.getPeerId())) {
-                return contact;
-            }
-        }
-        return null;
+        return contactIndex.findByPeerId(peerId);
     }
 
     private String getCurrentTime() {
@@ -330,79 +310,81 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         instance = this;
-        setupGlobalMessageListener();
-        android.util.Log.d("MainActivity", "onResume - Global listener set");
+        android.util.Log.d("MainActivity", "onResume");
+        prewarmRecentContacts();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        if (contactRepository != null) {
+            contactRepository.flush();
+        }
         android.util.Log.d("MainActivity", "onPause");
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (handler != null) {
-            handler.removeCallbacksAndMessages(null);
-        }
         if (instance == this) {
             instance = null;
+            NativeLib.setStatusListener(null);
         }
+        MessageRouter.getInstance().unsubscribeAll(contactListSubscriber);
+        searchWorker.shutdownNow();
     }
 
-    private void checkPeerIdNow() {
-        try {
-            String peerId = nativeLib.getMyPeerId();
-            android.util.Log.d("MainActivity", "Peer ID check: " + peerId);
-
-            if (peerId != null && !peerId.equals("Unknown") && !peerId.isEmpty()) {
-                textViewPeerId.setText(peerId);
-                android.util.Log.d("MainActivity", "Peer ID set successfully: " + peerId);
-            } else {
-                android.util.Log.w("MainActivity", "Peer ID not ready yet");
+    // Rust durum değiştiğinde haber verir; sabit aralıklı yoklama yok
+    private void setupStatusListener() {
+        NativeLib.setStatusListener((kind, value) -> {
+            updatePeerInfo();
+            // Node yeni başladı: sık konuşulan kişilere bağlantıyı şimdiden aç
+            if (kind == NativeLib.STATUS_PEER_ID) {
+                prewarmRecentContacts();
             }
-        } catch (Exception e) {
-            android.util.Log.e("MainActivity", "Error checking peer ID", e);
-        }
+        });
+        // Ekran açılmadan önce gelmiş durumları önbellekten göster
+        updatePeerInfo();
     }
 
+    // NativeLib'deki son durumu ekrana yansıtır (JNI çağrısı yapmaz)
     private void updatePeerInfo() {
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String peerId = nativeLib.getMyPeerId();
-
-                    if (peerId != null && !peerId.equals("Unknown") && !peerId.isEmpty()) {
-                        String currentText = textViewPeerId.getText().toString();
-                        if (!currentText.equals(peerId)) {
-                            textViewPeerId.setText(peerId);
-                        }
-                    }
+        String peerId = NativeLib.getCachedPeerId();
+        if (peerId != null && !peerId.isEmpty()) {
+            textViewPeerId.setText(peerId);
+        }
 
-                    String[] addresses = nativeLib.getListenAddresses();
-                    if (addresses != null && addresses.length > 0) {
-                        String relayAddr = "No relay address yet";
-                        for (String addr : addresses) {
-                            if (addr.contains("p2p-circuit")) {
-                                relayAddr = addr;
-                                break;
-                            }
-                        }
+        // Node birden fazla relay'de rezervasyon tutar; hepsi gösterilir
+        List<String> relayAddresses = NativeLib.getCachedRelayAddresses();
+        if (!relayAddresses.isEmpty()) {
+            primaryRelayAddress = relayAddresses.get(0);
+            textViewRelayAddress.setText(android.text.TextUtils.join("\n", relayAddresses));
+        } else {
+            primaryRelayAddress = null;
+            if (peerId != null) {
+                textViewRelayAddress.setText("No relay address yet");
+            }
+        }
+    }
 
-                        String currentRelayText = textViewRelayAddress.getText().toString();
-                        if (!currentRelayText.equals(relayAddr)) {
-                            textViewRelayAddress.setText(relayAddr);
-                        }
-                    }
-                } catch (Exception e) {
-                    android.util.Log.e("MainActivity", "Error in updatePeerInfo", e);
-                }
+    // Listenin başındaki kişilere bağlantıyı sohbet açılmadan kurar
+    private void prewarmRecentContacts() {
+        if (nativeLib == null || contactIndex == null || NativeLib.getCachedPeerId() == null) return;
 
-                handler.postDelayed(this, 2000);
+        List<String> peerIds = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        for (Contact contact : contactIndex.top(PREWARM_COUNT)) {
+            if (NativeLib.isGroup(contact.getPeerId())
+                    || NativeLib.getCachedConnectionState(contact.getPeerId()) != NativeLib.CONN_DISCONNECTED) {
+                continue;
             }
-        }, 1000);
+            peerIds.add(contact.getPeerId());
+            addresses.add(contact.getAddress() != null ? contact.getAddress() : "");
+        }
+        if (peerIds.isEmpty()) return;
+
+        android.util.Log.d("MainActivity", "Prewarming " + peerIds.size() + " contact(s)");
+        nativeLib.prewarmPeers(peerIds.toArray(new String[0]), addresses.toArray(new String[0]));
     }
 
     private void copyToClipboard(String label, String text) {
@@ -418,11 +400,13 @@ public class MainActivity extends AppCompatActivity {
                 .setTitle("Delete Contact")
                 .setMessage("Are you sure you want to delete '" + contact.getName() + "'?")
                 .setPositiveButton("Delete", (dialog, which) -> {
-                    int position = contactList.indexOf(contact);
+                    int position = contactIndex.remove(contact);
                     if (position != -1) {
-                        contactList.remove(position);
                         adapter.notifyItemRemoved(position);
-                        saveContacts();
+                        contactRepository.delete(contact);
+                        if (NativeLib.isGroup(contact.getPeerId())) {
+                            nativeLib.leaveGroup(contact.getPeerId().substring(NativeLib.GROUP_PREFIX.length()));
+                        }
 
                         android.widget.Toast.makeText(this,
                                 contact.getName() + " deleted",
@@ -433,12 +417,168 @@ public class MainActivity extends AppCompatActivity {
                 .show();
     }
 
+    private void showRelaySettingsDialog() {
+        android.widget.EditText relaysInput = new android.widget.EditText(this);
+        relaysInput.setHint("/ip4/.../tcp/4001/p2p/12D3K... (one per line)");
+        relaysInput.setMinLines(3);
+        relaysInput.setText(android.text.TextUtils.join("\n", NodeService.getRelays(this)));
+
+        android.widget.LinearLayout layout = new android.widget.LinearLayout(this);
+        layout.setOrientation(android.widget.LinearLayout.VERTICAL);
+        layout.setPadding(32, 32, 32, 32);
+        layout.addView(relaysInput);
+
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Relays")
+                .setMessage(relayHealthSummary()
+                        + "\n\nLeave empty to use the default relay. Changes apply after the app restarts.")
+                .setView(layout)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    NodeService.saveRelays(this, relaysInput.getText().toString());
+                    android.widget.Toast.makeText(this, "Relays saved", android.widget.Toast.LENGTH_SHORT).show();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    // Tüm sohbetlerde arama; sonuçlar yeniden eskiye, listenin sonuna gelince sonraki sayfa
+    private void showSearchDialog() {
+        // Güncellemeden sonra eski mesajlar arka planda indekslenirken arama kapalı
+        if (!MessageStore.getInstance(this).isSearchReady()) {
+            android.widget.Toast.makeText(this, "Search index is still being built, try again shortly",
+                    android.widget.Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        android.widget.EditText queryInput = new android.widget.EditText(this);
+        queryInput.setHint("Search messages");
+        queryInput.setSingleLine(true);
+
+        List<SearchResult> results = new ArrayList<>();
+        List<String> rows = new ArrayList<>();
+        android.widget.ArrayAdapter<String> listAdapter =
+                new android.widget.ArrayAdapter<>(this, android.R.layout.simple_list_item_2, android.R.id.text1, rows) {
+                    @Override
+                    public android.view.View getView(int position, android.view.View convertView, android.view.ViewGroup parent) {
+                        android.view.View view = super.getView(position, convertView, parent);
+                        SearchResult result = results.get(position);
+                        Contact contact = contactIndex.findByPeerId(result.getPeerId());
+                        String who = contact != null ? contact.getName() : result.getPeerId();
+                        String when = android.text.format.DateUtils.getRelativeTimeSpanString(result.getTimestamp()).toString();
+                        ((TextView) view.findViewById(android.R.id.text2))
+                                .setText((result.isSentByMe() ? "You → " + who : who) + " · " + when);
+                        return view;
+                    }
+                };
+        android.widget.ListView listView = new android.widget.ListView(this);
+        listView.setAdapter(listAdapter);
+
+        android.widget.LinearLayout layout = new android.widget.LinearLayout(this);
+        layout.setOrientation(android.widget.LinearLayout.VERTICAL);
+        layout.setPadding(32, 32, 32, 0);
+        layout.addView(queryInput);
+        int listHeight = (int) (400 * getResources().getDisplayMetrics().density);
+        layout.addView(listView, new android.widget.LinearLayout.LayoutParams(
+                android.widget.LinearLayout.LayoutParams.MATCH_PARENT, listHeight));
+
+        MessageStore store = MessageStore.getInstance(this);
+        // generation: eski sorgunun geç gelen sonuçları yenisinin üzerine yazılmaz
+        // hasMore: son sayfa doluydu, kaydırınca sonraki sayfa istenir
+        final int[] generation = {0};
+        final boolean[] hasMore = {false};
+
+        Runnable[] loadPage = new Runnable[1];
+        loadPage[0] = () -> {
+            String query = queryInput.getText().toString();
+            int current = generation[0];
+            long beforeId = results.isEmpty() ? Long.MAX_VALUE : results.get(results.size() - 1).getId();
+            hasMore[0] = false;
+            searchWorker.execute(() -> {
+                List<SearchResult> page = store.search(query, beforeId, SEARCH_PAGE_SIZE);
+                mainHandler.post(() -> {
+                    if (current != generation[0]) {
+                        return;
+                    }
+                    for (SearchResult result : page) {
+                        results.add(result);
+                        rows.add(result.getContent());
+                    }
+                    hasMore[0] = page.size() == SEARCH_PAGE_SIZE;
+                    listAdapter.notifyDataSetChanged();
+                });
+            });
+        };
+        Runnable newSearch = () -> {
+            generation[0]++;
+            results.clear();
+            rows.clear();
+            listAdapter.notifyDataSetChanged();
+            loadPage[0].run();
+        };
+
+        queryInput.addTextChangedListener(new android.text.TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(android.text.Editable s) {
+                mainHandler.removeCallbacks(newSearch);
+                mainHandler.postDelayed(newSearch, SEARCH_DELAY_MS);
+            }
+        });
+        listView.setOnScrollListener(new android.widget.AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(android.widget.AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(android.widget.AbsListView view, int first, int visible, int total) {
+                if (hasMore[0] && total > 0 && first + visible >= total) {
+                    loadPage[0].run();
+                }
+            }
+        });
+
+        androidx.appcompat.app.AlertDialog dialog = new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Search")
+                .setView(layout)
+                .setNegativeButton("Close", null)
+                .create();
+        dialog.setOnDismissListener(d -> mainHandler.removeCallbacks(newSearch));
+        listView.setOnItemClickListener((parent, view, position, id) -> {
+            SearchResult result = results.get(position);
+            Contact contact = contactIndex.findByPeerId(result.getPeerId());
+            Intent intent = new Intent(MainActivity.this, ChatActivity.class);
+            intent.putExtra("CONTACT_NAME", contact != null ? contact.getName() : result.getPeerId());
+            intent.putExtra("CONTACT_ID", result.getPeerId());
+            intent.putExtra("CONTACT_ADDRESS", contact != null ? contact.getAddress() : "");
+            dialog.dismiss();
+            startActivity(intent);
+        });
+        dialog.show();
+    }
+
+    private String relayHealthSummary() {
+        long[] health = nativeLib.getRelayHealth();
+        return "Connected: " + health[NativeLib.RELAY_HEALTH_CONNECTED]
+                + "/" + health[NativeLib.RELAY_HEALTH_CONFIGURED]
+                + ", reservations: " + health[NativeLib.RELAY_HEALTH_ACTIVE]
+                + "\nAccepted: " + health[NativeLib.RELAY_HEALTH_ACCEPTED]
+                + ", renewed: " + health[NativeLib.RELAY_HEALTH_RENEWALS]
+                + ", failed: " + health[NativeLib.RELAY_HEALTH_FAILURES];
+    }
+
     private void showAddContactDialog() {
         android.widget.EditText nameInput = new android.widget.EditText(this);
         nameInput.setHint("Contact Name");
 
         android.widget.EditText idInput = new android.widget.EditText(this);
-        idInput.setHint("Peer ID (e.g., 12D3K...)");
+        idInput.setHint("Peer ID (e.g., 12D3K...) or group:<name>");
 
         android.widget.EditText addressInput = new android.widget.EditText(this);
         addressInput.setHint("Relay Address (optional)");
@@ -472,17 +612,20 @@ public class MainActivity extends AppCompatActivity {
                         return;
                     }
 
-                    if (!address.isEmpty()) {
+                    if (NativeLib.isGroup(peerId)) {
+                        // Aynı adla katılan herkes aynı gruptadır
+                        nativeLib.joinGroup(peerId.substring(NativeLib.GROUP_PREFIX.length()));
+                    } else if (!address.isEmpty()) {
                         android.util.Log.d("MainActivity", "Dialing peer: " + address);
-                        nativeLib.dialPeer(address);
+                        nativeLib.connectPeer(peerId, address);
                         nativeLib.saveContact(name, address);
                     }
 
                     Contact newContact = new Contact(name, peerId, address, "Tap to chat", "Now");
-                    contactList.add(0, newContact);
+                    contactIndex.addFirst(newContact);
                     adapter.notifyItemInserted(0);
                     recyclerView.scrollToPosition(0);
-                    saveContacts();
+                    contactRepository.save(newContact);
 
                     android.widget.Toast.makeText(this,
                             "Contact added!",
@@ -492,32 +635,12 @@ public class MainActivity extends AppCompatActivity {
                 .show();
     }
 
-    private void saveContacts() {
-        try {
-            SharedPreferences prefs = getSharedPreferences("AppPrefs", MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
-            Gson gson = new Gson();
-            String json = gson.toJson(contactList);
-            editor.putString("contacts", json);
-            editor.apply();
-        } catch (Exception e) {
-            android.util.Log.e("MainActivity", "Error saving contacts", e);
-        }
-    }
-
     private void loadContacts() {
         try {
-            SharedPreferences prefs = getSharedPreferences("AppPrefs", MODE_PRIVATE);
-            String json = prefs.getString("contacts", null);
-            contactList = new ArrayList<>();
-            if (json != null) {
-                Gson gson = new Gson();
-                Type type = new TypeToken<ArrayList<Contact>>() {}.getType();
-                contactList = gson.fromJson(json, type);
-            }
+            contactIndex = new ContactIndex(contactRepository.loadAll());
         } catch (Exception e) {
             android.util.Log.e("MainActivity", "Error loading contacts", e);
-            contactList = new ArrayList<>();
+            contactIndex = new ContactIndex(new ArrayList<>());
         }
     }
 }
\ No newline at end of file
@@ -1,17 +1,52 @@
 package com.example.thecommunication;
 
 public class Message {
+    private long id;         // MessageStore satır ID'si (kaydedilmemişse -1)
     private String content;
+    private long timestamp;  // Epoch milisaniye
     private String time;
     private boolean isSentByMe;
+    private int status;      // NativeLib.MESSAGE_*
+    private int progress = -1;  // Dosya gönderiminde yüzde (aktarım yoksa -1); kaydedilmez
 
     public Message(String content, String time, boolean isSentByMe) {
+        this.id = -1;
         this.content = content;
+        this.timestamp = System.currentTimeMillis();
         this.time = time;
         this.isSentByMe = isSentByMe;
+        this.status = NativeLib.MESSAGE_DELIVERED;
     }
 
+    // MessageStore'dan okunan mesajlar için
+    public Message(long id, String content, long timestamp, boolean isSentByMe, int status) {
+        this.id = id;
+        this.content = content;
+        this.timestamp = timestamp;
+        this.time = formatTime(timestamp);
+        this.isSentByMe = isSentByMe;
+        this.status = status;
+    }
+
+    public long getId() { return id; }
     public String getContent() { return content; }
+    public long getTimestamp() { return timestamp; }
     public String getTime() { return time; }
     public boolean isSentByMe() { return isSentByMe; }
-}
\ No newline at end of file
+    public int getStatus() { return status; }
+
+    public int getProgress() { return progress; }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public void setProgress(int progress) {
+        this.progress = progress;
+    }
+
+    private static String formatTime(long timestamp) {
+        return new java.text.SimpleDateFormat("HH:mm", java.util.Locale.getDefault())
+                .format(new java.util.Date(timestamp));
+    }
+}
@@ -1,27 +1,213 @@
 package com.example.thecommunication;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+// Konuşmanın tamamını değil, ekranın etrafındaki sınırlı bir pencereyi tutar.
+// Yukarı/aşağı kaydırıldıkça sayfalar MessageStore'dan arka planda yüklenir,
+// ekrandan uzak kalan uç ise atılır; bellek konuşma uzunluğundan bağımsızdır.
 public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
 
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
 
-    private List<Message> messageList;
+    // Sadece teslim durumu değişti: satırın tamamı yeniden bağlanmaz
+    private static final Object PAYLOAD_STATUS = new Object();
 
-    public MessageAdapter(List<Message> messageList) {
-        this.messageList = messageList;
+    // Bellekte tutulan en fazla mesaj sayısı (4 sayfa)
+    private static final int MAX_WINDOW = MessageStore.PAGE_SIZE * 4;
+
+    private final MessageStore store;
+    private final String peerId;
+    private final ArrayList<Message> window = new ArrayList<>();
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Pencerenin dışında daha eski / daha yeni mesaj var mı
+    private boolean hasOlder = false;
+    private boolean hasNewer = false;
+    private boolean loadingOlder = false;
+    private boolean loadingNewer = false;
+    // Yükleme sürerken pencere dışında kalan canlı mesaj geldi mi
+    private boolean missedLive = false;
+    // Pencere baştan yüklendiğinde eski yükleme sonuçları atılsın
+    private int generation = 0;
+
+    // Ekrandaki aralık; atılacak ucu seçmek için
+    private int firstVisible = 0;
+    private int lastVisible = 0;
+
+    public MessageAdapter(MessageStore store, String peerId) {
+        this.store = store;
+        this.peerId = peerId;
+    }
+
+    // Son sayfayı yükler (tek indeksli sorgu; açılışta ekran boş kalmasın diye senkron)
+    public void loadLatest() {
+        generation++;
+        loadingOlder = false;
+        loadingNewer = false;
+        missedLive = false;
+
+        List<Message> page = store.loadRecent(peerId, MessageStore.PAGE_SIZE);
+        window.clear();
+        window.addAll(page);
+        hasOlder = page.size() == MessageStore.PAGE_SIZE;
+        hasNewer = false;
+        notifyDataSetChanged();
+    }
+
+    // Pencere en yeni mesajda bitiyor mu (canlı mesajlar doğrudan eklenebilir)
+    public boolean isAtLatest() {
+        return !hasNewer;
+    }
+
+    public void onViewportChanged(int first, int last) {
+        firstVisible = first;
+        lastVisible = last;
+    }
+
+    public void loadOlder() {
+        if (loadingOlder || !hasOlder || window.isEmpty()) return;
+        loadingOlder = true;
+        final int gen = generation;
+        final Message anchor = window.get(0);
+
+        loader.execute(() -> {
+            List<Message> page = store.loadBefore(peerId, anchor.getTimestamp(), anchor.getId(), MessageStore.PAGE_SIZE);
+            mainHandler.post(() -> {
+                if (gen != generation) return;
+                loadingOlder = false;
+                hasOlder = page.size() == MessageStore.PAGE_SIZE;
+                if (page.isEmpty()) return;
+
+                window.addAll(0, page);
+                firstVisible += page.size();
+                lastVisible += page.size();
+                notifyItemRangeInserted(0, page.size());
+                trimWindow();
+            });
+        });
+    }
+
+    public void loadNewer() {
+        if (loadingNewer || !hasNewer || window.isEmpty()) return;
+        loadingNewer = true;
+        missedLive = false;
+        final int gen = generation;
+        final Message anchor = window.get(window.size() - 1);
+
+        loader.execute(() -> {
+            List<Message> page = store.loadAfter(peerId, anchor.getTimestamp(), anchor.getId(), MessageStore.PAGE_SIZE);
+            mainHandler.post(() -> {
+                if (gen != generation) return;
+                loadingNewer = false;
+                // Sorgudan sonra gelen canlı mesaj atlandıysa bir sonraki kaydırmada tekrar sorulur
+                hasNewer = page.size() == MessageStore.PAGE_SIZE || missedLive;
+                if (page.isEmpty()) return;
+
+                int start = window.size();
+                window.addAll(page);
+                notifyItemRangeInserted(start, page.size());
+                trimWindow();
+            });
+        });
+    }
+
+    // Yeni gelen/gönderilen mesajlar. Pencere en yeni uçta değilse eklenmez
+    // (kullanıcı aşağı kaydırdığında store'dan yüklenir); eklenen sayıyı döndürür.
+    public int appendLatest(List<Message> messages) {
+        if (hasNewer) {
+            missedLive = true;
+            return 0;
+        }
+
+        long newestId = window.isEmpty() ? -1 : window.get(window.size() - 1).getId();
+        int start = window.size();
+        for (Message message : messages) {
+            // Açılış sorgusu aynı mesajı zaten okumuş olabilir
+            if (message.getId() != -1 && message.getId() <= newestId) {
+                continue;
+            }
+            window.add(message);
+        }
+        int added = window.size() - start;
+        if (added > 0) {
+            notifyItemRangeInserted(start, added);
+            trimWindow();
+        }
+        return added;
+    }
+
+    // Teslim onayı/hatası; mesaj pencerede değilse store'dan sonra okunur
+    public void updateStatus(long messageId, int status) {
+        // Onaylar genelde en yeni mesajlar için gelir, sondan aranır
+        for (int i = window.size() - 1; i >= 0; i--) {
+            Message message = window.get(i);
+            if (message.getId() == messageId) {
+                if (message.getStatus() != status) {
+                    message.setStatus(status);
+                    notifyItemChanged(i, PAYLOAD_STATUS);
+                }
+                return;
+            }
+        }
+    }
+
+    // Gönderilen dosyanın aktarım yüzdesi; sadece zaman satırı yeniden bağlanır
+    public void updateProgress(long messageId, int percent) {
+        for (int i = window.size() - 1; i >= 0; i--) {
+            Message message = window.get(i);
+            if (message.getId() == messageId) {
+                if (message.getProgress() != percent) {
+                    message.setProgress(percent);
+                    notifyItemChanged(i, PAYLOAD_STATUS);
+                }
+                return;
+            }
+        }
+    }
+
+    // Pencere sınırı aşıldıysa ekrandan uzak olan uçtan mesaj atar
+    private void trimWindow() {
+        int excess = window.size() - MAX_WINDOW;
+        if (excess <= 0) return;
+
+        int itemsAbove = firstVisible;
+        int itemsBelow = window.size() - 1 - lastVisible;
+        if (itemsBelow >= itemsAbove) {
+            int start = window.size() - excess;
+            window.subList(start, window.size()).clear();
+            notifyItemRangeRemoved(start, excess);
+            hasNewer = true;
+        } else {
+            window.subList(0, excess).clear();
+            firstVisible = Math.max(0, firstVisible - excess);
+            lastVisible = Math.max(0, lastVisible - excess);
+            notifyItemRangeRemoved(0, excess);
+            hasOlder = true;
+        }
+    }
+
+    public void release() {
+        generation++;
+        loader.shutdown();
     }
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messageList.get(position);
+        Message message = window.get(position);
         return message.isSentByMe() ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
     }
 
@@ -35,13 +221,22 @@ public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageV
 
     @Override
     public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
-        Message message = messageList.get(position);
+        Message message = window.get(position);
         holder.bind(message);
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull MessageViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+        } else {
+            holder.bindTime(window.get(position));
+        }
+    }
+
     @Override
     public int getItemCount() {
-        return messageList.size();
+        return window.size();
     }
 
     static class MessageViewHolder extends RecyclerView.ViewHolder {
@@ -56,7 +251,37 @@ public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageV
 
         public void bind(Message message) {
             bodyTextView.setText(message.getContent());
-            timeTextView.setText(message.getTime());
+            bindTime(message);
+        }
+
+        // Gönderilen mesajlarda saatin yanında teslim durumu gösterilir
+        void bindTime(Message message) {
+            if (!message.isSentByMe()) {
+                timeTextView.setText(message.getTime());
+                return;
+            }
+            String mark;
+            switch (message.getStatus()) {
+                case NativeLib.MESSAGE_DELIVERED:
+                    mark = " ✓";
+                    break;
+                case NativeLib.MESSAGE_FAILED:
+                    mark = " ✗";
+                    break;
+                case NativeLib.MESSAGE_QUEUED:
+                    mark = " ⏳";
+                    break;
+                default:
+                    mark = " …";
+                    break;
+            }
+            // Dosya aktarımı sürüyor: işaret yerine yüzde
+            if (message.getStatus() != NativeLib.MESSAGE_DELIVERED
+                    && message.getStatus() != NativeLib.MESSAGE_FAILED
+                    && message.getProgress() >= 0) {
+                mark = " " + message.getProgress() + "%";
+            }
+            timeTextView.setText(message.getTime() + mark);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+package com.example.thecommunication;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Gelen mesajları peer ID'ye göre abonelere dağıtır.
+// Aynı anda birden fazla abone olabilir (kişi listesi, açık sohbet, bildirimler);
+// kimse diğerinin dinleyicisini ezmez.
+public class MessageRouter {
+
+    public interface Subscriber {
+        // Ana thread'de, tek peer'a ait mesajlarla (gelme sırasına göre) çağrılır
+        void onMessages(String peerId, List<IncomingMessage> messages);
+
+        // Ana thread'de, bu peer'a gönderilen bir mesajın teslim durumu değişince
+        default void onMessageStatus(String peerId, long messageId, int status) {}
+
+        // Ana thread'de, bu peer'ın bağlantı durumu değişince (NativeLib.CONN_*)
+        default void onConnectionState(String peerId, int state) {}
+
+        // Ana thread'de, bu peer'la dosya aktarımı ilerledikçe (incoming: gelen dosya)
+        default void onTransferProgress(String peerId, long transferId, boolean incoming, long bytes, long total) {}
+
+        // Ana thread'de, geçmiş eşitlemesi bu peer'ın konuşmasına eski mesajlar ekleyince
+        // (store'a yazılmış olarak). Sadece peer abonelerine gider: bildirim ve önizleme yok
+        default void onHistory(String peerId) {}
+
+        // Tüm peer'lara abone olanlar için bir grubun başı ve sonu
+        default void onBatchStart() {}
+        default void onBatchEnd() {}
+    }
+
+    private static final MessageRouter instance = new MessageRouter();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Subscriber>> peerSubscribers = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Subscriber> globalSubscribers = new CopyOnWriteArrayList<>();
+    // Şu an ekranda açık olan sohbetler (bildirim gösterilmez)
+    private final Set<String> visiblePeers = ConcurrentHashMap.newKeySet();
+
+    private MessageRouter() {
+    }
+
+    public static MessageRouter getInstance() {
+        return instance;
+    }
+
+    // Sadece bu peer'dan gelen mesajlar
+    public void subscribe(String peerId, Subscriber subscriber) {
+        peerSubscribers.computeIfAbsent(peerId, k -> new CopyOnWriteArrayList<>()).add(subscriber);
+    }
+
+    public void unsubscribe(String peerId, Subscriber subscriber) {
+        peerSubscribers.computeIfPresent(peerId, (k, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    // Tüm peer'lardan gelen mesajlar
+    public void subscribeAll(Subscriber subscriber) {
+        globalSubscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribeAll(Subscriber subscriber) {
+        globalSubscribers.remove(subscriber);
+    }
+
+    public void setVisible(String peerId, boolean visible) {
+        if (peerId == null) return;
+        if (visible) {
+            visiblePeers.add(peerId);
+        } else {
+            visiblePeers.remove(peerId);
+        }
+    }
+
+    public boolean isVisible(String peerId) {
+        return visiblePeers.contains(peerId);
+    }
+
+    // Herhangi bir thread'den çağrılabilir; tüm grup tek Runnable ile ana thread'de dağıtılır
+    public void dispatch(List<IncomingMessage> batch) {
+        final Map<String, List<IncomingMessage>> byPeer = new LinkedHashMap<>();
+        for (IncomingMessage msg : batch) {
+            List<IncomingMessage> list = byPeer.get(msg.getSenderId());
+            if (list == null) {
+                list = new ArrayList<>();
+                byPeer.put(msg.getSenderId(), list);
+            }
+            list.add(msg);
+        }
+        mainHandler.post(() -> deliver(byPeer));
+    }
+
+    // Teslim durumları da tek Runnable ile, sadece ilgili peer'ın abonelerine dağıtılır
+    public void dispatchStatuses(String[] peerIds, long[] messageIds, int[] statuses) {
+        mainHandler.post(() -> {
+            for (int i = 0; i < peerIds.length; i++) {
+                List<Subscriber> subscribers = peerSubscribers.get(peerIds[i]);
+                if (subscribers == null) continue;
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.onMessageStatus(peerIds[i], messageIds[i], statuses[i]);
+                }
+            }
+        });
+    }
+
+    public void dispatchHistory(String peerId) {
+        mainHandler.post(() -> {
+            List<Subscriber> subscribers = peerSubscribers.get(peerId);
+            if (subscribers == null) return;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onHistory(peerId);
+            }
+        });
+    }
+
+    public void dispatchConnectionState(String peerId, int state) {
+        mainHandler.post(() -> {
+            List<Subscriber> subscribers = peerSubscribers.get(peerId);
+            if (subscribers == null) return;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onConnectionState(peerId, state);
+            }
+        });
+    }
+
+    public void dispatchTransferProgress(String peerId, long transferId, boolean incoming, long bytes, long total) {
+        mainHandler.post(() -> {
+            List<Subscriber> subscribers = peerSubscribers.get(peerId);
+            if (subscribers == null) return;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onTransferProgress(peerId, transferId, incoming, bytes, total);
+            }
+        });
+    }
+
+    private void deliver(Map<String, List<IncomingMessage>> byPeer) {
+        // Başlangıç/bitiş çağrıları aynı abone kümesine gitsin
+        List<Subscriber> globals = new ArrayList<>(globalSubscribers);
+        for (Subscriber subscriber : globals) {
+            subscriber.onBatchStart();
+        }
+        for (Map.Entry<String, List<IncomingMessage>> entry : byPeer.entrySet()) {
+            String peerId = entry.getKey();
+            List<IncomingMessage> messages = entry.getValue();
+
+            List<Subscriber> subscribers = peerSubscribers.get(peerId);
+            if (subscribers != null) {
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.onMessages(peerId, messages);
+                }
+            }
+            for (Subscriber subscriber : globals) {
+                subscriber.onMessages(peerId, messages);
+            }
+        }
+        for (Subscriber subscriber : globals) {
+            subscriber.onBatchEnd();
+        }
+    }
+}
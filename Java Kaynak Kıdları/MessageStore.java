@@ -0,0 +1,405 @@
+package com.example.thecommunication;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MessageStore extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "messages.db";
+    private static final int DB_VERSION = 4;
+
+    private static final String TABLE_MESSAGES = "messages";
+    private static final String COL_ID = "_id";
+    private static final String COL_PEER_ID = "peer_id";
+    private static final String COL_CONTENT = "content";
+    private static final String COL_TIMESTAMP = "timestamp";
+    private static final String COL_SENT_BY_ME = "sent_by_me";
+    private static final String COL_STATUS = "status";
+
+    private static final String[] COLUMNS = {COL_ID, COL_CONTENT, COL_TIMESTAMP, COL_SENT_BY_ME, COL_STATUS};
+
+    // Tam metin arama indeksi: docid = messages._id, body = foldForSearch(content).
+    // Büyük/küçük harf dönüşümü burada yapılır (FTS'in simple tokenizer'ı sadece ASCII
+    // harfleri küçültür). order=DESC: eşleşmeler yeniden eskiye (docid azalan) gelir,
+    // böylece en yeni sonuçlar sıralama yapılmadan sayfalanır
+    // prefix="2,3": 2 ve 3 harfli önekler ayrıca indekslenir, kısa "te*" sorguları
+    // terim aralığını baştan sona taramaz
+    private static final String TABLE_FTS = "messages_fts";
+    private static final String COL_BODY = "body";
+
+    // Güncellemeden önceki mesajlar arka planda indekslenir; satır varken arama kapalı.
+    // next_id: sıradaki indekslenecek _id, end_id: güncelleme anındaki en büyük _id
+    private static final String TABLE_BACKFILL = "search_backfill";
+    private static final int BACKFILL_BATCH = 1000;
+
+    // Sohbet açılırken yüklenen en son mesaj sayısı
+    public static final int PAGE_SIZE = 50;
+
+    private static final Locale TURKISH = new Locale("tr", "TR");
+
+    private static MessageStore instance;
+
+    // Veritabanını ilk açan (ve varsa yükseltmeyi yapan) da bu thread'dir
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor();
+    private volatile boolean searchReady = false;
+
+    private MessageStore(Context context) {
+        this(context, DB_NAME);
+    }
+
+    // Testler ayrı bir dosya ile çalışır
+    MessageStore(Context context, String name) {
+        super(context.getApplicationContext(), name, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        indexer.execute(this::backfillSearchIndex);
+    }
+
+    public static synchronized MessageStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageStore(context);
+        }
+        return instance;
+    }
+
+    // Eski mesajların indekslenmesi bitene kadar false; arama ekranı bunu kontrol eder
+    public boolean isSearchReady() {
+        return searchReady;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_PEER_ID + " TEXT NOT NULL, "
+                + COL_CONTENT + " TEXT NOT NULL, "
+                + COL_TIMESTAMP + " INTEGER NOT NULL, "
+                + COL_SENT_BY_ME + " INTEGER NOT NULL, "
+                + COL_STATUS + " INTEGER NOT NULL DEFAULT " + NativeLib.MESSAGE_DELIVERED + ")");
+        // Sayfalama sorguları (peer_id, timestamp, rowid) sırasıyla bu indeksi kullanır
+        db.execSQL("CREATE INDEX idx_messages_peer_time ON " + TABLE_MESSAGES
+                + " (" + COL_PEER_ID + ", " + COL_TIMESTAMP + ")");
+        createSearchIndex(db);
+    }
+
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FTS + " USING fts4("
+                + COL_BODY + ", order=DESC, prefix=\"2,3\")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Teslim durumu; eski mesajlar teslim edilmiş sayılır
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COL_STATUS
+                    + " INTEGER NOT NULL DEFAULT " + NativeLib.MESSAGE_DELIVERED);
+        }
+        if (oldVersion < 4) {
+            // v3 indeksi önek seçeneği olmadan kurulmuştu; yeniden oluşturulur.
+            // Yükseltme transaction'ı (ve onu açan thread, ana thread olabilir) sadece boş
+            // tabloyu kurar; mevcut geçmiş backfillSearchIndex ile parça parça indekslenir
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FTS);
+            createSearchIndex(db);
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_BACKFILL
+                    + " (next_id INTEGER NOT NULL, end_id INTEGER NOT NULL)");
+            db.execSQL("DELETE FROM " + TABLE_BACKFILL);
+            db.execSQL("INSERT INTO " + TABLE_BACKFILL + " SELECT 0, IFNULL(MAX(" + COL_ID + "), 0) FROM "
+                    + TABLE_MESSAGES);
+        }
+    }
+
+    // indexer thread'inde çalışır. Her parça kendi kısa transaction'ında yazılır,
+    // aradaki append/arama çağrıları beklemez; yeni mesajlar (end_id üstü) zaten
+    // append/appendBatch ile indekslenir
+    private void backfillSearchIndex() {
+        SQLiteDatabase db = getWritableDatabase();
+        long[] range = readBackfill(db);
+        if (range == null) {
+            searchReady = true;
+            return;
+        }
+        long nextId = range[0];
+        long endId = range[1];
+        long started = System.currentTimeMillis();
+        String[] columns = {COL_ID, COL_CONTENT};
+        ContentValues values = new ContentValues();
+        while (nextId <= endId) {
+            db.beginTransaction();
+            try {
+                long last = -1;
+                try (Cursor cursor = db.query(TABLE_MESSAGES, columns,
+                        COL_ID + " >= ? AND " + COL_ID + " <= ?",
+                        new String[]{String.valueOf(nextId), String.valueOf(endId)},
+                        null, null, COL_ID + " ASC", String.valueOf(BACKFILL_BATCH))) {
+                    while (cursor.moveToNext()) {
+                        last = cursor.getLong(0);
+                        indexMessage(db, values, last, cursor.getString(1));
+                    }
+                }
+                nextId = last < 0 ? endId + 1 : last + 1;
+                values.clear();
+                values.put("next_id", nextId);
+                db.update(TABLE_BACKFILL, values, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        db.delete(TABLE_BACKFILL, null, null);
+        searchReady = true;
+        android.util.Log.d("MessageStore", "Search index built up to " + endId + " in "
+                + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    // Bekleyen indeksleme {next_id, end_id}; yoksa null
+    private static long[] readBackfill(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{TABLE_BACKFILL})) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+        }
+        try (Cursor cursor = db.rawQuery("SELECT next_id, end_id FROM " + TABLE_BACKFILL, null)) {
+            return cursor.moveToFirst() ? new long[]{cursor.getLong(0), cursor.getLong(1)} : null;
+        }
+    }
+
+    // Arama için normalleştirme: Türkçe kurallarıyla küçültülür (I -> ı, İ -> i), ardından
+    // ı da i'ye katlanır; böylece "istanbul", "ISTANBUL", "İstanbul" ve "ıstanbul" aynı
+    // terime düşer. Harf/rakam dışındaki her şey kelime ayırıcı olur
+    static String foldForSearch(String text) {
+        String lower = text.toLowerCase(TURKISH);
+        StringBuilder out = new StringBuilder(lower.length());
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (c == 'ı') {
+                out.append('i');
+            } else if (Character.isLetterOrDigit(c)) {
+                out.append(c);
+            } else {
+                out.append(' ');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void indexMessage(SQLiteDatabase db, ContentValues values, long id, String content) {
+        if (id < 0) {
+            return;
+        }
+        values.clear();
+        values.put("docid", id);
+        values.put(COL_BODY, foldForSearch(content));
+        db.insert(TABLE_FTS, null, values);
+    }
+
+    // Konuşmanın log'una yeni mesaj ekler, mesajın satır ID'sini döndürür.
+    // Gönderilen mesajlar onay gelene kadar MESSAGE_PENDING durumunda kalır.
+    public long append(String peerId, String content, long timestamp, boolean sentByMe) {
+        ContentValues values = new ContentValues();
+        values.put(COL_PEER_ID, peerId);
+        values.put(COL_CONTENT, content);
+        values.put(COL_TIMESTAMP, timestamp);
+        values.put(COL_SENT_BY_ME, sentByMe ? 1 : 0);
+        values.put(COL_STATUS, sentByMe ? NativeLib.MESSAGE_PENDING : NativeLib.MESSAGE_DELIVERED);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = db.insert(TABLE_MESSAGES, null, values);
+            indexMessage(db, values, id, content);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Node'a hiç teslim edilemeyen mesajı geri alır
+    public void delete(long id) {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] args = {String.valueOf(id)};
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_MESSAGES, COL_ID + " = ?", args);
+            db.delete(TABLE_FTS, "docid = ?", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Toplu gelen teslim durumlarını tek transaction içinde yazar
+    public void updateStatuses(long[] ids, int[] statuses) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            String[] args = new String[1];
+            for (int i = 0; i < ids.length; i++) {
+                values.put(COL_STATUS, statuses[i]);
+                args[0] = String.valueOf(ids[i]);
+                db.update(TABLE_MESSAGES, values, COL_ID + " = ?", args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Toplu gelen mesajları tek transaction içinde ekler, satır ID'lerini döndürür
+    public long[] appendBatch(String[] peerIds, String[] contents, long[] timestamps) {
+        long[] ids = new long[peerIds.length];
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < peerIds.length; i++) {
+                values.clear();
+                values.put(COL_PEER_ID, peerIds[i]);
+                values.put(COL_CONTENT, contents[i]);
+                values.put(COL_TIMESTAMP, timestamps[i]);
+                values.put(COL_SENT_BY_ME, 0);
+                ids[i] = db.insert(TABLE_MESSAGES, null, values);
+                indexMessage(db, values, ids[i], contents[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    // Geçmiş eşitlemesinden gelen eski mesajları tek transaction içinde, zaman sırasıyla
+    // ekler (aynı zamanlı mesajlar da sayfalamada bu sırayla okunur). Her iki tarafın
+    // mesajları da karşıya ulaşmış olduğundan teslim edilmiş sayılır
+    public void insertHistory(String peerId, String[] contents, long[] timestamps, boolean[] sentByMe) {
+        Integer[] order = new Integer[contents.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(timestamps[a], timestamps[b]));
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i : order) {
+                values.clear();
+                values.put(COL_PEER_ID, peerId);
+                values.put(COL_CONTENT, contents[i]);
+                values.put(COL_TIMESTAMP, timestamps[i]);
+                values.put(COL_SENT_BY_ME, sentByMe[i] ? 1 : 0);
+                values.put(COL_STATUS, NativeLib.MESSAGE_DELIVERED);
+                long id = db.insert(TABLE_MESSAGES, null, values);
+                indexMessage(db, values, id, contents[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // En son PAGE_SIZE kadar mesaj, eskiden yeniye sıralı
+    public List<Message> loadRecent(String peerId, int limit) {
+        return query(COL_PEER_ID + " = ?", new String[]{peerId}, limit, true);
+    }
+
+    // Verilen mesajdan daha eski bir sayfa, eskiden yeniye sıralı
+    public List<Message> loadBefore(String peerId, long timestamp, long id, int limit) {
+        String ts = String.valueOf(timestamp);
+        return query(COL_PEER_ID + " = ? AND (" + COL_TIMESTAMP + " < ? OR ("
+                        + COL_TIMESTAMP + " = ? AND " + COL_ID + " < ?))",
+                new String[]{peerId, ts, ts, String.valueOf(id)}, limit, true);
+    }
+
+    // Verilen mesajdan daha yeni bir sayfa, eskiden yeniye sıralı
+    public List<Message> loadAfter(String peerId, long timestamp, long id, int limit) {
+        String ts = String.valueOf(timestamp);
+        return query(COL_PEER_ID + " = ? AND (" + COL_TIMESTAMP + " > ? OR ("
+                        + COL_TIMESTAMP + " = ? AND " + COL_ID + " > ?))",
+                new String[]{peerId, ts, ts, String.valueOf(id)}, limit, false);
+    }
+
+    // Tüm konuşmalarda arama. Her kelime önek olarak eşleşir ("merh dün" -> merhaba,
+    // dünkü...) ve hepsi aynı mesajda geçmelidir. Sonuçlar yeniden eskiye;
+    // beforeId: önceki sayfanın son sonucunun ID'si (ilk sayfa için Long.MAX_VALUE)
+    // İndeks henüz tamamlanmadıysa (isSearchReady) boş döner.
+    public List<SearchResult> search(String query, long beforeId, int limit) {
+        List<SearchResult> results = new ArrayList<>();
+        if (!searchReady) {
+            return results;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : foldForSearch(query).trim().split("\\s+")) {
+            if (!term.isEmpty()) {
+                match.append(term).append("* ");
+            }
+        }
+        if (match.length() == 0) {
+            return results;
+        }
+
+        // FTS tarafında docid sınırı ve LIMIT uygulanır, sonra sadece o sayfa
+        // mesaj tablosundan birincil anahtarla okunur
+        String sql = "SELECT m." + COL_ID + ", m." + COL_PEER_ID + ", m." + COL_CONTENT
+                + ", m." + COL_TIMESTAMP + ", m." + COL_SENT_BY_ME
+                + " FROM (SELECT docid FROM " + TABLE_FTS
+                + " WHERE " + TABLE_FTS + " MATCH ? AND docid < ? ORDER BY docid DESC LIMIT ?) f"
+                + " JOIN " + TABLE_MESSAGES + " m ON m." + COL_ID + " = f.docid"
+                + " ORDER BY m." + COL_ID + " DESC";
+        String[] args = {match.toString().trim(), String.valueOf(beforeId), String.valueOf(limit)};
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                results.add(new SearchResult(
+                        cursor.getLong(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getLong(3),
+                        cursor.getInt(4) != 0
+                ));
+            }
+        }
+        return results;
+    }
+
+    // newestFirst: sınırın hangi uçtan uygulanacağı (sonuç her zaman eskiden yeniye)
+    private List<Message> query(String selection, String[] args, int limit, boolean newestFirst) {
+        String order = newestFirst
+                ? COL_TIMESTAMP + " DESC, " + COL_ID + " DESC"
+                : COL_TIMESTAMP + " ASC, " + COL_ID + " ASC";
+        List<Message> page = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_MESSAGES,
+                COLUMNS,
+                selection,
+                args,
+                null,
+                null,
+                order,
+                String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                page.add(new Message(
+                        cursor.getLong(0),
+                        cursor.getString(1),
+                        cursor.getLong(2),
+                        cursor.getInt(3) != 0,
+                        cursor.getInt(4)
+                ));
+            }
+        }
+        // Yeniden eskiye okunduysa ekranda eskiden yeniye gösterilir
+        if (newestFirst) {
+            Collections.reverse(page);
+        }
+        return page;
+    }
+}
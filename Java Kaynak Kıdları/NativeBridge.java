@@ -0,0 +1,271 @@
+package com.example.thecommunication;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Mesaj komutları ve olayları için direct ByteBuffer köprüsü (Rust tarafı: bridge.rs).
+// Her alan için JString üretmek yerine çerçeveler paylaşılan belleğe yazılır:
+//   u8 tip, u32 payload uzunluğu, payload (little endian)
+// Metinler UTF-8; peer ID'ler u16, içerikler u32 uzunluk önekli.
+// Olay tamponu her tip için bir u32 çerçeve sayısıyla başlar (EVENT_HEADER);
+// diziler baştan bu boyutta açılır, mesaj başına kutulama/liste kopyası olmaz.
+// İki yön de senkron "kapı zili" ile çalışır, ortak sayaç/atomik yok:
+//  - Java -> Rust: komutlar yazılır, submitFrames() dönmeden Rust çerçeveleri çözer
+//  - Rust -> Java: olaylar node thread'inde yazılır, onBridgeEvents() dönmeden Java okur
+public class NativeBridge {
+
+    // bridge.rs içindeki CMD_* / EVT_* ile aynı
+    private static final byte CMD_SEND_MESSAGE = 1;
+    private static final byte EVT_MESSAGE_RECEIVED = 1;
+    private static final byte EVT_MESSAGE_STATUS = 2;
+
+    private static final int FRAME_HEADER = 5;
+    private static final int EVENT_HEADER = 8;
+    // En kısa çerçeveler (boş metinlerle); sayaçlar bunlarla sınanır
+    private static final int MIN_MESSAGE_FRAME = FRAME_HEADER + 2 + 8 + 4;
+    private static final int MIN_STATUS_FRAME = FRAME_HEADER + 2 + 8 + 4;
+    // Tek submitFrames çağrısı; Rust tarafı komut kuyruğunda (1024) hepsine birden yer ayırır
+    private static final int MAX_FRAMES_PER_SUBMIT = 256;
+    private static final int COMMAND_BUFFER_SIZE = 64 * 1024;
+    private static final int EVENT_BUFFER_SIZE = 256 * 1024;
+
+    private static NativeBridge instance;
+
+    private final ByteBuffer commands = ByteBuffer.allocateDirect(COMMAND_BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer events = ByteBuffer.allocateDirect(EVENT_BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private volatile boolean attached = false;
+
+    // Sadece node thread'inde (onBridgeEvents) kullanılır
+    private byte[] scratch = new byte[256];
+    private String lastPeer;
+    private byte[] lastPeerBytes = new byte[0];
+
+    private NativeBridge() {
+    }
+
+    public static synchronized NativeBridge getInstance() {
+        if (instance == null) {
+            instance = new NativeBridge();
+        }
+        return instance;
+    }
+
+    // startNode'dan önce çağrılır; bağlanamazsa String tabanlı yol kullanılmaya devam eder
+    public synchronized boolean attach() {
+        if (!attached) {
+            attached = NativeLib.getInstance().attachBridge(events);
+            android.util.Log.d("NativeBridge", "attachBridge: " + attached);
+        }
+        return attached;
+    }
+
+    // NativeLib.sendMessage ile aynı sonuç (SUBMIT_*)
+    public synchronized int sendMessage(String peerId, String message, long messageId) {
+        byte[] peer = peerId.getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        // Tampona sığmayan mesaj (veya bağlanmamış köprü) eski yoldan gider
+        if (!attached || !fits(peer, content)) {
+            return NativeLib.getInstance().sendMessage(peerId, message, messageId);
+        }
+        commands.clear();
+        putSendFrame(peer, content, messageId);
+        return NativeLib.getInstance().submitFrames(commands, commands.position());
+    }
+
+    // Birden çok mesajı tampon başına tek JNI çağrısıyla gönderir.
+    // Döndürülen sayı kadar mesaj (baştan itibaren) kuyruğa girdi; her submitFrames
+    // ya tamamen kabul edilir ya hiç, bu yüzden geri kalanlar hiç gönderilmedi.
+    public synchronized int sendMessages(String[] peerIds, String[] messages, long[] messageIds) {
+        NativeLib lib = NativeLib.getInstance();
+        int accepted = 0;
+        int pending = 0;
+        commands.clear();
+        for (int i = 0; i < peerIds.length; i++) {
+            byte[] peer = peerIds[i].getBytes(StandardCharsets.UTF_8);
+            byte[] content = messages[i].getBytes(StandardCharsets.UTF_8);
+            if (!attached || !fits(peer, content)) {
+                // Sıra korunur: önce biriken çerçeveler gider
+                if (pending > 0) {
+                    if (lib.submitFrames(commands, commands.position()) != NativeLib.SUBMIT_OK) {
+                        return accepted;
+                    }
+                    accepted += pending;
+                    pending = 0;
+                    commands.clear();
+                }
+                if (lib.sendMessage(peerIds[i], messages[i], messageIds[i]) != NativeLib.SUBMIT_OK) {
+                    return accepted;
+                }
+                accepted++;
+                continue;
+            }
+            if (pending == MAX_FRAMES_PER_SUBMIT
+                    || commands.remaining() < FRAME_HEADER + payloadLength(peer, content)) {
+                if (lib.submitFrames(commands, commands.position()) != NativeLib.SUBMIT_OK) {
+                    return accepted;
+                }
+                accepted += pending;
+                pending = 0;
+                commands.clear();
+            }
+            putSendFrame(peer, content, messageIds[i]);
+            pending++;
+        }
+        if (pending > 0 && lib.submitFrames(commands, commands.position()) == NativeLib.SUBMIT_OK) {
+            accepted += pending;
+        }
+        return accepted;
+    }
+
+    private static int payloadLength(byte[] peer, byte[] content) {
+        return 2 + peer.length + 8 + 4 + content.length;
+    }
+
+    private static boolean fits(byte[] peer, byte[] content) {
+        return peer.length <= 0xFFFF && FRAME_HEADER + payloadLength(peer, content) <= COMMAND_BUFFER_SIZE;
+    }
+
+    private void putSendFrame(byte[] peer, byte[] content, long messageId) {
+        commands.put(CMD_SEND_MESSAGE);
+        commands.putInt(payloadLength(peer, content));
+        commands.putShort((short) peer.length);
+        commands.put(peer);
+        commands.putLong(messageId);
+        commands.putInt(content.length);
+        commands.put(content);
+    }
+
+    // Rust node thread'inden çağrılır; tampon sadece bu çağrı süresince geçerli
+    void onBridgeEvents(int length) {
+        ByteBuffer in = events.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (length < EVENT_HEADER || length > in.capacity()) {
+            android.util.Log.e("NativeBridge", "Malformed event buffer: " + length);
+            return;
+        }
+        in.limit(length);
+
+        int messageCount = in.getInt();
+        int statusCount = in.getInt();
+        // Bozuk sayaç dev dizi açtırmasın: her çerçeve en az bu kadar yer kaplar
+        long needed = (long) messageCount * MIN_MESSAGE_FRAME + (long) statusCount * MIN_STATUS_FRAME;
+        if (messageCount < 0 || statusCount < 0 || needed > length - EVENT_HEADER) {
+            android.util.Log.e("NativeBridge", "Malformed event header");
+            return;
+        }
+
+        String[] senders = new String[messageCount];
+        String[] contents = new String[messageCount];
+        long[] timestamps = new long[messageCount];
+        String[] statusPeers = new String[statusCount];
+        long[] statusIds = new long[statusCount];
+        int[] statuses = new int[statusCount];
+        int messages = 0;
+        int updates = 0;
+
+        while (in.remaining() >= FRAME_HEADER) {
+            byte type = in.get();
+            int payload = in.getInt();
+            int next = in.position() + payload;
+            if (payload < 0 || next > length) {
+                android.util.Log.e("NativeBridge", "Malformed event frame");
+                break;
+            }
+            // Alan uzunlukları çerçevenin dışını göstermemeli; bozuk çerçeve atlanır
+            if (type == EVT_MESSAGE_RECEIVED && messages < messageCount) {
+                int peerLength = payload >= MIN_MESSAGE_FRAME - FRAME_HEADER ? in.getShort() & 0xFFFF : -1;
+                if (within(in, peerLength, 8 + 4, next)) {
+                    String sender = readPeer(in, peerLength);
+                    long timestamp = in.getLong();
+                    int contentLength = in.getInt();
+                    if (within(in, contentLength, 0, next)) {
+                        senders[messages] = sender;
+                        timestamps[messages] = timestamp;
+                        contents[messages] = readString(in, contentLength);
+                        messages++;
+                    } else {
+                        android.util.Log.e("NativeBridge", "Malformed message frame");
+                    }
+                } else {
+                    android.util.Log.e("NativeBridge", "Malformed message frame");
+                }
+            } else if (type == EVT_MESSAGE_STATUS && updates < statusCount) {
+                int peerLength = payload >= MIN_STATUS_FRAME - FRAME_HEADER ? in.getShort() & 0xFFFF : -1;
+                if (within(in, peerLength, 8 + 4, next)) {
+                    statusPeers[updates] = readPeer(in, peerLength);
+                    statusIds[updates] = in.getLong();
+                    statuses[updates] = in.getInt();
+                    updates++;
+                } else {
+                    android.util.Log.e("NativeBridge", "Malformed status frame");
+                }
+            } else {
+                android.util.Log.w("NativeBridge", "Unexpected event frame " + type);
+            }
+            in.position(next);
+        }
+
+        // Sadece bozuk tamponda sayaçlar tutmaz; o zaman okunabilenler iletilir
+        if (messages < messageCount) {
+            senders = Arrays.copyOf(senders, messages);
+            contents = Arrays.copyOf(contents, messages);
+            timestamps = Arrays.copyOf(timestamps, messages);
+        }
+        if (updates < statusCount) {
+            statusPeers = Arrays.copyOf(statusPeers, updates);
+            statusIds = Arrays.copyOf(statusIds, updates);
+            statuses = Arrays.copyOf(statuses, updates);
+        }
+
+        NativeLib lib = NativeLib.getInstance();
+        if (messages > 0) {
+            lib.onMessagesReceived(senders, contents, timestamps);
+        }
+        if (updates > 0) {
+            lib.onMessageStatuses(statusPeers, statusIds, statuses);
+        }
+    }
+
+    // length baytlık alan ve ardından gelen fixed baytlık sabit alanlar, next'te biten çerçeveye sığıyor mu
+    private static boolean within(ByteBuffer in, int length, int fixed, int next) {
+        return length >= 0 && (long) in.position() + length + fixed <= next;
+    }
+
+    // Testler olay tamponunu Rust yerine kendileri doldurur
+    ByteBuffer eventBuffer() {
+        return events;
+    }
+
+    // Bir grup olay genelde aynı peer'dan gelir; aynı baytlar için String tekrar üretilmez
+    private String readPeer(ByteBuffer in, int length) {
+        byte[] bytes = read(in, length);
+        if (lastPeer != null && length == lastPeerBytes.length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = bytes[i] == lastPeerBytes[i];
+            }
+            if (same) {
+                return lastPeer;
+            }
+        }
+        lastPeerBytes = Arrays.copyOf(bytes, length);
+        lastPeer = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        return lastPeer;
+    }
+
+    private String readString(ByteBuffer in, int length) {
+        return new String(read(in, length), 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Baytlar tekrar kullanılan tampona okunur; geçerli kısım [0, length)
+    private byte[] read(ByteBuffer in, int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        in.get(scratch, 0, length);
+        return scratch;
+    }
+}
@@ -1,7 +1,18 @@
 package com.example.thecommunication;
 
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class NativeLib {
 
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     private static NativeLib instance;
 
     private NativeLib() {
@@ -15,9 +26,16 @@ public class NativeLib {
         return instance;
     }
 
-    public static String init() {
+    private static boolean libraryLoaded = false;
+
+    // NodeService ve MainActivity ikisi de çağırabilir; kütüphane bir kez yüklenir
+    public static synchronized String init() {
+        if (libraryLoaded) {
+            return null;
+        }
         try {
             System.loadLibrary("theCommunication");
+            libraryLoaded = true;
             return null;
         } catch (UnsatisfiedLinkError e) {
             return e.getMessage();
@@ -26,34 +44,258 @@ public class NativeLib {
         }
     }
 
-    // Mesajları dinlemek için bir Interface tanımlıyoruz
-    public interface MessageListener {
-        void onMessageReceived(String senderId, String message);
+    // Gelen mesajlar MessageRouter üzerinden peer ID'ye göre abonelere dağıtılır
+    private static MessageStore messageStore;
+
+    // Gelen mesajlar UI'dan bağımsız olarak buraya yazılır
+    public static void setMessageStore(MessageStore store) {
+        messageStore = store;
+    }
+
+    // Rust tarafından toplu teslimat için çağrılır (tek JNI upcall, N mesaj)
+    public void onMessagesReceived(String[] senderIds, String[] messages, long[] timestamps) {
+        android.util.Log.d("NativeLib", "onMessagesReceived called: " + senderIds.length + " messages");
+
+        long[] ids = null;
+        if (messageStore != null) {
+            ids = messageStore.appendBatch(senderIds, messages, timestamps);
+        }
+
+        List<IncomingMessage> batch = new ArrayList<>(senderIds.length);
+        for (int i = 0; i < senderIds.length; i++) {
+            batch.add(new IncomingMessage(ids != null ? ids[i] : -1, senderIds[i], messages[i], timestamps[i]));
+        }
+
+        // Tüm grup tek bir UI frame'inde uygulanır
+        MessageRouter.getInstance().dispatch(batch);
+    }
+
+    // Rust tarafından, yeniden bağlanınca geçmiş eşitlemesinin getirdiği eksik mesajlar için
+    // çağrılır (sentByMe: bu cihazdan gönderilmiş ama burada kaybolmuş). Yeni mesaj değildirler:
+    // bildirim gösterilmez, kişi önizlemesi değişmez; zamanlarına göre geçmişe yerleşirler
+    public void onHistoryRecovered(String peerId, String[] messages, long[] timestamps, boolean[] sentByMe) {
+        android.util.Log.d("NativeLib", "onHistoryRecovered called: " + messages.length + " messages");
+        if (messageStore != null) {
+            messageStore.insertHistory(peerId, messages, timestamps, sentByMe);
+        }
+        MessageRouter.getInstance().dispatchHistory(peerId);
+    }
+
+    // Gönderilen mesajların teslim durumu (outbound.rs içindeki MESSAGE_* ile aynı)
+    public static final int MESSAGE_PENDING = 0;    // Node'a verildi, onay bekleniyor
+    public static final int MESSAGE_DELIVERED = 1;  // Karşı taraf onayladı
+    public static final int MESSAGE_FAILED = 2;     // Karşı taraf bu mesajı alamıyor
+    public static final int MESSAGE_QUEUED = 3;     // Peer çevrimdışı; bağlanınca node kendisi gönderir
+
+    // Rust tarafından toplu teslim onayı/hatası için çağrılır (tek JNI upcall, N durum)
+    public void onMessageStatuses(String[] peerIds, long[] messageIds, int[] statuses) {
+        android.util.Log.d("NativeLib", "onMessageStatuses called: " + messageIds.length + " updates");
+        if (messageStore != null) {
+            messageStore.updateStatuses(messageIds, statuses);
+        }
+        MessageRouter.getInstance().dispatchStatuses(peerIds, messageIds, statuses);
+    }
+
+    // Rust tarafından, olay çerçeveleri NativeBridge tamponuna yazıldığında çağrılır
+    public void onBridgeEvents(int length) {
+        NativeBridge.getInstance().onBridgeEvents(length);
+    }
+
+    // Grup sohbetlerinin konuşma ID'si: "group:<grup adı>" (groups.rs içindeki GROUP_PREFIX ile aynı)
+    public static final String GROUP_PREFIX = "group:";
+
+    public static boolean isGroup(String conversationId) {
+        return conversationId != null && conversationId.startsWith(GROUP_PREFIX);
+    }
+
+    // Rust tarafından toplu grup mesajları için çağrılır. Mesaj "group:<id>" konuşmasına
+    // yazılır; gönderenin kısa ID'si içeriğin başına eklenir
+    public void onGroupMessages(String[] groupIds, String[] senderIds, String[] messages, long[] timestamps) {
+        android.util.Log.d("NativeLib", "onGroupMessages called: " + groupIds.length + " messages");
+        String[] conversations = new String[groupIds.length];
+        String[] contents = new String[groupIds.length];
+        for (int i = 0; i < groupIds.length; i++) {
+            String sender = senderIds[i];
+            conversations[i] = GROUP_PREFIX + groupIds[i];
+            contents[i] = sender.substring(Math.max(0, sender.length() - 6)) + ": " + messages[i];
+        }
+        onMessagesReceived(conversations, contents, timestamps);
+    }
+
+    // Dosya mesajlarının içeriği bu önekle başlar
+    public static final String FILE_PREFIX = "📎 ";
+
+    // Rust tarafından, dosya aktarımı her 256 KB ilerlediğinde çağrılır.
+    // Gönderilen dosya bitince onMessageStatuses ile DELIVERED gelir.
+    public void onTransferProgress(String peerId, long transferId, boolean incoming, long bytes, long total) {
+        MessageRouter.getInstance().dispatchTransferProgress(peerId, transferId, incoming, bytes, total);
+    }
+
+    // Rust tarafından, gelen dosya uygulama deposuna tamamen yazıldığında çağrılır.
+    // Dosya verisi JNI'dan geçmez; sadece yolu gelir.
+    public void onFileReceived(String senderId, String name, String path, long size) {
+        android.util.Log.d("NativeLib", "onFileReceived: " + name + " (" + size + " bytes) at " + path);
+        long timestamp = System.currentTimeMillis();
+        String content = FILE_PREFIX + name;
+        long id = -1;
+        if (messageStore != null) {
+            id = messageStore.append(senderId, content, timestamp, false);
+        }
+        MessageRouter.getInstance().dispatch(
+                Collections.singletonList(new IncomingMessage(id, senderId, content, timestamp)));
+    }
+
+    // Peer başına bağlantı durumu (connection.rs içindeki CONN_* ile aynı)
+    public static final int CONN_DISCONNECTED = 0;
+    public static final int CONN_DIALING = 1;
+    public static final int CONN_RELAYED = 2;   // Relay üzerinden
+    public static final int CONN_DIRECT = 3;    // Doğrudan (veya DCUtR ile yükseltilmiş)
+
+    private static final ConcurrentHashMap<String, Integer> connectionStates = new ConcurrentHashMap<>();
+
+    public static int getCachedConnectionState(String peerId) {
+        Integer state = connectionStates.get(peerId);
+        return state != null ? state : CONN_DISCONNECTED;
+    }
+
+    // Rust tarafından, bir peer'ın bağlantı durumu değiştiğinde çağrılır
+    public void onConnectionState(String peerId, int state) {
+        android.util.Log.d("NativeLib", "onConnectionState: " + peerId + " " + state);
+        connectionStates.put(peerId, state);
+        MessageRouter.getInstance().dispatchConnectionState(peerId, state);
+    }
+
+    // Node durum değişiklikleri (p2p.rs içindeki STATUS_* ile aynı)
+    public static final int STATUS_PEER_ID = 1;
+    public static final int STATUS_LISTEN_ADDR_ADDED = 2;
+    public static final int STATUS_LISTEN_ADDR_REMOVED = 3;
+    public static final int STATUS_RELAY_ADDR_ADDED = 4;
+    public static final int STATUS_RELAY_ADDR_REMOVED = 5;
+    public static final int STATUS_RELAY_RESERVED = 6;
+
+    // Rust'tan sadece değişiklikler gelir; son durum burada tutulur,
+    // böylece sonradan açılan ekranlar JNI çağrısı yapmadan okuyabilir
+    public interface NodeStatusListener {
+        void onNodeStatus(int kind, String value);
     }
 
-    private static MessageListener listener;
+    private static NodeStatusListener statusListener;
+    private static volatile String myPeerId;
+    private static final Set<String> relayAddresses = new LinkedHashSet<>();
 
-    public static void setListener(MessageListener msgListener) {
-        listener = msgListener;
+    public static void setStatusListener(NodeStatusListener listener) {
+        statusListener = listener;
     }
 
-    // Rust tarafından çağrılacak metod
-    // NOT: Bu metod static değil, instance method olmalı
-    public void onMessageReceived(String senderId, String message) {
-        android.util.Log.d("NativeLib", "onMessageReceived called: " + senderId + " - " + message);
-        if (listener != null) {
-            listener.onMessageReceived(senderId, message);
-        } else {
-            android.util.Log.w("NativeLib", "No listener set!");
+    public static String getCachedPeerId() {
+        return myPeerId;
+    }
+
+    public static List<String> getCachedRelayAddresses() {
+        synchronized (relayAddresses) {
+            return new ArrayList<>(relayAddresses);
         }
     }
 
+    // Rust tarafından, sadece durum değiştiğinde çağrılır
+    public void onNodeStatus(int kind, String value) {
+        android.util.Log.d("NativeLib", "onNodeStatus: " + kind + " " + value);
+        switch (kind) {
+            case STATUS_PEER_ID:
+                myPeerId = value;
+                break;
+            case STATUS_RELAY_ADDR_ADDED:
+                synchronized (relayAddresses) {
+                    relayAddresses.add(value);
+                }
+                break;
+            case STATUS_RELAY_ADDR_REMOVED:
+                synchronized (relayAddresses) {
+                    relayAddresses.remove(value);
+                }
+                break;
+            default:
+                break;
+        }
+
+        mainHandler.post(() -> {
+            if (statusListener != null) {
+                statusListener.onNodeStatus(kind, value);
+            }
+        });
+    }
+
+    // getRelayHealth() dizisindeki indeksler (relays.rs içindeki HEALTH_* ile aynı)
+    public static final int RELAY_HEALTH_CONFIGURED = 0;  // Ayarlı relay sayısı
+    public static final int RELAY_HEALTH_CONNECTED = 1;   // Bağlı relay sayısı
+    public static final int RELAY_HEALTH_ACTIVE = 2;      // Geçerli rezervasyon sayısı
+    public static final int RELAY_HEALTH_ACCEPTED = 3;    // Kabul edilen ilk rezervasyonlar (toplam)
+    public static final int RELAY_HEALTH_RENEWALS = 4;    // Süresi dolmadan yenilenenler (toplam)
+    public static final int RELAY_HEALTH_FAILURES = 5;    // Reddedilen/kaybedilen rezervasyonlar (toplam)
+
+    // getStats() dizisindeki indeksler (metrics.rs içindeki STAT_* ile aynı)
+    public static final int STAT_MESSAGES_IN = 0;
+    public static final int STAT_MESSAGES_OUT = 1;          // Gönderilen istekler (tekrar denemeler dahil)
+    public static final int STAT_BYTES_IN = 2;              // Mesaj içeriği + dosya verisi
+    public static final int STAT_BYTES_OUT = 3;
+    public static final int STAT_DELIVERED = 4;
+    public static final int STAT_FAILED = 5;
+    public static final int STAT_DIAL_ATTEMPTS = 6;
+    public static final int STAT_DIAL_SUCCESSES = 7;
+    public static final int STAT_CONNECTIONS_DIRECT = 8;
+    public static final int STAT_CONNECTIONS_RELAYED = 9;
+    public static final int STAT_COMMAND_QUEUE = 10;        // Node'un henüz işlemediği komutlar (anlık)
+    public static final int STAT_LATENCY_COUNT = 11;
+    public static final int STAT_LATENCY_SUM_MS = 12;
+    // Gönderim-onay süresi histogramı: STAT_LATENCY_BUCKETS + i, LATENCY_BOUNDS_MS[i] ms'ye kadar;
+    // son kova daha yavaş olanlar
+    public static final int STAT_LATENCY_BUCKETS = 13;
+    public static final long[] LATENCY_BOUNDS_MS = {25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    // Komut gönderim sonuçları (lib.rs içindeki SUBMIT_* ile aynı)
+    public static final int SUBMIT_OK = 0;
+    public static final int SUBMIT_QUEUE_FULL = 1;   // Kuyruk dolu, daha sonra tekrar dene
+    public static final int SUBMIT_NOT_STARTED = 2;  // Node henüz başlatılmadı
+    public static final int SUBMIT_CLOSED = 3;       // Node kapandı
+    public static final int SUBMIT_INVALID = 4;      // Geçersiz adres veya Peer ID
+
     // Native metodlar
-    public native void startNode(String seed, String identityPath);
-    public native void dialPeer(String address);
-    public native void sendMessage(String peerId, String message);
-    public native void saveContact(String name, String address);
-    public native void connectContact(String name);
+    // Komut metodları bloklamaz ve thread açmaz; sonuç SUBMIT_* olarak döner
+    // relays: relay multiaddr'ları (/p2p/<id> ile biten); boşsa node varsayılan relay'i kullanır
+    public native void startNode(String seed, String identityPath, String[] relays);
+    public native int dialPeer(String address);
+    // Tekrar tekrar çağrılabilir: bağlıyken veya arama sürerken node hiçbir şey yapmaz.
+    // address boş olabilir (node bildiği adresleri kullanır)
+    public native int connectPeer(String peerId, String address);
+    // Anlık sorgular (node'a komut göndermez): CONN_* durumu ve son ping süresi (bilinmiyorsa -1)
+    public native int getConnectionState(String peerId);
+    public native long getPeerRttMillis(String peerId);
+    // Bağlantıları önceden açar; ilk mesaj relay/hole-punch kurulumunu beklemez.
+    // addresses[i] boş olabilir; bağlı veya aranmakta olan peer'lar atlanır
+    public native int prewarmPeers(String[] peerIds, String[] addresses);
+    // path: uygulama deposundaki dosya; node diskten kendisi okur.
+    // transferId mesaj ID'si gibi onMessageStatuses ile geri gelir
+    public native int sendFile(String peerId, String path, long transferId);
+    // Relay rezervasyon sayaçları; indeksler RELAY_HEALTH_* (anlık okuma, node'a komut gitmez)
+    public native long[] getRelayHealth();
+    // Node sayaçları; indeksler STAT_* (anlık okuma, node'a komut gitmez)
+    public native long[] getStats();
+    // messageId: MessageStore satır ID'si; teslim durumu onMessageStatuses ile bu ID'yle gelir
+    public native int sendMessage(String peerId, String message, long messageId);
+    // Direct ByteBuffer köprüsü (NativeBridge): olay tamponunu kaydeder / komut çerçevelerini gönderir.
+    // submitFrames dönünce tampon tekrar kullanılabilir. Tampondaki komutların ya hepsi
+    // kuyruğa girer (SUBMIT_OK) ya hiçbiri
+    public native boolean attachBridge(java.nio.ByteBuffer events);
+    public native int submitFrames(java.nio.ByteBuffer commands, int length);
+    // Grup sohbetleri: groupId "group:" öneki olmadan verilir. Katılım kalıcı değil;
+    // NodeService her başlangıçta kayıtlı gruplara yeniden katılır
+    public native int joinGroup(String groupId);
+    public native int leaveGroup(String groupId);
+    // Tek yayın tüm üyelere gider; durum onMessageStatuses ile "group:<id>" için gelir
+    // (MESSAGE_DELIVERED: ağa verildi, MESSAGE_QUEUED: henüz ulaşılabilir üye yok)
+    public native int sendGroupMessage(String groupId, String message, long messageId);
+    public native int saveContact(String name, String address);
+    public native int connectContact(String name);
 
     // Yeni metodlar: Peer ID ve Listen Adresleri
     public native String getMyPeerId();
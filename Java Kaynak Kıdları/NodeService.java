@@ -0,0 +1,142 @@
+package com.example.thecommunication;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.os.IBinder;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// P2P node'u Activity yaşam döngüsünden bağımsız tutan foreground service.
+// UI açıldığında node zaten çalışıyor olur; arka planda gelen mesajlar da işlenir.
+public class NodeService extends Service {
+
+    private static final int FOREGROUND_NOTIFICATION_ID = 1;
+
+    // Relay listesi (satır başına bir multiaddr); node başlarken okunur
+    private static final String SETTINGS_PREFS = "node_settings";
+    private static final String KEY_RELAYS = "relays";
+
+    private static boolean nodeStarted = false;
+
+    // Kişi kaydı ve bildirimler ana thread'i meşgul etmesin
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final MessageRouter.Subscriber subscriber = this::onMessages;
+
+    public static void start(Context context) {
+        Intent intent = new Intent(context, NodeService.class);
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    public static String[] getRelays(Context context) {
+        String saved = context.getSharedPreferences(SETTINGS_PREFS, Context.MODE_PRIVATE)
+                .getString(KEY_RELAYS, "");
+        List<String> relays = new ArrayList<>();
+        for (String line : saved.split("\\s+")) {
+            if (!line.isEmpty()) {
+                relays.add(line);
+            }
+        }
+        return relays.toArray(new String[0]);
+    }
+
+    // Yeni liste bir sonraki node başlangıcında geçerli olur
+    public static void saveRelays(Context context, String relays) {
+        SharedPreferences prefs = context.getSharedPreferences(SETTINGS_PREFS, Context.MODE_PRIVATE);
+        prefs.edit().putString(KEY_RELAYS, relays.trim()).apply();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        String error = NativeLib.init();
+        if (error != null) {
+            android.util.Log.e("NodeService", "Failed to load native lib: " + error);
+            stopSelf();
+            return;
+        }
+
+        NativeLib.setMessageStore(MessageStore.getInstance(this));
+        // Kişi kaydı ve bildirimler her zaman servisin sorumluluğunda
+        MessageRouter.getInstance().subscribeAll(subscriber);
+
+        if (!nodeStarted) {
+            File identityFile = new File(getFilesDir(), "identity.key");
+            android.util.Log.d("NodeService", "Starting P2P node...");
+            // Mesaj olayları ilk andan itibaren paylaşılan tampondan gelsin
+            NativeBridge.getInstance().attach();
+            NativeLib.getInstance().startNode("", identityFile.getAbsolutePath(), getRelays(this));
+            nodeStarted = true;
+            android.util.Log.d("NodeService", "P2P node started");
+            rejoinGroups();
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        ServiceCompat.startForeground(
+                this,
+                FOREGROUND_NOTIFICATION_ID,
+                NotificationHelper.buildNodeNotification(this),
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_REMOTE_MESSAGING
+        );
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        MessageRouter.getInstance().unsubscribeAll(subscriber);
+        worker.shutdown();
+    }
+
+    // Grup üyeliği node'da kalıcı değil: kişi listesindeki gruplara yeniden katılınır
+    private void rejoinGroups() {
+        worker.execute(() -> {
+            for (Contact contact : ContactRepository.getInstance(this).loadAll()) {
+                if (NativeLib.isGroup(contact.getPeerId())) {
+                    NativeLib.getInstance().joinGroup(contact.getPeerId().substring(NativeLib.GROUP_PREFIX.length()));
+                }
+            }
+        });
+    }
+
+    // Her gelen mesaj grubu: kişinin son mesajını kaydet, sohbet ekranda değilse bildirime ekle
+    private void onMessages(String senderId, List<IncomingMessage> messages) {
+        IncomingMessage last = messages.get(messages.size() - 1);
+        boolean visible = MessageRouter.getInstance().isVisible(senderId);
+
+        worker.execute(() -> {
+            ContactRepository repository = ContactRepository.getInstance(this);
+            String message = last.getContent();
+            String preview = message.length() > 30 ? message.substring(0, 30) + "..." : message;
+            String time = new java.text.SimpleDateFormat("HH:mm", java.util.Locale.getDefault())
+                    .format(new java.util.Date(last.getTimestamp()));
+
+            Contact contact = repository.find(senderId);
+            if (contact == null) {
+                contact = new Contact(Contact.defaultName(senderId), senderId, "", preview, time);
+            } else {
+                contact.setLastMessage(preview, time);
+            }
+            repository.save(contact);
+
+            if (!visible) {
+                NotificationHelper.queueMessageNotification(this, contact.getName(), senderId, contact.getAddress(), messages);
+            }
+        });
+    }
+}
@@ -5,15 +5,29 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.core.app.NotificationCompat;
+import androidx.core.app.Person;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class NotificationHelper {
 
     private static final String CHANNEL_ID = "messaging_channel";
     private static final String CHANNEL_NAME = "Messages";
     private static final String CHANNEL_DESCRIPTION = "Notifications for incoming messages";
-    private static int notificationId = 1000;
+    private static final String NODE_CHANNEL_ID = "node_channel";
+    private static final String NODE_CHANNEL_NAME = "Connection";
+    private static final String NODE_CHANNEL_DESCRIPTION = "Keeps the P2P node running in the background";
 
     public static void createNotificationChannel(Context context) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -24,41 +38,259 @@ public class NotificationHelper {
             );
             channel.setDescription(CHANNEL_DESCRIPTION);
 
+            // NodeService'in kalıcı bildirimi için sessiz kanal
+            NotificationChannel nodeChannel = new NotificationChannel(
+                    NODE_CHANNEL_ID,
+                    NODE_CHANNEL_NAME,
+                    NotificationManager.IMPORTANCE_MIN
+            );
+            nodeChannel.setDescription(NODE_CHANNEL_DESCRIPTION);
+
             NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
             if (notificationManager != null) {
                 notificationManager.createNotificationChannel(channel);
+                notificationManager.createNotificationChannel(nodeChannel);
             }
         }
     }
 
-    public static void showMessageNotification(Context context, String senderName, String message, String peerId, String address) {
-        // Create intent to open chat activity
-        Intent intent = new Intent(context, ChatActivity.class);
-        intent.putExtra("CONTACT_NAME", senderName);
-        intent.putExtra("CONTACT_ID", peerId);
-        intent.putExtra("CONTACT_ADDRESS", address);
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-
+    public static android.app.Notification buildNodeNotification(Context context) {
+        Intent intent = new Intent(context, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(
                 context,
-                notificationId,
+                0,
                 intent,
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
         );
 
-        // Build notification
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+        return new NotificationCompat.Builder(context, NODE_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle("Connected to P2P network")
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setOngoing(true)
+                .setContentIntent(pendingIntent)
+                .build();
+    }
+
+    // Aynı sohbetin mesajları bu süre içinde toplanır, bildirim bir kez güncellenir
+    private static final long DEBOUNCE_MS = 500;
+    // Yeni mesajlar en fazla bu aralıkla ses/titreşim verir; aradakiler sessiz güncelleme
+    private static final long ALERT_INTERVAL_MS = 5000;
+    // Bildirimde tutulan son mesaj sayısı
+    private static final int MAX_LINES = 8;
+
+    // Sohbet bildirimleri peerId etiketiyle aynı ID'yi kullanır: yeni mesaj yerinde günceller
+    private static final int MESSAGE_NOTIFICATION_ID = 1000;
+    private static final int SUMMARY_NOTIFICATION_ID = 999;
+    private static final String MESSAGE_GROUP = "com.example.thecommunication.MESSAGES";
+
+    // Bildirimi gösterilen sohbetler; yalnızca "conversations" kilidiyle erişilir
+    private static final Map<String, Conversation> conversations = new LinkedHashMap<>();
+    private static final Set<String> dirty = new HashSet<>();
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static boolean flushScheduled = false;
+
+    private static class Conversation {
+        String title;
+        boolean group;
+        int unread;
+        int fresh;          // Son flush'tan beri gelenler
+        long lastAlert;
+        PendingIntent contentIntent;
+        final ArrayDeque<IncomingMessage> lines = new ArrayDeque<>();
+    }
+
+    // Gelen mesajları sohbetin bildirimine ekler. Her mesaj için ayrı bildirim yerine
+    // DEBOUNCE_MS içinde gelenler toplanır ve sohbet başına tek notify() yapılır.
+    public static void queueMessageNotification(Context context, String title, String peerId,
+                                                String address, List<IncomingMessage> messages) {
+        Context app = context.getApplicationContext();
+        synchronized (conversations) {
+            Conversation conversation = conversations.get(peerId);
+            if (conversation == null) {
+                conversation = new Conversation();
+                conversation.group = NativeLib.isGroup(peerId);
+                conversation.contentIntent = buildContentIntent(app, title, peerId, address);
+                conversations.put(peerId, conversation);
+            }
+            conversation.title = title;
+            for (IncomingMessage message : messages) {
+                conversation.lines.addLast(message);
+                if (conversation.lines.size() > MAX_LINES) {
+                    conversation.lines.removeFirst();
+                }
+            }
+            conversation.unread += messages.size();
+            conversation.fresh += messages.size();
+            dirty.add(peerId);
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(() -> flush(app), DEBOUNCE_MS);
+            }
+        }
+    }
+
+    // Sohbet açıldığında bildirimi ve biriken mesajları temizler
+    public static void clearConversation(Context context, String peerId) {
+        boolean hadNotification;
+        boolean summaryLeft;
+        synchronized (conversations) {
+            hadNotification = conversations.remove(peerId) != null;
+            dirty.remove(peerId);
+            summaryLeft = conversations.size() > 1;
+        }
+        if (!hadNotification) {
+            return;
+        }
+        NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notificationManager != null) {
+            notificationManager.cancel(peerId, MESSAGE_NOTIFICATION_ID);
+            if (!summaryLeft) {
+                notificationManager.cancel(SUMMARY_NOTIFICATION_ID);
+            }
+        }
+    }
+
+    private static void flush(Context context) {
+        NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        List<android.app.Notification> updates = new ArrayList<>();
+        List<String> tags = new ArrayList<>();
+        android.app.Notification summary = null;
+
+        synchronized (conversations) {
+            flushScheduled = false;
+            if (notificationManager == null || dirty.isEmpty()) {
+                dirty.clear();
+                return;
+            }
+
+            // Kullanıcının kaydırıp kapattığı sohbetler eski mesajlarla geri gelmesin
+            Set<String> shown = new HashSet<>();
+            for (android.service.notification.StatusBarNotification active : notificationManager.getActiveNotifications()) {
+                if (active.getId() == MESSAGE_NOTIFICATION_ID && active.getTag() != null) {
+                    shown.add(active.getTag());
+                }
+            }
+            for (Iterator<Map.Entry<String, Conversation>> it = conversations.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Conversation> entry = it.next();
+                if (!shown.contains(entry.getKey()) && !dirty.contains(entry.getKey())) {
+                    it.remove();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            for (String peerId : dirty) {
+                Conversation conversation = conversations.get(peerId);
+                if (conversation == null) {
+                    continue;
+                }
+                if (!shown.contains(peerId)) {
+                    // Yeni ya da kapatılmış bildirim: yalnızca bu pencerede gelenlerle başla
+                    while (conversation.lines.size() > conversation.fresh) {
+                        conversation.lines.removeFirst();
+                    }
+                    conversation.unread = conversation.fresh;
+                }
+                conversation.fresh = 0;
+                boolean alert = now - conversation.lastAlert >= ALERT_INTERVAL_MS;
+                if (alert) {
+                    conversation.lastAlert = now;
+                }
+                updates.add(buildConversationNotification(context, conversation, !alert));
+                tags.add(peerId);
+            }
+            dirty.clear();
+
+            if (conversations.size() > 1) {
+                summary = buildSummaryNotification(context);
+            }
+        }
+
+        // Binder çağrıları kilit dışında: sohbet başına bir notify, gerekirse bir özet
+        for (int i = 0; i < updates.size(); i++) {
+            notificationManager.notify(tags.get(i), MESSAGE_NOTIFICATION_ID, updates.get(i));
+        }
+        if (summary != null) {
+            notificationManager.notify(SUMMARY_NOTIFICATION_ID, summary);
+        }
+    }
+
+    private static android.app.Notification buildConversationNotification(Context context, Conversation conversation, boolean silent) {
+        Person me = new Person.Builder().setName("You").build();
+        NotificationCompat.MessagingStyle style = new NotificationCompat.MessagingStyle(me)
+                .setConversationTitle(conversation.group ? conversation.title : null)
+                .setGroupConversation(conversation.group);
+        Person sender = new Person.Builder().setName(conversation.title).build();
+        for (IncomingMessage message : conversation.lines) {
+            style.addMessage(message.getContent(), message.getTimestamp(), sender);
+        }
+
+        IncomingMessage last = conversation.lines.peekLast();
+        return new NotificationCompat.Builder(context, CHANNEL_ID)
                 .setSmallIcon(android.R.drawable.ic_dialog_email)
-                .setContentTitle(senderName)
-                .setContentText(message)
+                .setContentTitle(conversation.title)
+                .setContentText(last != null ? last.getContent() : "")
+                .setStyle(style)
+                .setNumber(conversation.unread)
+                .setWhen(last != null ? last.getTimestamp() : System.currentTimeMillis())
+                .setCategory(NotificationCompat.CATEGORY_MESSAGE)
                 .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setGroup(MESSAGE_GROUP)
+                .setOnlyAlertOnce(silent)
                 .setAutoCancel(true)
-                .setContentIntent(pendingIntent);
+                .setContentIntent(conversation.contentIntent)
+                .build();
+    }
 
-        // Show notification
-        NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-        if (notificationManager != null) {
-            notificationManager.notify(notificationId++, builder.build());
+    // Birden fazla sohbet bildirimi tek grup altında toplanır
+    private static android.app.Notification buildSummaryNotification(Context context) {
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        int unread = 0;
+        for (Conversation conversation : conversations.values()) {
+            unread += conversation.unread;
+            style.addLine(conversation.title + ": " + conversation.unread);
         }
+        String text = unread + " new messages in " + conversations.size() + " chats";
+        style.setSummaryText(text);
+
+        Intent intent = new Intent(context, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(
+                context,
+                SUMMARY_NOTIFICATION_ID,
+                intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+
+        return new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.ic_dialog_email)
+                .setContentTitle("Messages")
+                .setContentText(text)
+                .setStyle(style)
+                .setGroup(MESSAGE_GROUP)
+                .setGroupSummary(true)
+                .setOnlyAlertOnce(true)
+                .setAutoCancel(true)
+                .setContentIntent(pendingIntent)
+                .build();
+    }
+
+    // Sohbet başına bir kez oluşturulur; her güncellemede yeniden istenmez
+    private static PendingIntent buildContentIntent(Context context, String title, String peerId, String address) {
+        Intent intent = new Intent(context, ChatActivity.class);
+        intent.putExtra("CONTACT_NAME", title);
+        intent.putExtra("CONTACT_ID", peerId);
+        intent.putExtra("CONTACT_ADDRESS", address);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        // PendingIntent'ler extras'a bakmaz; requestCode'u (hashCode) çakışan iki sohbet
+        // aynı intent'i paylaşırdı. Veri URI'si her peer için ayrı bir intent yapar
+        intent.setData(Uri.fromParts("umay", peerId, null));
+
+        return PendingIntent.getActivity(
+                context,
+                peerId.hashCode(),
+                intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
     }
 }
@@ -16,6 +16,20 @@ import com.google.zxing.WriterException;
 import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.common.BitMatrix;
 import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.json.JSONObject;
 
 public class QRActivity extends AppCompatActivity {
@@ -25,6 +39,17 @@ public class QRActivity extends AppCompatActivity {
     private String myPeerId;
     private String myRelayAddress;
 
+    // Ekranda gösterilen QR boyutu (piksel); modül boyutu bunun tam böleni seçilir
+    private static final int QR_SIZE = 512;
+    private static final String CACHE_PREFIX = "qr_";
+
+    // Peer ID ve relay adresi nadiren değişir; son QR bellekte ve cache dizininde tutulur
+    private static String cachedKey;
+    private static Bitmap cachedBitmap;
+
+    private final ExecutorService qrWorker = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -55,32 +80,113 @@ public class QRActivity extends AppCompatActivity {
     }
 
     private void generateQRCode() {
-        try {
-            // Create JSON with both peer ID and relay address
-            JSONObject qrData = new JSONObject();
-            qrData.put("peerId", myPeerId);
-            qrData.put("address", myRelayAddress);
+        String address = myRelayAddress != null ? myRelayAddress : "";
+        String key = myPeerId + "\n" + address;
+        synchronized (QRActivity.class) {
+            if (key.equals(cachedKey) && cachedBitmap != null) {
+                qrImageView.setImageBitmap(cachedBitmap);
+                return;
+            }
+        }
 
-            String qrContent = qrData.toString();
+        // Disk okuma ve kodlama UI thread'ini bloklamaz
+        File cacheFile = new File(getCacheDir(), cacheFileName(key));
+        qrWorker.execute(() -> {
+            Bitmap bmp = android.graphics.BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
+            if (bmp == null) {
+                try {
+                    bmp = renderQRCode(encodePayload(myPeerId, address));
+                    saveToCache(cacheFile, bmp);
+                } catch (WriterException e) {
+                    android.util.Log.e("QRActivity", "Error generating QR code", e);
+                    mainHandler.post(() -> Toast.makeText(this,
+                            "Failed to generate QR code", Toast.LENGTH_SHORT).show());
+                    return;
+                }
+            }
+            synchronized (QRActivity.class) {
+                cachedKey = key;
+                cachedBitmap = bmp;
+            }
+            Bitmap result = bmp;
+            mainHandler.post(() -> {
+                if (!isFinishing() && !isDestroyed()) {
+                    qrImageView.setImageBitmap(result);
+                }
+            });
+        });
+    }
 
-            QRCodeWriter writer = new QRCodeWriter();
-            BitMatrix bitMatrix = writer.encode(qrContent, BarcodeFormat.QR_CODE, 512, 512);
+    // Dosya adı anahtarın SHA-256'sı: hashCode çakışması başka bir peer ID/adresin
+    // QR'ını göstermesin. Eski "qr_<hashCode>" dosyaları ilk kayıtta silinir
+    static String cacheFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(CACHE_PREFIX);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(".png").toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Her Android sürümünde SHA-256 vardır
+            throw new IllegalStateException(e);
+        }
+    }
 
-            int width = bitMatrix.getWidth();
-            int height = bitMatrix.getHeight();
-            Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    // Kısa içerik: JSON anahtarları yok. Relay adresi zaten /p2p/<peerId> ile bitiyorsa
+    // sadece adres, yoksa "<peerId> <adres>" veya tek başına peer ID. Daha az veri daha
+    // küçük QR sürümü (daha az modül) demek; okuması da daha hızlı
+    static String encodePayload(String peerId, String address) {
+        if (address == null || address.isEmpty()) {
+            return peerId;
+        }
+        if (address.endsWith("/p2p/" + peerId)) {
+            return address;
+        }
+        return peerId + " " + address;
+    }
 
+    // Matris modül çözünürlüğünde üretilir (her modül 1 piksel), satırlar toplu yazılır
+    // ve tam sayı katına büyütülür; piksel piksel setPixel yok
+    private static Bitmap renderQRCode(String content) throws WriterException {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        // Ekrandan okunan kısa bir içerik için L seviyesi yeterli ve sürümü düşürür
+        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
+        hints.put(EncodeHintType.CHARACTER_SET, "UTF-8");
+        BitMatrix matrix = new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, 0, 0, hints);
+
+        int width = matrix.getWidth();
+        int height = matrix.getHeight();
+        int[] row = new int[width];
+        Bitmap modules = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    bmp.setPixel(x, y, bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE);
-                }
+                row[x] = matrix.get(x, y) ? Color.BLACK : Color.WHITE;
             }
+            modules.setPixels(row, 0, width, 0, y, width, 1);
+        }
 
-            qrImageView.setImageBitmap(bmp);
+        int scale = Math.max(1, QR_SIZE / width);
+        // Filtre yok: modül kenarları keskin kalır
+        Bitmap scaled = Bitmap.createScaledBitmap(modules, width * scale, height * scale, false);
+        if (scaled != modules) {
+            modules.recycle();
+        }
+        return scaled;
+    }
 
-        } catch (WriterException | org.json.JSONException e) {
-            android.util.Log.e("QRActivity", "Error generating QR code", e);
-            Toast.makeText(this, "Failed to generate QR code", Toast.LENGTH_SHORT).show();
+    // Tek dosya tutulur; eski peer ID/adres için üretilenler silinir
+    private void saveToCache(File file, Bitmap bmp) {
+        File[] old = getCacheDir().listFiles((dir, name) -> name.startsWith(CACHE_PREFIX));
+        if (old != null) {
+            for (File f : old) {
+                f.delete();
+            }
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            android.util.Log.w("QRActivity", "Failed to cache QR code", e);
         }
     }
 
@@ -110,34 +216,55 @@ public class QRActivity extends AppCompatActivity {
     }
 
     private void handleScannedData(String contents) {
+        contents = contents.trim();
+        if (!contents.startsWith("{")) {
+            // Kısa içerik (encodePayload) veya düz peer ID
+            String peerId = contents;
+            String address = "";
+            int space = contents.indexOf(' ');
+            if (space > 0) {
+                peerId = contents.substring(0, space);
+                address = contents.substring(space + 1).trim();
+            } else if (contents.startsWith("/")) {
+                address = contents;
+                int p2p = contents.lastIndexOf("/p2p/");
+                peerId = p2p >= 0 ? contents.substring(p2p + 5) : "";
+            }
+            returnScanResult(peerId, address);
+            return;
+        }
         try {
-            // Try to parse as JSON
+            // Eski sürümlerin ürettiği JSON QR kodları
             JSONObject qrData = new JSONObject(contents);
             String peerId = qrData.getString("peerId");
             String address = qrData.optString("address", "");
 
             android.util.Log.d("QRActivity", "Scanned Peer ID: " + peerId);
             android.util.Log.d("QRActivity", "Scanned Address: " + address);
-
-            // Return to MainActivity with results
-            Intent returnIntent = new Intent();
-            returnIntent.putExtra("SCANNED_PEER_ID", peerId);
-            returnIntent.putExtra("SCANNED_ADDRESS", address);
-            setResult(Activity.RESULT_OK, returnIntent);
-            finish();
+            returnScanResult(peerId, address);
 
         } catch (org.json.JSONException e) {
             // Fallback: treat as plain peer ID
             android.util.Log.w("QRActivity", "Failed to parse as JSON, treating as plain peer ID", e);
-
-            Intent returnIntent = new Intent();
-            returnIntent.putExtra("SCANNED_PEER_ID", contents);
-            returnIntent.putExtra("SCANNED_ADDRESS", "");
-            setResult(Activity.RESULT_OK, returnIntent);
-            finish();
+            returnScanResult(contents, "");
         }
     }
 
+    // Return to MainActivity with results
+    private void returnScanResult(String peerId, String address) {
+        Intent returnIntent = new Intent();
+        returnIntent.putExtra("SCANNED_PEER_ID", peerId);
+        returnIntent.putExtra("SCANNED_ADDRESS", address);
+        setResult(Activity.RESULT_OK, returnIntent);
+        finish();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        qrWorker.shutdownNow();
+    }
+
     @Override
     public boolean onSupportNavigateUp() {
         finish();
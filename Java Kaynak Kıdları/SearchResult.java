@@ -0,0 +1,24 @@
+package com.example.thecommunication;
+
+// Tüm konuşmalarda yapılan aramanın tek bir sonucu
+public class SearchResult {
+    private long id;         // MessageStore satır ID'si; sonraki sayfa bundan öncesini ister
+    private String peerId;   // Mesajın ait olduğu konuşma
+    private String content;
+    private long timestamp;  // Epoch milisaniye
+    private boolean sentByMe;
+
+    public SearchResult(long id, String peerId, String content, long timestamp, boolean sentByMe) {
+        this.id = id;
+        this.peerId = peerId;
+        this.content = content;
+        this.timestamp = timestamp;
+        this.sentByMe = sentByMe;
+    }
+
+    public long getId() { return id; }
+    public String getPeerId() { return peerId; }
+    public String getContent() { return content; }
+    public long getTimestamp() { return timestamp; }
+    public boolean isSentByMe() { return sentByMe; }
+}
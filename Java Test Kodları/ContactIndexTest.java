@@ -0,0 +1,105 @@
+package com.example.thecommunication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class ContactIndexTest {
+
+    private static Contact contact(String peerId) {
+        return new Contact(peerId, peerId, "", "", "");
+    }
+
+    private static List<String> peers(ContactIndex index) {
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            peers.add(index.get(i).getPeerId());
+        }
+        return peers;
+    }
+
+    @Test
+    public void keepsLoadedOrderAndDropsDuplicates() {
+        Contact a = contact("a");
+        Contact b = contact("b");
+        ContactIndex index = new ContactIndex(Arrays.asList(a, b, contact("a"), contact("c")));
+        assertEquals(Arrays.asList("a", "b", "c"), peers(index));
+        assertSame(a, index.findByPeerId("a"));
+        assertNull(index.findByPeerId(""));
+        assertNull(index.findByPeerId("x"));
+    }
+
+    @Test
+    public void movesAndPositions() {
+        Contact a = contact("a");
+        Contact b = contact("b");
+        Contact c = contact("c");
+        ContactIndex index = new ContactIndex(Arrays.asList(a, b, c));
+
+        assertEquals(2, index.positionOf(c));
+        index.moveToFront(c);
+        assertEquals(0, index.positionOf(c));
+        assertEquals(Arrays.asList("c", "a", "b"), peers(index));
+
+        // Toplu güncelleme: konumlar sadece sonunda okunur
+        index.moveToFront(b);
+        index.moveToFront(a);
+        index.moveToFront(b);
+        index.addFirst(contact("d"));
+        assertEquals(Arrays.asList("d", "b", "a", "c"), peers(index));
+        assertEquals(Arrays.asList("d", "b"), peerIds(index.top(2)));
+
+        assertEquals(2, index.remove(a));
+        assertEquals(-1, index.remove(a));
+        assertEquals(-1, index.positionOf(a));
+        assertEquals(Arrays.asList("d", "b", "c"), peerIds(index.snapshot()));
+
+        // Listede olmayan kişi taşınmaz
+        index.moveToFront(a);
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void manyMovesStayCheap() {
+        int count = 100_000;
+        List<Contact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            contacts.add(contact("peer-" + i));
+        }
+        ContactIndex index = new ContactIndex(contacts);
+        index.get(0);
+        assertEquals(1, index.rebuilds);
+
+        // Her taşıma listenin sonundaki kişiyi başa alır (eski döngüde en kötü durum);
+        // taşıma ve arama O(1) kalır, O(n) sıralama sadece okurken bir kez kurulur
+        for (int i = 0; i < count; i++) {
+            index.moveToFront(index.findByPeerId("peer-" + (count - 1 - i)));
+        }
+        assertEquals(1, index.rebuilds);
+        assertEquals("peer-0", index.get(0).getPeerId());
+        assertEquals("peer-1", index.get(1).getPeerId());
+        assertEquals(count, index.size());
+        assertEquals(2, index.rebuilds);
+
+        // Değişiklikten sonraki ilk okuma bir kez kurar (remove konumu döndürmek için okur)
+        index.moveToFront(index.findByPeerId("peer-5"));
+        assertEquals(0, index.positionOf(index.findByPeerId("peer-5")));
+        index.addFirst(contact("new"));
+        index.remove(index.findByPeerId("peer-7"));
+        assertEquals("new", index.top(1).get(0).getPeerId());
+        assertEquals(5, index.rebuilds);
+    }
+
+    private static List<String> peerIds(List<Contact> contacts) {
+        List<String> peers = new ArrayList<>();
+        for (Contact contact : contacts) {
+            peers.add(contact.getPeerId());
+        }
+        return peers;
+    }
+}
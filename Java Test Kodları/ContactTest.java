@@ -0,0 +1,16 @@
+package com.example.thecommunication;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ContactTest {
+
+    @Test
+    public void defaultNames() {
+        assertEquals("#ekip", Contact.defaultName("group:ekip"));
+        assertEquals("#", Contact.defaultName("group:"));
+        assertEquals("User-ABCDEFGH", Contact.defaultName("12D3KooWXYZABCDEFGH"));
+        assertEquals("User-short", Contact.defaultName("short"));
+    }
+}
@@ -1,4 +1,7 @@
-use libp2p::{dcutr, identify, mdns, ping, relay, request_response, swarm::NetworkBehaviour};
+use libp2p::{
+    dcutr, gossipsub, identify, mdns, ping, relay, request_response,
+    swarm::{behaviour::toggle::Toggle, NetworkBehaviour},
+};
 
 #[derive(NetworkBehaviour)]
 pub struct AppBehaviour {
@@ -6,6 +9,12 @@ pub struct AppBehaviour {
     pub identify: identify::Behaviour,
     pub ping: ping::Behaviour,
     pub relay_client: relay::client::Behaviour,
+    // Only enabled when the CLI runs as a relay (`--relay-server`); always off in the app
+    pub relay_server: Toggle<relay::Behaviour>,
     pub dcutr: dcutr::Behaviour,
-    pub chat: request_response::json::Behaviour<crate::chat::ChatMessage, crate::chat::ChatMessage>,
+    pub chat: request_response::Behaviour<crate::codec::ChatCodec>,
+    // Group chats (groups.rs): one publish per message, fanned out by the mesh
+    pub gossipsub: gossipsub::Behaviour,
+    // Raw streams for attachments (transfer.rs)
+    pub stream: libp2p_stream::Behaviour,
 }
@@ -0,0 +1,382 @@
+use crate::outbound::MessageStatus;
+use crate::p2p::{Command, InboundMessage};
+use jni::objects::{GlobalRef, JByteBuffer};
+use jni::JNIEnv;
+use once_cell::sync::OnceCell;
+use std::sync::Mutex;
+
+// Frame layout (both directions, little endian):
+//   u8 type, u32 payload length, payload
+// Strings are UTF-8 with a u16 (peer IDs) or u32 (content) length prefix.
+// Each event flush starts with a header of one u32 frame count per EVT_* type
+// (EVENT_HEADER bytes), so Java can size its arrays before decoding.
+// Mirrored by NativeBridge.java.
+
+// Java -> Rust: peer str16, u64 message ID, content str32
+pub const CMD_SEND_MESSAGE: u8 = 1;
+
+// Rust -> Java: peer str16, i64 timestamp (epoch millis), content str32
+pub const EVT_MESSAGE_RECEIVED: u8 = 1;
+// Rust -> Java: peer str16, u64 message ID, i32 status (NativeLib.MESSAGE_*)
+pub const EVT_MESSAGE_STATUS: u8 = 2;
+
+// Frame counts for EVT_MESSAGE_RECEIVED and EVT_MESSAGE_STATUS
+const EVENT_HEADER: usize = 8;
+
+struct Reader<'a> {
+    buf: &'a [u8],
+    pos: usize,
+}
+
+impl<'a> Reader<'a> {
+    fn bytes(&mut self, n: usize) -> Option<&'a [u8]> {
+        let end = self.pos.checked_add(n)?;
+        let out = self.buf.get(self.pos..end)?;
+        self.pos = end;
+        Some(out)
+    }
+
+    fn u8(&mut self) -> Option<u8> {
+        self.bytes(1).map(|b| b[0])
+    }
+
+    fn u16(&mut self) -> Option<u16> {
+        self.bytes(2).map(|b| u16::from_le_bytes([b[0], b[1]]))
+    }
+
+    fn u32(&mut self) -> Option<u32> {
+        self.bytes(4).map(|b| u32::from_le_bytes(b.try_into().unwrap()))
+    }
+
+    fn u64(&mut self) -> Option<u64> {
+        self.bytes(8).map(|b| u64::from_le_bytes(b.try_into().unwrap()))
+    }
+
+    fn str16(&mut self) -> Option<&'a str> {
+        let len = self.u16()? as usize;
+        std::str::from_utf8(self.bytes(len)?).ok()
+    }
+
+    fn str32(&mut self) -> Option<&'a str> {
+        let len = self.u32()? as usize;
+        std::str::from_utf8(self.bytes(len)?).ok()
+    }
+}
+
+/// Decodes the command frames Java wrote into its buffer.
+/// Unknown frame types are skipped; a malformed frame rejects the whole buffer.
+pub fn parse_commands(buf: &[u8]) -> Option<Vec<Command>> {
+    let mut reader = Reader { buf, pos: 0 };
+    let mut commands = Vec::new();
+    while reader.pos < buf.len() {
+        let kind = reader.u8()?;
+        let len = reader.u32()? as usize;
+        let mut payload = Reader { buf: reader.bytes(len)?, pos: 0 };
+        match kind {
+            CMD_SEND_MESSAGE => {
+                let peer = payload.str16()?.parse().ok()?;
+                let msg_id = payload.u64()?;
+                let content = payload.str32()?.to_string();
+                commands.push(Command::SendMessage(peer, msg_id, content));
+            }
+            _ => log::warn!("Unknown bridge command {}", kind),
+        }
+    }
+    Some(commands)
+}
+
+/// Java's direct event buffer. Written only on the node thread and read by
+/// Java inside the onBridgeEvents upcall, so the two sides never overlap.
+struct EventSink {
+    // Keeps the ByteBuffer (and so `ptr`) alive
+    _buffer: GlobalRef,
+    ptr: *mut u8,
+    capacity: usize,
+}
+
+// The pointer targets memory owned by the pinned direct ByteBuffer
+unsafe impl Send for EventSink {}
+
+static EVENTS: OnceCell<Mutex<EventSink>> = OnceCell::new();
+
+/// Registers Java's direct event buffer; false if it is not a direct buffer
+pub fn attach(env: &mut JNIEnv, buffer: JByteBuffer) -> bool {
+    let (Ok(ptr), Ok(capacity)) = (
+        env.get_direct_buffer_address(&buffer),
+        env.get_direct_buffer_capacity(&buffer),
+    ) else {
+        return false;
+    };
+    let Ok(global) = env.new_global_ref(buffer) else {
+        return false;
+    };
+    EVENTS
+        .set(Mutex::new(EventSink {
+            _buffer: global,
+            ptr,
+            capacity,
+        }))
+        .is_ok()
+}
+
+pub fn is_attached() -> bool {
+    EVENTS.get().is_some()
+}
+
+/// Writes received messages as frames, calling `flush(length)` each time the
+/// buffer fills and once at the end. Returns the messages that don't fit in
+/// the buffer at all; the caller sends those the String-based way.
+pub fn deliver_messages<F: FnMut(i32)>(batch: &[InboundMessage], flush: F) -> Vec<usize> {
+    deliver(batch, flush, encode_message)
+}
+
+/// Same as deliver_messages for delivery states
+pub fn deliver_statuses<F: FnMut(i32)>(batch: &[MessageStatus], flush: F) -> Vec<usize> {
+    deliver(batch, flush, encode_status)
+}
+
+fn encode_message(msg: &InboundMessage, out: &mut Vec<u8>) {
+    out.push(EVT_MESSAGE_RECEIVED);
+    let start = begin_payload(out);
+    put_str16(out, &msg.sender);
+    out.extend_from_slice(&msg.timestamp.to_le_bytes());
+    put_str32(out, &msg.content);
+    end_payload(out, start);
+}
+
+fn encode_status(update: &MessageStatus, out: &mut Vec<u8>) {
+    out.push(EVT_MESSAGE_STATUS);
+    let start = begin_payload(out);
+    put_str16(out, &update.peer);
+    out.extend_from_slice(&update.msg_id.to_le_bytes());
+    out.extend_from_slice(&update.status.to_le_bytes());
+    end_payload(out, start);
+}
+
+fn deliver<T, F, E>(items: &[T], mut flush: F, encode: E) -> Vec<usize>
+where
+    F: FnMut(i32),
+    E: Fn(&T, &mut Vec<u8>),
+{
+    let Some(sink) = EVENTS.get() else {
+        return (0..items.len()).collect();
+    };
+    let Ok(sink) = sink.lock() else {
+        return (0..items.len()).collect();
+    };
+    let buffer = unsafe { std::slice::from_raw_parts_mut(sink.ptr, sink.capacity) };
+    fill(buffer, items, |filled| flush(filled.len() as i32), encode)
+}
+
+// Packs the frames of `items` into `buffer` behind the count header, handing
+// each filled part (header included) to `flush`; returns the oversized items
+fn fill<T, F, E>(buffer: &mut [u8], items: &[T], mut flush: F, encode: E) -> Vec<usize>
+where
+    F: FnMut(&[u8]),
+    E: Fn(&T, &mut Vec<u8>),
+{
+    let mut oversized = Vec::new();
+    let mut frame = Vec::with_capacity(256);
+    let mut counts = [0u32; 2];
+    let mut len = EVENT_HEADER;
+    for (i, item) in items.iter().enumerate() {
+        frame.clear();
+        encode(item, &mut frame);
+        if EVENT_HEADER + frame.len() > buffer.len() {
+            oversized.push(i);
+            continue;
+        }
+        if len + frame.len() > buffer.len() {
+            write_header(buffer, &counts);
+            flush(&buffer[..len]);
+            counts = [0; 2];
+            len = EVENT_HEADER;
+        }
+        buffer[len..len + frame.len()].copy_from_slice(&frame);
+        len += frame.len();
+        counts[(frame[0] - EVT_MESSAGE_RECEIVED) as usize] += 1;
+    }
+    if len > EVENT_HEADER {
+        write_header(buffer, &counts);
+        flush(&buffer[..len]);
+    }
+    oversized
+}
+
+fn write_header(buffer: &mut [u8], counts: &[u32; 2]) {
+    buffer[0..4].copy_from_slice(&counts[0].to_le_bytes());
+    buffer[4..8].copy_from_slice(&counts[1].to_le_bytes());
+}
+
+// Reserves the u32 payload length; returns where the payload starts
+fn begin_payload(out: &mut Vec<u8>) -> usize {
+    out.extend_from_slice(&[0; 4]);
+    out.len()
+}
+
+fn end_payload(out: &mut Vec<u8>, start: usize) {
+    let len = (out.len() - start) as u32;
+    out[start - 4..start].copy_from_slice(&len.to_le_bytes());
+}
+
+fn put_str16(out: &mut Vec<u8>, s: &str) {
+    let bytes = &s.as_bytes()[..s.len().min(u16::MAX as usize)];
+    out.extend_from_slice(&(bytes.len() as u16).to_le_bytes());
+    out.extend_from_slice(bytes);
+}
+
+fn put_str32(out: &mut Vec<u8>, s: &str) {
+    out.extend_from_slice(&(s.len() as u32).to_le_bytes());
+    out.extend_from_slice(s.as_bytes());
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn send_frame(peer: &str, msg_id: u64, content: &str) -> Vec<u8> {
+        let mut out = vec![CMD_SEND_MESSAGE];
+        let start = begin_payload(&mut out);
+        put_str16(&mut out, peer);
+        out.extend_from_slice(&msg_id.to_le_bytes());
+        put_str32(&mut out, content);
+        end_payload(&mut out, start);
+        out
+    }
+
+    #[test]
+    fn parses_a_batch_of_sends() {
+        let peer = libp2p::PeerId::random();
+        let mut buf = send_frame(&peer.to_string(), 7, "merhaba");
+        buf.extend(send_frame(&peer.to_string(), 8, ""));
+        let commands = parse_commands(&buf).unwrap();
+        assert_eq!(commands.len(), 2);
+        match &commands[0] {
+            Command::SendMessage(p, id, content) => {
+                assert_eq!((p, *id, content.as_str()), (&peer, 7, "merhaba"));
+            }
+            _ => panic!("expected SendMessage"),
+        }
+    }
+
+    #[test]
+    fn skips_unknown_frames() {
+        let peer = libp2p::PeerId::random();
+        let mut buf = vec![99, 3, 0, 0, 0, 1, 2, 3];
+        buf.extend(send_frame(&peer.to_string(), 1, "x"));
+        assert_eq!(parse_commands(&buf).unwrap().len(), 1);
+    }
+
+    #[test]
+    fn rejects_malformed_buffers() {
+        let peer = libp2p::PeerId::random().to_string();
+        let frame = send_frame(&peer, 1, "hello");
+        // Truncated anywhere: the whole buffer is refused, nothing half-parsed
+        for cut in 1..frame.len() {
+            assert!(parse_commands(&frame[..cut]).is_none(), "cut at {}", cut);
+        }
+        assert!(parse_commands(&send_frame("not-a-peer", 1, "x")).is_none());
+        let mut bad_utf8 = send_frame(&peer, 1, "ab");
+        let last = bad_utf8.len() - 1;
+        bad_utf8[last] = 0xFF;
+        assert!(parse_commands(&bad_utf8).is_none());
+    }
+
+    fn inbound(sender: &str, content: &str, timestamp: i64) -> InboundMessage {
+        InboundMessage {
+            sender: sender.to_string(),
+            content: content.to_string(),
+            timestamp,
+            group: None,
+        }
+    }
+
+    // One flushed part, decoded the way NativeBridge.onBridgeEvents reads it:
+    // (message count, status count, frames as (type, peer, u64 field, content or status))
+    fn decode(part: &[u8]) -> (u32, u32, Vec<(u8, String, u64, String)>) {
+        let mut reader = Reader { buf: part, pos: 0 };
+        let counts = (reader.u32().unwrap(), reader.u32().unwrap());
+        let mut frames = Vec::new();
+        while reader.pos < part.len() {
+            let kind = reader.u8().unwrap();
+            let len = reader.u32().unwrap() as usize;
+            let mut payload = Reader { buf: reader.bytes(len).unwrap(), pos: 0 };
+            let peer = payload.str16().unwrap().to_string();
+            let value = payload.u64().unwrap();
+            let rest = match kind {
+                EVT_MESSAGE_RECEIVED => payload.str32().unwrap().to_string(),
+                _ => (payload.u32().unwrap() as i32).to_string(),
+            };
+            assert_eq!(payload.pos, len, "frame length covers the payload exactly");
+            frames.push((kind, peer, value, rest));
+        }
+        (counts.0, counts.1, frames)
+    }
+
+    // Runs `fill` on a buffer of `capacity` bytes; returns every flushed part
+    fn fill_parts<T>(capacity: usize, items: &[T], encode: fn(&T, &mut Vec<u8>)) -> (Vec<Vec<u8>>, Vec<usize>) {
+        let mut buffer = vec![0xAA; capacity];
+        let mut parts = Vec::new();
+        let oversized = fill(&mut buffer, items, |part| parts.push(part.to_vec()), encode);
+        (parts, oversized)
+    }
+
+    #[test]
+    fn messages_are_framed_behind_their_count() {
+        let batch = [inbound("peer-a", "merhaba", 1_000), inbound("peer-a", "", -1), inbound("peer-b", "ğüş", 3)];
+        let (parts, oversized) = fill_parts(4096, &batch, encode_message);
+        assert!(oversized.is_empty());
+        assert_eq!(parts.len(), 1);
+        let (messages, statuses, frames) = decode(&parts[0]);
+        assert_eq!((messages, statuses), (3, 0));
+        let expected: Vec<_> = batch
+            .iter()
+            .map(|m| (EVT_MESSAGE_RECEIVED, m.sender.clone(), m.timestamp as u64, m.content.clone()))
+            .collect();
+        assert_eq!(frames, expected);
+    }
+
+    #[test]
+    fn statuses_are_counted_in_the_second_slot() {
+        let batch = [
+            MessageStatus { peer: "peer-a".into(), msg_id: 7, status: 2 },
+            MessageStatus { peer: "group:ekip".into(), msg_id: u64::MAX, status: -1 },
+        ];
+        let (parts, _) = fill_parts(4096, &batch, encode_status);
+        let (messages, statuses, frames) = decode(&parts[0]);
+        assert_eq!((messages, statuses), (0, 2));
+        assert_eq!(frames[1], (EVT_MESSAGE_STATUS, "group:ekip".to_string(), u64::MAX, "-1".to_string()));
+    }
+
+    #[test]
+    fn full_buffers_are_flushed_with_their_own_counts() {
+        // Each frame is 5 + 2 + 6 + 8 + 4 + 10 = 35 bytes: three fit behind the header
+        let batch: Vec<_> = (0..10).map(|i| inbound("peer-a", &format!("message {:02}", i), i)).collect();
+        let (parts, oversized) = fill_parts(EVENT_HEADER + 3 * 35 + 10, &batch, encode_message);
+        assert!(oversized.is_empty());
+        assert_eq!(parts.len(), 4);
+        let mut seen = Vec::new();
+        for part in &parts {
+            let (messages, statuses, frames) = decode(part);
+            assert_eq!((messages as usize, statuses), (frames.len(), 0));
+            seen.extend(frames.into_iter().map(|(_, _, timestamp, _)| timestamp));
+        }
+        assert_eq!(seen, (0..10).collect::<Vec<u64>>());
+    }
+
+    #[test]
+    fn oversized_messages_are_returned_and_skipped() {
+        let batch = [inbound("peer-a", "short", 1), inbound("peer-a", &"x".repeat(200), 2), inbound("peer-a", "also short", 3)];
+        let (parts, oversized) = fill_parts(128, &batch, encode_message);
+        assert_eq!(oversized, vec![1]);
+        let (messages, _, frames) = decode(&parts[0]);
+        assert_eq!(messages, 2);
+        assert_eq!(frames.iter().map(|f| f.2).collect::<Vec<_>>(), vec![1, 3]);
+    }
+
+    #[test]
+    fn empty_batches_flush_nothing() {
+        let (parts, oversized) = fill_parts(128, &[], encode_message);
+        assert!(parts.is_empty() && oversized.is_empty());
+    }
+}
@@ -9,17 +9,12 @@ pub struct ChatMessage {
 }
 
 impl ChatMessage {
-    pub fn new(from: String, content: String) -> Self {
-        use std::time::{SystemTime, UNIX_EPOCH};
-        let timestamp = SystemTime::now()
-            .duration_since(UNIX_EPOCH)
-            .unwrap()
-            .as_secs();
-
+    /// Delivery acknowledgement sent back for a received message
+    pub fn ack() -> Self {
         Self {
-            from,
-            content,
-            timestamp,
+            from: String::new(),
+            content: "✓".to_string(),
+            timestamp: 0,
         }
     }
 }
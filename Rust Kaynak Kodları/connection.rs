@@ -0,0 +1,706 @@
+use libp2p::{
+    core::ConnectedPoint,
+    multiaddr::Protocol,
+    swarm::{
+        dial_opts::{DialOpts, PeerCondition},
+        ConnectionId, DialError, NetworkBehaviour,
+    },
+    Multiaddr, PeerId, Swarm,
+};
+use std::collections::HashMap;
+use std::time::{Duration, Instant, SystemTime, UNIX_EPOCH};
+
+// Per-peer connection states pushed to Java (NativeLib.CONN_*)
+pub const CONN_DISCONNECTED: i32 = 0;
+pub const CONN_DIALING: i32 = 1;
+pub const CONN_RELAYED: i32 = 2;
+pub const CONN_DIRECT: i32 = 3;
+
+// Redial backoff: 1 s, 2 s, 4 s ... capped, with ±25% jitter
+const BACKOFF_BASE: Duration = Duration::from_secs(1);
+const BACKOFF_MAX: Duration = Duration::from_secs(60);
+// Automatic redials after a failure/disconnect before waiting for the next connect request
+const MAX_REDIALS: u32 = 6;
+
+/// The part of the swarm the manager drives; tests replace it with a recorder
+pub trait Dialer {
+    fn dial(&mut self, opts: DialOpts) -> Result<(), DialError>;
+    fn close_connection(&mut self, id: ConnectionId) -> bool;
+}
+
+impl<B: NetworkBehaviour> Dialer for Swarm<B> {
+    fn dial(&mut self, opts: DialOpts) -> Result<(), DialError> {
+        Swarm::dial(self, opts)
+    }
+
+    fn close_connection(&mut self, id: ConnectionId) -> bool {
+        Swarm::close_connection(self, id)
+    }
+}
+
+#[derive(Default)]
+struct PeerConnection {
+    addrs: Vec<Multiaddr>,
+    // Open connections and whether each one goes through a relay
+    connections: HashMap<ConnectionId, bool>,
+    dialing: bool,
+    // Asked for by the app (connect); only these are redialed automatically
+    wanted: bool,
+    // A chat peer (saved contact, prewarmed or asked for by the app); LAN discovery dials
+    // only these. An inbound connection alone doesn't make a peer known.
+    known: bool,
+    // Addresses announced by mDNS on the local network
+    lan_addrs: Vec<Multiaddr>,
+    failures: u32,
+    next_dial: Option<Instant>,
+    state: i32,
+}
+
+impl PeerConnection {
+    fn current_state(&self) -> i32 {
+        if self.connections.values().any(|relayed| !relayed) {
+            CONN_DIRECT
+        } else if !self.connections.is_empty() {
+            CONN_RELAYED
+        } else if self.dialing {
+            CONN_DIALING
+        } else {
+            CONN_DISCONNECTED
+        }
+    }
+}
+
+/// Owns every dial to a chat peer.
+///
+/// Repeated connect requests for a peer that is already connected or being
+/// dialed are dropped, failed dials are retried with exponential backoff and
+/// jitter, and once a direct (e.g. DCUtR hole-punched) connection exists the
+/// relayed ones to the same peer are closed. State changes are returned to
+/// the caller so they can be pushed to Java.
+#[derive(Default)]
+pub struct ConnectionManager {
+    peers: HashMap<PeerId, PeerConnection>,
+}
+
+impl ConnectionManager {
+    /// Remembers an address for the peer without dialing
+    pub fn add_address(&mut self, peer: PeerId, addr: Multiaddr) {
+        let entry = self.peers.entry(peer).or_default();
+        if !entry.addrs.contains(&addr) {
+            // Direct addresses first, relay circuits last
+            if is_relayed_addr(&addr) {
+                entry.addrs.push(addr);
+            } else {
+                entry.addrs.insert(0, addr);
+            }
+        }
+    }
+
+    /// Marks a saved contact as a chat peer (so LAN discovery dials it) without dialing
+    pub fn add_known(&mut self, peer: PeerId, addr: Option<Multiaddr>) {
+        if let Some(addr) = addr {
+            self.add_address(peer, addr);
+        }
+        self.peers.entry(peer).or_default().known = true;
+    }
+
+    /// Connect request from the app; a no-op if the peer is connected or a dial is running
+    pub fn connect(&mut self, swarm: &mut impl Dialer, peer: PeerId, addr: Option<Multiaddr>) -> Option<i32> {
+        if let Some(addr) = addr {
+            self.add_address(peer, addr);
+        }
+        let entry = self.peers.entry(peer).or_default();
+        entry.wanted = true;
+        entry.known = true;
+        if !entry.connections.is_empty() || entry.dialing {
+            return None;
+        }
+        // An explicit request overrides a pending backoff
+        entry.failures = 0;
+        entry.next_dial = None;
+        self.dial(swarm, peer, PeerCondition::DisconnectedAndNotDialing)
+    }
+
+    /// Opens a connection ahead of time (e.g. recent contacts) so the first
+    /// message doesn't pay relay/hole-punch setup. One attempt, no redials,
+    /// and nothing happens for peers that are connected, dialing or backing off.
+    pub fn prewarm(&mut self, swarm: &mut impl Dialer, peer: PeerId, addr: Option<Multiaddr>) -> Option<i32> {
+        if let Some(addr) = addr {
+            self.add_address(peer, addr);
+        }
+        let entry = self.peers.entry(peer).or_default();
+        entry.known = true;
+        if !entry.connections.is_empty() || entry.dialing || entry.next_dial.is_some() {
+            return None;
+        }
+        self.dial(swarm, peer, PeerCondition::DisconnectedAndNotDialing)
+    }
+
+    /// mDNS found `peer` on the local network. Known chat peers that have no
+    /// direct connection are dialed right away, even if a relayed one exists;
+    /// the LAN connection then replaces the relayed one (see on_established).
+    pub fn on_local_discovered(&mut self, swarm: &mut impl Dialer, peer: PeerId, addr: Multiaddr) -> Option<i32> {
+        let entry = self.peers.entry(peer).or_default();
+        if !entry.lan_addrs.contains(&addr) {
+            entry.lan_addrs.push(addr);
+        }
+        let has_direct = entry.connections.values().any(|relayed| !relayed);
+        if !entry.known || has_direct || entry.dialing {
+            return None;
+        }
+
+        log::info!("🏠 Known peer {} found on LAN, dialing directly", peer);
+        entry.failures = 0;
+        entry.next_dial = None;
+        // Not DisconnectedAndNotDialing: a relayed connection must not stop the upgrade
+        self.dial(swarm, peer, PeerCondition::NotDialing)
+    }
+
+    pub fn on_local_expired(&mut self, peer: &PeerId, addr: &Multiaddr) {
+        if let Some(entry) = self.peers.get_mut(peer) {
+            entry.lan_addrs.retain(|a| a != addr);
+        }
+    }
+
+    /// Peers with a connection or a dial in progress, with their CONN_* state
+    pub fn snapshot(&self) -> Vec<(PeerId, i32)> {
+        self.peers
+            .iter()
+            .filter(|(_, p)| p.state != CONN_DISCONNECTED)
+            .map(|(peer, p)| (*peer, p.state))
+            .collect()
+    }
+
+    /// Dials peers whose backoff has expired
+    pub fn tick(&mut self, swarm: &mut impl Dialer) -> Vec<(PeerId, i32)> {
+        let now = Instant::now();
+        let due: Vec<PeerId> = self
+            .peers
+            .iter()
+            .filter(|(_, p)| p.connections.is_empty() && !p.dialing && p.next_dial.map_or(false, |t| t <= now))
+            .map(|(peer, _)| *peer)
+            .collect();
+
+        let mut changes = Vec::new();
+        for peer in due {
+            if let Some(entry) = self.peers.get_mut(&peer) {
+                entry.next_dial = None;
+            }
+            if let Some(state) = self.dial(swarm, peer, PeerCondition::DisconnectedAndNotDialing) {
+                changes.push((peer, state));
+            }
+        }
+        changes
+    }
+
+    pub fn on_established(
+        &mut self,
+        swarm: &mut impl Dialer,
+        peer: PeerId,
+        connection_id: ConnectionId,
+        endpoint: &ConnectedPoint,
+    ) -> Option<i32> {
+        let entry = self.peers.entry(peer).or_default();
+        let relayed = endpoint.is_relayed();
+        entry.connections.insert(connection_id, relayed);
+        entry.dialing = false;
+        entry.failures = 0;
+        entry.next_dial = None;
+
+        // Prefer the direct path: relayed connections are limited and slower
+        if !relayed {
+            let relayed_ids: Vec<ConnectionId> = entry
+                .connections
+                .iter()
+                .filter(|(_, r)| **r)
+                .map(|(id, _)| *id)
+                .collect();
+            for id in relayed_ids {
+                log::info!("Direct connection to {}, closing relayed {:?}", peer, id);
+                swarm.close_connection(id);
+            }
+        }
+        let upgrade = relayed && !entry.lan_addrs.is_empty() && !entry.connections.values().any(|r| !r);
+
+        let changed = self.update_state(peer);
+        if upgrade {
+            // Reached through the relay but mDNS already saw it on the LAN
+            log::info!("🏠 Relayed peer {} is on the LAN, dialing directly", peer);
+            self.dial(swarm, peer, PeerCondition::NotDialing);
+        }
+        changed
+    }
+
+    /// `graceful`: closed without an error (idle timeout, local close) - not redialed
+    pub fn on_closed(&mut self, peer: PeerId, connection_id: ConnectionId, graceful: bool) -> Option<i32> {
+        let entry = self.peers.get_mut(&peer)?;
+        entry.connections.remove(&connection_id)?;
+        if entry.connections.is_empty() && !graceful {
+            // Lost the last connection: come back with backoff
+            entry.failures += 1;
+            schedule_redial(entry);
+        }
+        self.update_state(peer)
+    }
+
+    pub fn on_dial_failed(&mut self, peer: PeerId) -> Option<i32> {
+        let entry = self.peers.get_mut(&peer)?;
+        if !entry.dialing {
+            return None;
+        }
+        entry.dialing = false;
+        entry.failures += 1;
+        if entry.connections.is_empty() {
+            schedule_redial(entry);
+        }
+        self.update_state(peer)
+    }
+
+    fn dial(&mut self, swarm: &mut impl Dialer, peer: PeerId, condition: PeerCondition) -> Option<i32> {
+        let entry = self.peers.get_mut(&peer)?;
+        // LAN addresses first (no relay, no hole punch), then other direct ones, relay circuits last
+        let mut addrs = entry.lan_addrs.clone();
+        addrs.extend(entry.addrs.iter().filter(|a| !entry.lan_addrs.contains(a)).cloned());
+        let opts = DialOpts::peer_id(peer)
+            .addresses(addrs)
+            .condition(condition)
+            .build();
+        match swarm.dial(opts) {
+            Ok(()) => {
+                log::info!("Dialing {} ({} known address(es))", peer, entry.addrs.len());
+                entry.dialing = true;
+            }
+            Err(DialError::DialPeerConditionFalse(_)) => {
+                // The swarm is already connected/dialing (e.g. an inbound connection); wait for its event
+            }
+            Err(e) => {
+                log::warn!("Dial to {} not started: {:?}", peer, e);
+                entry.failures += 1;
+                schedule_redial(entry);
+            }
+        }
+        self.update_state(peer)
+    }
+
+    // Returns the new state if it changed
+    fn update_state(&mut self, peer: PeerId) -> Option<i32> {
+        let entry = self.peers.get_mut(&peer)?;
+        let state = entry.current_state();
+        if state == entry.state {
+            return None;
+        }
+        entry.state = state;
+        Some(state)
+    }
+}
+
+fn schedule_redial(entry: &mut PeerConnection) {
+    if !entry.wanted || entry.failures > MAX_REDIALS {
+        entry.next_dial = None;
+        return;
+    }
+    entry.next_dial = Some(Instant::now() + backoff(entry.failures));
+}
+
+fn backoff(failures: u32) -> Duration {
+    let exp = BACKOFF_BASE
+        .saturating_mul(1u32 << failures.saturating_sub(1).min(16))
+        .min(BACKOFF_MAX);
+    // Jitter so that peers which dropped together don't redial in lockstep
+    let nanos = SystemTime::now()
+        .duration_since(UNIX_EPOCH)
+        .map(|d| d.subsec_nanos())
+        .unwrap_or(0);
+    let factor = 0.75 + (nanos % 1000) as f64 / 2000.0;
+    exp.mul_f64(factor)
+}
+
+/// Peer ID at the end of a `/p2p/<id>` address
+pub fn peer_of(addr: &Multiaddr) -> Option<PeerId> {
+    addr.iter().last().and_then(|p| match p {
+        Protocol::P2p(peer) => Some(peer),
+        _ => None,
+    })
+}
+
+fn is_relayed_addr(addr: &Multiaddr) -> bool {
+    addr.iter().any(|p| matches!(p, Protocol::P2pCircuit))
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::testnet::{Node, NodeEvent};
+
+    // How the recorder answers dials
+    #[derive(Clone, Copy, PartialEq)]
+    enum Answer {
+        Start,
+        // The swarm is already connected or dialing
+        Busy,
+        Fail,
+    }
+
+    // Records dials and closes instead of touching the network
+    struct Recorder {
+        answer: Answer,
+        dials: Vec<PeerId>,
+        closed: Vec<ConnectionId>,
+    }
+
+    impl Recorder {
+        fn new(answer: Answer) -> Self {
+            Self {
+                answer,
+                dials: Vec::new(),
+                closed: Vec::new(),
+            }
+        }
+    }
+
+    impl Dialer for Recorder {
+        fn dial(&mut self, opts: DialOpts) -> Result<(), DialError> {
+            match self.answer {
+                Answer::Start => {
+                    self.dials.push(opts.get_peer_id().expect("dials go to a peer"));
+                    Ok(())
+                }
+                Answer::Busy => Err(DialError::DialPeerConditionFalse(PeerCondition::DisconnectedAndNotDialing)),
+                Answer::Fail => Err(DialError::NoAddresses),
+            }
+        }
+
+        fn close_connection(&mut self, id: ConnectionId) -> bool {
+            self.closed.push(id);
+            true
+        }
+    }
+
+    fn endpoint(relayed: bool) -> ConnectedPoint {
+        let local = if relayed {
+            "/ip4/10.0.0.1/tcp/4001/p2p/12D3KooWDpJ7As7BWAwRMfu1VU2WCqNjvq387JEYKDBj4kx6nXTN/p2p-circuit"
+        } else {
+            "/ip4/192.168.1.2/tcp/4001"
+        };
+        ConnectedPoint::Listener {
+            local_addr: local.parse().unwrap(),
+            send_back_addr: "/ip4/192.168.1.3/tcp/5001".parse().unwrap(),
+        }
+    }
+
+    fn lan_addr() -> Multiaddr {
+        "/ip4/192.168.1.3/tcp/4001".parse().unwrap()
+    }
+
+    #[test]
+    fn backoff_doubles_up_to_the_cap_with_jitter() {
+        // (failures, backoff before jitter)
+        let cases = [
+            (0, 1),
+            (1, 1),
+            (2, 2),
+            (3, 4),
+            (6, 32),
+            (7, 60),
+            (20, 60),
+            (u32::MAX, 60),
+        ];
+        for (failures, secs) in cases {
+            let base = Duration::from_secs(secs);
+            for _ in 0..100 {
+                let delay = backoff(failures);
+                assert!(delay >= base.mul_f64(0.75), "{} failures: {:?} below {:?}", failures, delay, base);
+                assert!(delay <= base.mul_f64(1.25), "{} failures: {:?} above {:?}", failures, delay, base);
+            }
+        }
+    }
+
+    #[derive(Clone, Copy, Debug)]
+    enum Before {
+        Idle,
+        Dialing,
+        Connected,
+        BackingOff,
+    }
+
+    fn manager_in(before: Before, peer: PeerId) -> ConnectionManager {
+        let mut manager = ConnectionManager::default();
+        let entry = manager.peers.entry(peer).or_default();
+        match before {
+            Before::Idle => {}
+            Before::Dialing => entry.dialing = true,
+            Before::Connected => {
+                entry.connections.insert(ConnectionId::new_unchecked(1), false);
+            }
+            Before::BackingOff => {
+                entry.wanted = true;
+                entry.failures = 2;
+                entry.next_dial = Some(Instant::now() + Duration::from_secs(30));
+            }
+        }
+        entry.state = entry.current_state();
+        manager
+    }
+
+    #[test]
+    fn connect_and_prewarm_dial_only_when_needed() {
+        // (state before the request, connect dials, prewarm dials)
+        let cases = [
+            (Before::Idle, true, true),
+            (Before::Dialing, false, false),
+            (Before::Connected, false, false),
+            // An explicit connect skips the backoff; a prewarm waits for it
+            (Before::BackingOff, true, false),
+        ];
+        for (before, connect_dials, prewarm_dials) in cases {
+            let peer = PeerId::random();
+
+            let mut swarm = Recorder::new(Answer::Start);
+            let mut manager = manager_in(before, peer);
+            let state = manager.connect(&mut swarm, peer, None);
+            assert_eq!(swarm.dials.len(), connect_dials as usize, "connect when {:?}", before);
+            assert_eq!(state, connect_dials.then_some(CONN_DIALING), "connect when {:?}", before);
+            assert!(manager.peers[&peer].wanted && manager.peers[&peer].known);
+
+            let mut swarm = Recorder::new(Answer::Start);
+            let mut manager = manager_in(before, peer);
+            let state = manager.prewarm(&mut swarm, peer, None);
+            assert_eq!(swarm.dials.len(), prewarm_dials as usize, "prewarm when {:?}", before);
+            assert_eq!(state, prewarm_dials.then_some(CONN_DIALING), "prewarm when {:?}", before);
+            assert!(manager.peers[&peer].known);
+        }
+    }
+
+    #[test]
+    fn repeated_connects_dial_once() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        assert_eq!(manager.connect(&mut swarm, peer, None), Some(CONN_DIALING));
+        for _ in 0..10 {
+            assert_eq!(manager.connect(&mut swarm, peer, None), None);
+            assert_eq!(manager.prewarm(&mut swarm, peer, None), None);
+        }
+        assert_eq!(swarm.dials, vec![peer]);
+    }
+
+    #[test]
+    fn swarm_side_dedup_is_not_a_failure() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Busy);
+        let mut manager = ConnectionManager::default();
+        assert_eq!(manager.connect(&mut swarm, peer, None), None);
+        let entry = &manager.peers[&peer];
+        assert!(!entry.dialing);
+        assert_eq!(entry.failures, 0);
+        assert!(entry.next_dial.is_none());
+    }
+
+    #[test]
+    fn dial_that_cannot_start_is_retried() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Fail);
+        let mut manager = ConnectionManager::default();
+        assert_eq!(manager.connect(&mut swarm, peer, None), None);
+        assert_eq!(manager.peers[&peer].failures, 1);
+        assert!(manager.peers[&peer].next_dial.is_some());
+    }
+
+    #[test]
+    fn tick_redials_wanted_peers_once_their_backoff_expires() {
+        let (wanted, prewarmed) = (PeerId::random(), PeerId::random());
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        manager.connect(&mut swarm, wanted, None);
+        manager.prewarm(&mut swarm, prewarmed, None);
+        assert_eq!(manager.on_dial_failed(wanted), Some(CONN_DISCONNECTED));
+        assert_eq!(manager.on_dial_failed(prewarmed), Some(CONN_DISCONNECTED));
+        // A failure event for a dial the manager didn't start changes nothing
+        assert_eq!(manager.on_dial_failed(wanted), None);
+
+        // Prewarmed peers get one attempt; only the wanted one waits for a redial
+        assert!(manager.peers[&prewarmed].next_dial.is_none());
+        assert!(manager.peers[&wanted].next_dial.is_some());
+        assert!(manager.tick(&mut swarm).is_empty());
+
+        manager.peers.get_mut(&wanted).unwrap().next_dial = Some(Instant::now());
+        assert_eq!(manager.tick(&mut swarm), vec![(wanted, CONN_DIALING)]);
+        assert_eq!(swarm.dials, vec![wanted, prewarmed, wanted]);
+        // Dialing now: the next tick leaves it alone
+        assert!(manager.tick(&mut swarm).is_empty());
+    }
+
+    #[test]
+    fn redials_stop_after_max_redials() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        manager.connect(&mut swarm, peer, None);
+        for attempt in 1..=MAX_REDIALS + 1 {
+            manager.on_dial_failed(peer);
+            let scheduled = manager.peers[&peer].next_dial.is_some();
+            assert_eq!(scheduled, attempt <= MAX_REDIALS, "after failure {}", attempt);
+            if scheduled {
+                manager.peers.get_mut(&peer).unwrap().next_dial = Some(Instant::now());
+                manager.tick(&mut swarm);
+            }
+        }
+        assert_eq!(swarm.dials.len(), MAX_REDIALS as usize + 1);
+        // A new request starts over
+        assert_eq!(manager.connect(&mut swarm, peer, None), Some(CONN_DIALING));
+    }
+
+    #[test]
+    fn only_lost_connections_are_redialed() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        manager.connect(&mut swarm, peer, None);
+        let (first, second) = (ConnectionId::new_unchecked(1), ConnectionId::new_unchecked(2));
+
+        manager.on_established(&mut swarm, peer, first, &endpoint(false));
+        assert_eq!(manager.on_closed(peer, first, true), Some(CONN_DISCONNECTED));
+        assert!(manager.peers[&peer].next_dial.is_none(), "idle close redialed");
+
+        manager.on_established(&mut swarm, peer, second, &endpoint(false));
+        assert_eq!(manager.on_closed(peer, second, false), Some(CONN_DISCONNECTED));
+        assert!(manager.peers[&peer].next_dial.is_some(), "lost connection not redialed");
+    }
+
+    #[test]
+    fn direct_connection_replaces_relayed_one() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        manager.connect(&mut swarm, peer, None);
+        let (relayed, direct) = (ConnectionId::new_unchecked(1), ConnectionId::new_unchecked(2));
+
+        assert_eq!(manager.on_established(&mut swarm, peer, relayed, &endpoint(true)), Some(CONN_RELAYED));
+        assert_eq!(manager.on_established(&mut swarm, peer, direct, &endpoint(false)), Some(CONN_DIRECT));
+        assert_eq!(swarm.closed, vec![relayed]);
+        assert_eq!(manager.on_closed(peer, relayed, true), None);
+        assert_eq!(manager.snapshot(), vec![(peer, CONN_DIRECT)]);
+    }
+
+    #[test]
+    fn lan_discovery_dials_only_known_peers() {
+        let stranger = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        // Someone connected to us over a relay, then showed up on the LAN
+        let id = ConnectionId::new_unchecked(1);
+        manager.on_established(&mut swarm, stranger, id, &endpoint(true));
+        manager.on_closed(stranger, id, true);
+        assert_eq!(manager.on_local_discovered(&mut swarm, stranger, lan_addr()), None);
+        assert!(swarm.dials.is_empty(), "dialed a peer the app never asked for");
+
+        // Saved as a contact: the next announcement is dialed
+        manager.add_known(stranger, None);
+        assert_eq!(manager.on_local_discovered(&mut swarm, stranger, lan_addr()), Some(CONN_DIALING));
+        assert_eq!(swarm.dials, vec![stranger]);
+    }
+
+    #[test]
+    fn lan_discovery_upgrades_a_relayed_chat_peer() {
+        let peer = PeerId::random();
+        let mut swarm = Recorder::new(Answer::Start);
+        let mut manager = ConnectionManager::default();
+        manager.connect(&mut swarm, peer, None);
+        manager.on_established(&mut swarm, peer, ConnectionId::new_unchecked(1), &endpoint(true));
+
+        // Relayed only: the LAN address is dialed even though a connection exists
+        manager.on_local_discovered(&mut swarm, peer, lan_addr());
+        assert_eq!(swarm.dials, vec![peer, peer]);
+        // Already dialing: seeing it again changes nothing
+        manager.on_local_discovered(&mut swarm, peer, lan_addr());
+        assert_eq!(swarm.dials.len(), 2);
+    }
+
+    // Relay, A and B on localhost, like two phones behind a relay that then find
+    // each other on the LAN
+    const PING_SAMPLES: usize = 5;
+
+    // Waits for A's connection to B and returns its ID and whether it is relayed
+    async fn connected(swarms: &mut [Swarm<Node>], b: PeerId) -> (ConnectionId, bool) {
+        let mut found = None;
+        let done = crate::testnet::run_until(swarms, crate::testnet::TIMEOUT, |index, event| {
+            if let libp2p::swarm::SwarmEvent::ConnectionEstablished { peer_id, connection_id, endpoint, .. } = event {
+                if index == 1 && peer_id == b {
+                    found = Some((connection_id, endpoint.is_relayed()));
+                }
+            }
+            found.is_some()
+        })
+        .await;
+        assert!(done, "A did not connect to B");
+        found.unwrap()
+    }
+
+    // Ping round trips A measured on one connection to B
+    async fn rtts(swarms: &mut [Swarm<Node>], b: PeerId, connection: ConnectionId) -> Vec<Duration> {
+        let mut samples = Vec::new();
+        let done = crate::testnet::run_until(swarms, crate::testnet::TIMEOUT, |index, event| {
+            if let libp2p::swarm::SwarmEvent::Behaviour(NodeEvent::Ping(libp2p::ping::Event {
+                peer,
+                connection: on,
+                result: Ok(rtt),
+                ..
+            })) = event
+            {
+                if index == 1 && peer == b && on == connection {
+                    samples.push(rtt);
+                }
+            }
+            samples.len() >= PING_SAMPLES
+        })
+        .await;
+        assert!(done, "no pings from B on {:?}", connection);
+        samples.sort();
+        samples
+    }
+
+    // Measures the latency difference the direct path is preferred for; timings are
+    // printed, only the kind of each connection is asserted
+    #[tokio::test]
+    async fn direct_and_relayed_round_trips_on_localhost() {
+        let (relay, relay_addr) = crate::testnet::relay().await;
+        let a = crate::testnet::node(false);
+        let mut b = crate::testnet::node(false);
+        let b_peer = *b.local_peer_id();
+        let b_direct = crate::testnet::listen(&mut b).await;
+        b.listen_on(relay_addr.clone().with(Protocol::P2pCircuit)).unwrap();
+
+        let mut swarms = [relay, a, b];
+        let reserved = crate::testnet::run_until(&mut swarms, crate::testnet::TIMEOUT, |index, event| {
+            index == 2
+                && matches!(
+                    event,
+                    libp2p::swarm::SwarmEvent::Behaviour(NodeEvent::RelayClient(
+                        libp2p::relay::client::Event::ReservationReqAccepted { .. }
+                    ))
+                )
+        })
+        .await;
+        assert!(reserved, "B got no reservation");
+
+        let circuit = relay_addr.with(Protocol::P2pCircuit).with(Protocol::P2p(b_peer));
+        swarms[1].dial(circuit).unwrap();
+        let (relayed_id, relayed) = connected(&mut swarms, b_peer).await;
+        assert!(relayed, "circuit dial gave a direct connection");
+        let through_relay = rtts(&mut swarms, b_peer, relayed_id).await;
+
+        swarms[1].dial(b_direct).unwrap();
+        let (direct_id, relayed) = connected(&mut swarms, b_peer).await;
+        assert!(!relayed, "LAN dial gave a relayed connection");
+        let direct = rtts(&mut swarms, b_peer, direct_id).await;
+
+        println!(
+            "localhost ping, {} samples: direct median {:?} (min {:?}), relayed median {:?} (min {:?})",
+            PING_SAMPLES,
+            direct[PING_SAMPLES / 2],
+            direct[0],
+            through_relay[PING_SAMPLES / 2],
+            through_relay[0],
+        );
+    }
+}
@@ -0,0 +1,353 @@
+use crate::metrics::{self, METRICS};
+use libp2p::{
+    gossipsub::{self, IdentTopic, PublishError, TopicHash},
+    identity, PeerId,
+};
+use std::collections::HashMap;
+use std::time::Duration;
+
+/// Conversation IDs of groups on the Java side ("group:<id>")
+pub const GROUP_PREFIX: &str = "group:";
+const TOPIC_PREFIX: &str = "umay/group/";
+
+// Largest group message; chat content is small, files go over transfer.rs
+const MAX_GROUP_MESSAGE: usize = 64 * 1024;
+// Messages published while no member was reachable, kept per group
+const MAX_PENDING_PER_GROUP: usize = 256;
+
+/// Gossipsub with signed messages: the sender of a group message is the
+/// (verified) source peer, not something the payload claims. Each peer
+/// forwards to a mesh of mesh_n (default 6) members instead of every
+/// member, which bounds duplicate traffic in large groups.
+pub fn new_behaviour(keys: &identity::Keypair) -> anyhow::Result<gossipsub::Behaviour> {
+    let config = gossipsub::ConfigBuilder::default()
+        .heartbeat_interval(Duration::from_secs(1))
+        .validation_mode(gossipsub::ValidationMode::Strict)
+        .max_transmit_size(MAX_GROUP_MESSAGE)
+        .build()
+        .map_err(|e| anyhow::anyhow!("gossipsub config: {}", e))?;
+    gossipsub::Behaviour::new(gossipsub::MessageAuthenticity::Signed(keys.clone()), config)
+        .map_err(|e| anyhow::anyhow!("gossipsub: {}", e))
+}
+
+/// Group message received from the mesh
+pub struct GroupMessage {
+    pub group: String,
+    pub sender: PeerId,
+    pub content: String,
+}
+
+/// What happened to a group message handed to `publish`
+pub enum PublishOutcome {
+    Sent,
+    /// No member is reachable yet; sent once one subscribes (see on_subscribed)
+    Queued,
+    Failed,
+}
+
+/// Joined groups of the node.
+///
+/// A group is one gossipsub topic; a publish goes out once and the mesh
+/// fans it out to the members, instead of one request-response round trip
+/// per member. Members must be connected to at least one other member
+/// (they are chat peers, so ConnectionManager/prewarm usually has them).
+#[derive(Default)]
+pub struct Groups {
+    joined: HashMap<TopicHash, String>,
+    // Messages that found no member, in publish order: (message ID, content)
+    pending: HashMap<TopicHash, Vec<(u64, String)>>,
+}
+
+impl Groups {
+    pub fn join(&mut self, gossipsub: &mut gossipsub::Behaviour, group: &str) -> bool {
+        let topic = topic(group);
+        match gossipsub.subscribe(&topic) {
+            Ok(_) => {
+                self.joined.insert(topic.hash(), group.to_string());
+                true
+            }
+            Err(e) => {
+                log::error!("Failed to join group {}: {:?}", group, e);
+                false
+            }
+        }
+    }
+
+    pub fn leave(&mut self, gossipsub: &mut gossipsub::Behaviour, group: &str) {
+        let topic = topic(group);
+        gossipsub.unsubscribe(&topic).ok();
+        self.joined.remove(&topic.hash());
+        self.pending.remove(&topic.hash());
+    }
+
+    pub fn list(&self) -> Vec<String> {
+        self.joined.values().cloned().collect()
+    }
+
+    pub fn publish(&mut self, gossipsub: &mut gossipsub::Behaviour, group: &str, msg_id: u64, content: String) -> PublishOutcome {
+        let topic = topic(group);
+        if !self.joined.contains_key(&topic.hash()) {
+            log::warn!("Publish to group {} that was not joined", group);
+            return PublishOutcome::Failed;
+        }
+        let len = content.len();
+        match gossipsub.publish(topic.clone(), content.as_bytes()) {
+            Ok(_) => {
+                METRICS.increment(metrics::STAT_MESSAGES_OUT);
+                METRICS.add(metrics::STAT_BYTES_OUT, len as i64);
+                PublishOutcome::Sent
+            }
+            Err(PublishError::InsufficientPeers) => {
+                let pending = self.pending.entry(topic.hash()).or_default();
+                if pending.len() >= MAX_PENDING_PER_GROUP {
+                    return PublishOutcome::Failed;
+                }
+                pending.push((msg_id, content));
+                PublishOutcome::Queued
+            }
+            Err(e) => {
+                log::error!("Failed to publish to group {}: {:?}", group, e);
+                PublishOutcome::Failed
+            }
+        }
+    }
+
+    /// A member subscribed to `topic`: publishes what waited for it.
+    /// Returns (group, message ID, Sent or Failed) for every message that left the
+    /// queue; one that still finds no member is queued again and not returned.
+    pub fn on_subscribed(
+        &mut self,
+        gossipsub: &mut gossipsub::Behaviour,
+        topic: &TopicHash,
+    ) -> Vec<(String, u64, PublishOutcome)> {
+        let Some(group) = self.joined.get(topic).cloned() else {
+            return Vec::new();
+        };
+        let Some(waiting) = self.pending.remove(topic) else {
+            return Vec::new();
+        };
+        let mut done = Vec::with_capacity(waiting.len());
+        for (msg_id, content) in waiting {
+            match self.publish(gossipsub, &group, msg_id, content) {
+                PublishOutcome::Queued => {}
+                outcome => done.push((group.clone(), msg_id, outcome)),
+            }
+        }
+        done
+    }
+
+    /// Maps a gossipsub message to its group; None for topics we did not join
+    pub fn on_message(&self, message: gossipsub::Message) -> Option<GroupMessage> {
+        let group = self.joined.get(&message.topic)?.clone();
+        let sender = message.source?;
+        METRICS.increment(metrics::STAT_MESSAGES_IN);
+        METRICS.add(metrics::STAT_BYTES_IN, message.data.len() as i64);
+        let content = String::from_utf8_lossy(&message.data).into_owned();
+        Some(GroupMessage { group, sender, content })
+    }
+}
+
+pub fn topic(group: &str) -> IdentTopic {
+    IdentTopic::new(format!("{}{}", TOPIC_PREFIX, group))
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use libp2p::swarm::SwarmEvent;
+    use std::sync::atomic::Ordering;
+    use std::time::Instant;
+
+    fn gossipsub() -> gossipsub::Behaviour {
+        new_behaviour(&identity::Keypair::generate_ed25519()).unwrap()
+    }
+
+    fn message(topic: TopicHash, source: Option<PeerId>, data: &[u8]) -> gossipsub::Message {
+        gossipsub::Message {
+            source,
+            data: data.to_vec(),
+            sequence_number: None,
+            topic,
+        }
+    }
+
+    #[test]
+    fn topics_are_namespaced_per_group() {
+        assert_eq!(topic("ekip").hash(), IdentTopic::new("umay/group/ekip").hash());
+        assert_ne!(topic("ekip").hash(), topic("ekip2").hash());
+        // A chat conversation ID is never mistaken for a topic
+        assert_ne!(topic("ekip").hash(), IdentTopic::new("group:ekip").hash());
+    }
+
+    #[test]
+    fn join_list_leave() {
+        let mut gossipsub = gossipsub();
+        let mut groups = Groups::default();
+        assert!(groups.join(&mut gossipsub, "a"));
+        assert!(groups.join(&mut gossipsub, "b"));
+        let mut joined = groups.list();
+        joined.sort();
+        assert_eq!(joined, vec!["a", "b"]);
+        groups.leave(&mut gossipsub, "a");
+        assert_eq!(groups.list(), vec!["b"]);
+        assert!(matches!(groups.publish(&mut gossipsub, "a", 1, "x".into()), PublishOutcome::Failed));
+    }
+
+    #[test]
+    fn messages_wait_for_a_member_in_order_and_are_capped() {
+        let mut gossipsub = gossipsub();
+        let mut groups = Groups::default();
+        groups.join(&mut gossipsub, "ekip");
+        let hash = topic("ekip").hash();
+
+        // No member reachable: everything is queued
+        for id in 0..MAX_PENDING_PER_GROUP as u64 {
+            assert!(matches!(groups.publish(&mut gossipsub, "ekip", id, format!("m{}", id)), PublishOutcome::Queued));
+        }
+        assert!(matches!(groups.publish(&mut gossipsub, "ekip", 999, "full".into()), PublishOutcome::Failed));
+
+        // Still nobody to send to: the queue is kept as it was
+        assert!(groups.on_subscribed(&mut gossipsub, &hash).is_empty());
+        let ids: Vec<u64> = groups.pending[&hash].iter().map(|(id, _)| *id).collect();
+        assert_eq!(ids, (0..MAX_PENDING_PER_GROUP as u64).collect::<Vec<_>>());
+
+        // Subscriptions to other topics don't touch it; leaving drops it
+        assert!(groups.on_subscribed(&mut gossipsub, &topic("other").hash()).is_empty());
+        groups.leave(&mut gossipsub, "ekip");
+        assert!(!groups.pending.contains_key(&hash));
+    }
+
+    #[test]
+    fn incoming_messages_map_to_joined_groups() {
+        let mut gossipsub = gossipsub();
+        let mut groups = Groups::default();
+        groups.join(&mut gossipsub, "ekip");
+        let sender = PeerId::random();
+
+        let msg = groups.on_message(message(topic("ekip").hash(), Some(sender), "merhaba".as_bytes())).unwrap();
+        assert_eq!((msg.group.as_str(), msg.sender, msg.content.as_str()), ("ekip", sender, "merhaba"));
+
+        assert!(groups.on_message(message(topic("other").hash(), Some(sender), b"x")).is_none());
+        // Unsigned messages have no verified author
+        assert!(groups.on_message(message(topic("ekip").hash(), None, b"x")).is_none());
+        let lossy = groups.on_message(message(topic("ekip").hash(), Some(sender), &[b'a', 0xFF])).unwrap();
+        assert_eq!(lossy.content, "a\u{FFFD}");
+    }
+
+    #[test]
+    fn failed_republish_is_reported() {
+        let mut gossipsub = gossipsub();
+        let mut groups = Groups::default();
+        groups.join(&mut gossipsub, "ekip");
+        let hash = topic("ekip").hash();
+        groups.publish(&mut gossipsub, "ekip", 1, "still nobody".into());
+        // Larger than gossipsub accepts: it can never be sent
+        groups.pending.get_mut(&hash).unwrap().push((2, "x".repeat(MAX_GROUP_MESSAGE + 1)));
+
+        let done = groups.on_subscribed(&mut gossipsub, &hash);
+        // Message 1 is queued again, message 2 fails for good
+        assert_eq!(done.len(), 1);
+        assert!(matches!(done[0], (ref group, 2, PublishOutcome::Failed) if group == "ekip"));
+        let ids: Vec<u64> = groups.pending[&hash].iter().map(|(id, _)| *id).collect();
+        assert_eq!(ids, vec![1]);
+    }
+
+    const MEMBERS: usize = 20;
+    const MESSAGES: usize = 20;
+    const PAYLOAD: usize = 200;
+
+    // 20 members on localhost, each connected to 4 others; member 0 publishes and
+    // every other member must get each message exactly once. Wire bytes (all
+    // members, noise and yamux framing and gossip control included) and delivery
+    // latency are printed, not asserted
+    #[tokio::test]
+    async fn group_fanout_on_localhost() {
+        let mut swarms = Vec::new();
+        let mut sent_bytes = Vec::new();
+        let mut groups: Vec<Groups> = Vec::new();
+        let mut addrs = Vec::new();
+        for _ in 0..MEMBERS {
+            let (mut swarm, sent) = crate::testnet::swarm(|key, _| new_behaviour(key).unwrap());
+            addrs.push(crate::testnet::listen(&mut swarm).await);
+            swarms.push(swarm);
+            sent_bytes.push(sent);
+            groups.push(Groups::default());
+        }
+
+        // Ring plus chords: no member is connected to everyone
+        let mut links = 0;
+        for i in 0..MEMBERS {
+            for step in [1, 5] {
+                swarms[i].dial(addrs[(i + step) % MEMBERS].clone()).unwrap();
+                links += 1;
+            }
+        }
+        for (swarm, group) in swarms.iter_mut().zip(groups.iter_mut()) {
+            assert!(group.join(swarm.behaviour_mut(), "bench"));
+        }
+        // Every link is reported at both ends, as a connection and as a subscription
+        let (mut established, mut subscribed) = (0, 0);
+        let ready = crate::testnet::run_until(&mut swarms, crate::testnet::TIMEOUT, |_, event| {
+            match event {
+                SwarmEvent::ConnectionEstablished { .. } => established += 1,
+                SwarmEvent::Behaviour(gossipsub::Event::Subscribed { .. }) => subscribed += 1,
+                _ => {}
+            }
+            established == 2 * links && subscribed == 2 * links
+        })
+        .await;
+        assert!(ready, "{} connections, {} subscriptions of {}", established, subscribed, 2 * links);
+        // A few heartbeats to build the meshes
+        crate::testnet::run_until(&mut swarms, Duration::from_secs(3), |_, _| false).await;
+
+        let before: u64 = sent_bytes.iter().map(|s| s.load(Ordering::Relaxed)).sum();
+        let started = Instant::now();
+        let mut published_at = Vec::with_capacity(MESSAGES);
+        for i in 0..MESSAGES {
+            let content = format!("{} {}", i, "x".repeat(PAYLOAD));
+            published_at.push(Instant::now());
+            let outcome = groups[0].publish(swarms[0].behaviour_mut(), "bench", i as u64, content);
+            assert!(matches!(outcome, PublishOutcome::Sent));
+        }
+
+        let mut seen = vec![vec![0u32; MESSAGES]; MEMBERS];
+        let mut latencies = Vec::with_capacity(MESSAGES * (MEMBERS - 1));
+        let expected = MESSAGES * (MEMBERS - 1);
+        let delivered = crate::testnet::run_until(&mut swarms, crate::testnet::TIMEOUT, |index, event| {
+            if let SwarmEvent::Behaviour(gossipsub::Event::Message { message, .. }) = event {
+                let msg = groups[index].on_message(message).expect("message of the joined group");
+                let i: usize = msg.content.split(' ').next().unwrap().parse().unwrap();
+                seen[index][i] += 1;
+                latencies.push(published_at[i].elapsed());
+            }
+            latencies.len() >= expected
+        })
+        .await;
+        let elapsed = started.elapsed();
+        let after: u64 = sent_bytes.iter().map(|s| s.load(Ordering::Relaxed)).sum();
+
+        assert!(delivered, "{} of {} deliveries", latencies.len(), expected);
+        assert!(seen[0].iter().all(|n| *n == 0), "publisher got its own message");
+        for (member, counts) in seen.iter().enumerate().skip(1) {
+            assert!(counts.iter().all(|n| *n == 1), "member {} got {:?}", member, counts);
+        }
+
+        latencies.sort();
+        let wire = after - before;
+        let payload = (MESSAGES * (PAYLOAD + 3)) as u64;
+        println!(
+            "group fan-out, {} members, {} x {} B: {} wire bytes in {:?} ({} per delivery, {:.1}x one copy per member); \
+             latency p50 {:?}, p99 {:?}, max {:?}",
+            MEMBERS,
+            MESSAGES,
+            PAYLOAD,
+            wire,
+            elapsed,
+            wire / expected as u64,
+            wire as f64 / (payload * (MEMBERS as u64 - 1)) as f64,
+            latencies[latencies.len() / 2],
+            latencies[latencies.len() * 99 / 100],
+            latencies[latencies.len() - 1],
+        );
+    }
+}
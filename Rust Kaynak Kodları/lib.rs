@@ -1,25 +1,55 @@
-use jni::objects::{JClass, JObject, JString};
+use jni::objects::{JByteBuffer, JClass, JObject, JObjectArray, JString};
+use jni::sys::{jboolean, jint, jlong};
 use jni::JNIEnv;
 use once_cell::sync::OnceCell;
+use std::collections::HashMap;
 use std::sync::Mutex;
 use tokio::runtime::Runtime;
 use tokio::sync::mpsc;
 
 mod behaviour;
+mod bridge;
 mod chat;
+mod codec;
+mod connection;
 mod contacts;
+mod groups;
+mod metrics;
+mod outbound;
 mod p2p;
+mod relays;
+mod sync;
+mod transfer;
 mod transport;
+#[cfg(test)]
+mod testnet;
 
 use p2p::Command;
 
-// Global sender to communicate with the P2P task
-static SENDER: OnceCell<Mutex<mpsc::Sender<Command>>> = OnceCell::new();
+// Global sender to communicate with the P2P task.
+// tokio's Sender is Sync, so JNI threads submit through it directly without a lock.
+static SENDER: OnceCell<mpsc::Sender<Command>> = OnceCell::new();
 static RUNTIME: OnceCell<Runtime> = OnceCell::new();
 static JAVA_VM: OnceCell<jni::JavaVM> = OnceCell::new();
 static NATIVE_LIB_OBJ: OnceCell<Mutex<jni::objects::GlobalRef>> = OnceCell::new();
 static LOCAL_PEER_ID: OnceCell<Mutex<String>> = OnceCell::new();
 static LISTEN_ADDRESSES: OnceCell<Mutex<Vec<String>>> = OnceCell::new();
+// peer ID -> (connection::CONN_* state, last ping RTT in ms or -1), for synchronous JNI queries
+static PEER_CONNECTIONS: OnceCell<Mutex<HashMap<String, (i32, i64)>>> = OnceCell::new();
+
+fn peer_connections() -> &'static Mutex<HashMap<String, (i32, i64)>> {
+    PEER_CONNECTIONS.get_or_init(|| Mutex::new(HashMap::new()))
+}
+
+// Command queue size; a full queue is reported to Java instead of blocking
+const COMMAND_QUEUE_CAPACITY: usize = 1024;
+
+// Submission results, mirrored as NativeLib.SUBMIT_* constants
+const SUBMIT_OK: jint = 0;
+const SUBMIT_QUEUE_FULL: jint = 1;
+const SUBMIT_NOT_STARTED: jint = 2;
+const SUBMIT_CLOSED: jint = 3;
+const SUBMIT_INVALID: jint = 4;
 
 #[no_mangle]
 pub extern "system" fn Java_com_example_thecommunication_NativeLib_startNode(
@@ -27,6 +57,7 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_startNode(
     obj: JObject,
     seed: JString,
     identity_path: JString,
+    relays: JObjectArray,
 ) {
     android_logger::init_once(
         android_logger::Config::default().with_max_level(log::LevelFilter::Info),
@@ -59,17 +90,27 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_startNode(
         identity_path_str
     );
 
+    // Relay multiaddrs from the app settings; empty means the built-in default
+    let mut relay_list: Vec<String> = Vec::new();
+    let relay_count = env.get_array_length(&relays).unwrap_or(0);
+    for i in 0..relay_count {
+        let Ok(j_relay) = env.get_object_array_element(&relays, i) else { continue };
+        let j_relay = JString::from(j_relay);
+        if let Ok(relay) = env.get_string(&j_relay) {
+            relay_list.push(relay.into());
+        }
+        env.delete_local_ref(j_relay).ok();
+    }
+
     if SENDER.get().is_some() {
         log::warn!("Node already started - SENDER exists");
         return;
     }
 
-    let (tx, rx) = mpsc::channel(32);
+    let (tx, rx) = mpsc::channel(COMMAND_QUEUE_CAPACITY);
 
     // Initialize global sender
-    SENDER
-        .set(Mutex::new(tx.clone()))
-        .expect("Failed to set sender");
+    SENDER.set(tx).expect("Failed to set sender");
 
     log::info!("SENDER initialized, starting background thread...");
 
@@ -87,7 +128,7 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_startNode(
 
         log::info!("Running P2P node...");
         rt.block_on(async {
-            if let Err(e) = p2p::run_p2p_node(rx, seed_byte, identity_path_str).await {
+            if let Err(e) = p2p::run_p2p_node(rx, seed_byte, identity_path_str, relay_list).await {
                 log::error!("P2P Node failed: {:?}", e);
             }
         });
@@ -97,40 +138,321 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_startNode(
     log::info!("========== startNode COMPLETED ==========");
 }
 
-// Callback function to notify Java about incoming messages
-pub fn notify_message_received(sender_id: String, message: String) {
-    log::info!(
-        "notify_message_received called: {} - {}",
-        sender_id,
-        message
-    );
-    if let Some(jvm) = JAVA_VM.get() {
-        if let Ok(mut env) = jvm.attach_current_thread() {
-            if let Some(obj_mutex) = NATIVE_LIB_OBJ.get() {
-                if let Ok(obj_guard) = obj_mutex.lock() {
-                    let obj = obj_guard.as_obj();
-
-                    // Convert Rust strings to Java strings
-                    let j_sender_id = env.new_string(&sender_id).unwrap();
-                    let j_message = env.new_string(&message).unwrap();
-
-                    // Call Java method: onMessageReceived(String, String)
-                    let result = env.call_method(
-                        obj,
-                        "onMessageReceived",
-                        "(Ljava/lang/String;Ljava/lang/String;)V",
-                        &[(&j_sender_id).into(), (&j_message).into()],
-                    );
-
-                    if let Err(e) = result {
-                        log::error!("Failed to call Java callback: {:?}", e);
-                    } else {
-                        log::info!("Java callback called successfully");
-                    }
-                }
-            }
+// Runs `f` against the NativeLib object with an attached JNIEnv.
+// Callers run on the P2P thread, which stays attached so repeated upcalls skip
+// the attach/detach cost; a local frame releases the refs each upcall creates.
+fn with_java<F>(what: &str, f: F)
+where
+    F: FnOnce(&mut JNIEnv, &JObject) -> jni::errors::Result<()>,
+{
+    let Some(jvm) = JAVA_VM.get() else { return };
+    let Ok(mut env) = jvm.attach_current_thread_permanently() else {
+        log::error!("Failed to attach thread to JVM");
+        return;
+    };
+    let Some(obj_mutex) = NATIVE_LIB_OBJ.get() else { return };
+    let Ok(obj_guard) = obj_mutex.lock() else { return };
+
+    let result = env.with_local_frame(16, |env| f(env, obj_guard.as_obj()));
+    if let Err(e) = result {
+        log::error!("Failed to call Java {}: {:?}", what, e);
+    }
+}
+
+// Doorbell for the direct-buffer bridge: Java decodes `len` bytes of event frames
+fn ring_event_doorbell(len: i32) {
+    with_java("onBridgeEvents", |env, obj| {
+        env.call_method(obj, "onBridgeEvents", "(I)V", &[len.into()])?;
+        Ok(())
+    });
+}
+
+// Batched callback: hands Java a whole group of incoming messages in one upcall
+pub(crate) fn notify_messages_received(batch: &[p2p::InboundMessage]) {
+    if batch.is_empty() {
+        return;
+    }
+    log::debug!("notify_messages_received called: {} messages", batch.len());
+
+    // Group messages carry their author next to the group; they have their own upcall
+    if batch.iter().any(|msg| msg.group.is_some()) {
+        let (group_msgs, direct): (Vec<_>, Vec<_>) =
+            batch.iter().cloned().partition(|msg| msg.group.is_some());
+        upcall_group_messages(&group_msgs);
+        deliver_direct_messages(&direct);
+        return;
+    }
+    deliver_direct_messages(batch);
+}
+
+fn deliver_direct_messages(batch: &[p2p::InboundMessage]) {
+    if batch.is_empty() {
+        return;
+    }
+    // With the bridge attached, messages go as frames in the shared buffer (no JString per field)
+    if bridge::is_attached() {
+        let oversized = bridge::deliver_messages(batch, ring_event_doorbell);
+        if oversized.is_empty() {
+            return;
+        }
+        let rest: Vec<p2p::InboundMessage> = oversized.iter().map(|&i| batch[i].clone()).collect();
+        upcall_messages_received(&rest);
+        return;
+    }
+    upcall_messages_received(batch);
+}
+
+fn upcall_messages_received(batch: &[p2p::InboundMessage]) {
+    with_java("onMessagesReceived", |env, obj| {
+        let len = batch.len() as i32;
+        let string_class = env.find_class("java/lang/String")?;
+        let senders = env.new_object_array(len, &string_class, JObject::null())?;
+        let contents = env.new_object_array(len, &string_class, JObject::null())?;
+        let timestamps = env.new_long_array(len)?;
+
+        let mut ts_buf: Vec<jlong> = Vec::with_capacity(batch.len());
+        for (i, msg) in batch.iter().enumerate() {
+            let j_sender = env.new_string(&msg.sender)?;
+            env.set_object_array_element(&senders, i as i32, &j_sender)?;
+            env.delete_local_ref(j_sender)?;
+
+            let j_content = env.new_string(&msg.content)?;
+            env.set_object_array_element(&contents, i as i32, &j_content)?;
+            env.delete_local_ref(j_content)?;
+
+            ts_buf.push(msg.timestamp);
+        }
+        env.set_long_array_region(&timestamps, 0, &ts_buf)?;
+
+        // Call Java method: onMessagesReceived(String[], String[], long[])
+        env.call_method(
+            obj,
+            "onMessagesReceived",
+            "([Ljava/lang/String;[Ljava/lang/String;[J)V",
+            &[(&senders).into(), (&contents).into(), (&timestamps).into()],
+        )?;
+        Ok(())
+    });
+}
+
+// Group messages: onGroupMessages(groupIds, senderIds, contents, timestamps)
+fn upcall_group_messages(batch: &[p2p::InboundMessage]) {
+    with_java("onGroupMessages", |env, obj| {
+        let len = batch.len() as i32;
+        let string_class = env.find_class("java/lang/String")?;
+        let group_ids = env.new_object_array(len, &string_class, JObject::null())?;
+        let senders = env.new_object_array(len, &string_class, JObject::null())?;
+        let contents = env.new_object_array(len, &string_class, JObject::null())?;
+        let timestamps = env.new_long_array(len)?;
+
+        let mut ts_buf: Vec<jlong> = Vec::with_capacity(batch.len());
+        for (i, msg) in batch.iter().enumerate() {
+            let j_group = env.new_string(msg.group.as_deref().unwrap_or(""))?;
+            env.set_object_array_element(&group_ids, i as i32, &j_group)?;
+            env.delete_local_ref(j_group)?;
+
+            let j_sender = env.new_string(&msg.sender)?;
+            env.set_object_array_element(&senders, i as i32, &j_sender)?;
+            env.delete_local_ref(j_sender)?;
+
+            let j_content = env.new_string(&msg.content)?;
+            env.set_object_array_element(&contents, i as i32, &j_content)?;
+            env.delete_local_ref(j_content)?;
+
+            ts_buf.push(msg.timestamp);
         }
+        env.set_long_array_region(&timestamps, 0, &ts_buf)?;
+
+        env.call_method(
+            obj,
+            "onGroupMessages",
+            "([Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;[J)V",
+            &[(&group_ids).into(), (&senders).into(), (&contents).into(), (&timestamps).into()],
+        )?;
+        Ok(())
+    });
+}
+
+// History a sync brought back from `peer`: onHistoryRecovered(peerId, contents, timestamps, sentByMe).
+// Kept apart from onMessagesReceived; Java files these by timestamp without notifying.
+pub(crate) fn notify_history_recovered(peer: &str, batch: &[p2p::HistoryMessage]) {
+    if batch.is_empty() {
+        return;
     }
+    log::debug!("notify_history_recovered called: {} messages from {}", batch.len(), peer);
+
+    with_java("onHistoryRecovered", |env, obj| {
+        let len = batch.len() as i32;
+        let string_class = env.find_class("java/lang/String")?;
+        let j_peer = env.new_string(peer)?;
+        let contents = env.new_object_array(len, &string_class, JObject::null())?;
+        let timestamps = env.new_long_array(len)?;
+        let sent_by_me = env.new_boolean_array(len)?;
+
+        let mut ts_buf: Vec<jlong> = Vec::with_capacity(batch.len());
+        let mut mine_buf: Vec<jboolean> = Vec::with_capacity(batch.len());
+        for (i, msg) in batch.iter().enumerate() {
+            let j_content = env.new_string(&msg.content)?;
+            env.set_object_array_element(&contents, i as i32, &j_content)?;
+            env.delete_local_ref(j_content)?;
+
+            ts_buf.push(msg.timestamp);
+            mine_buf.push(msg.sent_by_me as jboolean);
+        }
+        env.set_long_array_region(&timestamps, 0, &ts_buf)?;
+        env.set_boolean_array_region(&sent_by_me, 0, &mine_buf)?;
+
+        env.call_method(
+            obj,
+            "onHistoryRecovered",
+            "(Ljava/lang/String;[Ljava/lang/String;[J[Z)V",
+            &[(&j_peer).into(), (&contents).into(), (&timestamps).into(), (&sent_by_me).into()],
+        )?;
+        Ok(())
+    });
+}
+
+// Batched delivery states (ack / failure) for messages sent with sendMessage.
+// `status` values are mirrored as NativeLib.MESSAGE_* constants.
+pub(crate) fn notify_message_statuses(batch: &[outbound::MessageStatus]) {
+    if batch.is_empty() {
+        return;
+    }
+    log::debug!("notify_message_statuses called: {} updates", batch.len());
+
+    if bridge::is_attached() {
+        let oversized = bridge::deliver_statuses(batch, ring_event_doorbell);
+        if oversized.is_empty() {
+            return;
+        }
+        let rest: Vec<outbound::MessageStatus> = oversized.iter().map(|&i| batch[i].clone()).collect();
+        upcall_message_statuses(&rest);
+        return;
+    }
+    upcall_message_statuses(batch);
+}
+
+fn upcall_message_statuses(batch: &[outbound::MessageStatus]) {
+    with_java("onMessageStatuses", |env, obj| {
+        let len = batch.len() as i32;
+        let string_class = env.find_class("java/lang/String")?;
+        let peers = env.new_object_array(len, &string_class, JObject::null())?;
+        let ids = env.new_long_array(len)?;
+        let statuses = env.new_int_array(len)?;
+
+        let mut id_buf: Vec<jlong> = Vec::with_capacity(batch.len());
+        let mut status_buf: Vec<jint> = Vec::with_capacity(batch.len());
+        for (i, update) in batch.iter().enumerate() {
+            let j_peer = env.new_string(&update.peer)?;
+            env.set_object_array_element(&peers, i as i32, &j_peer)?;
+            env.delete_local_ref(j_peer)?;
+
+            id_buf.push(update.msg_id as jlong);
+            status_buf.push(update.status);
+        }
+        env.set_long_array_region(&ids, 0, &id_buf)?;
+        env.set_int_array_region(&statuses, 0, &status_buf)?;
+
+        // Call Java method: onMessageStatuses(String[], long[], int[])
+        env.call_method(
+            obj,
+            "onMessageStatuses",
+            "([Ljava/lang/String;[J[I)V",
+            &[(&peers).into(), (&ids).into(), (&statuses).into()],
+        )?;
+        Ok(())
+    });
+}
+
+// Per-peer connection state changes (dialing, relayed, direct, disconnected).
+// `state` values are mirrored as NativeLib.CONN_* constants.
+pub(crate) fn notify_connection_state(peer: &str, state: i32) {
+    log::info!("notify_connection_state: {} {}", peer, state);
+
+    if let Ok(mut peers) = peer_connections().lock() {
+        if state == connection::CONN_DISCONNECTED {
+            peers.remove(peer);
+        } else {
+            let entry = peers.entry(peer.to_string()).or_insert((state, -1));
+            entry.0 = state;
+        }
+    }
+
+    with_java("onConnectionState", |env, obj| {
+        let j_peer = env.new_string(peer)?;
+        env.call_method(
+            obj,
+            "onConnectionState",
+            "(Ljava/lang/String;I)V",
+            &[(&j_peer).into(), state.into()],
+        )?;
+        Ok(())
+    });
+}
+
+// Attachment progress, sent every transfer::PROGRESS_STEP bytes in either direction.
+// Outgoing transfers finish through notify_message_statuses, incoming ones through notify_file_received.
+pub(crate) fn notify_transfer_progress(peer: &str, transfer_id: u64, incoming: bool, bytes: u64, total: u64) {
+    with_java("onTransferProgress", |env, obj| {
+        let j_peer = env.new_string(peer)?;
+        env.call_method(
+            obj,
+            "onTransferProgress",
+            "(Ljava/lang/String;JZJJ)V",
+            &[
+                (&j_peer).into(),
+                (transfer_id as jlong).into(),
+                incoming.into(),
+                (bytes as jlong).into(),
+                (total as jlong).into(),
+            ],
+        )?;
+        Ok(())
+    });
+}
+
+// A complete incoming attachment, already moved to its final path in app storage
+pub(crate) fn notify_file_received(sender: &str, name: &str, path: &str, size: u64) {
+    log::info!("notify_file_received: {} from {} ({} bytes)", name, sender, size);
+
+    with_java("onFileReceived", |env, obj| {
+        let j_sender = env.new_string(sender)?;
+        let j_name = env.new_string(name)?;
+        let j_path = env.new_string(path)?;
+        env.call_method(
+            obj,
+            "onFileReceived",
+            "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;J)V",
+            &[(&j_sender).into(), (&j_name).into(), (&j_path).into(), (size as jlong).into()],
+        )?;
+        Ok(())
+    });
+}
+
+// Latest ping RTT of a connected peer (kept only while the peer has a state entry)
+pub(crate) fn record_peer_rtt(peer: &str, rtt_ms: i64) {
+    if let Ok(mut peers) = peer_connections().lock() {
+        if let Some(entry) = peers.get_mut(peer) {
+            entry.1 = rtt_ms;
+        }
+    }
+}
+
+// Node status deltas (peer ID ready, listen/relay address added or removed).
+// `kind` values are mirrored as NativeLib.STATUS_* constants.
+pub(crate) fn notify_node_status(kind: i32, value: &str) {
+    log::info!("notify_node_status: {} {}", kind, value);
+
+    with_java("onNodeStatus", |env, obj| {
+        let j_value = env.new_string(value)?;
+        env.call_method(
+            obj,
+            "onNodeStatus",
+            "(ILjava/lang/String;)V",
+            &[kind.into(), (&j_value).into()],
+        )?;
+        Ok(())
+    });
 }
 
 #[no_mangle]
@@ -138,7 +460,7 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_dialPeer(
     mut env: JNIEnv,
     _class: JClass,
     addr: JString,
-) {
+) -> jint {
     let addr_str: String = env
         .get_string(&addr)
         .expect("Couldn't get java string!")
@@ -147,12 +469,160 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_dialPeer(
     log::info!("dialPeer called with: {}", addr_str);
 
     if let Ok(multiaddr) = addr_str.parse() {
-        log::info!("Parsed multiaddr successfully, sending command...");
-        send_command(Command::Dial(multiaddr));
-        log::info!("Dial command sent");
+        send_command(Command::Dial(multiaddr))
     } else {
         log::error!("Invalid address: {}", addr_str);
+        SUBMIT_INVALID
+    }
+}
+
+// Connects to a chat peer through the node's connection manager.
+// Cheap to call repeatedly: it is a no-op while connected or dialing.
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_connectPeer(
+    mut env: JNIEnv,
+    _class: JClass,
+    peer_id: JString,
+    addr: JString,
+) -> jint {
+    let peer_str: String = env
+        .get_string(&peer_id)
+        .expect("Couldn't get java string!")
+        .into();
+    let addr_str: String = env
+        .get_string(&addr)
+        .expect("Couldn't get java string!")
+        .into();
+
+    log::info!("connectPeer called: {} at {}", peer_str, addr_str);
+
+    let Ok(peer) = peer_str.parse() else {
+        log::error!("Invalid peer ID: {}", peer_str);
+        return SUBMIT_INVALID;
+    };
+    let addr = if addr_str.is_empty() {
+        None
+    } else {
+        match addr_str.parse() {
+            Ok(addr) => Some(addr),
+            Err(_) => {
+                log::error!("Invalid address: {}", addr_str);
+                return SUBMIT_INVALID;
+            }
+        }
+    };
+    send_command(Command::Connect(peer, addr))
+}
+
+// Current connection::CONN_* state of a peer; read from shared state, no round trip to the node
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_getConnectionState(
+    mut env: JNIEnv,
+    _class: JClass,
+    peer_id: JString,
+) -> jint {
+    let peer_str: String = env
+        .get_string(&peer_id)
+        .expect("Couldn't get java string!")
+        .into();
+    peer_connections()
+        .lock()
+        .ok()
+        .and_then(|peers| peers.get(&peer_str).map(|(state, _)| *state))
+        .unwrap_or(connection::CONN_DISCONNECTED)
+}
+
+// Last ping round trip to a connected peer in milliseconds, -1 if not known yet
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_getPeerRttMillis(
+    mut env: JNIEnv,
+    _class: JClass,
+    peer_id: JString,
+) -> jlong {
+    let peer_str: String = env
+        .get_string(&peer_id)
+        .expect("Couldn't get java string!")
+        .into();
+    peer_connections()
+        .lock()
+        .ok()
+        .and_then(|peers| peers.get(&peer_str).map(|(_, rtt)| *rtt))
+        .unwrap_or(-1)
+}
+
+// Relay reservation health counters in relays::HEALTH_* order (read from atomics, no round trip)
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_getRelayHealth(
+    env: JNIEnv,
+    _class: JClass,
+) -> jni::sys::jlongArray {
+    let health = relays::HEALTH.snapshot();
+    let output = env.new_long_array(health.len() as i32).unwrap();
+    env.set_long_array_region(&output, 0, &health).unwrap();
+    output.into_raw()
+}
+
+// Node metrics in metrics::STAT_* order (read from atomics, no round trip).
+// The command queue depth is sampled here from the channel's free capacity.
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_getStats(
+    env: JNIEnv,
+    _class: JClass,
+) -> jni::sys::jlongArray {
+    if let Some(tx) = SENDER.get() {
+        let depth = tx.max_capacity() - tx.capacity();
+        metrics::METRICS.set(metrics::STAT_COMMAND_QUEUE, depth as i64);
     }
+    let stats = metrics::METRICS.snapshot();
+    let output = env.new_long_array(stats.len() as i32).unwrap();
+    env.set_long_array_region(&output, 0, &stats).unwrap();
+    output.into_raw()
+}
+
+// Opens connections to the given peers ahead of time (one command for the whole list).
+// `addresses[i]` may be empty when only the peer ID is known.
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_prewarmPeers(
+    mut env: JNIEnv,
+    _class: JClass,
+    peer_ids: JObjectArray,
+    addresses: JObjectArray,
+) -> jint {
+    let Ok(len) = env.get_array_length(&peer_ids) else {
+        return SUBMIT_INVALID;
+    };
+
+    let mut peers = Vec::with_capacity(len as usize);
+    for i in 0..len {
+        let (Ok(j_peer), Ok(j_addr)) = (
+            env.get_object_array_element(&peer_ids, i),
+            env.get_object_array_element(&addresses, i),
+        ) else {
+            return SUBMIT_INVALID;
+        };
+        let j_peer = JString::from(j_peer);
+        let j_addr = JString::from(j_addr);
+        let peer_str: String = env
+            .get_string(&j_peer)
+            .expect("Couldn't get java string!")
+            .into();
+        let addr_str: String = env
+            .get_string(&j_addr)
+            .expect("Couldn't get java string!")
+            .into();
+        env.delete_local_ref(j_peer).ok();
+        env.delete_local_ref(j_addr).ok();
+
+        // A bad entry is skipped, the rest are still prewarmed
+        let Ok(peer) = peer_str.parse() else {
+            log::warn!("prewarmPeers: invalid peer ID {}", peer_str);
+            continue;
+        };
+        peers.push((peer, addr_str.parse().ok()));
+    }
+
+    log::info!("prewarmPeers called: {} peer(s)", peers.len());
+    send_command(Command::Prewarm(peers))
 }
 
 #[no_mangle]
@@ -161,7 +631,8 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_sendMessage(
     _class: JClass,
     peer_id: JString,
     message: JString,
-) {
+    message_id: jlong,
+) -> jint {
     let peer_str: String = env
         .get_string(&peer_id)
         .expect("Couldn't get java string!")
@@ -171,13 +642,82 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_sendMessage(
         .expect("Couldn't get java string!")
         .into();
 
-    log::info!("sendMessage called: {} -> {}", peer_str, msg_str);
+    log::debug!("sendMessage called: {} -> {} (id {})", peer_str, msg_str, message_id);
+
+    if let Ok(peer) = peer_str.parse() {
+        send_command(Command::SendMessage(peer, message_id as u64, msg_str))
+    } else {
+        log::error!("Invalid peer ID: {}", peer_str);
+        SUBMIT_INVALID
+    }
+}
+
+// Registers Java's direct event buffer for the frame bridge (see bridge.rs / NativeBridge.java)
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_attachBridge(
+    mut env: JNIEnv,
+    _class: JClass,
+    events: JByteBuffer,
+) -> jni::sys::jboolean {
+    let attached = bridge::attach(&mut env, events);
+    log::info!("attachBridge: {}", attached);
+    attached as jni::sys::jboolean
+}
+
+// Submits `length` bytes of command frames from a direct buffer. The frames are
+// decoded before returning, so Java may reuse the buffer right away.
+// The batch is all-or-nothing: queue space for every command is reserved first,
+// so on anything but SUBMIT_OK none of them was enqueued.
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_submitFrames(
+    env: JNIEnv,
+    _class: JClass,
+    commands: JByteBuffer,
+    length: jint,
+) -> jint {
+    let (Ok(ptr), Ok(capacity)) = (
+        env.get_direct_buffer_address(&commands),
+        env.get_direct_buffer_capacity(&commands),
+    ) else {
+        return SUBMIT_INVALID;
+    };
+    if length < 0 || length as usize > capacity {
+        return SUBMIT_INVALID;
+    }
+    let frames = unsafe { std::slice::from_raw_parts(ptr, length as usize) };
+    let Some(parsed) = bridge::parse_commands(frames) else {
+        log::error!("submitFrames: malformed frame");
+        return SUBMIT_INVALID;
+    };
+    send_commands(parsed)
+}
+
+// Streams a file from app storage to a peer; the node reads it from disk itself,
+// so no file data crosses JNI. `transfer_id` is reported back like a message ID.
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_sendFile(
+    mut env: JNIEnv,
+    _class: JClass,
+    peer_id: JString,
+    path: JString,
+    transfer_id: jlong,
+) -> jint {
+    let peer_str: String = env
+        .get_string(&peer_id)
+        .expect("Couldn't get java string!")
+        .into();
+    let path_str: String = env
+        .get_string(&path)
+        .expect("Couldn't get java string!")
+        .into();
+
+    log::info!("sendFile called: {} -> {} (id {})", path_str, peer_str, transfer_id);
 
     if let Ok(peer) = peer_str.parse() {
-        send_command(Command::SendMessage(peer, msg_str));
-        log::info!("SendMessage command sent");
+        send_command(Command::SendFile(peer, transfer_id as u64, path_str.into()))
     } else {
         log::error!("Invalid peer ID: {}", peer_str);
+        SUBMIT_INVALID
     }
 }
 
@@ -187,7 +727,7 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_saveContact(
     _class: JClass,
     name: JString,
     addr: JString,
-) {
+) -> jint {
     let name_str: String = env
         .get_string(&name)
         .expect("Couldn't get java string!")
@@ -198,7 +738,7 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_saveContact(
         .into();
 
     log::info!("saveContact called: {} -> {}", name_str, addr_str);
-    send_command(Command::SaveContact(name_str, addr_str));
+    send_command(Command::SaveContact(name_str, addr_str))
 }
 
 #[no_mangle]
@@ -206,14 +746,68 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_connectContac
     mut env: JNIEnv,
     _class: JClass,
     name: JString,
-) {
+) -> jint {
     let name_str: String = env
         .get_string(&name)
         .expect("Couldn't get java string!")
         .into();
 
     log::info!("connectContact called: {}", name_str);
-    send_command(Command::ConnectContact(name_str));
+    send_command(Command::ConnectContact(name_str))
+}
+
+// Group IDs are plain names (no "group:" prefix); the node subscribes to their topic
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_joinGroup(
+    mut env: JNIEnv,
+    _class: JClass,
+    group_id: JString,
+) -> jint {
+    let group: String = env
+        .get_string(&group_id)
+        .expect("Couldn't get java string!")
+        .into();
+    if group.is_empty() {
+        return SUBMIT_INVALID;
+    }
+    log::info!("joinGroup called: {}", group);
+    send_command(Command::JoinGroup(group))
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_leaveGroup(
+    mut env: JNIEnv,
+    _class: JClass,
+    group_id: JString,
+) -> jint {
+    let group: String = env
+        .get_string(&group_id)
+        .expect("Couldn't get java string!")
+        .into();
+    log::info!("leaveGroup called: {}", group);
+    send_command(Command::LeaveGroup(group))
+}
+
+// One publish for the whole group; the state comes back through onMessageStatuses
+// with the conversation ID "group:<id>"
+#[no_mangle]
+pub extern "system" fn Java_com_example_thecommunication_NativeLib_sendGroupMessage(
+    mut env: JNIEnv,
+    _class: JClass,
+    group_id: JString,
+    message: JString,
+    message_id: jlong,
+) -> jint {
+    let group: String = env
+        .get_string(&group_id)
+        .expect("Couldn't get java string!")
+        .into();
+    let msg_str: String = env
+        .get_string(&message)
+        .expect("Couldn't get java string!")
+        .into();
+    log::debug!("sendGroupMessage called: {} (id {})", group, message_id);
+    send_command(Command::SendGroupMessage(group, message_id as u64, msg_str))
 }
 
 #[no_mangle]
@@ -267,25 +861,153 @@ pub extern "system" fn Java_com_example_thecommunication_NativeLib_getListenAddr
     output.into_raw()
 }
 
-fn send_command(cmd: Command) {
-    log::info!("send_command called");
-    if let Some(mutex) = SENDER.get() {
-        log::info!("SENDER exists, acquiring lock...");
-        if let Ok(tx) = mutex.lock() {
-            log::info!("Lock acquired, cloning sender...");
-            let tx_clone = tx.clone();
-            std::thread::spawn(move || {
-                log::info!("Spawned thread, sending command...");
-                if let Err(e) = tx_clone.blocking_send(cmd) {
-                    log::error!("Failed to send command: {}", e);
-                } else {
-                    log::info!("Command sent successfully!");
-                }
-            });
-        } else {
-            log::error!("Failed to lock SENDER mutex");
-        }
-    } else {
+// Non-blocking, order-preserving submission into the P2P task.
+// try_send never parks the calling (JNI) thread and never spawns one;
+// commands from one Java thread arrive in the order they were submitted.
+fn send_command(cmd: Command) -> jint {
+    let Some(tx) = SENDER.get() else {
         log::error!("P2P Node not started - SENDER is None");
+        return SUBMIT_NOT_STARTED;
+    };
+    submit(tx, cmd)
+}
+
+// Enqueues all of `commands` or none of them
+fn send_commands(commands: Vec<Command>) -> jint {
+    if commands.is_empty() {
+        return SUBMIT_OK;
+    }
+    let Some(tx) = SENDER.get() else {
+        log::error!("P2P Node not started - SENDER is None");
+        return SUBMIT_NOT_STARTED;
+    };
+    submit_all(tx, commands)
+}
+
+fn submit(tx: &mpsc::Sender<Command>, cmd: Command) -> jint {
+    match tx.try_send(cmd) {
+        Ok(()) => SUBMIT_OK,
+        Err(mpsc::error::TrySendError::Full(_)) => {
+            log::warn!("Command queue full, rejecting command");
+            SUBMIT_QUEUE_FULL
+        }
+        Err(mpsc::error::TrySendError::Closed(_)) => {
+            log::error!("Command channel closed");
+            SUBMIT_CLOSED
+        }
+    }
+}
+
+fn submit_all(tx: &mpsc::Sender<Command>, commands: Vec<Command>) -> jint {
+    match tx.try_reserve_many(commands.len()) {
+        Ok(permits) => {
+            for (permit, cmd) in permits.zip(commands) {
+                permit.send(cmd);
+            }
+            SUBMIT_OK
+        }
+        Err(mpsc::error::TrySendError::Full(())) => {
+            log::warn!("Command queue full, rejecting batch of {}", commands.len());
+            SUBMIT_QUEUE_FULL
+        }
+        Err(mpsc::error::TrySendError::Closed(())) => {
+            log::error!("Command channel closed");
+            SUBMIT_CLOSED
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::time::Instant;
+
+    fn send(msg_id: u64) -> Command {
+        Command::SendMessage(libp2p::PeerId::random(), msg_id, "hello".to_string())
+    }
+
+    fn msg_id(cmd: &Command) -> u64 {
+        match cmd {
+            Command::SendMessage(_, id, _) => *id,
+            _ => panic!("expected SendMessage"),
+        }
+    }
+
+    #[test]
+    fn full_queue_reports_backpressure() {
+        let (tx, mut rx) = mpsc::channel(2);
+        assert_eq!(submit(&tx, send(1)), SUBMIT_OK);
+        assert_eq!(submit(&tx, send(2)), SUBMIT_OK);
+        assert_eq!(submit(&tx, send(3)), SUBMIT_QUEUE_FULL);
+        assert_eq!(msg_id(&rx.try_recv().unwrap()), 1);
+        assert_eq!(submit(&tx, send(4)), SUBMIT_OK);
+        drop(rx);
+        assert_eq!(submit(&tx, send(5)), SUBMIT_CLOSED);
+    }
+
+    #[test]
+    fn batches_are_all_or_nothing() {
+        let (tx, mut rx) = mpsc::channel(4);
+        assert_eq!(submit(&tx, send(0)), SUBMIT_OK);
+        // 4 commands, 3 free slots: nothing from the batch may be queued
+        assert_eq!(submit_all(&tx, (1..=4).map(send).collect()), SUBMIT_QUEUE_FULL);
+        assert_eq!(submit_all(&tx, (1..=3).map(send).collect()), SUBMIT_OK);
+        let ids: Vec<u64> = std::iter::from_fn(|| rx.try_recv().ok()).map(|c| msg_id(&c)).collect();
+        assert_eq!(ids, vec![0, 1, 2, 3]);
+        // Larger than the whole queue can never fit
+        assert_eq!(submit_all(&tx, (0..5).map(send).collect()), SUBMIT_QUEUE_FULL);
+    }
+
+    // Per-call latency and throughput of 10k submissions while the node side
+    // drains the queue on its own thread, like the P2P task does.
+    // Timings are printed, not asserted; only once-delivery and order are checked.
+    // cargo test --release -- --ignored --nocapture send_command_benchmark
+    #[test]
+    #[ignore]
+    fn send_command_benchmark() {
+        const COMMANDS: u64 = 10_000;
+        let (tx, mut rx) = mpsc::channel(COMMAND_QUEUE_CAPACITY);
+        let consumer = std::thread::spawn(move || {
+            let mut received = Vec::with_capacity(COMMANDS as usize);
+            while let Some(cmd) = rx.blocking_recv() {
+                received.push(msg_id(&cmd));
+            }
+            received
+        });
+
+        let commands: Vec<Command> = (0..COMMANDS).map(send).collect();
+        let mut latencies = Vec::with_capacity(COMMANDS as usize);
+        let mut rejected = 0;
+        let started = Instant::now();
+        for cmd in commands {
+            let start = Instant::now();
+            let result = submit(&tx, cmd);
+            latencies.push(start.elapsed());
+            match result {
+                SUBMIT_OK => {}
+                SUBMIT_QUEUE_FULL => rejected += 1,
+                other => panic!("unexpected result {}", other),
+            }
+        }
+        let total = started.elapsed();
+        drop(tx);
+        let received = consumer.join().unwrap();
+
+        latencies.sort();
+        let pct = |p: f64| latencies[((latencies.len() - 1) as f64 * p) as usize];
+        println!(
+            "{} commands in {:?}: {:.0} commands/s, latency p50 {:?} p99 {:?} max {:?}, {} rejected (queue full)",
+            COMMANDS,
+            total,
+            COMMANDS as f64 / total.as_secs_f64(),
+            pct(0.5),
+            pct(0.99),
+            pct(1.0),
+            rejected
+        );
+
+        // Accepted commands arrive exactly once, in submission order
+        assert_eq!(received.len() as u64, COMMANDS - rejected);
+        assert!(received.windows(2).all(|w| w[0] < w[1]));
     }
 }
@@ -1,16 +1,36 @@
 mod behaviour;
 mod chat;
+mod codec;
+mod connection;
 mod contacts;
+mod groups;
+mod metrics;
+mod outbound;
+mod relays;
+mod sync;
+mod transfer;
 mod transport;
+#[cfg(test)]
+mod testnet;
 
 use anyhow::Result;
 use behaviour::AppBehaviour;
 use clap::Parser;
 use futures::StreamExt;
 use libp2p::{
-    Multiaddr, PeerId, dcutr, identify, identity, mdns, ping, relay, request_response,
+    Multiaddr, PeerId, dcutr, gossipsub, identify, identity, mdns, ping, relay, request_response,
     swarm::SwarmEvent,
 };
+use connection::ConnectionManager;
+use groups::{Groups, PublishOutcome};
+use metrics::METRICS;
+use relays::RelaySet;
+use sync::{HistorySync, SyncEvent, SyncLog};
+use transfer::{FileTransfers, SendOutcome, TransferEvent};
+use outbound::{OutboundQueue, Outcome};
+use std::collections::HashMap;
+use std::sync::{Arc, Mutex};
+use std::time::Instant;
 use tokio::{io, io::AsyncBufReadExt, select};
 
 #[derive(Parser, Debug)]
@@ -24,6 +44,116 @@ struct Opt {
 
     #[arg(long)]
     bootstrap_node: Option<Multiaddr>,
+
+    /// Relay to reserve on (repeatable); the built-in default is used when none is given
+    #[arg(long = "relay")]
+    relays: Vec<Multiaddr>,
+
+    /// Act as a circuit relay for other nodes (a local stand-in for our relays)
+    #[arg(long)]
+    relay_server: bool,
+}
+
+/// A /burst (or the unicast half of /fanout) run: `total` messages, timed until every one is acked or failed
+struct Burst {
+    target: String,
+    first_id: u64,
+    total: u64,
+    remaining: u64,
+    failed: u64,
+    started: Instant,
+}
+
+/// Outgoing messages of the CLI, sent through the same pipelined queue as the app
+struct Outbox {
+    queue: OutboundQueue,
+    next_id: u64,
+    burst: Option<Burst>,
+}
+
+impl Outbox {
+    fn send(&mut self, swarm: &mut libp2p::Swarm<AppBehaviour>, peer: PeerId, content: String) -> u64 {
+        let msg_id = self.next_id;
+        self.next_id += 1;
+        if self.queue.enqueue(peer, msg_id, content) {
+            self.queue.pump(&peer, &mut swarm.behaviour_mut().chat);
+        } else if self.burst.is_none() {
+            println!("📤 {} is offline, message queued until it connects", peer);
+        }
+        msg_id
+    }
+
+    // Counts an acked/failed message towards the running burst; true if it belonged to it
+    fn finish_burst_message(&mut self, msg_id: u64, failed: bool) -> bool {
+        let Some(burst) = self.burst.as_mut() else { return false };
+        if msg_id < burst.first_id || msg_id >= burst.first_id + burst.total {
+            return false;
+        }
+        burst.remaining -= 1;
+        if failed {
+            burst.failed += 1;
+        }
+        if burst.remaining == 0 {
+            let elapsed = burst.started.elapsed().as_secs_f64();
+            println!(
+                "📊 Burst to {}: {} messages in {:.2}s ({:.0} msg/s), {} failed",
+                burst.target,
+                burst.total,
+                elapsed,
+                burst.total as f64 / elapsed.max(0.001),
+                burst.failed
+            );
+            self.burst = None;
+        }
+        true
+    }
+}
+
+// Prefix of /fanout payloads: "fanout <i>/<n> <send time, epoch micros>"
+const FANOUT_PREFIX: &str = "fanout ";
+
+/// Receive side of /fanout: delivery latency per path (sender and receiver share
+/// a clock when run on one machine, which is what the measurement is for)
+#[derive(Default)]
+struct FanoutStats {
+    received: u64,
+    total_latency_us: u64,
+    max_latency_us: u64,
+}
+
+fn epoch_micros() -> u64 {
+    std::time::SystemTime::now()
+        .duration_since(std::time::UNIX_EPOCH)
+        .map(|d| d.as_micros() as u64)
+        .unwrap_or(0)
+}
+
+// Counts a /fanout message; true if `content` was one (it is not printed then)
+fn record_fanout(stats: &mut HashMap<&'static str, FanoutStats>, path: &'static str, content: &str) -> bool {
+    let Some(rest) = content.strip_prefix(FANOUT_PREFIX) else { return false };
+    let mut parts = rest.split_whitespace();
+    let (Some(seq), Some(sent)) = (parts.next(), parts.next().and_then(|t| t.parse::<u64>().ok())) else {
+        return false;
+    };
+    let latency = epoch_micros().saturating_sub(sent);
+    let entry = stats.entry(path).or_default();
+    entry.received += 1;
+    entry.total_latency_us += latency;
+    entry.max_latency_us = entry.max_latency_us.max(latency);
+    // The last message of a run prints the summary
+    if let Some((i, n)) = seq.split_once('/') {
+        if i == n {
+            println!(
+                "⏱  /fanout via {}: {} received, mean {:.2} ms, max {:.2} ms",
+                path,
+                entry.received,
+                entry.total_latency_us as f64 / entry.received as f64 / 1000.0,
+                entry.max_latency_us as f64 / 1000.0
+            );
+            stats.remove(path);
+        }
+    }
+    true
 }
 
 #[tokio::main]
@@ -51,6 +181,9 @@ async fn main() -> Result<()> {
 
     // 1. Create or load identity
     const IDENTITY_FILE: &str = "identity.key";
+    const OUTBOX_FILE: &str = "outbox.json";
+    const SYNC_LOG_FILE: &str = "synclog.json";
+    const RECEIVED_DIR: &str = "received";
 
     let id_keys = if std::path::Path::new(IDENTITY_FILE).exists() {
         // Load existing identity
@@ -103,11 +236,7 @@ async fn main() -> Result<()> {
     let dcutr = dcutr::Behaviour::new(local_peer_id);
 
     // Chat (Request-Response for direct messaging)
-    let chat = request_response::json::Behaviour::<chat::ChatMessage, chat::ChatMessage>::new(
-        [(
-            libp2p::StreamProtocol::new("/chat/1.0.0"),
-            request_response::ProtocolSupport::Full,
-        )],
+    let chat = codec::new_behaviour(
         request_response::Config::default()
             .with_request_timeout(std::time::Duration::from_secs(60)),
     );
@@ -117,8 +246,14 @@ async fn main() -> Result<()> {
         identify,
         ping,
         relay_client,
+        relay_server: opt
+            .relay_server
+            .then(|| relay::Behaviour::new(local_peer_id, relay::Config::default()))
+            .into(),
         dcutr,
         chat,
+        gossipsub: groups::new_behaviour(&id_keys)?,
+        stream: libp2p_stream::Behaviour::new(),
     };
 
     // 5. Build Swarm
@@ -134,25 +269,18 @@ async fn main() -> Result<()> {
     swarm.listen_on(format!("/ip4/0.0.0.0/udp/{}/quic-v1", port).parse()?)?;
     swarm.listen_on(format!("/ip4/0.0.0.0/tcp/{}", port).parse()?)?;
 
-    // 7. Connect to relay bootnode
-    let bootnodes = vec![
-        "/ip4/104.131.131.82/udp/4001/quic-v1/p2p/QmaCpDMGvV2BGHeYERUEnRQAwe3N8SzbUtfsmvsqQLuvuJ",
-    ];
-
-    for peer in &bootnodes {
-        let addr: Multiaddr = match peer.parse() {
-            Ok(a) => a,
-            Err(e) => {
-                println!("Failed to parse bootnode {}: {:?}", peer, e);
-                continue;
-            }
-        };
-        println!("Dialing bootnode: {}", peer);
-        if let Err(e) = swarm.dial(addr.clone()) {
-            println!("Failed to dial {}: {:?}", peer, e);
-        }
-        // Note: Relay reservation will be done in ConnectionEstablished event
-    }
+    // 7. Connect to the relays (none when this node is a relay itself);
+    //    reservations go to the lowest-RTT ones
+    let relay_addrs = if opt.relay_server {
+        println!("🛰️  Running as relay server");
+        Vec::new()
+    } else {
+        let list: Vec<String> = opt.relays.iter().map(|a| a.to_string()).collect();
+        RelaySet::parse_or_default(&list)
+    };
+    let mut relays = RelaySet::new(relay_addrs, relays::MAX_RESERVATIONS);
+    relays.start(&mut swarm);
+    let mut relay_probe_timer = tokio::time::interval(std::time::Duration::from_millis(500));
 
     // Dial provided bootstrap node if any
     if let Some(addr) = opt.bootstrap_node {
@@ -166,9 +294,6 @@ async fn main() -> Result<()> {
     println!("Your Peer ID: {}", local_peer_id);
     println!("-------------------------------------------------");
 
-    // Relay renewal - save relay addr and re-dial every 90s
-    let mut renewal_timer = tokio::time::interval(std::time::Duration::from_secs(90));
-    let mut relay_addr: Option<Multiaddr> = None;
 
     // Load contact book
     let mut contacts = contacts::ContactBook::load().unwrap_or_else(|e| {
@@ -177,6 +302,54 @@ async fn main() -> Result<()> {
     });
     println!("📇 Loaded {} contact(s)", contacts.list().len());
 
+    // Outgoing messages (pipelined, acked, retried; kept in outbox.json while the peer is offline)
+    let queue = OutboundQueue::load(local_peer_id.to_string(), std::path::PathBuf::from(OUTBOX_FILE));
+    let mut outbox = Outbox {
+        next_id: queue.max_msg_id() + 1,
+        queue,
+        burst: None,
+    };
+    let mut retry_timer = tokio::time::interval(std::time::Duration::from_secs(2));
+    let mut outbox_save_timer = tokio::time::interval(std::time::Duration::from_secs(1));
+
+    // History sync with peers after a reconnect (synclog.json)
+    let sync_log = Arc::new(Mutex::new(SyncLog::load(local_peer_id, std::path::PathBuf::from(SYNC_LOG_FILE))));
+    outbox.queue.set_history(sync_log.clone());
+    let (mut history, mut sync_events) =
+        HistorySync::new(local_peer_id, swarm.behaviour().stream.new_control(), sync_log.clone());
+
+    // Connection paths (direct/relayed) and mDNS LAN upgrades; saved contacts count as known peers
+    let mut connections = ConnectionManager::default();
+    for (_, address) in contacts.list() {
+        if let Ok(addr) = address.parse::<Multiaddr>() {
+            if let Some(peer_id) = connection::peer_of(&addr) {
+                connections.add_known(peer_id, Some(addr));
+            }
+        }
+    }
+    // Last ping RTT per peer, shown by /conn
+    let mut rtts: HashMap<PeerId, std::time::Duration> = HashMap::new();
+
+    // Attachments (/sendfile); incoming files are written to ./received, from saved contacts only
+    let (mut transfers, mut transfer_events) = FileTransfers::new(
+        swarm.behaviour().stream.new_control(),
+        std::path::PathBuf::from(RECEIVED_DIR),
+    );
+    for (_, address) in contacts.list() {
+        if let Ok(addr) = address.parse::<Multiaddr>() {
+            if let Some(peer_id) = connection::peer_of(&addr) {
+                transfers.allow(peer_id);
+            }
+        }
+    }
+    // Start time of each /sendfile and the last progress decile printed per transfer
+    let mut transfer_started: HashMap<u64, Instant> = HashMap::new();
+    let mut transfer_deciles: HashMap<(bool, u64), u64> = HashMap::new();
+
+    // Group chats (/join, /gsend) and the receive side of /fanout
+    let mut groups = Groups::default();
+    let mut fanout_stats: HashMap<&'static str, FanoutStats> = HashMap::new();
+
     // Event loop
     let mut stdin = io::BufReader::new(io::stdin()).lines();
 
@@ -184,49 +357,134 @@ async fn main() -> Result<()> {
         select! {
             line = stdin.next_line() => {
                 if let Ok(Some(line)) = line {
-                    handle_input_line(&mut swarm, &mut contacts, &line).await;
+                    handle_input_line(&mut swarm, &mut contacts, &mut outbox, &mut connections, &rtts, &relays, &mut transfers, &mut transfer_started, &mut groups, &line).await;
+                }
+            }
+            _ = retry_timer.tick() => {
+                outbox.queue.pump_all(&mut swarm.behaviour_mut().chat);
+            }
+            _ = outbox_save_timer.tick() => {
+                outbox.queue.save_if_dirty();
+                if let Ok(mut log) = sync_log.lock() {
+                    log.save_if_dirty();
                 }
             }
-            _ = renewal_timer.tick() => {
-                // Renew relay reservation every 90s
-                if let Some(addr) = &relay_addr {
-                    println!("⏰ Renewing relay reservation...");
-                    // To renew, we must call listen_on again with p2p-circuit
-                    let circuit_addr = addr.clone().with(libp2p::multiaddr::Protocol::P2pCircuit);
-                    if let Err(e) = swarm.listen_on(circuit_addr) {
-                        println!("⚠️  Renewal failed: {:?}", e);
+            Some(event) = sync_events.recv() => match event {
+                SyncEvent::Accepted { peer } => history.on_accepted(peer),
+                SyncEvent::Done { peer, received, recovered, sent } => {
+                    history.on_finished(&peer);
+                    for (_, content) in &received {
+                        println!("\n📨 [{}] (sync): {}", peer, content);
+                    }
+                    for (_, content) in &recovered {
+                        println!("\n📤 [you -> {}] (sync): {}", peer, content);
+                    }
+                    println!("🔄 Synced with {}: {} received, {} own recovered, {} sent", peer, received.len(), recovered.len(), sent);
+                }
+                SyncEvent::Failed { peer, error } => {
+                    history.on_finished(&peer);
+                    println!("⚠️  History sync with {} failed: {}", peer, error);
+                }
+            },
+            Some(event) = transfer_events.recv() => match event {
+                TransferEvent::Progress { peer, id, incoming, bytes, total } => {
+                    let decile = bytes * 10 / total.max(1);
+                    if transfer_deciles.insert((incoming, id), decile) != Some(decile) {
+                        let arrow = if incoming { "⬇️" } else { "⬆️" };
+                        println!("📎 {} {} {}: {}%", arrow, peer, id, decile * 10);
+                    }
+                }
+                TransferEvent::Received { peer, id, name, path, size } => {
+                    transfer_deciles.remove(&(true, id));
+                    println!("📎 Received {} ({} bytes) from {} -> {}", name, size, peer, path.display());
+                }
+                TransferEvent::Sent { peer, id } => {
+                    transfers.on_sent(id);
+                    transfer_deciles.remove(&(false, id));
+                    if let Some(started) = transfer_started.remove(&id) {
+                        println!("📎 File {} delivered to {} in {:.2}s", id, peer, started.elapsed().as_secs_f64());
+                    }
+                }
+                TransferEvent::SendFailed { peer, id, error } => {
+                    match transfers.on_send_failed(id, &error) {
+                        SendOutcome::Waiting => {
+                            println!("📎 File {} to {} interrupted ({}), resumes when it reconnects", id, peer, error);
+                        }
+                        SendOutcome::Failed => {
+                            transfer_started.remove(&id);
+                            println!("❌ File {} to {} failed: {}", id, peer, error);
+                        }
                     }
                 }
+            },
+            _ = relay_probe_timer.tick() => {
+                relays.tick(&mut swarm);
+                history.tick();
             }
             event = swarm.select_next_some() => {
                 match event {
+                    SwarmEvent::NewListenAddr { address, .. } if opt.relay_server => {
+                        // A relay must announce where it can be reached for reservations
+                        println!("Relay listening on {}/p2p/{}", address, local_peer_id);
+                        swarm.add_external_address(address);
+                    }
                     /*SwarmEvent::NewListenAddr { address, .. } => {
                         println!("Listening on {}", address);
                     }*/
-                    SwarmEvent::ConnectionEstablished { peer_id, endpoint, .. } => {
+                    SwarmEvent::Dialing { .. } => {
+                        METRICS.increment(metrics::STAT_DIAL_ATTEMPTS);
+                    }
+                    SwarmEvent::ConnectionEstablished { peer_id, connection_id, endpoint, .. } => {
                         //println!("Connection established: {} via {:?}", peer_id, endpoint);
+                        METRICS.record_connection(&endpoint);
+                        connections.on_established(&mut swarm, peer_id, connection_id, &endpoint);
 
-                        // Request relay reservation if this is a bootnode
-                        if endpoint.is_dialer() {
-                            let addr = endpoint.get_remote_address();
-                            // Check if this looks like our relay bootnode
-                            if addr.to_string().contains("QmaCpDMGvV2BGHeYERUEnRQAwe3N8SzbUtfsmvsqQLuvuJ") {
-                                // Save relay addr for renewal
-                                relay_addr = Some(addr.clone());
-
-                                let relay_reserve_addr = addr.clone().with(libp2p::multiaddr::Protocol::P2pCircuit);
-                                println!("🔗 Requesting relay reservation on: {}", relay_reserve_addr);
-                                if let Err(e) = swarm.listen_on(relay_reserve_addr) {
-                                    println!("Failed to listen on relay: {:?}", e);
-                                }
-                            }
-                        }
+                        // Send whatever waited in the outbox for this peer
+                        outbox.queue.on_connected(peer_id, &mut swarm.behaviour_mut().chat);
+                        transfers.on_connected(&peer_id);
+                        history.on_connected(peer_id);
+
+                        // Reservations start once the relays have been probed
+                        relays.on_connected(&mut swarm, &peer_id);
                     }
-                    SwarmEvent::ConnectionClosed { peer_id, cause, .. } => {
+                    SwarmEvent::ConnectionClosed { peer_id, connection_id, cause, num_established, .. } => {
                         println!("Connection closed: {} (cause: {:?})", peer_id, cause);
+                        connections.on_closed(peer_id, connection_id, cause.is_none());
+                        if num_established == 0 {
+                            outbox.queue.on_disconnected(&peer_id);
+                            relays.on_disconnected(&peer_id);
+                            history.on_disconnected(&peer_id);
+                            rtts.remove(&peer_id);
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Mdns(mdns::Event::Discovered(list))) => {
+                        for (peer_id, addr) in list {
+                            println!("🏠 mDNS: {} at {}", peer_id, addr);
+                            swarm.add_peer_address(peer_id, addr.clone());
+                            connections.on_local_discovered(&mut swarm, peer_id, addr);
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Mdns(mdns::Event::Expired(list))) => {
+                        for (peer_id, addr) in list {
+                            connections.on_local_expired(&peer_id, &addr);
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Ping(ping::Event {
+                        peer,
+                        result: Ok(rtt),
+                        ..
+                    })) => {
+                        rtts.insert(peer, rtt);
+                        relays.on_rtt(&mut swarm, &peer, rtt);
                     }
                     SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::RelayClient(event)) => {
                         println!("Relay Client Event: {:?}", event);
+                        if let relay::client::Event::ReservationReqAccepted { relay_peer_id, renewal, .. } = event {
+                            relays.on_reservation_accepted(&relay_peer_id, renewal);
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::RelayServer(event)) => {
+                        println!("Relay Server Event: {:?}", event);
                     }
                     SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Identify(event)) => {
                         println!("Identify Event: {:?}", event);
@@ -240,40 +498,84 @@ async fn main() -> Result<()> {
                         request_response::Message::Request {
                             request, channel, ..
                         } => {
-                            // Received a message
-                            println!("\n📨 [{}]: {}", peer, request.content);
+                            // Received a message; one a history sync already brought is not printed again
+                            let fresh = sync_log
+                                .lock()
+                                .map(|mut log| log.record(peer, false, request.timestamp, &request.content))
+                                .unwrap_or(true);
+                            if fresh && !record_fanout(&mut fanout_stats, "unicast", &request.content) {
+                                println!("\n📨 [{}]: {}", peer, request.content);
+                            }
+                            METRICS.increment(metrics::STAT_MESSAGES_IN);
+                            METRICS.add(metrics::STAT_BYTES_IN, request.content.len() as i64);
 
                             // Send acknowledgment
-                            let response = chat::ChatMessage {
-                                from: swarm.local_peer_id().to_string(),
-                                content: "✓".to_string(),
-                                timestamp: 0,
-                            };
+                            let response = chat::ChatMessage::ack();
                             if let Err(e) = swarm.behaviour_mut().chat.send_response(channel, response) {
                                 println!("Failed to send response: {:?}", e);
                             }
                         }
-                        request_response::Message::Response { response, .. } => {
+                        request_response::Message::Response { request_id, .. } => {
                             // Message was delivered (ack received)
-                            if response.content == "✓" {
-                                println!("✓ Message delivered to {}", peer);
+                            if let Some(Outcome::Delivered(_, msg_id)) = outbox.queue.on_response(request_id) {
+                                if !outbox.finish_burst_message(msg_id, false) {
+                                    println!("✓ Message delivered to {}", peer);
+                                }
+                                outbox.queue.pump(&peer, &mut swarm.behaviour_mut().chat);
                             }
                         }
                     },
                     SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Chat(
                         request_response::Event::OutboundFailure {
                             peer,
+                            request_id,
                             error,
                             ..
                         },
-                    )) => {
-                        println!("❌ Failed to send message to {}: {:?}", peer, error);
-                    }
+                    )) => match outbox.queue.on_failure(
+                        request_id,
+                        matches!(error, request_response::OutboundFailure::UnsupportedProtocols),
+                    ) {
+                        Some(Outcome::Retrying(..)) => {
+                            println!("⚠️  Send to {} failed ({:?}), retrying", peer, error);
+                        }
+                        Some(Outcome::Queued(..)) => {
+                            println!("📤 {} unreachable ({:?}), message kept in outbox", peer, error);
+                        }
+                        Some(Outcome::Failed(_, msg_id)) => {
+                            if !outbox.finish_burst_message(msg_id, true) {
+                                println!("❌ Failed to send message to {}: {:?}", peer, error);
+                            }
+                            outbox.queue.pump(&peer, &mut swarm.behaviour_mut().chat);
+                        }
+                        _ => {}
+                    },
                     SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Chat(
                         request_response::Event::InboundFailure { peer, error, .. },
                     )) => {
                         println!("❌ Inbound message failure from {}: {:?}", peer, error);
                     }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Gossipsub(
+                        gossipsub::Event::Message { message, .. },
+                    )) => {
+                        if let Some(msg) = groups.on_message(message) {
+                            if !record_fanout(&mut fanout_stats, "group", &msg.content) {
+                                println!("\n📨 [#{} {}]: {}", msg.group, msg.sender, msg.content);
+                            }
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Gossipsub(
+                        gossipsub::Event::Subscribed { peer_id, topic },
+                    )) => {
+                        for (group, msg_id, outcome) in groups.on_subscribed(&mut swarm.behaviour_mut().gossipsub, &topic) {
+                            match outcome {
+                                PublishOutcome::Sent => {
+                                    println!("👥 {} joined #{}; queued message {} sent", peer_id, group, msg_id)
+                                }
+                                _ => println!("⚠️  {} joined #{}; queued message {} failed", peer_id, group, msg_id),
+                            }
+                        }
+                    }
                     SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Chat(_)) => {
                         // Other chat events (ResponseSent, etc.)
                     }
@@ -283,9 +585,15 @@ async fn main() -> Result<()> {
                     }
                     SwarmEvent::OutgoingConnectionError { peer_id, error, .. } => {
                         println!("Outgoing connection error to {:?}: {:?}", peer_id, error);
+                        if let Some(peer_id) = peer_id {
+                            connections.on_dial_failed(peer_id);
+                            relays.on_dial_failed(&mut swarm, &peer_id);
+                        }
                     }
-                    SwarmEvent::ListenerClosed { reason, .. } => {
+                    SwarmEvent::ListenerClosed { listener_id, reason, .. } => {
                         println!("Listener Closed: {:?}", reason);
+                        // A lost relay reservation moves to the next relay
+                        relays.on_listener_closed(&mut swarm, listener_id);
                     }
                     SwarmEvent::ListenerError { error, .. } => {
                         println!("Listener Error: {:?}", error);
@@ -300,6 +608,13 @@ async fn main() -> Result<()> {
 async fn handle_input_line(
     swarm: &mut libp2p::Swarm<AppBehaviour>,
     contacts: &mut contacts::ContactBook,
+    outbox: &mut Outbox,
+    connections: &mut ConnectionManager,
+    rtts: &HashMap<PeerId, std::time::Duration>,
+    relays: &RelaySet,
+    transfers: &mut FileTransfers,
+    transfer_started: &mut HashMap<u64, Instant>,
+    groups: &mut Groups,
     line: &str,
 ) {
     let mut args = line.split_whitespace();
@@ -309,12 +624,21 @@ async fn handle_input_line(
             println!("  /help - Show this help");
             println!("  /myid - Show your peer ID");
             println!("  /list - List connected peers");
-            println!("  /relay - Show relay addresses");
+            println!("  /relay - Show listen addresses and relays (RTT, reservations)");
             println!("  /dial <multiaddr> - Connect to a peer");
             println!("  /save <name> <multiaddr> - Save a contact");
             println!("  /connect <name> - Connect to saved contact");
             println!("  /contacts - List all contacts");
             println!("  /remove <name> - Remove a contact");
+            println!("  /burst <peer_id> <count> - Send <count> messages and measure throughput");
+            println!("  /sendfile <peer_id> <path> - Stream a file (resumes after a disconnect)");
+            println!("  /conn - Show connection path (direct/relayed) and ping RTT per peer");
+            println!("  /stats - Show message, latency and connection counters");
+            println!("  /join <group> - Join a group chat");
+            println!("  /leave <group> - Leave a group chat");
+            println!("  /groups - List joined groups and their members");
+            println!("  /gsend <group> <message> - Publish a message to a group");
+            println!("  /fanout <group> <count> - Compare group publish with unicast to every member");
         }
         Some("/myid") => {
             println!("Your Peer ID: {}", swarm.local_peer_id());
@@ -330,11 +654,93 @@ async fn handle_input_line(
                 println!("  (none)");
             }
         }
+        Some("/conn") => {
+            let mut peers = connections.snapshot();
+            if peers.is_empty() {
+                println!("  (no connections)");
+            }
+            peers.sort_by_key(|(peer, _)| *peer);
+            for (peer, state) in peers {
+                let path = match state {
+                    connection::CONN_DIRECT => "direct",
+                    connection::CONN_RELAYED => "relayed",
+                    _ => "dialing",
+                };
+                match rtts.get(&peer) {
+                    Some(rtt) => println!("  {} {:8} rtt {:.1} ms", peer, path, rtt.as_secs_f64() * 1000.0),
+                    None => println!("  {} {:8} rtt -", peer, path),
+                }
+            }
+        }
         Some("/relay") => {
+            let health = relays::HEALTH.snapshot();
+            println!(
+                "Reservations: {} active, {} accepted, {} renewed, {} failed",
+                health[relays::HEALTH_ACTIVE],
+                health[relays::HEALTH_ACCEPTED],
+                health[relays::HEALTH_RENEWALS],
+                health[relays::HEALTH_FAILURES]
+            );
             println!("My Listen Addresses:");
             for addr in swarm.listeners() {
                 println!("  - {}", addr);
             }
+            println!("Relays:");
+            for relay in relays.snapshot() {
+                let rtt = match relay.rtt {
+                    Some(rtt) => format!("{:.1} ms", rtt.as_secs_f64() * 1000.0),
+                    None => "-".to_string(),
+                };
+                println!(
+                    "  - {} [{}{}] rtt {}",
+                    relay.addr,
+                    if relay.connected { "connected" } else { "offline" },
+                    if relay.reserved { ", reserved" } else { "" },
+                    rtt
+                );
+            }
+        }
+        Some("/stats") => {
+            let stats = METRICS.snapshot();
+            println!(
+                "Messages: {} in, {} out, {} delivered, {} failed",
+                stats[metrics::STAT_MESSAGES_IN],
+                stats[metrics::STAT_MESSAGES_OUT],
+                stats[metrics::STAT_DELIVERED],
+                stats[metrics::STAT_FAILED]
+            );
+            println!(
+                "Bytes: {} in, {} out (message content and file data)",
+                stats[metrics::STAT_BYTES_IN],
+                stats[metrics::STAT_BYTES_OUT]
+            );
+            let count = stats[metrics::STAT_LATENCY_COUNT];
+            if count > 0 {
+                let bucket = |p| match metrics::latency_percentile(&stats, p) {
+                    Some(-1) => format!(">{} ms", metrics::LATENCY_BOUNDS_MS[metrics::LATENCY_BOUNDS_MS.len() - 1]),
+                    Some(ms) => format!("<={} ms", ms),
+                    None => "-".to_string(),
+                };
+                println!(
+                    "Ack latency: {} samples, mean {:.1} ms, p50 {}, p99 {}",
+                    count,
+                    stats[metrics::STAT_LATENCY_SUM_MS] as f64 / count as f64,
+                    bucket(0.5),
+                    bucket(0.99)
+                );
+            } else {
+                println!("Ack latency: no samples");
+            }
+            let direct = stats[metrics::STAT_CONNECTIONS_DIRECT];
+            let relayed = stats[metrics::STAT_CONNECTIONS_RELAYED];
+            println!(
+                "Dials: {} attempts, {} succeeded; connections: {} direct, {} relayed ({:.0}% relayed)",
+                stats[metrics::STAT_DIAL_ATTEMPTS],
+                stats[metrics::STAT_DIAL_SUCCESSES],
+                direct,
+                relayed,
+                relayed as f64 * 100.0 / (direct + relayed).max(1) as f64
+            );
         }
         Some("/dial") => {
             if let Some(addr_str) = args.next() {
@@ -354,6 +760,12 @@ async fn handle_input_line(
         Some("/save") => {
             if let (Some(name), Some(address)) = (args.next(), args.next()) {
                 contacts.add(name.to_string(), address.to_string());
+                if let Ok(addr) = address.parse::<Multiaddr>() {
+                    if let Some(peer_id) = connection::peer_of(&addr) {
+                        connections.add_known(peer_id, Some(addr));
+                        transfers.allow(peer_id);
+                    }
+                }
                 if let Err(e) = contacts.save() {
                     println!("❌ Failed to save contacts: {}", e);
                 } else {
@@ -408,6 +820,147 @@ async fn handle_input_line(
                 println!("Usage: /remove <name>");
             }
         }
+        Some("/burst") => {
+            let peer = args.next().and_then(|p| p.parse::<PeerId>().ok());
+            let count = args.next().and_then(|c| c.parse::<u64>().ok());
+            match (peer, count) {
+                (Some(peer_id), Some(count)) if count > 0 => {
+                    if outbox.burst.is_some() {
+                        println!("A burst is already running");
+                        return;
+                    }
+                    println!("🚀 Sending {} messages to {}...", count, peer_id);
+                    outbox.burst = Some(Burst {
+                        target: peer_id.to_string(),
+                        first_id: outbox.next_id,
+                        total: count,
+                        remaining: count,
+                        failed: 0,
+                        started: Instant::now(),
+                    });
+                    for i in 0..count {
+                        outbox.send(swarm, peer_id, format!("burst {}/{}", i + 1, count));
+                    }
+                }
+                _ => println!("Usage: /burst <peer_id> <count>"),
+            }
+        }
+        Some("/join") => match args.next() {
+            Some(group) => {
+                if groups.join(&mut swarm.behaviour_mut().gossipsub, group) {
+                    println!("👥 Joined #{}", group);
+                }
+            }
+            None => println!("Usage: /join <group>"),
+        },
+        Some("/leave") => match args.next() {
+            Some(group) => {
+                groups.leave(&mut swarm.behaviour_mut().gossipsub, group);
+                println!("👥 Left #{}", group);
+            }
+            None => println!("Usage: /leave <group>"),
+        },
+        Some("/groups") => {
+            let joined = groups.list();
+            if joined.is_empty() {
+                println!("  (no groups)");
+            }
+            for group in joined {
+                let members = group_members(swarm, &group);
+                let mesh = swarm.behaviour().gossipsub.mesh_peers(&groups::topic(&group).hash()).count();
+                println!("  #{}: {} member(s) connected, {} in mesh", group, members.len(), mesh);
+            }
+        }
+        Some("/gsend") => {
+            let group = args.next();
+            let content = args.collect::<Vec<&str>>().join(" ");
+            match group {
+                Some(group) if !content.is_empty() => {
+                    let id = outbox.next_id;
+                    outbox.next_id += 1;
+                    match groups.publish(&mut swarm.behaviour_mut().gossipsub, group, id, content) {
+                        PublishOutcome::Sent => println!("💬 Published to #{}", group),
+                        PublishOutcome::Queued => println!("📤 No member of #{} reachable yet, message queued", group),
+                        PublishOutcome::Failed => println!("❌ Failed to publish to #{} (joined?)", group),
+                    }
+                }
+                _ => println!("Usage: /gsend <group> <message>"),
+            }
+        }
+        Some("/fanout") => {
+            let group = args.next();
+            let count = args.next().and_then(|c| c.parse::<u64>().ok());
+            let (Some(group), Some(count)) = (group, count) else {
+                println!("Usage: /fanout <group> <count>");
+                return;
+            };
+            let members = group_members(swarm, group);
+            if members.is_empty() || count == 0 {
+                println!("No connected member of #{} (join it on the other nodes first)", group);
+                return;
+            }
+            if outbox.burst.is_some() {
+                println!("A burst is already running");
+                return;
+            }
+
+            // 1. Group: one publish per message; the mesh forwards it. Wire bytes per
+            // path are measured by groups::tests::group_fanout_on_localhost
+            let mesh = swarm.behaviour().gossipsub.mesh_peers(&groups::topic(group).hash()).count();
+            let started = Instant::now();
+            for i in 0..count {
+                let content = format!("{}{}/{} {}", FANOUT_PREFIX, i + 1, count, epoch_micros());
+                let id = outbox.next_id;
+                outbox.next_id += 1;
+                groups.publish(&mut swarm.behaviour_mut().gossipsub, group, id, content);
+            }
+            println!(
+                "📊 Group #{}: {} publish(es) in {:.2} ms to {} mesh peer(s)",
+                group,
+                count,
+                started.elapsed().as_secs_f64() * 1000.0,
+                mesh
+            );
+
+            // 2. Unicast: one request per member per message, timed until every ack
+            let total = count * members.len() as u64;
+            outbox.burst = Some(Burst {
+                target: format!("{} member(s) of #{} (unicast)", members.len(), group),
+                first_id: outbox.next_id,
+                total,
+                remaining: total,
+                failed: 0,
+                started: Instant::now(),
+            });
+            for i in 0..count {
+                for member in &members {
+                    let content = format!("{}{}/{} {}", FANOUT_PREFIX, i + 1, count, epoch_micros());
+                    outbox.send(swarm, *member, content);
+                }
+            }
+            println!("📊 Unicast: {} request(s); members print delivery latency per path", total);
+        }
+        Some("/sendfile") => {
+            let peer = args.next().and_then(|p| p.parse::<PeerId>().ok());
+            let path = args.collect::<Vec<&str>>().join(" ");
+            match peer {
+                Some(peer_id) if !path.is_empty() => {
+                    // Shares the message ID counter so acks can't be confused
+                    let id = outbox.next_id;
+                    outbox.next_id += 1;
+                    println!("📎 Sending {} to {} as transfer {}", path, peer_id, id);
+                    transfer_started.insert(id, Instant::now());
+                    let connected = swarm.is_connected(&peer_id);
+                    transfers.send(peer_id, id, std::path::PathBuf::from(path), connected);
+                    if !connected {
+                        if let Err(e) = swarm.dial(peer_id) {
+                            println!("📎 {} is offline ({:?}), file waits until it connects", peer_id, e);
+                        }
+                    }
+                }
+                _ => println!("Usage: /sendfile <peer_id> <path>"),
+            }
+        }
         Some(cmd) if cmd.starts_with('/') => {
             println!("Unknown command. Type /help for list.");
         }
@@ -421,11 +974,7 @@ async fn handle_input_line(
                         println!("Usage: <peer_id> <message>");
                     } else {
                         // Send message
-                        let msg = chat::ChatMessage::new(
-                            swarm.local_peer_id().to_string(),
-                            message_content.clone(),
-                        );
-                        swarm.behaviour_mut().chat.send_request(&peer_id, msg);
+                        outbox.send(swarm, peer_id, message_content.clone());
                         println!("💬 Sending: {}", message_content);
                     }
                 } else {
@@ -438,11 +987,7 @@ async fn handle_input_line(
                 if let Some(peer_id) = peer_id {
                     let full_message =
                         format!("{} {}", first_word, args.collect::<Vec<&str>>().join(" "));
-                    let msg = chat::ChatMessage::new(
-                        swarm.local_peer_id().to_string(),
-                        full_message.clone(),
-                    );
-                    swarm.behaviour_mut().chat.send_request(&peer_id, msg);
+                    outbox.send(swarm, peer_id, full_message.clone());
                     println!("💬 Sending to {}: {}", peer_id, full_message);
                 } else {
                     println!("No peers connected. Use /dial to connect first.");
@@ -452,3 +997,15 @@ async fn handle_input_line(
         None => {}
     }
 }
+
+// Connected peers subscribed to the group's topic
+fn group_members(swarm: &libp2p::Swarm<AppBehaviour>, group: &str) -> Vec<PeerId> {
+    let topic = groups::topic(group).hash();
+    swarm
+        .behaviour()
+        .gossipsub
+        .all_peers()
+        .filter(|(_, topics)| topics.contains(&&topic))
+        .map(|(peer, _)| *peer)
+        .collect()
+}
@@ -0,0 +1,177 @@
+use libp2p::core::ConnectedPoint;
+use std::sync::atomic::{AtomicI64, Ordering};
+use std::time::Duration;
+
+// Indices of Metrics::snapshot (NativeLib.STAT_*)
+pub const STAT_MESSAGES_IN: usize = 0;
+pub const STAT_MESSAGES_OUT: usize = 1;
+pub const STAT_BYTES_IN: usize = 2;
+pub const STAT_BYTES_OUT: usize = 3;
+pub const STAT_DELIVERED: usize = 4;
+pub const STAT_FAILED: usize = 5;
+pub const STAT_DIAL_ATTEMPTS: usize = 6;
+pub const STAT_DIAL_SUCCESSES: usize = 7;
+pub const STAT_CONNECTIONS_DIRECT: usize = 8;
+pub const STAT_CONNECTIONS_RELAYED: usize = 9;
+pub const STAT_COMMAND_QUEUE: usize = 10;
+pub const STAT_LATENCY_COUNT: usize = 11;
+pub const STAT_LATENCY_SUM_MS: usize = 12;
+// First latency bucket; bucket i counts requests acked in at most
+// LATENCY_BOUNDS_MS[i] ms, the last one everything slower
+pub const STAT_LATENCY_BUCKETS: usize = 13;
+pub const LATENCY_BOUNDS_MS: [i64; 8] = [25, 50, 100, 250, 500, 1000, 2500, 5000];
+pub const STATS_LEN: usize = STAT_LATENCY_BUCKETS + LATENCY_BOUNDS_MS.len() + 1;
+
+/// Node counters, bumped on the node loop and read from any thread.
+///
+/// Every value is a relaxed atomic: recording costs one `fetch_add` and a
+/// snapshot is a plain array copy, with no lock between the node and the
+/// reader. Bytes count message content and file data, not protocol framing.
+pub struct Metrics {
+    values: [AtomicI64; STATS_LEN],
+}
+
+impl Metrics {
+    const fn new() -> Self {
+        const ZERO: AtomicI64 = AtomicI64::new(0);
+        Self {
+            values: [ZERO; STATS_LEN],
+        }
+    }
+
+    pub fn snapshot(&self) -> [i64; STATS_LEN] {
+        let mut out = [0; STATS_LEN];
+        for (i, value) in self.values.iter().enumerate() {
+            out[i] = value.load(Ordering::Relaxed);
+        }
+        out
+    }
+
+    pub fn add(&self, index: usize, n: i64) {
+        self.values[index].fetch_add(n, Ordering::Relaxed);
+    }
+
+    pub fn increment(&self, index: usize) {
+        self.add(index, 1);
+    }
+
+    pub fn set(&self, index: usize, value: i64) {
+        self.values[index].store(value, Ordering::Relaxed);
+    }
+
+    /// Send-to-ack time of one chat request
+    pub fn record_latency(&self, latency: Duration) {
+        let ms = latency.as_millis() as i64;
+        let bucket = LATENCY_BOUNDS_MS
+            .iter()
+            .position(|&bound| ms <= bound)
+            .unwrap_or(LATENCY_BOUNDS_MS.len());
+        self.increment(STAT_LATENCY_COUNT);
+        self.add(STAT_LATENCY_SUM_MS, ms);
+        self.increment(STAT_LATENCY_BUCKETS + bucket);
+    }
+
+    /// ConnectionEstablished: counts successful dials and the direct/relayed split
+    pub fn record_connection(&self, endpoint: &ConnectedPoint) {
+        if endpoint.is_dialer() {
+            self.increment(STAT_DIAL_SUCCESSES);
+        }
+        if endpoint.is_relayed() {
+            self.increment(STAT_CONNECTIONS_RELAYED);
+        } else {
+            self.increment(STAT_CONNECTIONS_DIRECT);
+        }
+    }
+}
+
+pub static METRICS: Metrics = Metrics::new();
+
+/// Upper bound (ms) of the histogram bucket holding the `p` quantile
+/// (0.0..=1.0) of a snapshot; None without samples, -1 if above the last bound
+pub fn latency_percentile(stats: &[i64; STATS_LEN], p: f64) -> Option<i64> {
+    let count = stats[STAT_LATENCY_COUNT];
+    if count == 0 {
+        return None;
+    }
+    let target = ((count as f64) * p).ceil().max(1.0) as i64;
+    let mut seen = 0;
+    for (i, &bound) in LATENCY_BOUNDS_MS.iter().enumerate() {
+        seen += stats[STAT_LATENCY_BUCKETS + i];
+        if seen >= target {
+            return Some(bound);
+        }
+    }
+    Some(-1)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn bucket_counts(metrics: &Metrics) -> Vec<i64> {
+        metrics.snapshot()[STAT_LATENCY_BUCKETS..].to_vec()
+    }
+
+    #[test]
+    fn latency_buckets_include_their_upper_bound() {
+        // (latency, bucket)
+        let cases = [
+            (Duration::ZERO, 0),
+            (Duration::from_millis(25), 0),
+            // Sub-millisecond parts are truncated
+            (Duration::from_micros(25_999), 0),
+            (Duration::from_millis(26), 1),
+            (Duration::from_millis(1000), 5),
+            (Duration::from_millis(1001), 6),
+            (Duration::from_millis(5000), 7),
+            (Duration::from_millis(5001), LATENCY_BOUNDS_MS.len()),
+            (Duration::from_secs(3600), LATENCY_BOUNDS_MS.len()),
+        ];
+        for (latency, bucket) in cases {
+            let metrics = Metrics::new();
+            metrics.record_latency(latency);
+            let mut expected = vec![0; LATENCY_BOUNDS_MS.len() + 1];
+            expected[bucket] = 1;
+            assert_eq!(bucket_counts(&metrics), expected, "{:?}", latency);
+            assert_eq!(metrics.snapshot()[STAT_LATENCY_COUNT], 1);
+            assert_eq!(metrics.snapshot()[STAT_LATENCY_SUM_MS], latency.as_millis() as i64);
+        }
+    }
+
+    #[test]
+    fn percentile_of_an_empty_histogram_is_none() {
+        let stats = Metrics::new().snapshot();
+        assert_eq!(latency_percentile(&stats, 0.5), None);
+        assert_eq!(latency_percentile(&stats, 0.0), None);
+    }
+
+    #[test]
+    fn percentiles_report_the_bucket_bound() {
+        let metrics = Metrics::new();
+        // 90 fast, 9 at 26 ms, 1 over the last bound
+        for _ in 0..90 {
+            metrics.record_latency(Duration::from_millis(10));
+        }
+        for _ in 0..9 {
+            metrics.record_latency(Duration::from_millis(26));
+        }
+        metrics.record_latency(Duration::from_millis(5001));
+        let stats = metrics.snapshot();
+
+        // (quantile, bound)
+        let cases = [(0.0, 25), (0.5, 25), (0.9, 25), (0.91, 50), (0.99, 50), (0.995, -1), (1.0, -1)];
+        for (p, bound) in cases {
+            assert_eq!(latency_percentile(&stats, p), Some(bound), "p{}", p * 100.0);
+        }
+    }
+
+    #[test]
+    fn percentile_at_the_last_bound() {
+        let metrics = Metrics::new();
+        metrics.record_latency(Duration::from_millis(5000));
+        assert_eq!(latency_percentile(&metrics.snapshot(), 1.0), Some(5000));
+        metrics.record_latency(Duration::from_millis(5001));
+        assert_eq!(latency_percentile(&metrics.snapshot(), 0.5), Some(5000));
+        assert_eq!(latency_percentile(&metrics.snapshot(), 1.0), Some(-1));
+    }
+}
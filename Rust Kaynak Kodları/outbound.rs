@@ -0,0 +1,491 @@
+use crate::chat::ChatMessage;
+use crate::codec::ChatCodec;
+use crate::metrics::{self, METRICS};
+use crate::sync::SyncLog;
+use libp2p::{
+    request_response::{self, OutboundRequestId},
+    PeerId,
+};
+use serde::{Deserialize, Serialize};
+use std::collections::{HashMap, HashSet, VecDeque};
+use std::fs;
+use std::path::PathBuf;
+use std::sync::{Arc, Mutex};
+use std::time::{Instant, SystemTime, UNIX_EPOCH};
+
+// Requests kept in flight per peer; later messages wait in the peer's queue
+pub const MAX_IN_FLIGHT_PER_PEER: usize = 8;
+// Sends attempted on one connection before the message is parked until the peer reconnects
+pub const MAX_ATTEMPTS: u32 = 3;
+
+// Delivery states pushed to Java (NativeLib.MESSAGE_*)
+pub const MESSAGE_DELIVERED: i32 = 1;
+pub const MESSAGE_FAILED: i32 = 2;
+pub const MESSAGE_QUEUED: i32 = 3;
+
+/// Delivery state change waiting for batched delivery to Java
+#[derive(Clone)]
+pub struct MessageStatus {
+    pub peer: String,
+    pub msg_id: u64,
+    pub status: i32,
+}
+
+/// What happened to a tracked request
+pub enum Outcome {
+    Delivered(PeerId, u64),
+    Retrying(PeerId, u64),
+    /// Kept in the outbox until the next ConnectionEstablished for the peer
+    Queued(PeerId, u64),
+    Failed(PeerId, u64),
+}
+
+struct OutboundMessage {
+    msg_id: u64,
+    content: String,
+    // Epoch millis (seconds in outboxes written by older builds)
+    timestamp: u64,
+    attempts: u32,
+    // When the current attempt was sent, for the latency histogram
+    sent_at: Instant,
+}
+
+#[derive(Default)]
+struct PeerQueue {
+    waiting: VecDeque<OutboundMessage>,
+    in_flight: usize,
+    // Retries exhausted on the current connection; wait for a new one
+    parked: bool,
+}
+
+/// On-disk form of one undelivered message
+#[derive(Serialize, Deserialize)]
+struct StoredMessage {
+    peer: String,
+    msg_id: u64,
+    content: String,
+    timestamp: u64,
+}
+
+/// Per-peer outbound queue and store-and-forward outbox.
+///
+/// Up to MAX_IN_FLIGHT_PER_PEER requests per peer are pipelined on the
+/// connection. Every OutboundRequestId is mapped back to the caller's
+/// message ID so acks and failures can be reported. Messages for peers
+/// that are not connected stay in the outbox (persisted to disk) and are
+/// drained when ConnectionEstablished fires for that peer, instead of each
+/// one running into the request timeout.
+pub struct OutboundQueue {
+    local_peer: String,
+    path: Option<PathBuf>,
+    dirty: bool,
+    connected: HashSet<PeerId>,
+    peers: HashMap<PeerId, PeerQueue>,
+    in_flight: HashMap<OutboundRequestId, (PeerId, OutboundMessage)>,
+    // Acked messages are recorded here for history sync (sync.rs)
+    history: Option<Arc<Mutex<SyncLog>>>,
+}
+
+impl OutboundQueue {
+    /// Loads the outbox saved at `path`, if any
+    pub fn load(local_peer: String, path: PathBuf) -> Self {
+        let mut queue = Self {
+            local_peer,
+            path: None,
+            dirty: false,
+            connected: HashSet::new(),
+            peers: HashMap::new(),
+            in_flight: HashMap::new(),
+            history: None,
+        };
+
+        if path.exists() {
+            let stored: Vec<StoredMessage> = fs::read_to_string(&path)
+                .ok()
+                .and_then(|data| serde_json::from_str(&data).ok())
+                .unwrap_or_else(|| {
+                    log::error!("Failed to read outbox {:?}, starting empty", path);
+                    Vec::new()
+                });
+            for msg in stored {
+                let Ok(peer) = msg.peer.parse::<PeerId>() else { continue };
+                queue.peers.entry(peer).or_default().waiting.push_back(OutboundMessage {
+                    msg_id: msg.msg_id,
+                    content: msg.content,
+                    timestamp: msg.timestamp,
+                    attempts: 0,
+                    sent_at: Instant::now(),
+                });
+            }
+            log::info!("📤 Loaded {} undelivered message(s) from outbox", queue.pending());
+        }
+        queue.path = Some(path);
+        queue
+    }
+
+    pub fn set_history(&mut self, history: Arc<Mutex<SyncLog>>) {
+        self.history = Some(history);
+    }
+
+    /// Adds a message; returns false if the peer is offline and it waits in the outbox
+    pub fn enqueue(&mut self, peer: PeerId, msg_id: u64, content: String) -> bool {
+        // Millis: together with the content it identifies the message for history sync
+        let timestamp = SystemTime::now()
+            .duration_since(UNIX_EPOCH)
+            .map(|d| d.as_millis() as u64)
+            .unwrap_or(0);
+        self.peers.entry(peer).or_default().waiting.push_back(OutboundMessage {
+            msg_id,
+            content,
+            timestamp,
+            attempts: 0,
+            sent_at: Instant::now(),
+        });
+        self.dirty = true;
+        self.is_ready(&peer)
+    }
+
+    fn is_ready(&self, peer: &PeerId) -> bool {
+        self.connected.contains(peer) && !self.peers.get(peer).map_or(false, |q| q.parked)
+    }
+
+    /// Fills the peer's in-flight window from its queue (only while it is connected)
+    pub fn pump(&mut self, peer: &PeerId, chat: &mut request_response::Behaviour<ChatCodec>) {
+        if !self.is_ready(peer) {
+            return;
+        }
+        let Some(queue) = self.peers.get_mut(peer) else { return };
+        while queue.in_flight < MAX_IN_FLIGHT_PER_PEER {
+            let Some(mut msg) = queue.waiting.pop_front() else { break };
+            let request = ChatMessage {
+                from: self.local_peer.clone(),
+                content: msg.content.clone(),
+                timestamp: msg.timestamp,
+            };
+            let request_id = chat.send_request(peer, request);
+            METRICS.increment(metrics::STAT_MESSAGES_OUT);
+            METRICS.add(metrics::STAT_BYTES_OUT, msg.content.len() as i64);
+            msg.sent_at = Instant::now();
+            queue.in_flight += 1;
+            self.in_flight.insert(request_id, (*peer, msg));
+        }
+    }
+
+    /// Pumps every connected peer that still has queued messages (used for retries)
+    pub fn pump_all(&mut self, chat: &mut request_response::Behaviour<ChatCodec>) {
+        let peers: Vec<PeerId> = self
+            .peers
+            .iter()
+            .filter(|(_, q)| !q.waiting.is_empty())
+            .map(|(peer, _)| *peer)
+            .collect();
+        for peer in peers {
+            self.pump(&peer, chat);
+        }
+    }
+
+    /// New connection to `peer`: drain its outbox
+    pub fn on_connected(&mut self, peer: PeerId, chat: &mut request_response::Behaviour<ChatCodec>) {
+        self.connected.insert(peer);
+        if let Some(queue) = self.peers.get_mut(&peer) {
+            queue.parked = false;
+            for msg in queue.waiting.iter_mut() {
+                msg.attempts = 0;
+            }
+            if !queue.waiting.is_empty() {
+                log::info!("📤 Draining {} queued message(s) to {}", queue.waiting.len(), peer);
+            }
+        }
+        self.pump(&peer, chat);
+    }
+
+    /// Last connection to `peer` closed
+    pub fn on_disconnected(&mut self, peer: &PeerId) {
+        self.connected.remove(peer);
+    }
+
+    pub fn on_response(&mut self, request_id: OutboundRequestId) -> Option<Outcome> {
+        let (peer, msg) = self.in_flight.remove(&request_id)?;
+        METRICS.increment(metrics::STAT_DELIVERED);
+        METRICS.record_latency(msg.sent_at.elapsed());
+        if let Some(history) = &self.history {
+            if let Ok(mut history) = history.lock() {
+                history.record(peer, true, msg.timestamp, &msg.content);
+            }
+        }
+        self.release_slot(&peer);
+        self.dirty = true;
+        Some(Outcome::Delivered(peer, msg.msg_id))
+    }
+
+    /// `permanent`: the peer cannot take this message at all (e.g. no common protocol)
+    pub fn on_failure(&mut self, request_id: OutboundRequestId, permanent: bool) -> Option<Outcome> {
+        let (peer, mut msg) = self.in_flight.remove(&request_id)?;
+        if permanent {
+            METRICS.increment(metrics::STAT_FAILED);
+            self.release_slot(&peer);
+            self.dirty = true;
+            return Some(Outcome::Failed(peer, msg.msg_id));
+        }
+
+        msg.attempts += 1;
+        let msg_id = msg.msg_id;
+        let exhausted = msg.attempts >= MAX_ATTEMPTS;
+        let queue = self.peers.entry(peer).or_default();
+        queue.in_flight = queue.in_flight.saturating_sub(1);
+        if exhausted {
+            queue.parked = true;
+        }
+        // Several in-flight requests fail together when a connection drops; keep ID order
+        let pos = queue
+            .waiting
+            .iter()
+            .position(|m| m.msg_id > msg_id)
+            .unwrap_or(queue.waiting.len());
+        queue.waiting.insert(pos, msg);
+
+        if exhausted {
+            Some(Outcome::Queued(peer, msg_id))
+        } else {
+            Some(Outcome::Retrying(peer, msg_id))
+        }
+    }
+
+    /// Messages queued or in flight (all peers)
+    pub fn pending(&self) -> usize {
+        self.in_flight.len() + self.peers.values().map(|q| q.waiting.len()).sum::<usize>()
+    }
+
+    /// Highest message ID in the outbox, so callers numbering their own IDs don't reuse one
+    pub fn max_msg_id(&self) -> u64 {
+        let waiting = self.peers.values().flat_map(|q| q.waiting.iter().map(|m| m.msg_id));
+        let in_flight = self.in_flight.values().map(|(_, m)| m.msg_id);
+        waiting.chain(in_flight).max().unwrap_or(0)
+    }
+
+    /// Writes the outbox if it changed since the last save.
+    /// Called on a timer so bursts of sends cost one write, not one per message.
+    pub fn save_if_dirty(&mut self) {
+        if !self.dirty {
+            return;
+        }
+        let Some(path) = self.path.clone() else { return };
+
+        let mut stored: Vec<StoredMessage> = Vec::with_capacity(self.pending());
+        for (peer, queue) in &self.peers {
+            for msg in &queue.waiting {
+                stored.push(Self::stored(peer, msg));
+            }
+        }
+        for (peer, msg) in self.in_flight.values() {
+            stored.push(Self::stored(peer, msg));
+        }
+        stored.sort_by_key(|m| m.msg_id);
+
+        // Write to a temp file and rename so a crash never leaves a half-written outbox
+        let result = serde_json::to_string(&stored)
+            .map_err(anyhow::Error::from)
+            .and_then(|data| {
+                let tmp = path.with_extension("json.tmp");
+                fs::write(&tmp, data)?;
+                fs::rename(&tmp, &path)?;
+                Ok(())
+            });
+        match result {
+            Ok(()) => self.dirty = false,
+            Err(e) => log::error!("Failed to save outbox: {:?}", e),
+        }
+    }
+
+    fn stored(peer: &PeerId, msg: &OutboundMessage) -> StoredMessage {
+        StoredMessage {
+            peer: peer.to_string(),
+            msg_id: msg.msg_id,
+            content: msg.content.clone(),
+            timestamp: msg.timestamp,
+        }
+    }
+
+    fn release_slot(&mut self, peer: &PeerId) {
+        if let Some(queue) = self.peers.get_mut(peer) {
+            queue.in_flight = queue.in_flight.saturating_sub(1);
+            if queue.in_flight == 0 && queue.waiting.is_empty() {
+                self.peers.remove(peer);
+            }
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::codec;
+
+    fn chat() -> request_response::Behaviour<ChatCodec> {
+        codec::new_behaviour(request_response::Config::default())
+    }
+
+    fn temp_path(name: &str) -> PathBuf {
+        let path = std::env::temp_dir().join(format!("outbox-{}-{}.json", std::process::id(), name));
+        let _ = fs::remove_file(&path);
+        path
+    }
+
+    fn queue(name: &str) -> OutboundQueue {
+        OutboundQueue::load("local".to_string(), temp_path(name))
+    }
+
+    // In-flight request IDs of `peer`, by message ID
+    fn in_flight(queue: &OutboundQueue, peer: &PeerId) -> Vec<(u64, OutboundRequestId)> {
+        let mut ids: Vec<(u64, OutboundRequestId)> = queue
+            .in_flight
+            .iter()
+            .filter(|(_, (p, _))| p == peer)
+            .map(|(id, (_, msg))| (msg.msg_id, *id))
+            .collect();
+        ids.sort_by_key(|(msg_id, _)| *msg_id);
+        ids
+    }
+
+    fn waiting(queue: &OutboundQueue, peer: &PeerId) -> Vec<u64> {
+        queue.peers.get(peer).map_or(Vec::new(), |q| q.waiting.iter().map(|m| m.msg_id).collect())
+    }
+
+    fn request(queue: &OutboundQueue, peer: &PeerId, msg_id: u64) -> OutboundRequestId {
+        in_flight(queue, peer).into_iter().find(|(id, _)| *id == msg_id).unwrap().1
+    }
+
+    #[test]
+    fn offline_messages_wait_and_drain_on_connect() {
+        let mut chat = chat();
+        let mut queue = queue("drain");
+        let peer = PeerId::random();
+        for id in 1..=10 {
+            assert!(!queue.enqueue(peer, id, format!("m{}", id)));
+        }
+        queue.pump(&peer, &mut chat);
+        assert!(queue.in_flight.is_empty());
+
+        queue.on_connected(peer, &mut chat);
+        let sent: Vec<u64> = in_flight(&queue, &peer).into_iter().map(|(id, _)| id).collect();
+        assert_eq!(sent, (1..=MAX_IN_FLIGHT_PER_PEER as u64).collect::<Vec<_>>());
+        assert_eq!(waiting(&queue, &peer), vec![9, 10]);
+        assert_eq!(queue.pending(), 10);
+    }
+
+    #[test]
+    fn failures_requeue_in_id_order() {
+        let mut chat = chat();
+        let mut queue = queue("order");
+        let peer = PeerId::random();
+        queue.on_connected(peer, &mut chat);
+        for id in 1..=10 {
+            assert!(queue.enqueue(peer, id, format!("m{}", id)));
+        }
+        queue.pump(&peer, &mut chat);
+
+        // A dropped connection fails requests in no particular order
+        for id in [3, 1, 2] {
+            let request_id = request(&queue, &peer, id);
+            assert!(matches!(queue.on_failure(request_id, false), Some(Outcome::Retrying(p, m)) if p == peer && m == id));
+        }
+        assert_eq!(waiting(&queue, &peer), vec![1, 2, 3, 9, 10]);
+
+        // Retries go out before the newer messages
+        queue.pump(&peer, &mut chat);
+        let sent: Vec<u64> = in_flight(&queue, &peer).into_iter().map(|(id, _)| id).collect();
+        assert_eq!(sent, (1..=8).collect::<Vec<_>>());
+        assert_eq!(waiting(&queue, &peer), vec![9, 10]);
+    }
+
+    #[test]
+    fn exhausted_retries_park_until_reconnect() {
+        let mut chat = chat();
+        let mut queue = queue("park");
+        let peer = PeerId::random();
+        queue.on_connected(peer, &mut chat);
+        queue.enqueue(peer, 1, "hello".to_string());
+
+        for attempt in 1..=MAX_ATTEMPTS {
+            queue.pump(&peer, &mut chat);
+            let request_id = request(&queue, &peer, 1);
+            match queue.on_failure(request_id, false) {
+                Some(Outcome::Retrying(_, 1)) => assert!(attempt < MAX_ATTEMPTS),
+                Some(Outcome::Queued(_, 1)) => assert_eq!(attempt, MAX_ATTEMPTS),
+                _ => panic!("unexpected outcome on attempt {}", attempt),
+            }
+        }
+
+        // Parked: nothing is sent and new messages wait too
+        queue.pump(&peer, &mut chat);
+        assert!(queue.in_flight.is_empty());
+        assert!(!queue.enqueue(peer, 2, "later".to_string()));
+        assert_eq!(waiting(&queue, &peer), vec![1, 2]);
+
+        // A new connection unparks and restarts the attempt count
+        queue.on_disconnected(&peer);
+        queue.on_connected(peer, &mut chat);
+        assert_eq!(in_flight(&queue, &peer).len(), 2);
+        let request_id = request(&queue, &peer, 1);
+        assert!(matches!(queue.on_failure(request_id, false), Some(Outcome::Retrying(_, 1))));
+    }
+
+    #[test]
+    fn responses_and_permanent_failures_free_the_window() {
+        let mut chat = chat();
+        let mut queue = queue("window");
+        let peer = PeerId::random();
+        queue.on_connected(peer, &mut chat);
+        for id in 1..=MAX_IN_FLIGHT_PER_PEER as u64 + 2 {
+            queue.enqueue(peer, id, format!("m{}", id));
+        }
+        queue.pump(&peer, &mut chat);
+
+        let delivered = request(&queue, &peer, 1);
+        assert!(matches!(queue.on_response(delivered), Some(Outcome::Delivered(_, 1))));
+        assert!(queue.on_response(delivered).is_none());
+        let failed = request(&queue, &peer, 2);
+        assert!(matches!(queue.on_failure(failed, true), Some(Outcome::Failed(_, 2))));
+        assert!(queue.on_failure(failed, true).is_none());
+
+        queue.pump(&peer, &mut chat);
+        assert_eq!(in_flight(&queue, &peer).len(), MAX_IN_FLIGHT_PER_PEER);
+        assert!(waiting(&queue, &peer).is_empty());
+        assert_eq!(queue.pending(), MAX_IN_FLIGHT_PER_PEER);
+    }
+
+    #[test]
+    fn outbox_survives_save_and_load() {
+        let mut chat = chat();
+        let path = temp_path("roundtrip");
+        let mut queue = OutboundQueue::load("local".to_string(), path.clone());
+        let online = PeerId::random();
+        let offline = PeerId::random();
+        queue.on_connected(online, &mut chat);
+        queue.enqueue(online, 5, "in flight".to_string());
+        queue.pump(&online, &mut chat);
+        for id in [3, 1, 2] {
+            queue.enqueue(offline, id, format!("şimdi değil {}", id));
+        }
+        queue.save_if_dirty();
+        assert!(!queue.dirty);
+
+        let loaded = OutboundQueue::load("local".to_string(), path.clone());
+        assert_eq!(loaded.pending(), 4);
+        assert_eq!(loaded.max_msg_id(), 5);
+        // In-flight messages come back as waiting; everything is resent after a restart
+        assert_eq!(waiting(&loaded, &online), vec![5]);
+        assert_eq!(waiting(&loaded, &offline), vec![1, 2, 3]);
+        let original = &queue.peers[&offline].waiting;
+        for msg in &loaded.peers[&offline].waiting {
+            let before = original.iter().find(|m| m.msg_id == msg.msg_id).unwrap();
+            assert_eq!((&msg.content, msg.timestamp), (&before.content, before.timestamp));
+            assert_eq!(msg.attempts, 0);
+        }
+
+        // An unreadable outbox starts empty instead of failing
+        fs::write(&path, "not json").unwrap();
+        assert_eq!(OutboundQueue::load("local".to_string(), path.clone()).pending(), 0);
+        let _ = fs::remove_file(&path);
+    }
+}
@@ -1,28 +1,162 @@
 use crate::behaviour::{self, AppBehaviour};
-use crate::{chat, contacts, transport};
+use crate::connection::{self, ConnectionManager};
+use crate::groups::{self, Groups, PublishOutcome};
+use crate::metrics::{self, METRICS};
+use crate::outbound::{self, MessageStatus, Outcome, OutboundQueue};
+use crate::relays::{self, RelaySet};
+use crate::sync::{HistorySync, SyncEvent, SyncLog};
+use crate::transfer::{FileTransfers, SendOutcome, TransferEvent};
+use crate::{chat, codec, contacts, transport};
 use anyhow::Result;
 use futures::StreamExt;
 use libp2p::{
-    dcutr, identify, identity, mdns, ping, relay, request_response, swarm::SwarmEvent, Multiaddr,
+    dcutr, gossipsub, identify, identity, mdns, ping, relay, request_response, swarm::SwarmEvent, Multiaddr,
     PeerId,
 };
-use std::path::Path;
-use std::sync::Mutex;
+use std::path::{Path, PathBuf};
+use std::pin::Pin;
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, SystemTime, UNIX_EPOCH};
+use tokio::time::{Instant, Sleep};
 use tokio::{select, sync::mpsc};
 
+// Incoming messages are collected for this long before one batched upcall to Java
+const INBOX_FLUSH_DELAY: Duration = Duration::from_millis(20);
+// A backlog larger than this is handed over without waiting for the delay
+const INBOX_MAX_BATCH: usize = 256;
+// Failed sends are retried on this tick
+const OUTBOUND_RETRY_INTERVAL: Duration = Duration::from_secs(2);
+// How often peers in dial backoff are checked
+const REDIAL_CHECK_INTERVAL: Duration = Duration::from_millis(500);
+// Outbox changes are written to disk at most this often
+const OUTBOX_SAVE_INTERVAL: Duration = Duration::from_secs(1);
+// Undelivered messages, stored next to the identity file
+const OUTBOX_FILE: &str = "outbox.json";
+// Messages remembered for history sync, next to the outbox
+const SYNC_LOG_FILE: &str = "synclog.json";
+// The sync log is larger than the outbox; written at most this often
+const SYNC_LOG_SAVE_INTERVAL: Duration = Duration::from_secs(10);
+// Incoming attachments, also next to the identity file (app storage)
+const RECEIVED_DIR: &str = "received";
+
+// Node status kinds pushed to Java (NativeLib.STATUS_*)
+pub const STATUS_PEER_ID: i32 = 1;
+pub const STATUS_LISTEN_ADDR_ADDED: i32 = 2;
+pub const STATUS_LISTEN_ADDR_REMOVED: i32 = 3;
+pub const STATUS_RELAY_ADDR_ADDED: i32 = 4;
+pub const STATUS_RELAY_ADDR_REMOVED: i32 = 5;
+pub const STATUS_RELAY_RESERVED: i32 = 6;
+
 pub enum Command {
     Start,
     Dial(Multiaddr),
+    Connect(PeerId, Option<Multiaddr>),
+    Prewarm(Vec<(PeerId, Option<Multiaddr>)>),
     SaveContact(String, String),
     ConnectContact(String),
-    SendMessage(PeerId, String),
+    SendMessage(PeerId, u64, String),
+    SendFile(PeerId, u64, PathBuf),
+    JoinGroup(String),
+    LeaveGroup(String),
+    SendGroupMessage(String, u64, String),
     GetInfo,
 }
 
+/// Message a history sync brought back, from either side of the conversation
+pub struct HistoryMessage {
+    pub content: String,
+    pub timestamp: i64, // epoch millis, when it was originally sent
+    pub sent_by_me: bool,
+}
+
+/// Incoming message waiting in the inbox for batched delivery to Java
+#[derive(Clone)]
+pub struct InboundMessage {
+    pub sender: String,
+    pub content: String,
+    pub timestamp: i64, // epoch millis
+    // Group the message was published to; None for direct messages
+    pub group: Option<String>,
+}
+
+/// Incoming messages and delivery states waiting for one batched upcall to Java.
+/// The first item after a flush arms the timer, so nothing waits longer than
+/// INBOX_FLUSH_DELAY; a list that reaches INBOX_MAX_BATCH goes out right away.
+struct JavaBatch {
+    inbox: Vec<InboundMessage>,
+    status_updates: Vec<MessageStatus>,
+    flush_at: Pin<Box<Sleep>>,
+}
+
+impl JavaBatch {
+    fn new() -> Self {
+        Self {
+            inbox: Vec::new(),
+            status_updates: Vec::new(),
+            flush_at: Box::pin(tokio::time::sleep(INBOX_FLUSH_DELAY)),
+        }
+    }
+
+    fn is_empty(&self) -> bool {
+        self.inbox.is_empty() && self.status_updates.is_empty()
+    }
+
+    fn arm(&mut self) {
+        if self.is_empty() {
+            self.flush_at.as_mut().reset(Instant::now() + INBOX_FLUSH_DELAY);
+        }
+    }
+
+    fn push_message(&mut self, message: InboundMessage) {
+        self.arm();
+        self.inbox.push(message);
+        if self.inbox.len() >= INBOX_MAX_BATCH {
+            crate::notify_messages_received(&self.inbox);
+            self.inbox.clear();
+        }
+    }
+
+    fn push_status(&mut self, update: MessageStatus) {
+        self.arm();
+        self.status_updates.push(update);
+        if self.status_updates.len() >= INBOX_MAX_BATCH {
+            crate::notify_message_statuses(&self.status_updates);
+            self.status_updates.clear();
+        }
+    }
+
+    fn flush(&mut self) {
+        crate::notify_messages_received(&self.inbox);
+        self.inbox.clear();
+        crate::notify_message_statuses(&self.status_updates);
+        self.status_updates.clear();
+    }
+}
+
+fn listen_status(address: &Multiaddr, added: bool) -> i32 {
+    let is_relay = address
+        .iter()
+        .any(|p| matches!(p, libp2p::multiaddr::Protocol::P2pCircuit));
+    match (is_relay, added) {
+        (true, true) => STATUS_RELAY_ADDR_ADDED,
+        (true, false) => STATUS_RELAY_ADDR_REMOVED,
+        (false, true) => STATUS_LISTEN_ADDR_ADDED,
+        (false, false) => STATUS_LISTEN_ADDR_REMOVED,
+    }
+}
+
+fn now_millis() -> i64 {
+    SystemTime::now()
+        .duration_since(UNIX_EPOCH)
+        .map(|d| d.as_millis() as i64)
+        .unwrap_or(0)
+}
+
 pub async fn run_p2p_node(
     mut command_rx: mpsc::Receiver<Command>,
     secret_key_seed: Option<u8>,
     identity_file_path: String,
+    relay_list: Vec<String>,
 ) -> Result<()> {
     // Load or create identity from the provided path
     let id_keys = if Path::new(&identity_file_path).exists() {
@@ -58,6 +192,7 @@ pub async fn run_p2p_node(
     crate::LOCAL_PEER_ID
         .set(Mutex::new(local_peer_id.to_string()))
         .ok();
+    crate::notify_node_status(STATUS_PEER_ID, &local_peer_id.to_string());
 
     // 2. Create Relay Client
     let (relay_transport, relay_client) = relay::client::new(local_peer_id);
@@ -74,11 +209,7 @@ pub async fn run_p2p_node(
     let ping =
         ping::Behaviour::new(ping::Config::new().with_interval(std::time::Duration::from_secs(5)));
     let dcutr = dcutr::Behaviour::new(local_peer_id);
-    let chat = request_response::json::Behaviour::<chat::ChatMessage, chat::ChatMessage>::new(
-        [(
-            libp2p::StreamProtocol::new("/chat/1.0.0"),
-            request_response::ProtocolSupport::Full,
-        )],
+    let chat = codec::new_behaviour(
         request_response::Config::default()
             .with_request_timeout(std::time::Duration::from_secs(60)),
     );
@@ -88,8 +219,11 @@ pub async fn run_p2p_node(
         identify,
         ping,
         relay_client,
+        relay_server: None.into(),
         dcutr,
         chat,
+        gossipsub: groups::new_behaviour(&id_keys)?,
+        stream: libp2p_stream::Behaviour::new(),
     };
 
     // 5. Build Swarm
@@ -104,25 +238,44 @@ pub async fn run_p2p_node(
     swarm.listen_on("/ip4/0.0.0.0/udp/0/quic-v1".parse()?)?;
     swarm.listen_on("/ip4/0.0.0.0/tcp/0".parse()?)?;
 
-    // 7. Connect to relay bootnode
-    let bootnodes = vec![
-        "/ip4/104.131.131.82/udp/4001/quic-v1/p2p/QmaCpDMGvV2BGHeYERUEnRQAwe3N8SzbUtfsmvsqQLuvuJ",
-    ];
-
-    for peer in &bootnodes {
-        if let Ok(addr) = peer.parse::<Multiaddr>() {
-            log::info!("Dialing bootnode: {}", peer);
-            swarm.dial(addr)?;
-        }
-    }
-
-    // Relay renewal
-    let mut renewal_timer = tokio::time::interval(std::time::Duration::from_secs(90));
-    let mut relay_addr: Option<Multiaddr> = None;
+    // 7. Connect to the configured relays; reservations go to the lowest-RTT ones
+    let mut relays = RelaySet::new(RelaySet::parse_or_default(&relay_list), relays::MAX_RESERVATIONS);
+    log::info!("Using {} relay(s)", relays.len());
+    relays.start(&mut swarm);
 
     // Contact book
     let mut contacts = contacts::ContactBook::default();
 
+    // Outgoing messages: per-peer pipelining, ack tracking, retries and the
+    // persistent outbox for peers that are offline
+    let outbox_path = Path::new(&identity_file_path).with_file_name(OUTBOX_FILE);
+    let mut outbound = OutboundQueue::load(local_peer_id.to_string(), outbox_path);
+    let mut retry_timer = tokio::time::interval(OUTBOUND_RETRY_INTERVAL);
+    let mut outbox_save_timer = tokio::time::interval(OUTBOX_SAVE_INTERVAL);
+
+    // History sync: acked and received messages per peer, reconciled after a reconnect
+    let sync_log_path = Path::new(&identity_file_path).with_file_name(SYNC_LOG_FILE);
+    let sync_log = Arc::new(Mutex::new(SyncLog::load(local_peer_id, sync_log_path)));
+    outbound.set_history(sync_log.clone());
+    let (mut history, mut sync_events) =
+        HistorySync::new(local_peer_id, swarm.behaviour().stream.new_control(), sync_log.clone());
+    let mut sync_save_timer = tokio::time::interval(SYNC_LOG_SAVE_INTERVAL);
+
+    // Attachments: streamed on their own protocol, written by the node into app storage
+    let received_dir = Path::new(&identity_file_path).with_file_name(RECEIVED_DIR);
+    let (mut transfers, mut transfer_events) =
+        FileTransfers::new(swarm.behaviour().stream.new_control(), received_dir);
+
+    // Joined group chats (gossipsub topics); Java joins them again after every start
+    let mut groups = Groups::default();
+
+    // All dials to chat peers: dedup, backoff, direct over relayed
+    let mut connections = ConnectionManager::default();
+    let mut redial_timer = tokio::time::interval(REDIAL_CHECK_INTERVAL);
+
+    // Incoming messages and delivery states for batched delivery to Java
+    let mut batch = JavaBatch::new();
+
     loop {
         select! {
             command = command_rx.recv() => {
@@ -136,8 +289,29 @@ pub async fn run_p2p_node(
                             log::error!("Failed to dial: {:?}", e);
                         }
                     }
+                    Some(Command::Connect(peer_id, addr)) => {
+                        transfers.allow(peer_id);
+                        if let Some(state) = connections.connect(&mut swarm, peer_id, addr) {
+                            crate::notify_connection_state(&peer_id.to_string(), state);
+                        }
+                    }
+                    Some(Command::Prewarm(peers)) => {
+                        log::info!("Command: Prewarming {} peer(s)", peers.len());
+                        for (peer_id, addr) in peers {
+                            transfers.allow(peer_id);
+                            if let Some(state) = connections.prewarm(&mut swarm, peer_id, addr) {
+                                crate::notify_connection_state(&peer_id.to_string(), state);
+                            }
+                        }
+                    }
                     Some(Command::SaveContact(name, addr_str)) => {
                         contacts.add(name.clone(), addr_str.clone());
+                        if let Ok(addr) = addr_str.parse::<Multiaddr>() {
+                            if let Some(peer_id) = connection::peer_of(&addr) {
+                                connections.add_known(peer_id, Some(addr));
+                                transfers.allow(peer_id);
+                            }
+                        }
                         log::info!("Command: Saved contact {} -> {}", name, addr_str);
                     }
                     Some(Command::ConnectContact(name)) => {
@@ -150,13 +324,54 @@ pub async fn run_p2p_node(
                             log::error!("Contact not found: {}", name);
                         }
                     }
-                    Some(Command::SendMessage(peer_id, msg_content)) => {
-                        let msg = chat::ChatMessage::new(
-                            swarm.local_peer_id().to_string(),
-                            msg_content.clone(),
-                        );
-                        swarm.behaviour_mut().chat.send_request(&peer_id, msg);
-                        log::info!("Command: Sending message to {}", peer_id);
+                    Some(Command::SendMessage(peer_id, msg_id, msg_content)) => {
+                        transfers.allow(peer_id);
+                        if outbound.enqueue(peer_id, msg_id, msg_content) {
+                            outbound.pump(&peer_id, &mut swarm.behaviour_mut().chat);
+                            log::debug!("Command: Sending message {} to {}", msg_id, peer_id);
+                        } else {
+                            // Sent from the outbox once the peer connects
+                            log::debug!("Command: {} offline, message {} queued", peer_id, msg_id);
+                            if let Some(state) = connections.connect(&mut swarm, peer_id, None) {
+                                crate::notify_connection_state(&peer_id.to_string(), state);
+                            }
+                            batch.push_status(MessageStatus {
+                                peer: peer_id.to_string(),
+                                msg_id,
+                                status: outbound::MESSAGE_QUEUED,
+                            });
+                        }
+                    }
+                    Some(Command::SendFile(peer_id, transfer_id, path)) => {
+                        log::info!("Command: Sending file {:?} to {} as {}", path, peer_id, transfer_id);
+                        let connected = swarm.is_connected(&peer_id);
+                        transfers.send(peer_id, transfer_id, path, connected);
+                        if !connected {
+                            if let Some(state) = connections.connect(&mut swarm, peer_id, None) {
+                                crate::notify_connection_state(&peer_id.to_string(), state);
+                            }
+                        }
+                    }
+                    Some(Command::JoinGroup(group)) => {
+                        log::info!("Command: Joining group {}", group);
+                        groups.join(&mut swarm.behaviour_mut().gossipsub, &group);
+                    }
+                    Some(Command::LeaveGroup(group)) => {
+                        log::info!("Command: Leaving group {}", group);
+                        groups.leave(&mut swarm.behaviour_mut().gossipsub, &group);
+                    }
+                    Some(Command::SendGroupMessage(group, msg_id, content)) => {
+                        // No acks in a mesh: handed to the mesh counts as delivered
+                        let status = match groups.publish(&mut swarm.behaviour_mut().gossipsub, &group, msg_id, content) {
+                            PublishOutcome::Sent => outbound::MESSAGE_DELIVERED,
+                            PublishOutcome::Queued => outbound::MESSAGE_QUEUED,
+                            PublishOutcome::Failed => outbound::MESSAGE_FAILED,
+                        };
+                        batch.push_status(MessageStatus {
+                            peer: format!("{}{}", groups::GROUP_PREFIX, group),
+                            msg_id,
+                            status,
+                        });
                     }
                     Some(Command::GetInfo) => {
                         log::info!("My Peer ID: {}", swarm.local_peer_id());
@@ -164,17 +379,93 @@ pub async fn run_p2p_node(
                     }
                     None => {
                         log::info!("Command channel closed, shutting down P2P node");
+                        outbound.save_if_dirty();
+                        if let Ok(mut log) = sync_log.lock() {
+                            log.save_if_dirty();
+                        }
                         break;
                     }
                 }
             }
-            _ = renewal_timer.tick() => {
-                if let Some(addr) = &relay_addr {
-                    log::info!("⏰ Renewing relay reservation...");
-                    let circuit_addr = addr.clone().with(libp2p::multiaddr::Protocol::P2pCircuit);
-                    if let Err(e) = swarm.listen_on(circuit_addr) {
-                        log::error!("⚠️  Renewal failed: {:?}", e);
+            _ = batch.flush_at.as_mut(), if !batch.is_empty() => {
+                batch.flush();
+            }
+            Some(event) = transfer_events.recv() => match event {
+                TransferEvent::Progress { peer, id, incoming, bytes, total } => {
+                    crate::notify_transfer_progress(&peer.to_string(), id, incoming, bytes, total);
+                }
+                TransferEvent::Received { peer, name, path, size, .. } => {
+                    crate::notify_file_received(&peer.to_string(), &name, &path.to_string_lossy(), size);
+                }
+                TransferEvent::Sent { peer, id } => {
+                    log::info!("📎 Transfer {} to {} complete", id, peer);
+                    transfers.on_sent(id);
+                    batch.push_status(MessageStatus {
+                        peer: peer.to_string(),
+                        msg_id: id,
+                        status: outbound::MESSAGE_DELIVERED,
+                    });
+                }
+                TransferEvent::SendFailed { peer, id, error } => {
+                    log::warn!("📎 Transfer {} to {} failed: {:?}", id, peer, error);
+                    // Waiting transfers resume from the receiver's offset on the next connection
+                    let status = match transfers.on_send_failed(id, &error) {
+                        SendOutcome::Waiting => outbound::MESSAGE_QUEUED,
+                        SendOutcome::Failed => outbound::MESSAGE_FAILED,
+                    };
+                    batch.push_status(MessageStatus {
+                        peer: peer.to_string(),
+                        msg_id: id,
+                        status,
+                    });
+                }
+            },
+            Some(event) = sync_events.recv() => match event {
+                SyncEvent::Accepted { peer } => history.on_accepted(peer),
+                SyncEvent::Done { peer, received, recovered, sent } => {
+                    history.on_finished(&peer);
+                    if !received.is_empty() || !recovered.is_empty() || sent > 0 {
+                        log::info!(
+                            "🔄 History sync with {}: {} received, {} own recovered, {} sent",
+                            peer, received.len(), recovered.len(), sent
+                        );
                     }
+                    // Backdated messages, not new ones: they skip the inbox (no notification,
+                    // no contact preview) and go to Java's history upcall, own ones included
+                    let recovered_history: Vec<HistoryMessage> = received
+                        .into_iter()
+                        .map(|message| (message, false))
+                        .chain(recovered.into_iter().map(|message| (message, true)))
+                        .map(|((timestamp, content), sent_by_me)| HistoryMessage {
+                            content,
+                            timestamp: timestamp as i64,
+                            sent_by_me,
+                        })
+                        .collect();
+                    crate::notify_history_recovered(&peer.to_string(), &recovered_history);
+                }
+                SyncEvent::Failed { peer, error } => {
+                    history.on_finished(&peer);
+                    log::warn!("History sync with {} failed: {:?}", peer, error);
+                }
+            },
+            _ = retry_timer.tick() => {
+                outbound.pump_all(&mut swarm.behaviour_mut().chat);
+            }
+            _ = redial_timer.tick() => {
+                for (peer, state) in connections.tick(&mut swarm) {
+                    crate::notify_connection_state(&peer.to_string(), state);
+                }
+                // Closes the relay probe window and retries relays that failed earlier
+                relays.tick(&mut swarm);
+                history.tick();
+            }
+            _ = outbox_save_timer.tick() => {
+                outbound.save_if_dirty();
+            }
+            _ = sync_save_timer.tick() => {
+                if let Ok(mut log) = sync_log.lock() {
+                    log.save_if_dirty();
                 }
             }
             event = swarm.select_next_some() => {
@@ -182,47 +473,210 @@ pub async fn run_p2p_node(
                     SwarmEvent::NewListenAddr { address, .. } => {
                         log::info!("Listening on {}", address);
                         // Store listen addresses globally
+                        let addr_str = address.to_string();
+                        let mut added = true;
                         if let Some(addrs_mutex) = crate::LISTEN_ADDRESSES.get() {
                             if let Ok(mut addrs) = addrs_mutex.lock() {
-                                let addr_str = address.to_string();
-                                if !addrs.contains(&addr_str) {
-                                    addrs.push(addr_str);
+                                if addrs.contains(&addr_str) {
+                                    added = false;
+                                } else {
+                                    addrs.push(addr_str.clone());
                                 }
                             }
                         } else {
-                            let mut addrs = vec![address.to_string()];
+                            let addrs = vec![addr_str.clone()];
                             crate::LISTEN_ADDRESSES.set(Mutex::new(addrs)).ok();
                         }
+                        // Java only hears about changes
+                        if added {
+                            crate::notify_node_status(listen_status(&address, true), &addr_str);
+                        }
+                    }
+                    SwarmEvent::ExpiredListenAddr { address, .. } => {
+                        log::info!("Listen address expired: {}", address);
+                        let addr_str = address.to_string();
+                        if let Some(addrs_mutex) = crate::LISTEN_ADDRESSES.get() {
+                            if let Ok(mut addrs) = addrs_mutex.lock() {
+                                addrs.retain(|a| a != &addr_str);
+                            }
+                        }
+                        crate::notify_node_status(listen_status(&address, false), &addr_str);
                     }
-                    SwarmEvent::ConnectionEstablished { endpoint, .. } => {
-                        if endpoint.is_dialer() {
-                            let addr = endpoint.get_remote_address();
-                            if addr.to_string().contains("QmaCpDMGvV2BGHeYERUEnRQAwe3N8SzbUtfsmvsqQLuvuJ") {
-                                relay_addr = Some(addr.clone());
-                                let relay_reserve_addr = addr.clone().with(libp2p::multiaddr::Protocol::P2pCircuit);
-                                log::info!("🔗 Requesting relay reservation on: {}", relay_reserve_addr);
-                                swarm.listen_on(relay_reserve_addr).ok();
+                    SwarmEvent::ListenerClosed { listener_id, addresses, reason } => {
+                        log::info!("Listener closed: {:?} ({:?})", addresses, reason);
+                        if let Some(addrs_mutex) = crate::LISTEN_ADDRESSES.get() {
+                            if let Ok(mut addrs) = addrs_mutex.lock() {
+                                addrs.retain(|a| !addresses.iter().any(|closed| closed.to_string() == *a));
                             }
                         }
+                        for address in &addresses {
+                            crate::notify_node_status(listen_status(address, false), &address.to_string());
+                        }
+                        // A lost relay reservation moves to the next relay
+                        relays.on_listener_closed(&mut swarm, listener_id);
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Mdns(mdns::Event::Discovered(list))) => {
+                        for (peer_id, addr) in list {
+                            log::info!("mDNS discovered {} at {}", peer_id, addr);
+                            swarm.add_peer_address(peer_id, addr.clone());
+                            if let Some(state) = connections.on_local_discovered(&mut swarm, peer_id, addr) {
+                                crate::notify_connection_state(&peer_id.to_string(), state);
+                            }
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Mdns(mdns::Event::Expired(list))) => {
+                        for (peer_id, addr) in list {
+                            log::info!("mDNS expired {} at {}", peer_id, addr);
+                            connections.on_local_expired(&peer_id, &addr);
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Ping(ping::Event {
+                        peer,
+                        result: Ok(rtt),
+                        ..
+                    })) => {
+                        // Latest round trip, readable from Java via getPeerRttMillis
+                        crate::record_peer_rtt(&peer.to_string(), rtt.as_millis() as i64);
+                        relays.on_rtt(&mut swarm, &peer, rtt);
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::RelayClient(
+                        relay::client::Event::ReservationReqAccepted { relay_peer_id, renewal, .. },
+                    )) => {
+                        // Renewals are sent by the relay client before the reservation expires
+                        log::info!("Relay reservation accepted by {} (renewal: {})", relay_peer_id, renewal);
+                        relays.on_reservation_accepted(&relay_peer_id, renewal);
+                        if !renewal {
+                            crate::notify_node_status(STATUS_RELAY_RESERVED, &relay_peer_id.to_string());
+                        }
+                    }
+                    SwarmEvent::Dialing { .. } => {
+                        METRICS.increment(metrics::STAT_DIAL_ATTEMPTS);
+                    }
+                    SwarmEvent::ConnectionEstablished { peer_id, connection_id, endpoint, .. } => {
+                        METRICS.record_connection(&endpoint);
+                        if let Some(state) = connections.on_established(&mut swarm, peer_id, connection_id, &endpoint) {
+                            crate::notify_connection_state(&peer_id.to_string(), state);
+                        }
+                        // Anything waiting in the outbox for this peer goes out now
+                        outbound.on_connected(peer_id, &mut swarm.behaviour_mut().chat);
+                        transfers.on_connected(&peer_id);
+                        relays.on_connected(&mut swarm, &peer_id);
+                        history.on_connected(peer_id);
+                    }
+                    SwarmEvent::ConnectionClosed { peer_id, connection_id, num_established, cause, .. } => {
+                        if num_established == 0 {
+                            outbound.on_disconnected(&peer_id);
+                            relays.on_disconnected(&peer_id);
+                            history.on_disconnected(&peer_id);
+                        }
+                        if let Some(state) = connections.on_closed(peer_id, connection_id, cause.is_none()) {
+                            crate::notify_connection_state(&peer_id.to_string(), state);
+                        }
+                    }
+                    SwarmEvent::OutgoingConnectionError { peer_id: Some(peer_id), error, .. } => {
+                        log::warn!("Dial to {} failed: {}", peer_id, error);
+                        if let Some(state) = connections.on_dial_failed(peer_id) {
+                            crate::notify_connection_state(&peer_id.to_string(), state);
+                        }
+                        relays.on_dial_failed(&mut swarm, &peer_id);
                     }
                     SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Chat(
                         request_response::Event::Message { peer, message },
                     )) => match message {
                         request_response::Message::Request { request, channel, .. } => {
-                            log::info!("\n📨 [{}]: {}", peer, request.content);
+                            // Content only at debug level; formatting it per message is not free
+                            log::debug!("📨 [{}]: {}", peer, request.content);
+                            METRICS.increment(metrics::STAT_MESSAGES_IN);
+                            METRICS.add(metrics::STAT_BYTES_IN, request.content.len() as i64);
 
-                            // Call Java callback
-                            crate::notify_message_received(peer.to_string(), request.content.clone());
+                            // Already here if a history sync brought it first; acked, not shown twice
+                            let fresh = sync_log
+                                .lock()
+                                .map(|mut log| log.record(peer, false, request.timestamp, &request.content))
+                                .unwrap_or(true);
+                            if fresh {
+                                // Queue for the batched Java callback
+                                batch.push_message(InboundMessage {
+                                    sender: peer.to_string(),
+                                    content: request.content.clone(),
+                                    timestamp: now_millis(),
+                                    group: None,
+                                });
+                            }
 
-                            let response = chat::ChatMessage {
-                                from: swarm.local_peer_id().to_string(),
-                                content: "✓".to_string(),
-                                timestamp: 0,
-                            };
+                            let response = chat::ChatMessage::ack();
                             swarm.behaviour_mut().chat.send_response(channel, response).ok();
                         }
-                        _ => {}
+                        request_response::Message::Response { request_id, .. } => {
+                            if let Some(Outcome::Delivered(peer, msg_id)) = outbound.on_response(request_id) {
+                                batch.push_status(MessageStatus {
+                                    peer: peer.to_string(),
+                                    msg_id,
+                                    status: outbound::MESSAGE_DELIVERED,
+                                });
+                                // A slot is free, send the next queued message
+                                outbound.pump(&peer, &mut swarm.behaviour_mut().chat);
+                            }
+                        }
                     },
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Gossipsub(
+                        gossipsub::Event::Message { message, .. },
+                    )) => {
+                        if let Some(msg) = groups.on_message(message) {
+                            log::debug!("📨 [{}] {}: {}", msg.group, msg.sender, msg.content);
+                            batch.push_message(InboundMessage {
+                                sender: msg.sender.to_string(),
+                                content: msg.content,
+                                timestamp: now_millis(),
+                                group: Some(msg.group),
+                            });
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Gossipsub(
+                        gossipsub::Event::Subscribed { topic, .. },
+                    )) => {
+                        // A member showed up: messages that found nobody go out now
+                        for (group, msg_id, outcome) in groups.on_subscribed(&mut swarm.behaviour_mut().gossipsub, &topic) {
+                            let status = match outcome {
+                                PublishOutcome::Sent => outbound::MESSAGE_DELIVERED,
+                                _ => outbound::MESSAGE_FAILED,
+                            };
+                            batch.push_status(MessageStatus {
+                                peer: format!("{}{}", groups::GROUP_PREFIX, group),
+                                msg_id,
+                                status,
+                            });
+                        }
+                    }
+                    SwarmEvent::Behaviour(behaviour::AppBehaviourEvent::Chat(
+                        request_response::Event::OutboundFailure { peer, request_id, error, .. },
+                    )) => {
+                        let permanent = matches!(error, request_response::OutboundFailure::UnsupportedProtocols);
+                        let (msg_id, status) = match outbound.on_failure(request_id, permanent) {
+                            Some(Outcome::Retrying(_, msg_id)) => {
+                                log::warn!("Send of message {} to {} failed ({:?}), will retry", msg_id, peer, error);
+                                (msg_id, None)
+                            }
+                            Some(Outcome::Queued(_, msg_id)) => {
+                                log::warn!("Message {} to {} kept in outbox until it reconnects: {:?}", msg_id, peer, error);
+                                (msg_id, Some(outbound::MESSAGE_QUEUED))
+                            }
+                            Some(Outcome::Failed(_, msg_id)) => {
+                                log::error!("Giving up on message {} to {}: {:?}", msg_id, peer, error);
+                                (msg_id, Some(outbound::MESSAGE_FAILED))
+                            }
+                            _ => (0, None),
+                        };
+                        if let Some(status) = status {
+                            batch.push_status(MessageStatus {
+                                peer: peer.to_string(),
+                                msg_id,
+                                status,
+                            });
+                            // The failed request's slot goes to the next one
+                            outbound.pump(&peer, &mut swarm.behaviour_mut().chat);
+                        }
+                    }
                     _ => {}
                 }
             }
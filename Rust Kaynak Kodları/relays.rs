@@ -0,0 +1,644 @@
+use crate::connection::{self, Dialer};
+use libp2p::{
+    core::transport::{ListenerId, TransportError},
+    multiaddr::Protocol,
+    swarm::{
+        dial_opts::{DialOpts, PeerCondition},
+        NetworkBehaviour,
+    },
+    Multiaddr, PeerId, Swarm,
+};
+use std::io;
+use std::sync::atomic::{AtomicI64, Ordering};
+use std::time::{Duration, Instant};
+
+/// Used when no relay list is configured
+pub const DEFAULT_RELAYS: &[&str] = &[
+    "/ip4/104.131.131.82/udp/4001/quic-v1/p2p/QmaCpDMGvV2BGHeYERUEnRQAwe3N8SzbUtfsmvsqQLuvuJ",
+];
+
+// Reservations held at the same time, on the lowest-RTT relays
+pub const MAX_RESERVATIONS: usize = 2;
+// Relays that haven't answered a ping by then are ranked after the ones that have
+const PROBE_WINDOW: Duration = Duration::from_secs(3);
+// A relay that refused/dropped a reservation or was unreachable is retried after this
+const RELAY_RETRY_DELAY: Duration = Duration::from_secs(30);
+
+// Indices of RelayHealth::snapshot (NativeLib.RELAY_HEALTH_*)
+pub const HEALTH_CONFIGURED: usize = 0;
+pub const HEALTH_CONNECTED: usize = 1;
+pub const HEALTH_ACTIVE: usize = 2;
+pub const HEALTH_ACCEPTED: usize = 3;
+pub const HEALTH_RENEWALS: usize = 4;
+pub const HEALTH_FAILURES: usize = 5;
+const HEALTH_LEN: usize = 6;
+
+/// Reservation counters, readable from any thread without a round trip to the node
+pub struct RelayHealth {
+    values: [AtomicI64; HEALTH_LEN],
+}
+
+impl RelayHealth {
+    const fn new() -> Self {
+        Self {
+            values: [
+                AtomicI64::new(0),
+                AtomicI64::new(0),
+                AtomicI64::new(0),
+                AtomicI64::new(0),
+                AtomicI64::new(0),
+                AtomicI64::new(0),
+            ],
+        }
+    }
+
+    pub fn snapshot(&self) -> [i64; HEALTH_LEN] {
+        let mut out = [0; HEALTH_LEN];
+        for (i, value) in self.values.iter().enumerate() {
+            out[i] = value.load(Ordering::Relaxed);
+        }
+        out
+    }
+
+    fn set(&self, index: usize, value: i64) {
+        self.values[index].store(value, Ordering::Relaxed);
+    }
+
+    fn increment(&self, index: usize) {
+        self.values[index].fetch_add(1, Ordering::Relaxed);
+    }
+}
+
+pub static HEALTH: RelayHealth = RelayHealth::new();
+
+/// What RelaySet needs from the swarm: dialing relays and listening on circuits
+pub trait CircuitListener: Dialer {
+    fn listen_on(&mut self, addr: Multiaddr) -> Result<ListenerId, TransportError<io::Error>>;
+}
+
+impl<B: NetworkBehaviour> CircuitListener for Swarm<B> {
+    fn listen_on(&mut self, addr: Multiaddr) -> Result<ListenerId, TransportError<io::Error>> {
+        Swarm::listen_on(self, addr)
+    }
+}
+
+struct Relay {
+    peer: PeerId,
+    addr: Multiaddr,
+    connected: bool,
+    failed: bool,
+    rtt: Option<Duration>,
+    // Circuit listener on this relay, if a reservation was requested
+    listener: Option<ListenerId>,
+    // The relay accepted the reservation (the relay client renews it before expiry)
+    reserved: bool,
+    // Set after a failure; the relay is skipped until then
+    retry_at: Option<Instant>,
+}
+
+/// Relay info for display
+pub struct RelayInfo {
+    pub addr: Multiaddr,
+    pub connected: bool,
+    pub rtt: Option<Duration>,
+    pub reserved: bool,
+}
+
+/// The configured relays and the reservations held on them.
+///
+/// Every relay is dialed at start and probed with ping. Once all of them
+/// answered or failed (or PROBE_WINDOW passed), reservations are requested
+/// on the `max_reservations` relays with the lowest RTT, so the node is
+/// reachable through several circuit addresses at once.
+///
+/// Renewal is left to the relay client, which renews each reservation
+/// ahead of the expiry the relay returned. When a reservation is refused
+/// or lost, its listener closes and the next best relay takes its place;
+/// the failed relay is retried after RELAY_RETRY_DELAY.
+pub struct RelaySet {
+    relays: Vec<Relay>,
+    max_reservations: usize,
+    // Set by start, cleared by tick once the probe window is over
+    probe_deadline: Option<Instant>,
+}
+
+impl RelaySet {
+    /// `addrs` must end in `/p2p/<relay peer id>`; other entries are skipped
+    pub fn new(addrs: Vec<Multiaddr>, max_reservations: usize) -> Self {
+        let mut relays: Vec<Relay> = Vec::with_capacity(addrs.len());
+        for addr in addrs {
+            let Some(peer) = connection::peer_of(&addr) else {
+                log::warn!("Relay address without /p2p peer ID skipped: {}", addr);
+                continue;
+            };
+            if relays.iter().any(|r| r.peer == peer) {
+                continue;
+            }
+            relays.push(Relay {
+                peer,
+                addr,
+                connected: false,
+                failed: false,
+                rtt: None,
+                listener: None,
+                reserved: false,
+                retry_at: None,
+            });
+        }
+        let set = Self {
+            relays,
+            max_reservations,
+            probe_deadline: None,
+        };
+        set.publish();
+        set
+    }
+
+    /// Parses a configured list, falling back to DEFAULT_RELAYS when nothing valid is given
+    pub fn parse_or_default(list: &[String]) -> Vec<Multiaddr> {
+        let parsed: Vec<Multiaddr> = list
+            .iter()
+            .map(|s| s.trim())
+            .filter(|s| !s.is_empty())
+            .filter_map(|s| match s.parse() {
+                Ok(addr) => Some(addr),
+                Err(e) => {
+                    log::warn!("Invalid relay address {}: {:?}", s, e);
+                    None
+                }
+            })
+            .collect();
+        if !parsed.is_empty() {
+            return parsed;
+        }
+        DEFAULT_RELAYS.iter().filter_map(|s| s.parse().ok()).collect()
+    }
+
+    pub fn len(&self) -> usize {
+        self.relays.len()
+    }
+
+    /// Dials every relay; the first pings measure their RTT
+    pub fn start(&mut self, swarm: &mut impl CircuitListener) {
+        self.probe_deadline = Some(Instant::now() + PROBE_WINDOW);
+        for relay in &mut self.relays {
+            dial_relay(swarm, relay);
+        }
+    }
+
+    pub fn on_connected(&mut self, swarm: &mut impl CircuitListener, peer: &PeerId) {
+        if let Some(relay) = self.relays.iter_mut().find(|r| r.peer == *peer) {
+            relay.connected = true;
+            relay.failed = false;
+            self.reserve(swarm);
+            self.publish();
+        }
+    }
+
+    pub fn on_disconnected(&mut self, peer: &PeerId) {
+        if let Some(relay) = self.relays.iter_mut().find(|r| r.peer == *peer) {
+            relay.connected = false;
+            // The circuit listener closes with the connection (see on_listener_closed)
+            if relay.retry_at.is_none() {
+                relay.retry_at = Some(Instant::now() + RELAY_RETRY_DELAY);
+            }
+            self.publish();
+        }
+    }
+
+    pub fn on_dial_failed(&mut self, swarm: &mut impl CircuitListener, peer: &PeerId) {
+        if let Some(relay) = self.relays.iter_mut().find(|r| r.peer == *peer) {
+            log::warn!("Relay {} unreachable", relay.addr);
+            relay.failed = true;
+            relay.retry_at = Some(Instant::now() + RELAY_RETRY_DELAY);
+            self.reserve(swarm);
+        }
+    }
+
+    /// ReservationReqAccepted from the relay client; `renewal` is false for the first one
+    pub fn on_reservation_accepted(&mut self, peer: &PeerId, renewal: bool) {
+        if let Some(relay) = self.relays.iter_mut().find(|r| r.peer == *peer) {
+            relay.reserved = true;
+            relay.retry_at = None;
+        }
+        HEALTH.increment(if renewal { HEALTH_RENEWALS } else { HEALTH_ACCEPTED });
+        self.publish();
+    }
+
+    /// A circuit listener closed: the reservation was refused, could not be
+    /// renewed or the relay connection dropped. Falls back to the next best
+    /// relay. Returns false if the listener was not one of ours.
+    pub fn on_listener_closed(&mut self, swarm: &mut impl CircuitListener, listener_id: ListenerId) -> bool {
+        let Some(relay) = self.relays.iter_mut().find(|r| r.listener == Some(listener_id)) else {
+            return false;
+        };
+        log::warn!("Relay reservation on {} ended, falling back", relay.addr);
+        relay.listener = None;
+        relay.reserved = false;
+        relay.retry_at = Some(Instant::now() + RELAY_RETRY_DELAY);
+        HEALTH.increment(HEALTH_FAILURES);
+
+        self.reserve(swarm);
+        self.publish();
+        true
+    }
+
+    pub fn on_rtt(&mut self, swarm: &mut impl CircuitListener, peer: &PeerId, rtt: Duration) {
+        if let Some(relay) = self.relays.iter_mut().find(|r| r.peer == *peer) {
+            relay.rtt = Some(rtt);
+            self.reserve(swarm);
+        }
+    }
+
+    /// Called periodically: ends the probe window if some relay never
+    /// answered and brings failed relays back once their retry delay passed
+    pub fn tick(&mut self, swarm: &mut impl CircuitListener) {
+        let now = Instant::now();
+        let window_ended = self.probe_deadline.map_or(false, |t| now >= t);
+        if window_ended {
+            self.probe_deadline = None;
+        }
+        let mut retried = false;
+        for relay in &mut self.relays {
+            if relay.retry_at.map_or(false, |t| t <= now) {
+                relay.retry_at = None;
+                retried = true;
+                if !relay.connected {
+                    dial_relay(swarm, relay);
+                }
+            }
+        }
+        if retried || window_ended {
+            self.reserve(swarm);
+        }
+    }
+
+    pub fn snapshot(&self) -> Vec<RelayInfo> {
+        self.relays
+            .iter()
+            .map(|r| RelayInfo {
+                addr: r.addr.clone(),
+                connected: r.connected,
+                rtt: r.rtt,
+                reserved: r.reserved,
+            })
+            .collect()
+    }
+
+    // Requests reservations on the best connected relays until max_reservations are held
+    fn reserve(&mut self, swarm: &mut impl CircuitListener) {
+        let probing = self.relays.iter().any(|r| !r.failed && r.rtt.is_none());
+        let window_open = self.probe_deadline.map_or(false, |t| Instant::now() < t);
+        if probing && window_open {
+            return;
+        }
+
+        let held = self.relays.iter().filter(|r| r.listener.is_some()).count();
+        if held >= self.max_reservations {
+            return;
+        }
+
+        let mut candidates: Vec<usize> = (0..self.relays.len())
+            .filter(|&i| {
+                let r = &self.relays[i];
+                r.connected && !r.failed && r.listener.is_none() && r.retry_at.is_none()
+            })
+            .collect();
+        // Unmeasured relays go last
+        candidates.sort_by_key(|&i| self.relays[i].rtt.unwrap_or(Duration::MAX));
+
+        for i in candidates.into_iter().take(self.max_reservations - held) {
+            let relay = &mut self.relays[i];
+            let circuit = relay.addr.clone().with(Protocol::P2pCircuit);
+            log::info!(
+                "🔗 Requesting relay reservation on {} (rtt {:?})",
+                circuit,
+                relay.rtt
+            );
+            match swarm.listen_on(circuit) {
+                Ok(id) => relay.listener = Some(id),
+                Err(e) => {
+                    log::error!("Failed to listen on relay {}: {:?}", relay.addr, e);
+                    relay.retry_at = Some(Instant::now() + RELAY_RETRY_DELAY);
+                    HEALTH.increment(HEALTH_FAILURES);
+                }
+            }
+        }
+    }
+
+    // Gauges for NativeLib.getRelayHealth; counters are bumped where they happen
+    fn publish(&self) {
+        HEALTH.set(HEALTH_CONFIGURED, self.relays.len() as i64);
+        HEALTH.set(HEALTH_CONNECTED, self.relays.iter().filter(|r| r.connected).count() as i64);
+        HEALTH.set(HEALTH_ACTIVE, self.relays.iter().filter(|r| r.reserved).count() as i64);
+    }
+}
+
+fn dial_relay(swarm: &mut impl Dialer, relay: &mut Relay) {
+    let opts = DialOpts::peer_id(relay.peer)
+        .addresses(vec![relay.addr.clone()])
+        .condition(PeerCondition::DisconnectedAndNotDialing)
+        .build();
+    log::info!("Dialing relay: {}", relay.addr);
+    if let Err(e) = swarm.dial(opts) {
+        log::warn!("Failed to dial relay {}: {:?}", relay.addr, e);
+        relay.failed = true;
+        relay.retry_at = Some(Instant::now() + RELAY_RETRY_DELAY);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::testnet::{Node, NodeEvent};
+    use libp2p::swarm::{ConnectionId, DialError, SwarmEvent};
+    use libp2p::{ping, relay};
+
+    // Records dials and circuit listens instead of touching the network
+    #[derive(Default)]
+    struct Recorder {
+        dials: Vec<PeerId>,
+        // Relay of every circuit listen that was requested, accepted or not
+        listens: Vec<(PeerId, ListenerId)>,
+        refuse_listen: bool,
+    }
+
+    impl Dialer for Recorder {
+        fn dial(&mut self, opts: DialOpts) -> Result<(), DialError> {
+            self.dials.push(opts.get_peer_id().expect("relays are dialed by peer"));
+            Ok(())
+        }
+
+        fn close_connection(&mut self, _: ConnectionId) -> bool {
+            true
+        }
+    }
+
+    impl CircuitListener for Recorder {
+        fn listen_on(&mut self, addr: Multiaddr) -> Result<ListenerId, TransportError<io::Error>> {
+            assert_eq!(addr.iter().last(), Some(Protocol::P2pCircuit));
+            let mut relay = addr.clone();
+            relay.pop();
+            let id = ListenerId::next();
+            self.listens.push((connection::peer_of(&relay).unwrap(), id));
+            if self.refuse_listen {
+                return Err(TransportError::MultiaddrNotSupported(addr));
+            }
+            Ok(id)
+        }
+    }
+
+    impl Recorder {
+        fn listened(&self) -> Vec<PeerId> {
+            self.listens.iter().map(|(peer, _)| *peer).collect()
+        }
+
+        fn listener_of(&self, peer: PeerId) -> ListenerId {
+            self.listens.iter().rev().find(|(p, _)| *p == peer).unwrap().1
+        }
+    }
+
+    fn relay_addrs(n: usize) -> (Vec<Multiaddr>, Vec<PeerId>) {
+        let peers: Vec<PeerId> = (0..n).map(|_| PeerId::random()).collect();
+        let addrs = peers
+            .iter()
+            .enumerate()
+            .map(|(i, peer)| format!("/ip4/10.0.0.{}/tcp/4001/p2p/{}", i + 1, peer).parse().unwrap())
+            .collect();
+        (addrs, peers)
+    }
+
+    // A started set whose relays all connected and answered a ping, fastest first
+    fn measured(n: usize, max_reservations: usize) -> (RelaySet, Vec<PeerId>, Recorder) {
+        let (addrs, peers) = relay_addrs(n);
+        let mut set = RelaySet::new(addrs, max_reservations);
+        let mut swarm = Recorder::default();
+        set.start(&mut swarm);
+        for (i, peer) in peers.iter().enumerate() {
+            set.on_connected(&mut swarm, peer);
+            set.on_rtt(&mut swarm, peer, Duration::from_millis(10 * (i as u64 + 1)));
+        }
+        (set, peers, swarm)
+    }
+
+    fn reserved(set: &RelaySet) -> Vec<bool> {
+        set.snapshot().iter().map(|r| r.reserved).collect()
+    }
+
+    // Lets every pending retry fire on the next tick
+    fn expire_retries(set: &mut RelaySet) {
+        for relay in &mut set.relays {
+            if relay.retry_at.is_some() {
+                relay.retry_at = Some(Instant::now());
+            }
+        }
+    }
+
+    #[test]
+    fn accepted_and_renewed_reservations_stay_active() {
+        let (mut set, peers, swarm) = measured(2, 2);
+        assert_eq!(swarm.listened(), peers);
+        assert_eq!(reserved(&set), vec![false, false]);
+
+        set.on_reservation_accepted(&peers[0], false);
+        assert_eq!(reserved(&set), vec![true, false]);
+        set.on_reservation_accepted(&peers[0], true);
+        set.on_reservation_accepted(&peers[1], false);
+        assert_eq!(reserved(&set), vec![true, true]);
+        // An acceptance from a relay that isn't configured changes nothing
+        set.on_reservation_accepted(&PeerId::random(), false);
+        assert_eq!(reserved(&set), vec![true, true]);
+    }
+
+    #[test]
+    fn closed_listener_falls_back_to_the_next_best_relay() {
+        let (mut set, peers, mut swarm) = measured(3, 2);
+        assert_eq!(swarm.listened(), vec![peers[0], peers[1]]);
+        set.on_reservation_accepted(&peers[0], false);
+        set.on_reservation_accepted(&peers[1], false);
+
+        // Relay 0 drops the reservation: relay 2 takes its place
+        let listener = swarm.listener_of(peers[0]);
+        assert!(set.on_listener_closed(&mut swarm, listener));
+        assert_eq!(swarm.listened(), vec![peers[0], peers[1], peers[2]]);
+        assert_eq!(reserved(&set), vec![false, true, false]);
+        assert!(!set.on_listener_closed(&mut swarm, ListenerId::next()));
+
+        // Relay 0 is eligible again after the delay, but two are already held
+        expire_retries(&mut set);
+        set.tick(&mut swarm);
+        assert_eq!(swarm.listens.len(), 3);
+
+        // Until another one ends
+        let listener = swarm.listener_of(peers[2]);
+        assert!(set.on_listener_closed(&mut swarm, listener));
+        assert_eq!(swarm.listened(), vec![peers[0], peers[1], peers[2], peers[0]]);
+    }
+
+    #[test]
+    fn refused_listen_waits_for_the_retry_delay() {
+        let (addrs, peers) = relay_addrs(1);
+        let mut set = RelaySet::new(addrs, 2);
+        let mut swarm = Recorder {
+            refuse_listen: true,
+            ..Recorder::default()
+        };
+        set.start(&mut swarm);
+        set.on_connected(&mut swarm, &peers[0]);
+        set.on_rtt(&mut swarm, &peers[0], Duration::from_millis(10));
+        assert_eq!(swarm.listens.len(), 1);
+
+        // Ticks before the delay don't ask again
+        for _ in 0..5 {
+            set.tick(&mut swarm);
+        }
+        assert_eq!(swarm.listens.len(), 1);
+
+        swarm.refuse_listen = false;
+        expire_retries(&mut set);
+        set.tick(&mut swarm);
+        assert_eq!(swarm.listened(), vec![peers[0], peers[0]]);
+        // Connected already: the retry doesn't dial again
+        assert_eq!(swarm.dials, peers);
+    }
+
+    #[test]
+    fn probe_window_ends_once() {
+        let (addrs, peers) = relay_addrs(2);
+        let mut set = RelaySet::new(addrs, 2);
+        let mut swarm = Recorder::default();
+        set.start(&mut swarm);
+        set.on_connected(&mut swarm, &peers[0]);
+        set.on_connected(&mut swarm, &peers[1]);
+        set.on_rtt(&mut swarm, &peers[1], Duration::from_millis(10));
+        // Relay 0 hasn't answered yet and the window is open: nothing reserved
+        set.tick(&mut swarm);
+        assert!(swarm.listens.is_empty());
+
+        set.probe_deadline = Some(Instant::now());
+        set.tick(&mut swarm);
+        assert!(set.probe_deadline.is_none());
+        assert_eq!(swarm.listened(), vec![peers[1], peers[0]]);
+    }
+
+    #[test]
+    fn lowest_rtt_relays_get_the_reservations() {
+        let (addrs, peers) = relay_addrs(4);
+        let mut set = RelaySet::new(addrs, MAX_RESERVATIONS);
+        let mut swarm = Recorder::default();
+        set.start(&mut swarm);
+        for (peer, rtt) in peers.iter().zip([40, 10, 30, 20]) {
+            set.on_connected(&mut swarm, peer);
+            set.on_rtt(&mut swarm, peer, Duration::from_millis(rtt));
+        }
+        assert_eq!(swarm.listened(), vec![peers[1], peers[3]]);
+
+        // Later, faster RTTs don't move reservations that are already held
+        set.on_rtt(&mut swarm, &peers[0], Duration::from_millis(1));
+        assert_eq!(swarm.listens.len(), MAX_RESERVATIONS);
+    }
+
+    #[test]
+    fn unmeasured_relays_go_last_once_the_window_closed() {
+        let (addrs, peers) = relay_addrs(3);
+        let mut set = RelaySet::new(addrs, 2);
+        let mut swarm = Recorder::default();
+        set.start(&mut swarm);
+        for peer in &peers {
+            set.on_connected(&mut swarm, peer);
+        }
+        set.on_rtt(&mut swarm, &peers[2], Duration::from_millis(50));
+        assert!(swarm.listens.is_empty());
+
+        set.probe_deadline = Some(Instant::now());
+        set.tick(&mut swarm);
+        assert_eq!(swarm.listened(), vec![peers[2], peers[0]]);
+    }
+
+    #[test]
+    fn unreachable_relays_dont_hold_the_window_open() {
+        let (addrs, peers) = relay_addrs(2);
+        let mut set = RelaySet::new(addrs, 2);
+        let mut swarm = Recorder::default();
+        set.start(&mut swarm);
+        set.on_dial_failed(&mut swarm, &peers[0]);
+        set.on_connected(&mut swarm, &peers[1]);
+        set.on_rtt(&mut swarm, &peers[1], Duration::from_millis(10));
+        // No wait for the probe window: relay 0 is not coming
+        assert_eq!(swarm.listened(), vec![peers[1]]);
+
+        // After the delay it is dialed again, and reserved once it answers
+        expire_retries(&mut set);
+        set.tick(&mut swarm);
+        assert_eq!(swarm.dials, vec![peers[0], peers[1], peers[0]]);
+        set.on_connected(&mut swarm, &peers[0]);
+        set.on_rtt(&mut swarm, &peers[0], Duration::from_millis(20));
+        assert_eq!(swarm.listened(), vec![peers[1], peers[0]]);
+    }
+
+    // Feeds the events of the client (swarms[0]) to `set`, as the node loop does,
+    // until `done` holds
+    async fn drive(set: &mut RelaySet, swarms: &mut [Swarm<Node>], done: impl Fn(&RelaySet) -> bool) -> bool {
+        let deadline = Instant::now() + crate::testnet::TIMEOUT;
+        while !done(&*set) {
+            let mut next = None;
+            let left = deadline.saturating_duration_since(Instant::now());
+            let got = crate::testnet::run_until(swarms, left, |index, event| {
+                if index == 0 {
+                    next = Some(event);
+                }
+                next.is_some()
+            })
+            .await;
+            if !got {
+                return false;
+            }
+            let client = &mut swarms[0];
+            match next.unwrap() {
+                SwarmEvent::ConnectionEstablished { peer_id, .. } => set.on_connected(client, &peer_id),
+                SwarmEvent::ConnectionClosed {
+                    peer_id, num_established: 0, ..
+                } => set.on_disconnected(&peer_id),
+                SwarmEvent::OutgoingConnectionError { peer_id: Some(peer), .. } => set.on_dial_failed(client, &peer),
+                SwarmEvent::ListenerClosed { listener_id, .. } => {
+                    set.on_listener_closed(client, listener_id);
+                }
+                SwarmEvent::Behaviour(NodeEvent::Ping(ping::Event { peer, result: Ok(rtt), .. })) => {
+                    set.on_rtt(client, &peer, rtt)
+                }
+                SwarmEvent::Behaviour(NodeEvent::RelayClient(relay::client::Event::ReservationReqAccepted {
+                    relay_peer_id,
+                    renewal,
+                    ..
+                })) => set.on_reservation_accepted(&relay_peer_id, renewal),
+                _ => {}
+            }
+        }
+        true
+    }
+
+    // Two relay stand-ins on localhost, one reservation: the client reserves on
+    // one of them and moves to the other when that one drops it
+    #[tokio::test]
+    async fn local_relays_reserve_and_fall_back() {
+        let (relay_a, addr_a) = crate::testnet::relay().await;
+        let (relay_b, addr_b) = crate::testnet::relay().await;
+        let mut set = RelaySet::new(vec![addr_a, addr_b], 1);
+        let mut swarms = vec![crate::testnet::node(false), relay_a, relay_b];
+        let client = *swarms[0].local_peer_id();
+        set.start(&mut swarms[0]);
+
+        let reserved = drive(&mut set, &mut swarms, |set| set.snapshot().iter().any(|r| r.reserved)).await;
+        assert!(reserved, "no reservation on either relay");
+        let held = set.snapshot().iter().position(|r| r.reserved).unwrap();
+        assert!(set.snapshot().iter().all(|r| r.connected && r.rtt.is_some()));
+
+        // The relay holding the reservation closes the connection
+        swarms[1 + held].disconnect_peer_id(client).unwrap();
+        let other = 1 - held;
+        let moved = drive(&mut set, &mut swarms, |set| set.snapshot()[other].reserved).await;
+        assert!(moved, "reservation did not move to the other relay");
+        let snapshot = set.snapshot();
+        assert!(!snapshot[held].reserved && !snapshot[held].connected);
+    }
+}
@@ -0,0 +1,820 @@
+use crate::codec::{encode_varint, read_varint};
+use futures::{AsyncReadExt, AsyncWriteExt, StreamExt};
+use libp2p::{PeerId, Stream, StreamProtocol};
+use libp2p_stream::{Control, IncomingStreams};
+use serde::{Deserialize, Serialize};
+use std::collections::{BTreeMap, HashMap, HashSet};
+use std::fs;
+use std::io;
+use std::path::PathBuf;
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, Instant};
+use tokio::sync::mpsc;
+
+/// History reconciliation runs on its own stream, next to /chat/2.0.0
+pub const PROTOCOL: StreamProtocol = StreamProtocol::new("/umay/sync/1.0.0");
+
+// Messages remembered per conversation; older ones drop out of reconciliation
+const MAX_ITEMS_PER_PEER: usize = 2000;
+// Timestamps below this are seconds from older builds; such messages are not tracked
+const MIN_TRACKED_TIMESTAMP: u64 = 100_000_000_000;
+// A range with at most this many items is answered with its item keys
+const ITEM_LIST_THRESHOLD: usize = 16;
+// A mismatching range with more items is split into this many sub-ranges
+const BRANCH: usize = 8;
+// Missing messages are sent in frames of at most this many items / bytes
+const DATA_BATCH_ITEMS: usize = 128;
+const DATA_BATCH_BYTES: usize = 256 * 1024;
+const MAX_FRAME_SIZE: u64 = 4 * 1024 * 1024;
+// A session that has not converged after this many rounds is dropped
+const MAX_ROUNDS: usize = 32;
+// A conversation is reconciled at most this often
+const MIN_SYNC_INTERVAL: Duration = Duration::from_secs(60);
+// The peer with the higher ID waits this long for the other one to start
+const RESPONDER_GRACE: Duration = Duration::from_secs(5);
+
+/// Position of a message in a conversation: (sender timestamp in epoch millis, item key)
+type Bound = (u64, u64);
+const START: Bound = (0, 0);
+const END: Bound = (u64::MAX, u64::MAX);
+
+#[derive(Clone)]
+struct Entry {
+    from_me: bool,
+    content: String,
+}
+
+/// On-disk form of one remembered message
+#[derive(Serialize, Deserialize)]
+struct StoredItem {
+    peer: String,
+    timestamp: u64,
+    from_me: bool,
+    content: String,
+}
+
+/// Messages exchanged with each peer, as far as reconciliation is concerned.
+///
+/// A message is identified by a key hashed from its author, the sender's
+/// millisecond timestamp (carried by /chat/2.0.0) and its content, so both
+/// sides derive the same key without a new field on the wire. Only messages
+/// that actually crossed the wire are recorded: received requests, and sent
+/// ones once acked; undelivered sends are the outbox's job.
+pub struct SyncLog {
+    local: PeerId,
+    path: Option<PathBuf>,
+    dirty: bool,
+    peers: HashMap<PeerId, BTreeMap<Bound, Entry>>,
+}
+
+impl SyncLog {
+    /// Loads the log saved at `path`, if any
+    pub fn load(local: PeerId, path: PathBuf) -> Self {
+        let mut log = Self {
+            local,
+            path: None,
+            dirty: false,
+            peers: HashMap::new(),
+        };
+        if path.exists() {
+            let stored: Vec<StoredItem> = fs::read_to_string(&path)
+                .ok()
+                .and_then(|data| serde_json::from_str(&data).ok())
+                .unwrap_or_else(|| {
+                    log::error!("Failed to read sync log {:?}, starting empty", path);
+                    Vec::new()
+                });
+            for item in stored {
+                let Ok(peer) = item.peer.parse::<PeerId>() else { continue };
+                log.record(peer, item.from_me, item.timestamp, &item.content);
+            }
+            log.dirty = false;
+        }
+        log.path = Some(path);
+        log
+    }
+
+    /// Remembers a message of the conversation with `peer`.
+    /// Returns false if it was already known (a duplicate the caller should drop).
+    pub fn record(&mut self, peer: PeerId, from_me: bool, timestamp: u64, content: &str) -> bool {
+        if timestamp < MIN_TRACKED_TIMESTAMP {
+            return true;
+        }
+        let author = if from_me { self.local } else { peer };
+        let bound = (timestamp, item_key(&author, timestamp, content));
+        let items = self.peers.entry(peer).or_default();
+        if items.contains_key(&bound) {
+            return false;
+        }
+        items.insert(
+            bound,
+            Entry {
+                from_me,
+                content: content.to_string(),
+            },
+        );
+        while items.len() > MAX_ITEMS_PER_PEER {
+            items.pop_first();
+        }
+        self.dirty = true;
+        true
+    }
+
+    pub fn knows(&self, peer: &PeerId) -> bool {
+        self.peers.contains_key(peer)
+    }
+
+    // Copy of one conversation for a session, plus the oldest position it still covers
+    fn snapshot(&self, peer: &PeerId) -> (BTreeMap<Bound, Entry>, Bound) {
+        let items = self.peers.get(peer).cloned().unwrap_or_default();
+        let floor = if items.len() >= MAX_ITEMS_PER_PEER {
+            items.keys().next().copied().unwrap_or(START)
+        } else {
+            START
+        };
+        (items, floor)
+    }
+
+    /// Writes the log if it changed since the last save
+    pub fn save_if_dirty(&mut self) {
+        if !self.dirty {
+            return;
+        }
+        let Some(path) = self.path.clone() else { return };
+
+        let mut stored = Vec::new();
+        for (peer, items) in &self.peers {
+            for ((timestamp, _), entry) in items {
+                stored.push(StoredItem {
+                    peer: peer.to_string(),
+                    timestamp: *timestamp,
+                    from_me: entry.from_me,
+                    content: entry.content.clone(),
+                });
+            }
+        }
+
+        // Same temp file + rename as the outbox
+        let result = serde_json::to_string(&stored)
+            .map_err(anyhow::Error::from)
+            .and_then(|data| {
+                let tmp = path.with_extension("json.tmp");
+                fs::write(&tmp, data)?;
+                fs::rename(&tmp, &path)?;
+                Ok(())
+            });
+        match result {
+            Ok(()) => self.dirty = false,
+            Err(e) => log::error!("Failed to save sync log: {:?}", e),
+        }
+    }
+}
+
+/// Results of reconciliation sessions, handled on the node loop
+pub enum SyncEvent {
+    /// The peer opened a session to us
+    Accepted { peer: PeerId },
+    Done {
+        peer: PeerId,
+        /// Messages from the peer that were missing here: (timestamp millis, content)
+        received: Vec<(u64, String)>,
+        /// Own messages the peer had and we did not, same form (already recorded in the log)
+        recovered: Vec<(u64, String)>,
+        sent: usize,
+    },
+    Failed { peer: PeerId, error: io::Error },
+}
+
+/// Reconciles conversation history with peers after they reconnect.
+///
+/// Range-based set reconciliation over PROTOCOL: each side sorts the
+/// conversation by (timestamp, key) and the initiator sends a fingerprint
+/// (sum of item hashes and count) of the whole range. Matching ranges are
+/// done; a mismatching one is split into BRANCH sub-ranges with their own
+/// fingerprints, down to ranges small enough to send as key lists. Only
+/// the messages the other side lacks are then transferred, so traffic
+/// grows with the difference, not with the history.
+///
+/// Frames are a varint length followed by a JSON `Frame`. The first frame
+/// in each direction only carries the sender's floor (oldest remembered
+/// position when its log is full); both sides reconcile above the higher one.
+pub struct HistorySync {
+    local: PeerId,
+    control: Control,
+    log: Arc<Mutex<SyncLog>>,
+    events: mpsc::UnboundedSender<SyncEvent>,
+    running: HashSet<PeerId>,
+    last_sync: HashMap<PeerId, Instant>,
+    // Connected peers the higher-ID side will start a session for, if the other side does not
+    due: HashMap<PeerId, Instant>,
+}
+
+impl HistorySync {
+    /// Starts accepting sessions; events arrive on the returned receiver
+    pub fn new(
+        local: PeerId,
+        mut control: Control,
+        log: Arc<Mutex<SyncLog>>,
+    ) -> (Self, mpsc::UnboundedReceiver<SyncEvent>) {
+        let (events, events_rx) = mpsc::unbounded_channel();
+        match control.accept(PROTOCOL) {
+            Ok(incoming) => {
+                tokio::spawn(accept_sessions(incoming, log.clone(), events.clone()));
+            }
+            Err(e) => log::error!("Sync protocol already registered: {:?}", e),
+        }
+        let sync = Self {
+            local,
+            control,
+            log,
+            events,
+            running: HashSet::new(),
+            last_sync: HashMap::new(),
+            due: HashMap::new(),
+        };
+        (sync, events_rx)
+    }
+
+    /// New connection to `peer`: reconcile if we have talked before.
+    /// The lower peer ID starts right away; the other one only after a grace period.
+    pub fn on_connected(&mut self, peer: PeerId) {
+        let known = self.log.lock().map(|l| l.knows(&peer)).unwrap_or(false);
+        if !known || !self.is_stale(&peer) {
+            return;
+        }
+        if self.local.to_bytes() < peer.to_bytes() {
+            self.start(peer);
+        } else {
+            self.due.insert(peer, Instant::now() + RESPONDER_GRACE);
+        }
+    }
+
+    pub fn on_disconnected(&mut self, peer: &PeerId) {
+        self.due.remove(peer);
+    }
+
+    /// Starts the sessions whose grace period ran out
+    pub fn tick(&mut self) {
+        let now = Instant::now();
+        let ready: Vec<PeerId> = self
+            .due
+            .iter()
+            .filter(|(_, at)| **at <= now)
+            .map(|(peer, _)| *peer)
+            .collect();
+        for peer in ready {
+            self.due.remove(&peer);
+            if self.is_stale(&peer) {
+                self.start(peer);
+            }
+        }
+    }
+
+    pub fn on_accepted(&mut self, peer: PeerId) {
+        self.last_sync.insert(peer, Instant::now());
+        self.due.remove(&peer);
+    }
+
+    pub fn on_finished(&mut self, peer: &PeerId) {
+        self.running.remove(peer);
+    }
+
+    fn is_stale(&self, peer: &PeerId) -> bool {
+        !self.running.contains(peer)
+            && self
+                .last_sync
+                .get(peer)
+                .map_or(true, |at| at.elapsed() >= MIN_SYNC_INTERVAL)
+    }
+
+    fn start(&mut self, peer: PeerId) {
+        self.running.insert(peer);
+        self.last_sync.insert(peer, Instant::now());
+        let mut control = self.control.clone();
+        let log = self.log.clone();
+        let events = self.events.clone();
+        tokio::spawn(async move {
+            let result = match control.open_stream(peer, PROTOCOL).await {
+                Ok(stream) => run_session(stream, peer, &log, true).await,
+                Err(e) => Err(io::Error::new(io::ErrorKind::NotConnected, e)),
+            };
+            events.send(session_event(peer, result)).ok();
+        });
+    }
+}
+
+async fn accept_sessions(
+    mut incoming: IncomingStreams,
+    log: Arc<Mutex<SyncLog>>,
+    events: mpsc::UnboundedSender<SyncEvent>,
+) {
+    while let Some((peer, stream)) = incoming.next().await {
+        events.send(SyncEvent::Accepted { peer }).ok();
+        let log = log.clone();
+        let events = events.clone();
+        tokio::spawn(async move {
+            let result = run_session(stream, peer, &log, false).await;
+            events.send(session_event(peer, result)).ok();
+        });
+    }
+}
+
+fn session_event(peer: PeerId, result: io::Result<Session>) -> SyncEvent {
+    match result {
+        Ok(outcome) => SyncEvent::Done {
+            peer,
+            received: outcome.received,
+            recovered: outcome.recovered,
+            sent: outcome.sent,
+        },
+        Err(error) => SyncEvent::Failed { peer, error },
+    }
+}
+
+#[derive(Serialize, Deserialize, Default)]
+struct Frame {
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    floor: Option<Bound>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    ranges: Vec<Range>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    need: Vec<Bound>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    data: Vec<Item>,
+    // More data frames of the same round follow
+    #[serde(default)]
+    more: bool,
+}
+
+/// One range of a round; it starts where the previous one ended (the first at the floor)
+#[derive(Serialize, Deserialize)]
+struct Range {
+    upper: Bound,
+    mode: Mode,
+}
+
+#[derive(Serialize, Deserialize)]
+enum Mode {
+    /// Already reconciled
+    Skip,
+    Fingerprint { fp: u64, count: u64 },
+    /// Every item the sender has in the range
+    Items(Vec<Bound>),
+}
+
+/// A message sent to the side that lacks it; the key is recomputed on arrival
+#[derive(Serialize, Deserialize)]
+struct Item {
+    timestamp: u64,
+    // Written by the frame's sender (otherwise by its receiver)
+    mine: bool,
+    content: String,
+}
+
+struct Session {
+    received: Vec<(u64, String)>,
+    recovered: Vec<(u64, String)>,
+    sent: usize,
+}
+
+async fn run_session(
+    mut stream: Stream,
+    peer: PeerId,
+    log: &Mutex<SyncLog>,
+    initiator: bool,
+) -> io::Result<Session> {
+    let (items, own_floor) = log
+        .lock()
+        .map_err(|_| io::Error::new(io::ErrorKind::Other, "sync log poisoned"))?
+        .snapshot(&peer);
+
+    let hello = Frame {
+        floor: Some(own_floor),
+        ..Default::default()
+    };
+    let their_floor = if initiator {
+        write_frame(&mut stream, &hello).await?;
+        read_frame(&mut stream).await?.floor
+    } else {
+        let floor = read_frame(&mut stream).await?.floor;
+        write_frame(&mut stream, &hello).await?;
+        floor
+    };
+    let floor = own_floor.max(their_floor.unwrap_or(START));
+
+    let mut outcome = Session {
+        received: Vec::new(),
+        recovered: Vec::new(),
+        sent: 0,
+    };
+    let mut reconciler = Reconciler::new(items, floor);
+    if initiator {
+        let first = Frame {
+            ranges: reconciler.first_ranges(),
+            ..Default::default()
+        };
+        write_frame(&mut stream, &first).await?;
+    }
+
+    for _ in 0..MAX_ROUNDS {
+        // One round: data frames, the last one also carrying ranges and requests
+        let mut data = Vec::new();
+        let frame = loop {
+            let mut frame = read_frame(&mut stream).await?;
+            data.append(&mut frame.data);
+            if !frame.more {
+                break frame;
+            }
+        };
+        apply(log, peer, &reconciler, data, &mut outcome)?;
+        if frame.ranges.is_empty() && frame.need.is_empty() {
+            stream.close().await.ok();
+            return Ok(outcome);
+        }
+
+        let (ranges, need, send) = reconciler.answer(&frame.ranges, &frame.need);
+        let done = ranges.is_empty() && need.is_empty();
+
+        let mut data: Vec<Item> = send
+            .iter()
+            .filter_map(|bound| reconciler.items.get(bound).map(|e| (bound, e)))
+            .map(|((timestamp, _), entry)| Item {
+                timestamp: *timestamp,
+                mine: entry.from_me,
+                content: entry.content.clone(),
+            })
+            .collect();
+        outcome.sent += data.len();
+        loop {
+            let n = batch_len(&data);
+            if n == data.len() {
+                break;
+            }
+            let rest = data.split_off(n);
+            let batch = std::mem::replace(&mut data, rest);
+            write_frame(&mut stream, &Frame { data: batch, more: true, ..Default::default() }).await?;
+        }
+        write_frame(&mut stream, &Frame { ranges, need, data, ..Default::default() }).await?;
+        if done {
+            stream.close().await.ok();
+            return Ok(outcome);
+        }
+    }
+    Err(io::Error::new(io::ErrorKind::TimedOut, "sync did not converge"))
+}
+
+/// One side of a session: its copy of the conversation and what it asked the peer for
+struct Reconciler {
+    items: BTreeMap<Bound, Entry>,
+    floor: Bound,
+    // Keys this side put in `need`
+    requested: HashSet<Bound>,
+    // Ranges this side answered with its key list; the peer sends what we lack in them
+    listed: Vec<(Bound, Bound)>,
+}
+
+impl Reconciler {
+    fn new(items: BTreeMap<Bound, Entry>, floor: Bound) -> Self {
+        Self {
+            items,
+            floor,
+            requested: HashSet::new(),
+            listed: Vec::new(),
+        }
+    }
+
+    // The initiator's opening round: one fingerprint over everything above the floor
+    fn first_ranges(&self) -> Vec<Range> {
+        let (fp, count) = fingerprint(&self.items, self.floor, END);
+        vec![Range { upper: END, mode: Mode::Fingerprint { fp, count } }]
+    }
+
+    /// Answers the peer's ranges and requests: (our ranges, keys we need, keys to send)
+    fn answer(&mut self, theirs: &[Range], their_need: &[Bound]) -> (Vec<Range>, Vec<Bound>, Vec<Bound>) {
+        let (ranges, need, mut send) = reconcile(&self.items, self.floor, theirs);
+        send.extend(
+            their_need
+                .iter()
+                .filter(|b| **b >= self.floor && self.items.contains_key(*b))
+                .copied(),
+        );
+        self.requested.extend(need.iter().copied());
+        let mut lower = self.floor;
+        for range in &ranges {
+            if let Mode::Items(_) = range.mode {
+                self.listed.push((lower, range.upper));
+            }
+            lower = range.upper;
+        }
+        (ranges, need, send)
+    }
+
+    /// Whether an item the peer sent is one this session asked for: a key we
+    /// requested, or one inside a range we listed. Anything else is dropped,
+    /// so a peer can't push unrelated (e.g. backdated) messages as history.
+    fn accepts(&self, bound: &Bound) -> bool {
+        *bound >= self.floor
+            && !self.items.contains_key(bound)
+            && (self.requested.contains(bound)
+                || self.listed.iter().any(|(lower, upper)| bound >= lower && bound < upper))
+    }
+}
+
+// Answers the peer's ranges: (our ranges, keys we need, keys to send)
+fn reconcile(
+    items: &BTreeMap<Bound, Entry>,
+    floor: Bound,
+    theirs: &[Range],
+) -> (Vec<Range>, Vec<Bound>, Vec<Bound>) {
+    let mut ranges: Vec<Range> = Vec::new();
+    let mut need = Vec::new();
+    let mut send = Vec::new();
+    let mut lower = floor;
+    for range in theirs {
+        let upper = range.upper.max(lower);
+        match &range.mode {
+            Mode::Skip => push_skip(&mut ranges, upper),
+            Mode::Fingerprint { fp, count } => {
+                if fingerprint(items, lower, upper) == (*fp, *count) {
+                    push_skip(&mut ranges, upper);
+                } else {
+                    split(items, lower, upper, &mut ranges);
+                }
+            }
+            Mode::Items(keys) => {
+                let keys: HashSet<&Bound> = keys.iter().filter(|b| **b >= lower && **b < upper).collect();
+                send.extend(items.range(lower..upper).map(|(b, _)| *b).filter(|b| !keys.contains(b)));
+                need.extend(keys.into_iter().filter(|b| !items.contains_key(*b)).copied());
+                push_skip(&mut ranges, upper);
+            }
+        }
+        lower = upper;
+    }
+    // Nothing but Skip left: this side is done
+    if ranges.iter().all(|r| matches!(r.mode, Mode::Skip)) {
+        ranges.clear();
+    }
+    (ranges, need, send)
+}
+
+fn push_skip(ranges: &mut Vec<Range>, upper: Bound) {
+    // Adjacent skips collapse into one
+    if let Some(Range { upper: last, mode: Mode::Skip }) = ranges.last_mut() {
+        *last = upper;
+        return;
+    }
+    ranges.push(Range { upper, mode: Mode::Skip });
+}
+
+// Our items in [lower, upper), as a key list if small enough, else BRANCH fingerprinted parts
+fn split(items: &BTreeMap<Bound, Entry>, lower: Bound, upper: Bound, ranges: &mut Vec<Range>) {
+    let keys: Vec<Bound> = items.range(lower..upper).map(|(b, _)| *b).collect();
+    if keys.len() <= ITEM_LIST_THRESHOLD {
+        ranges.push(Range { upper, mode: Mode::Items(keys) });
+        return;
+    }
+    let chunk = keys.len().div_ceil(BRANCH);
+    let mut start = lower;
+    for i in 0..keys.len().div_ceil(chunk) {
+        let end = keys.get((i + 1) * chunk).copied().unwrap_or(upper);
+        let (fp, count) = fingerprint(items, start, end);
+        ranges.push(Range { upper: end, mode: Mode::Fingerprint { fp, count } });
+        start = end;
+    }
+}
+
+// Order-independent summary of [lower, upper): wrapping sum of item hashes, and the count
+fn fingerprint(items: &BTreeMap<Bound, Entry>, lower: Bound, upper: Bound) -> (u64, u64) {
+    if lower >= upper {
+        return (0, 0);
+    }
+    items.range(lower..upper).fold((0u64, 0u64), |(fp, count), ((timestamp, key), _)| {
+        let mut bytes = [0u8; 16];
+        bytes[..8].copy_from_slice(&timestamp.to_le_bytes());
+        bytes[8..].copy_from_slice(&key.to_le_bytes());
+        (fp.wrapping_add(fnv1a(&bytes)), count + 1)
+    })
+}
+
+// Records the peer's data that this session asked for; messages already known
+// (e.g. delivered meanwhile over chat) are dropped
+fn apply(
+    log: &Mutex<SyncLog>,
+    peer: PeerId,
+    reconciler: &Reconciler,
+    data: Vec<Item>,
+    outcome: &mut Session,
+) -> io::Result<()> {
+    if data.is_empty() {
+        return Ok(());
+    }
+    let mut log = log
+        .lock()
+        .map_err(|_| io::Error::new(io::ErrorKind::Other, "sync log poisoned"))?;
+    for item in data {
+        // The peer's item is ours if the peer did not write it
+        let from_me = !item.mine;
+        let author = if from_me { log.local } else { peer };
+        let bound = (item.timestamp, item_key(&author, item.timestamp, &item.content));
+        if !reconciler.accepts(&bound) {
+            log::warn!("Dropping unrequested sync item from {}", peer);
+            continue;
+        }
+        if !log.record(peer, from_me, item.timestamp, &item.content) {
+            continue;
+        }
+        if from_me {
+            outcome.recovered.push((item.timestamp, item.content));
+        } else {
+            outcome.received.push((item.timestamp, item.content));
+        }
+    }
+    Ok(())
+}
+
+fn batch_len(data: &[Item]) -> usize {
+    let mut bytes = 0;
+    for (i, item) in data.iter().enumerate() {
+        bytes += item.content.len() + 32;
+        if i >= DATA_BATCH_ITEMS || (i > 0 && bytes > DATA_BATCH_BYTES) {
+            return i;
+        }
+    }
+    data.len()
+}
+
+async fn write_frame(stream: &mut Stream, frame: &Frame) -> io::Result<()> {
+    let body = serde_json::to_vec(frame).map_err(|e| io::Error::new(io::ErrorKind::InvalidData, e))?;
+    let mut out = Vec::with_capacity(10 + body.len());
+    encode_varint(body.len() as u64, &mut out);
+    out.extend_from_slice(&body);
+    stream.write_all(&out).await?;
+    stream.flush().await
+}
+
+async fn read_frame(stream: &mut Stream) -> io::Result<Frame> {
+    let len = read_varint(stream).await?;
+    if len > MAX_FRAME_SIZE {
+        return Err(io::Error::new(io::ErrorKind::InvalidData, "sync frame too large"));
+    }
+    let mut body = vec![0u8; len as usize];
+    stream.read_exact(&mut body).await?;
+    serde_json::from_slice(&body).map_err(|e| io::Error::new(io::ErrorKind::InvalidData, e))
+}
+
+fn item_key(author: &PeerId, timestamp: u64, content: &str) -> u64 {
+    let mut bytes = author.to_bytes();
+    bytes.extend_from_slice(&timestamp.to_le_bytes());
+    bytes.extend_from_slice(content.as_bytes());
+    fnv1a(&bytes)
+}
+
+fn fnv1a(bytes: &[u8]) -> u64 {
+    let mut hash: u64 = 0xcbf2_9ce4_8422_2325;
+    for b in bytes {
+        hash ^= *b as u64;
+        hash = hash.wrapping_mul(0x0000_0100_0000_01b3);
+    }
+    hash
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn bound(i: u64) -> Bound {
+        (MIN_TRACKED_TIMESTAMP + i * 10, fnv1a(&i.to_le_bytes()))
+    }
+
+    fn set(ids: impl IntoIterator<Item = u64>) -> BTreeMap<Bound, Entry> {
+        ids.into_iter()
+            .map(|i| {
+                let entry = Entry {
+                    from_me: false,
+                    content: i.to_string(),
+                };
+                (bound(i), entry)
+            })
+            .collect()
+    }
+
+    struct Run {
+        a: HashSet<Bound>,
+        b: HashSet<Bound>,
+        sent: usize,
+        rounds: usize,
+    }
+
+    // Runs a whole session in memory, the way run_session exchanges frames
+    fn run(a: BTreeMap<Bound, Entry>, b: BTreeMap<Bound, Entry>) -> Run {
+        let mut sides = [Reconciler::new(a, START), Reconciler::new(b, START)];
+        let mut got: [HashSet<Bound>; 2] = [HashSet::new(), HashSet::new()];
+        let mut ranges = sides[0].first_ranges();
+        let mut need = Vec::new();
+        let mut data: Vec<Bound> = Vec::new();
+        let mut sent = 0;
+        let mut to = 1;
+        let mut rounds = 0;
+        loop {
+            for b in data.drain(..) {
+                assert!(sides[to].accepts(&b), "item the receiver did not ask for");
+                got[to].insert(b);
+            }
+            if ranges.is_empty() && need.is_empty() {
+                break;
+            }
+            rounds += 1;
+            assert!(rounds <= MAX_ROUNDS, "did not converge");
+            let (r, n, s) = sides[to].answer(&ranges, &need);
+            sent += s.len();
+            (ranges, need, data) = (r, n, s);
+            to = 1 - to;
+        }
+        let mut result = Run {
+            a: sides[0].items.keys().copied().collect(),
+            b: sides[1].items.keys().copied().collect(),
+            sent,
+            rounds,
+        };
+        result.a.extend(got[0].iter().copied());
+        result.b.extend(got[1].iter().copied());
+        result
+    }
+
+    fn check(a: Vec<u64>, b: Vec<u64>) -> Run {
+        let union: HashSet<Bound> = a.iter().chain(b.iter()).map(|i| bound(*i)).collect();
+        let only_a = a.iter().filter(|i| !b.contains(i)).count();
+        let only_b = b.iter().filter(|i| !a.contains(i)).count();
+        let result = run(set(a), set(b));
+        assert_eq!(result.a, union);
+        assert_eq!(result.b, union);
+        // Only the difference crosses the wire, each item once
+        assert_eq!(result.sent, only_a + only_b);
+        result
+    }
+
+    #[test]
+    fn empty_sets() {
+        let result = check(vec![], vec![]);
+        assert_eq!(result.rounds, 1);
+    }
+
+    #[test]
+    fn one_side_empty() {
+        check((0..500).collect(), vec![]);
+        check(vec![], (0..500).collect());
+    }
+
+    #[test]
+    fn identical_sets_settle_in_one_round() {
+        let result = check((0..1000).collect(), (0..1000).collect());
+        assert_eq!(result.rounds, 1);
+        assert_eq!(result.sent, 0);
+    }
+
+    #[test]
+    fn disjoint_sets() {
+        // Interleaved, so every range differs on both sides
+        check((0..400).filter(|i| i % 2 == 0).collect(), (0..400).filter(|i| i % 2 == 1).collect());
+        check((0..10).collect(), (10..20).collect());
+    }
+
+    #[test]
+    fn overlapping_sets() {
+        check((0..300).collect(), (200..500).collect());
+    }
+
+    #[test]
+    fn small_difference_in_large_sets() {
+        // Far above ITEM_LIST_THRESHOLD: the ranges must split down to key lists
+        let mut a: Vec<u64> = (0..2000).collect();
+        let mut b = a.clone();
+        a.retain(|i| i % 397 != 5);
+        b.retain(|i| i % 541 != 7);
+        let result = check(a, b);
+        assert!(result.rounds < MAX_ROUNDS);
+    }
+
+    #[test]
+    fn item_list_threshold_boundary() {
+        let n = ITEM_LIST_THRESHOLD as u64;
+        check((0..n).collect(), (0..n + 1).collect());
+        check((0..n + 1).collect(), (1..n + 2).collect());
+    }
+
+    #[test]
+    fn unrequested_items_are_refused() {
+        let mut side = Reconciler::new(set(0..100), START);
+        // Nothing asked for yet
+        assert!(!side.accepts(&bound(1000)));
+        // The peer's fingerprint over everything differs: we split, nothing listed below 16 items
+        side.answer(&[Range { upper: END, mode: Mode::Fingerprint { fp: 1, count: 1 } }], &[]);
+        assert!(!side.accepts(&(1, 1)));
+        // Keys the peer listed and we lack are requested, so accepted
+        let theirs = vec![bound(5000)];
+        let (_, need, _) = side.answer(&[Range { upper: END, mode: Mode::Items(theirs.clone()) }], &[]);
+        assert_eq!(need, theirs);
+        assert!(side.accepts(&bound(5000)));
+        assert!(!side.accepts(&bound(6000)));
+    }
+}
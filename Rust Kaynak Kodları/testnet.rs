@@ -0,0 +1,186 @@
+// Localhost swarms for the tests of the network modules: TCP + noise + yamux on
+// 127.0.0.1 with a relay client, like the app's transport minus QUIC and mDNS.
+// Every swarm counts the bytes it writes to its sockets, so tests can report
+// real traffic instead of estimates.
+
+use futures::future::select_all;
+use futures::{AsyncRead, AsyncWrite, StreamExt};
+use libp2p::core::upgrade;
+use libp2p::multiaddr::Protocol;
+use libp2p::swarm::{behaviour::toggle::Toggle, NetworkBehaviour, Swarm, SwarmEvent};
+use libp2p::{identity, noise, ping, relay, tcp, yamux, Multiaddr, SwarmBuilder, Transport};
+use std::io;
+use std::path::PathBuf;
+use std::pin::Pin;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::Arc;
+use std::task::{Context, Poll};
+use std::time::Duration;
+
+/// How long the helpers below wait for the network before failing the test
+pub const TIMEOUT: Duration = Duration::from_secs(20);
+
+// A connection's socket, counting the bytes written to it
+struct Counting<T> {
+    inner: T,
+    sent: Arc<AtomicU64>,
+}
+
+impl<T: AsyncRead + Unpin> AsyncRead for Counting<T> {
+    fn poll_read(mut self: Pin<&mut Self>, cx: &mut Context<'_>, buf: &mut [u8]) -> Poll<io::Result<usize>> {
+        Pin::new(&mut self.inner).poll_read(cx, buf)
+    }
+}
+
+impl<T: AsyncWrite + Unpin> AsyncWrite for Counting<T> {
+    fn poll_write(mut self: Pin<&mut Self>, cx: &mut Context<'_>, buf: &[u8]) -> Poll<io::Result<usize>> {
+        let poll = Pin::new(&mut self.inner).poll_write(cx, buf);
+        if let Poll::Ready(Ok(n)) = poll {
+            self.sent.fetch_add(n as u64, Ordering::Relaxed);
+        }
+        poll
+    }
+
+    fn poll_flush(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<io::Result<()>> {
+        Pin::new(&mut self.inner).poll_flush(cx)
+    }
+
+    fn poll_close(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<io::Result<()>> {
+        Pin::new(&mut self.inner).poll_close(cx)
+    }
+}
+
+/// A swarm with a fresh identity; `behaviour` gets the relay client, which it may drop.
+/// The counter holds every byte the swarm wrote, headers and relayed traffic included.
+pub fn swarm<B: NetworkBehaviour>(
+    behaviour: impl FnOnce(&identity::Keypair, relay::client::Behaviour) -> B,
+) -> (Swarm<B>, Arc<AtomicU64>) {
+    let sent = Arc::new(AtomicU64::new(0));
+    let counter = sent.clone();
+    let swarm = SwarmBuilder::with_new_identity()
+        .with_tokio()
+        .with_other_transport(move |key| {
+            tcp::tokio::Transport::new(tcp::Config::default().nodelay(true))
+                .map(move |stream, _| Counting {
+                    inner: stream,
+                    sent: counter.clone(),
+                })
+                .upgrade(upgrade::Version::V1)
+                .authenticate(noise::Config::new(key).expect("noise config"))
+                .multiplex(yamux::Config::default())
+        })
+        .expect("tcp transport")
+        .with_relay_client(noise::Config::new, yamux::Config::default)
+        .expect("relay transport")
+        .with_behaviour(behaviour)
+        .expect("behaviour")
+        .with_swarm_config(|c| c.with_idle_connection_timeout(Duration::from_secs(60)))
+        .build();
+    (swarm, sent)
+}
+
+/// Relay client, ping and, on relay stand-ins, the relay server
+#[derive(NetworkBehaviour)]
+pub struct Node {
+    pub relay_client: relay::client::Behaviour,
+    pub relay: Toggle<relay::Behaviour>,
+    pub ping: ping::Behaviour,
+}
+
+/// Pings every 100 ms so RTTs show up quickly
+pub fn node(server: bool) -> Swarm<Node> {
+    let (swarm, _) = self::swarm(|key, relay_client| Node {
+        relay_client,
+        relay: server
+            .then(|| relay::Behaviour::new(key.public().to_peer_id(), Default::default()))
+            .into(),
+        ping: ping::Behaviour::new(ping::Config::new().with_interval(Duration::from_millis(100))),
+    });
+    swarm
+}
+
+/// A listening relay stand-in and its address (with /p2p)
+pub async fn relay() -> (Swarm<Node>, Multiaddr) {
+    let mut relay = node(true);
+    let addr = listen(&mut relay).await;
+    let mut external = addr.clone();
+    external.pop();
+    // The relay hands this out in reservations
+    relay.add_external_address(external);
+    (relay, addr)
+}
+
+/// Listens on a free localhost port; returns the address with /p2p/<peer> appended
+pub async fn listen<B: NetworkBehaviour>(swarm: &mut Swarm<B>) -> Multiaddr {
+    swarm
+        .listen_on("/ip4/127.0.0.1/tcp/0".parse().unwrap())
+        .expect("listen on localhost");
+    loop {
+        if let SwarmEvent::NewListenAddr { address, .. } = swarm.select_next_some().await {
+            return address.with(Protocol::P2p(*swarm.local_peer_id()));
+        }
+    }
+}
+
+/// Drives all `swarms` until `done` returns true for an event (index of the
+/// swarm, event); false if `timeout` passed first
+pub async fn run_until<B: NetworkBehaviour>(
+    swarms: &mut [Swarm<B>],
+    timeout: Duration,
+    mut done: impl FnMut(usize, SwarmEvent<B::ToSwarm>) -> bool,
+) -> bool {
+    let run = async {
+        loop {
+            let (event, index, _) = select_all(swarms.iter_mut().map(|s| s.select_next_some())).await;
+            if done(index, event) {
+                return;
+            }
+        }
+    };
+    tokio::time::timeout(timeout, run).await.is_ok()
+}
+
+/// Dials `addr` (a listen address of `swarms[to]`) from `swarms[from]` and
+/// drives all of them until both ends report the connection
+pub async fn connect<B: NetworkBehaviour>(swarms: &mut [Swarm<B>], from: usize, to: usize, addr: Multiaddr) {
+    let (dialer, listener) = (*swarms[from].local_peer_id(), *swarms[to].local_peer_id());
+    swarms[from].dial(addr).expect("dial");
+    let mut seen = (false, false);
+    let connected = run_until(swarms, TIMEOUT, |index, event| {
+        if let SwarmEvent::ConnectionEstablished { peer_id, .. } = event {
+            seen.0 |= index == from && peer_id == listener;
+            seen.1 |= index == to && peer_id == dialer;
+        }
+        seen.0 && seen.1
+    })
+    .await;
+    assert!(connected, "swarms {} and {} did not connect", from, to);
+}
+
+/// Keeps polling `swarm` on its own task, for nodes the test doesn't watch
+/// (relays, or peers whose protocols run on spawned tasks)
+pub fn spawn<B>(mut swarm: Swarm<B>)
+where
+    B: NetworkBehaviour + Send + 'static,
+    B::ToSwarm: Send,
+{
+    tokio::spawn(async move {
+        loop {
+            swarm.select_next_some().await;
+        }
+    });
+}
+
+/// An empty directory of its own under the system temp dir
+pub fn temp_dir(name: &str) -> PathBuf {
+    static NEXT: AtomicU64 = AtomicU64::new(0);
+    let dir = std::env::temp_dir().join(format!(
+        "umay-{}-{}-{}",
+        name,
+        std::process::id(),
+        NEXT.fetch_add(1, Ordering::Relaxed)
+    ));
+    std::fs::remove_dir_all(&dir).ok();
+    std::fs::create_dir_all(&dir).expect("create temp dir");
+    dir
+}
@@ -0,0 +1,778 @@
+use crate::codec::{encode_varint, read_varint};
+use crate::metrics::{self, METRICS};
+use futures::{AsyncReadExt, AsyncWriteExt, StreamExt};
+use libp2p::{PeerId, Stream, StreamProtocol};
+use libp2p_stream::{Control, IncomingStreams};
+use std::collections::{HashMap, HashSet};
+use std::io::{self, SeekFrom};
+use std::path::{Path, PathBuf};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, Instant, SystemTime};
+use tokio::io::{AsyncReadExt as _, AsyncSeekExt, AsyncWriteExt as _};
+use tokio::sync::mpsc;
+
+/// Attachments travel on their own stream, next to /chat/2.0.0
+pub const PROTOCOL: StreamProtocol = StreamProtocol::new("/umay/file/1.0.0");
+
+// Bytes read from disk and written to the stream per step; yamux/QUIC
+// stream windows hold the writer back when the receiver is slower
+const CHUNK_SIZE: usize = 64 * 1024;
+// A progress event is emitted every this many bytes
+const PROGRESS_STEP: u64 = 256 * 1024;
+const MAX_NAME_LEN: u64 = 255;
+// Saved names are cut to this many bytes, leaving room for " (n)" from unique_path
+// under the usual 255-byte file name limit
+const MAX_SAVED_NAME: usize = 200;
+// An extension up to this long survives the cut
+const MAX_KEPT_EXTENSION: usize = 16;
+pub const MAX_FILE_SIZE: u64 = 4 * 1024 * 1024 * 1024;
+// Failed sends are restarted (from the receiver's offset) this many times
+const MAX_SEND_ATTEMPTS: u32 = 5;
+// Bytes all running incoming transfers may still write, together
+const MAX_INCOMING_BYTES: u64 = 1024 * 1024 * 1024;
+// Disk space left free after an incoming transfer is accounted for
+const MIN_FREE_DISK: u64 = 256 * 1024 * 1024;
+// Unfinished .part files are deleted after this long without being resumed
+const PART_MAX_AGE: Duration = Duration::from_secs(24 * 60 * 60);
+// The received directory is swept for stale .part files at most this often
+const PART_SWEEP_INTERVAL: Duration = Duration::from_secs(60 * 60);
+
+// Resume offset the receiver answers with when it refuses the file
+const OFFSET_REJECTED: u64 = u64::MAX;
+
+// Sent by the receiver once the whole file is on disk
+const ACK_COMPLETE: u8 = 1;
+
+/// Progress and results of running transfers, handled on the node loop
+pub enum TransferEvent {
+    Progress {
+        peer: PeerId,
+        id: u64,
+        incoming: bool,
+        bytes: u64,
+        total: u64,
+    },
+    Sent {
+        peer: PeerId,
+        id: u64,
+    },
+    SendFailed {
+        peer: PeerId,
+        id: u64,
+        error: io::Error,
+    },
+    Received {
+        peer: PeerId,
+        id: u64,
+        name: String,
+        path: PathBuf,
+        size: u64,
+    },
+}
+
+/// What happened to an outgoing transfer after a failure
+pub enum SendOutcome {
+    /// Restarted when the peer connects again, resuming at the receiver's offset
+    Waiting,
+    Failed,
+}
+
+struct OutgoingFile {
+    peer: PeerId,
+    path: PathBuf,
+    attempts: u32,
+    running: bool,
+}
+
+/// What the accepting side checks before it writes anything to disk
+struct Inbound {
+    dir: PathBuf,
+    // Peers the app talks to (contacts, chats it opened); nobody else may send files
+    allowed: Mutex<HashSet<PeerId>>,
+    // Bytes still to be written by the running incoming transfers
+    reserved: AtomicU64,
+}
+
+/// Outgoing attachments of the node.
+///
+/// Each file is streamed by its own task. The wire format on PROTOCOL is:
+/// sender writes varint transfer ID, varint size, varint name length and
+/// the UTF-8 name; the receiver answers with a varint offset (bytes of
+/// this transfer it already has from an earlier attempt); the sender then
+/// writes the rest of the file and waits for a one-byte ack. The receiver
+/// writes straight into a `.part` file in app storage, so file data never
+/// crosses JNI.
+///
+/// Incoming files are only accepted from peers passed to `allow`, while the
+/// running transfers stay under MAX_INCOMING_BYTES and the disk keeps
+/// MIN_FREE_DISK free; a refused sender is answered with OFFSET_REJECTED.
+/// `.part` files not resumed within PART_MAX_AGE are deleted.
+pub struct FileTransfers {
+    control: Control,
+    events: mpsc::UnboundedSender<TransferEvent>,
+    outgoing: HashMap<u64, OutgoingFile>,
+    inbound: Arc<Inbound>,
+}
+
+impl FileTransfers {
+    /// Starts accepting incoming files into `dir`; events arrive on the returned receiver
+    pub fn new(mut control: Control, dir: PathBuf) -> (Self, mpsc::UnboundedReceiver<TransferEvent>) {
+        let (events, events_rx) = mpsc::unbounded_channel();
+        let inbound = Arc::new(Inbound {
+            dir,
+            allowed: Mutex::new(HashSet::new()),
+            reserved: AtomicU64::new(0),
+        });
+        match control.accept(PROTOCOL) {
+            Ok(incoming) => {
+                tokio::spawn(accept_files(incoming, inbound.clone(), events.clone()));
+            }
+            Err(e) => log::error!("File transfer protocol already registered: {:?}", e),
+        }
+        let transfers = Self {
+            control,
+            events,
+            outgoing: HashMap::new(),
+            inbound,
+        };
+        (transfers, events_rx)
+    }
+
+    /// Lets `peer` send files to us (a contact, or a chat the user opened)
+    pub fn allow(&self, peer: PeerId) {
+        if let Ok(mut allowed) = self.inbound.allowed.lock() {
+            allowed.insert(peer);
+        }
+    }
+
+    /// Queues `path` for `peer`; it starts right away if the peer is connected
+    pub fn send(&mut self, peer: PeerId, id: u64, path: PathBuf, connected: bool) {
+        // Whoever we send files to may send some back
+        self.allow(peer);
+        self.outgoing.insert(
+            id,
+            OutgoingFile {
+                peer,
+                path,
+                attempts: 0,
+                running: false,
+            },
+        );
+        if connected {
+            self.start(id);
+        }
+    }
+
+    /// New connection to `peer`: resume its waiting transfers
+    pub fn on_connected(&mut self, peer: &PeerId) {
+        let waiting: Vec<u64> = self
+            .outgoing
+            .iter()
+            .filter(|(_, f)| f.peer == *peer && !f.running)
+            .map(|(id, _)| *id)
+            .collect();
+        for id in waiting {
+            self.start(id);
+        }
+    }
+
+    pub fn on_sent(&mut self, id: u64) {
+        self.outgoing.remove(&id);
+    }
+
+    /// `error` is the failure of the last attempt; a refusal by the receiver is final
+    pub fn on_send_failed(&mut self, id: u64, error: &io::Error) -> SendOutcome {
+        let Some(file) = self.outgoing.get_mut(&id) else {
+            return SendOutcome::Failed;
+        };
+        file.running = false;
+        if file.attempts >= MAX_SEND_ATTEMPTS || error.kind() == io::ErrorKind::PermissionDenied {
+            self.outgoing.remove(&id);
+            return SendOutcome::Failed;
+        }
+        SendOutcome::Waiting
+    }
+
+    fn start(&mut self, id: u64) {
+        let Some(file) = self.outgoing.get_mut(&id) else { return };
+        file.running = true;
+        file.attempts += 1;
+        let (peer, path) = (file.peer, file.path.clone());
+        let control = self.control.clone();
+        let events = self.events.clone();
+        tokio::spawn(async move {
+            let event = match send_file(control, peer, id, &path, &events).await {
+                Ok(()) => TransferEvent::Sent { peer, id },
+                Err(error) => TransferEvent::SendFailed { peer, id, error },
+            };
+            events.send(event).ok();
+        });
+    }
+}
+
+async fn send_file(
+    mut control: Control,
+    peer: PeerId,
+    id: u64,
+    path: &Path,
+    events: &mpsc::UnboundedSender<TransferEvent>,
+) -> io::Result<()> {
+    let mut file = tokio::fs::File::open(path).await?;
+    let size = file.metadata().await?.len();
+    if size > MAX_FILE_SIZE {
+        return Err(io::Error::new(io::ErrorKind::InvalidInput, "file too large"));
+    }
+    let name = path
+        .file_name()
+        .map(|n| safe_file_name(&n.to_string_lossy(), id))
+        .unwrap_or_else(|| format!("file-{}", id));
+
+    let mut stream = control
+        .open_stream(peer, PROTOCOL)
+        .await
+        .map_err(|e| io::Error::new(io::ErrorKind::NotConnected, e))?;
+
+    stream.write_all(&encode_header(id, size, &name)).await?;
+    stream.flush().await?;
+
+    // Resume where an earlier attempt stopped
+    let offset = read_varint(&mut stream).await?;
+    if offset == OFFSET_REJECTED {
+        return Err(io::Error::new(io::ErrorKind::PermissionDenied, "receiver refused the file"));
+    }
+    if offset > size {
+        return Err(io::Error::new(io::ErrorKind::InvalidData, "resume offset past end of file"));
+    }
+    if offset > 0 {
+        log::info!("📎 Resuming transfer {} to {} at {}/{} bytes", id, peer, offset, size);
+        file.seek(SeekFrom::Start(offset)).await?;
+    }
+
+    let mut buf = vec![0u8; CHUNK_SIZE];
+    let mut sent = offset;
+    let mut reported = offset;
+    while sent < size {
+        let want = (size - sent).min(CHUNK_SIZE as u64) as usize;
+        let n = file.read(&mut buf[..want]).await?;
+        if n == 0 {
+            return Err(io::Error::new(io::ErrorKind::UnexpectedEof, "file shrank during transfer"));
+        }
+        stream.write_all(&buf[..n]).await?;
+        METRICS.add(metrics::STAT_BYTES_OUT, n as i64);
+        sent += n as u64;
+        if sent - reported >= PROGRESS_STEP {
+            reported = sent;
+            events
+                .send(TransferEvent::Progress { peer, id, incoming: false, bytes: sent, total: size })
+                .ok();
+        }
+    }
+    stream.flush().await?;
+
+    // Delivered only once the receiver has the whole file on disk
+    let mut ack = [0u8; 1];
+    stream.read_exact(&mut ack).await?;
+    if ack[0] != ACK_COMPLETE {
+        return Err(io::Error::new(io::ErrorKind::InvalidData, "unknown transfer ack"));
+    }
+    stream.close().await.ok();
+    Ok(())
+}
+
+async fn accept_files(
+    mut incoming: IncomingStreams,
+    inbound: Arc<Inbound>,
+    events: mpsc::UnboundedSender<TransferEvent>,
+) {
+    let mut last_sweep: Option<Instant> = None;
+    while let Some((peer, stream)) = incoming.next().await {
+        if last_sweep.map_or(true, |at| at.elapsed() >= PART_SWEEP_INTERVAL) {
+            last_sweep = Some(Instant::now());
+            tokio::spawn(sweep_parts(inbound.dir.clone()));
+        }
+        let inbound = inbound.clone();
+        let events = events.clone();
+        tokio::spawn(async move {
+            match receive_file(peer, stream, &inbound, &events).await {
+                Err(e) if e.kind() == io::ErrorKind::PermissionDenied => {
+                    log::warn!("📎 Refused incoming transfer from {}: {}", peer, e);
+                }
+                // The .part file stays; the sender's retry resumes from it (or sweep_parts deletes it)
+                Err(e) => log::warn!("📎 Incoming transfer from {} interrupted: {:?}", peer, e),
+                Ok(()) => {}
+            }
+        });
+    }
+}
+
+// Bytes of MAX_INCOMING_BYTES held by one running transfer, released on drop
+struct Reservation<'a> {
+    reserved: &'a AtomicU64,
+    bytes: u64,
+}
+
+impl Drop for Reservation<'_> {
+    fn drop(&mut self) {
+        self.reserved.fetch_sub(self.bytes, Ordering::Relaxed);
+    }
+}
+
+fn reserve(reserved: &AtomicU64, bytes: u64) -> Option<Reservation<'_>> {
+    reserved
+        .fetch_update(Ordering::Relaxed, Ordering::Relaxed, |current| {
+            current.checked_add(bytes).filter(|total| *total <= MAX_INCOMING_BYTES)
+        })
+        .ok()
+        .map(|_| Reservation { reserved, bytes })
+}
+
+// Transfer ID, size, name length and name, as the sender opens the stream
+fn encode_header(id: u64, size: u64, name: &str) -> Vec<u8> {
+    let mut header = Vec::with_capacity(32 + name.len());
+    encode_varint(id, &mut header);
+    encode_varint(size, &mut header);
+    encode_varint(name.len() as u64, &mut header);
+    header.extend_from_slice(name.as_bytes());
+    header
+}
+
+// Reads what encode_header wrote; the name is returned as sent, not yet made safe
+async fn read_header<T>(io: &mut T) -> io::Result<(u64, u64, String)>
+where
+    T: futures::AsyncRead + Unpin + Send,
+{
+    let id = read_varint(io).await?;
+    let size = read_varint(io).await?;
+    let name_len = read_varint(io).await?;
+    if size > MAX_FILE_SIZE || name_len > MAX_NAME_LEN {
+        return Err(io::Error::new(io::ErrorKind::InvalidData, "transfer header out of range"));
+    }
+    let mut name_buf = vec![0u8; name_len as usize];
+    io.read_exact(&mut name_buf).await?;
+    Ok((id, size, String::from_utf8_lossy(&name_buf).into_owned()))
+}
+
+async fn reject(stream: &mut Stream, reason: &str) -> io::Result<()> {
+    let mut reply = Vec::with_capacity(10);
+    encode_varint(OFFSET_REJECTED, &mut reply);
+    stream.write_all(&reply).await?;
+    stream.close().await.ok();
+    Err(io::Error::new(io::ErrorKind::PermissionDenied, reason.to_string()))
+}
+
+async fn receive_file(
+    peer: PeerId,
+    mut stream: Stream,
+    inbound: &Inbound,
+    events: &mpsc::UnboundedSender<TransferEvent>,
+) -> io::Result<()> {
+    let dir = inbound.dir.as_path();
+    let (id, size, name) = read_header(&mut stream).await?;
+    let name = safe_file_name(&name, id);
+
+    let allowed = inbound.allowed.lock().map(|a| a.contains(&peer)).unwrap_or(false);
+    if !allowed {
+        return reject(&mut stream, "sender is not a contact").await;
+    }
+
+    tokio::fs::create_dir_all(dir).await?;
+    let part_path = dir.join(format!("{}-{}.part", peer, id));
+    let existing = tokio::fs::metadata(&part_path).await.map(|m| m.len()).unwrap_or(0).min(size);
+    let remaining = size - existing;
+    let Some(_reservation) = reserve(&inbound.reserved, remaining) else {
+        return reject(&mut stream, "too much incoming data in progress").await;
+    };
+    // Checked after reserving so concurrent transfers don't both see the same free space
+    let reserved = inbound.reserved.load(Ordering::Relaxed);
+    if free_disk(dir).map_or(false, |free| free < reserved.saturating_add(MIN_FREE_DISK)) {
+        return reject(&mut stream, "not enough free disk space").await;
+    }
+
+    let mut file = tokio::fs::OpenOptions::new()
+        .create(true)
+        .write(true)
+        .open(&part_path)
+        .await?;
+    let offset = file.metadata().await?.len().min(size);
+    file.set_len(offset).await?;
+    file.seek(SeekFrom::Start(offset)).await?;
+
+    let mut reply = Vec::with_capacity(10);
+    encode_varint(offset, &mut reply);
+    stream.write_all(&reply).await?;
+    stream.flush().await?;
+
+    let mut buf = vec![0u8; CHUNK_SIZE];
+    let mut received = offset;
+    let mut reported = offset;
+    while received < size {
+        let want = (size - received).min(CHUNK_SIZE as u64) as usize;
+        let n = stream.read(&mut buf[..want]).await?;
+        if n == 0 {
+            file.flush().await?;
+            return Err(io::Error::new(io::ErrorKind::UnexpectedEof, "sender closed early"));
+        }
+        file.write_all(&buf[..n]).await?;
+        METRICS.add(metrics::STAT_BYTES_IN, n as i64);
+        received += n as u64;
+        if received - reported >= PROGRESS_STEP {
+            reported = received;
+            events
+                .send(TransferEvent::Progress { peer, id, incoming: true, bytes: received, total: size })
+                .ok();
+        }
+    }
+    file.sync_all().await?;
+    drop(file);
+
+    let path = unique_path(dir, &name).await;
+    tokio::fs::rename(&part_path, &path).await?;
+    stream.write_all(&[ACK_COMPLETE]).await?;
+    stream.close().await.ok();
+
+    log::info!("📎 Received {} ({} bytes) from {}", name, size, peer);
+    events
+        .send(TransferEvent::Received { peer, id, name, path, size })
+        .ok();
+    Ok(())
+}
+
+// Deletes .part files that no sender resumed within PART_MAX_AGE
+async fn sweep_parts(dir: PathBuf) {
+    let Ok(mut entries) = tokio::fs::read_dir(&dir).await else { return };
+    while let Ok(Some(entry)) = entries.next_entry().await {
+        let path = entry.path();
+        if path.extension().map_or(true, |ext| ext != "part") {
+            continue;
+        }
+        let stale = entry
+            .metadata()
+            .await
+            .and_then(|m| m.modified())
+            .ok()
+            .and_then(|modified| SystemTime::now().duration_since(modified).ok())
+            .map_or(false, |age| age >= PART_MAX_AGE);
+        if stale && tokio::fs::remove_file(&path).await.is_ok() {
+            log::info!("📎 Deleted abandoned {:?}", path);
+        }
+    }
+}
+
+// Free bytes on the file system holding `dir`; None where it can't be read
+#[cfg(unix)]
+fn free_disk(dir: &Path) -> Option<u64> {
+    use std::os::unix::ffi::OsStrExt;
+    let path = std::ffi::CString::new(dir.as_os_str().as_bytes()).ok()?;
+    let mut stat: libc::statvfs = unsafe { std::mem::zeroed() };
+    if unsafe { libc::statvfs(path.as_ptr(), &mut stat) } != 0 {
+        return None;
+    }
+    Some((stat.f_bavail as u64).saturating_mul(stat.f_frsize as u64))
+}
+
+#[cfg(not(unix))]
+fn free_disk(_dir: &Path) -> Option<u64> {
+    None
+}
+
+// Keeps only the last path component so a sender can't write outside `dir`,
+// drops control characters (NUL included) and caps the length at MAX_SAVED_NAME
+fn safe_file_name(name: &str, id: u64) -> String {
+    let base = name.rsplit(|c| c == '/' || c == '\\').next().unwrap_or("");
+    let base: String = base.chars().filter(|c| !c.is_control()).collect();
+    let base = base.trim();
+    if base.is_empty() || base == "." || base == ".." {
+        format!("file-{}", id)
+    } else {
+        truncate_name(base, MAX_SAVED_NAME)
+    }
+}
+
+// At most `max` bytes, cut on a char boundary; a short extension is kept
+fn truncate_name(name: &str, max: usize) -> String {
+    if name.len() <= max {
+        return name.to_string();
+    }
+    let ext = match name.rfind('.') {
+        Some(dot) if dot > 0 && name.len() - dot <= MAX_KEPT_EXTENSION => &name[dot..],
+        _ => "",
+    };
+    let mut end = max - ext.len();
+    while !name.is_char_boundary(end) {
+        end -= 1;
+    }
+    format!("{}{}", name[..end].trim_end(), ext)
+}
+
+// "name.ext", then "name (1).ext", "name (2).ext" ... for the first free one
+async fn unique_path(dir: &Path, name: &str) -> PathBuf {
+    let candidate = dir.join(name);
+    if tokio::fs::metadata(&candidate).await.is_err() {
+        return candidate;
+    }
+    let (stem, ext) = match name.rfind('.') {
+        Some(dot) if dot > 0 => (&name[..dot], &name[dot..]),
+        _ => (name, ""),
+    };
+    for n in 1.. {
+        let candidate = dir.join(format!("{} ({}){}", stem, n, ext));
+        if tokio::fs::metadata(&candidate).await.is_err() {
+            return candidate;
+        }
+    }
+    unreachable!()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::testnet;
+    use futures::executor::block_on;
+    use futures::io::Cursor;
+
+    #[test]
+    fn header_round_trip() {
+        let header = encode_header(7, 1_000_000, "photo.jpg");
+        let mut io = Cursor::new(header);
+        let (id, size, name) = block_on(read_header(&mut io)).unwrap();
+        assert_eq!((id, size, name.as_str()), (7, 1_000_000, "photo.jpg"));
+        assert_eq!(io.position() as usize, io.get_ref().len());
+    }
+
+    #[test]
+    fn header_out_of_range_is_refused() {
+        let too_big = encode_header(1, MAX_FILE_SIZE + 1, "a");
+        let long_name = encode_header(1, 10, &"a".repeat(MAX_NAME_LEN as usize + 1));
+        for header in [too_big, long_name] {
+            let error = block_on(read_header(&mut Cursor::new(header))).unwrap_err();
+            assert_eq!(error.kind(), io::ErrorKind::InvalidData);
+        }
+    }
+
+    #[test]
+    fn truncated_header_is_an_error() {
+        let mut header = encode_header(1, 10, "name.txt");
+        header.truncate(header.len() - 2);
+        let error = block_on(read_header(&mut Cursor::new(header))).unwrap_err();
+        assert_eq!(error.kind(), io::ErrorKind::UnexpectedEof);
+    }
+
+    #[test]
+    fn rejected_offset_survives_the_varint() {
+        let mut reply = Vec::new();
+        encode_varint(OFFSET_REJECTED, &mut reply);
+        assert_eq!(reply.len(), 10);
+        assert_eq!(block_on(read_varint(&mut Cursor::new(reply))).unwrap(), OFFSET_REJECTED);
+        // A real offset can never be mistaken for a refusal
+        let mut reply = Vec::new();
+        encode_varint(MAX_FILE_SIZE, &mut reply);
+        assert_ne!(block_on(read_varint(&mut Cursor::new(reply))).unwrap(), OFFSET_REJECTED);
+    }
+
+    #[test]
+    fn reservations_stay_under_the_cap() {
+        let reserved = AtomicU64::new(0);
+        let first = reserve(&reserved, MAX_INCOMING_BYTES - 10).unwrap();
+        assert!(reserve(&reserved, 11).is_none());
+        let second = reserve(&reserved, 10).unwrap();
+        assert_eq!(reserved.load(Ordering::Relaxed), MAX_INCOMING_BYTES);
+        drop(first);
+        assert_eq!(reserved.load(Ordering::Relaxed), 10);
+        drop(second);
+        assert_eq!(reserved.load(Ordering::Relaxed), 0);
+    }
+
+    #[test]
+    fn reservation_overflow_is_refused() {
+        let reserved = AtomicU64::new(5);
+        assert!(reserve(&reserved, u64::MAX).is_none());
+        assert_eq!(reserved.load(Ordering::Relaxed), 5);
+    }
+
+    #[test]
+    fn file_names_are_made_safe() {
+        let cases = [
+            ("photo.jpg", "photo.jpg"),
+            ("../../etc/passwd", "passwd"),
+            ("C:\\Users\\me\\notes.txt", "notes.txt"),
+            ("a\0b\nc\u{1b}.txt", "abc.txt"),
+            ("  spaced.txt  ", "spaced.txt"),
+            ("dir/", "file-9"),
+            ("..", "file-9"),
+            (".", "file-9"),
+            ("\0\0", "file-9"),
+            ("", "file-9"),
+        ];
+        for (name, expected) in cases {
+            assert_eq!(safe_file_name(name, 9), expected, "{:?}", name);
+        }
+    }
+
+    #[test]
+    fn long_names_are_cut_keeping_the_extension() {
+        let name = safe_file_name(&format!("{}.pdf", "x".repeat(500)), 1);
+        assert_eq!(name.len(), MAX_SAVED_NAME);
+        assert!(name.ends_with("xx.pdf"));
+
+        // An "extension" too long to be one is cut like the rest
+        let name = safe_file_name(&format!("a.{}", "y".repeat(500)), 1);
+        assert_eq!(name.len(), MAX_SAVED_NAME);
+        assert!(name.starts_with("a.yy"));
+
+        // Never inside a multi-byte character
+        let name = safe_file_name(&format!("a{}.txt", "ğ".repeat(300)), 1);
+        assert_eq!(name.len(), MAX_SAVED_NAME - 1);
+        assert!(name.ends_with("ğ.txt"));
+    }
+
+    #[tokio::test]
+    async fn unique_path_numbers_taken_names() {
+        let dir = testnet::temp_dir("unique");
+        for (name, taken) in [("a.txt", "a (1).txt"), ("notes", "notes (1)"), (".profile", ".profile (1)")] {
+            let first = unique_path(&dir, name).await;
+            assert_eq!(first, dir.join(name));
+            std::fs::write(&first, b"x").unwrap();
+            assert_eq!(unique_path(&dir, name).await, dir.join(taken));
+        }
+        std::fs::write(dir.join("a (1).txt"), b"x").unwrap();
+        assert_eq!(unique_path(&dir, "a.txt").await, dir.join("a (2).txt"));
+    }
+
+    #[tokio::test]
+    async fn sweep_deletes_only_stale_parts() {
+        let dir = testnet::temp_dir("sweep");
+        let old = SystemTime::now() - PART_MAX_AGE - Duration::from_secs(60);
+        for (name, modified) in [("old.part", Some(old)), ("fresh.part", None), ("old.txt", Some(old))] {
+            let file = std::fs::File::create(dir.join(name)).unwrap();
+            if let Some(modified) = modified {
+                file.set_modified(modified).unwrap();
+            }
+        }
+        sweep_parts(dir.clone()).await;
+        assert!(!dir.join("old.part").exists());
+        assert!(dir.join("fresh.part").exists());
+        assert!(dir.join("old.txt").exists());
+    }
+
+    // Sender and receiver on two connected localhost swarms; both swarms run on
+    // their own tasks since the transfers use streams, not swarm events
+    struct Pair {
+        sender: FileTransfers,
+        sent: mpsc::UnboundedReceiver<TransferEvent>,
+        receiver: FileTransfers,
+        received: mpsc::UnboundedReceiver<TransferEvent>,
+        sender_peer: PeerId,
+        receiver_peer: PeerId,
+        sender_dir: PathBuf,
+        receiver_dir: PathBuf,
+    }
+
+    async fn pair() -> Pair {
+        let (a, _) = testnet::swarm(|_, _| libp2p_stream::Behaviour::new());
+        let (mut b, _) = testnet::swarm(|_, _| libp2p_stream::Behaviour::new());
+        let (sender_dir, receiver_dir) = (testnet::temp_dir("send"), testnet::temp_dir("receive"));
+        let (sender, sent) = FileTransfers::new(a.behaviour().new_control(), sender_dir.join("received"));
+        let (receiver, received) = FileTransfers::new(b.behaviour().new_control(), receiver_dir.clone());
+        let (sender_peer, receiver_peer) = (*a.local_peer_id(), *b.local_peer_id());
+        let addr = testnet::listen(&mut b).await;
+        let mut swarms = [a, b];
+        testnet::connect(&mut swarms, 0, 1, addr).await;
+        let [a, b] = swarms;
+        testnet::spawn(a);
+        testnet::spawn(b);
+        Pair {
+            sender,
+            sent,
+            receiver,
+            received,
+            sender_peer,
+            receiver_peer,
+            sender_dir,
+            receiver_dir,
+        }
+    }
+
+    // The first event that is not progress
+    async fn outcome(events: &mut mpsc::UnboundedReceiver<TransferEvent>) -> TransferEvent {
+        loop {
+            let event = tokio::time::timeout(testnet::TIMEOUT, events.recv())
+                .await
+                .expect("transfer timed out")
+                .expect("transfer events closed");
+            if !matches!(event, TransferEvent::Progress { .. }) {
+                return event;
+            }
+        }
+    }
+
+    fn content(len: usize) -> Vec<u8> {
+        (0..len).map(|i| (i * 31 % 251) as u8).collect()
+    }
+
+    #[tokio::test]
+    async fn unknown_sender_is_refused() {
+        let mut pair = pair().await;
+        let path = pair.sender_dir.join("secret.bin");
+        std::fs::write(&path, content(1000)).unwrap();
+
+        pair.sender.send(pair.receiver_peer, 1, path, true);
+        match outcome(&mut pair.sent).await {
+            TransferEvent::SendFailed { id, error, .. } => {
+                assert_eq!(id, 1);
+                assert_eq!(error.kind(), io::ErrorKind::PermissionDenied);
+            }
+            _ => panic!("refused transfer reported as sent"),
+        }
+        assert!(matches!(pair.sender.on_send_failed(1, &io::ErrorKind::PermissionDenied.into()), SendOutcome::Failed));
+        // Nothing was written, not even a .part file
+        assert_eq!(std::fs::read_dir(&pair.receiver_dir).unwrap().count(), 0);
+    }
+
+    #[tokio::test]
+    async fn allowed_sender_delivers_the_file() {
+        let mut pair = pair().await;
+        pair.receiver.allow(pair.sender_peer);
+        let data = content(3 * CHUNK_SIZE + 123);
+        let path = pair.sender_dir.join("report.pdf");
+        std::fs::write(&path, &data).unwrap();
+
+        pair.sender.send(pair.receiver_peer, 2, path, true);
+        match outcome(&mut pair.received).await {
+            TransferEvent::Received { peer, id, name, path, size } => {
+                assert_eq!((peer, id, name.as_str(), size), (pair.sender_peer, 2, "report.pdf", data.len() as u64));
+                assert_eq!(path, pair.receiver_dir.join("report.pdf"));
+                assert_eq!(std::fs::read(&path).unwrap(), data);
+            }
+            _ => panic!("expected the file to arrive"),
+        }
+        assert!(matches!(outcome(&mut pair.sent).await, TransferEvent::Sent { id: 2, .. }));
+        assert!(!pair.receiver_dir.join(format!("{}-2.part", pair.sender_peer)).exists());
+    }
+
+    #[tokio::test]
+    async fn transfer_resumes_at_the_receivers_offset() {
+        let mut pair = pair().await;
+        pair.receiver.allow(pair.sender_peer);
+        let data = content(2 * CHUNK_SIZE);
+        let path = pair.sender_dir.join("video.mp4");
+        std::fs::write(&path, &data).unwrap();
+        // What an interrupted attempt left behind; zeros, so the test can tell
+        // which bytes were sent again
+        let have = CHUNK_SIZE + 17;
+        let part = pair.receiver_dir.join(format!("{}-3.part", pair.sender_peer));
+        std::fs::write(&part, vec![0u8; have]).unwrap();
+
+        pair.sender.send(pair.receiver_peer, 3, path, true);
+        match outcome(&mut pair.received).await {
+            TransferEvent::Received { path, size, .. } => {
+                assert_eq!(size, data.len() as u64);
+                let saved = std::fs::read(&path).unwrap();
+                assert!(saved[..have].iter().all(|b| *b == 0));
+                assert_eq!(saved[have..], data[have..]);
+            }
+            _ => panic!("expected the resumed file to arrive"),
+        }
+        assert!(matches!(outcome(&mut pair.sent).await, TransferEvent::Sent { id: 3, .. }));
+    }
+}